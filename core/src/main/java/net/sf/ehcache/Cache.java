@@ -19,9 +19,13 @@ package net.sf.ehcache;
 import net.sf.ehcache.bootstrap.BootstrapCacheLoader;
 import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.config.DiskStoreConfiguration;
+import net.sf.ehcache.distribution.CachePeerReader;
+import net.sf.ehcache.distribution.PartitionedCacheExtension;
 import net.sf.ehcache.event.CacheEventListener;
 import net.sf.ehcache.event.RegisteredEventListeners;
 import net.sf.ehcache.exceptionhandler.CacheExceptionHandler;
+import net.sf.ehcache.serialization.ElementSerializer;
+import net.sf.ehcache.serialization.JavaElementSerializer;
 import net.sf.ehcache.extension.CacheExtension;
 import net.sf.ehcache.loader.CacheLoader;
 import net.sf.ehcache.store.DiskStore;
@@ -29,8 +33,10 @@ import net.sf.ehcache.store.LruMemoryStore;
 import net.sf.ehcache.store.MemoryStore;
 import net.sf.ehcache.store.MemoryStoreEvictionPolicy;
 import net.sf.ehcache.store.Policy;
+import net.sf.ehcache.store.ShardedDiskStore;
 import net.sf.ehcache.store.Store;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.InetAddress;
@@ -134,7 +140,7 @@ public class Cache implements Ehcache {
     /**
      * The amount of time to wait if a store gets backed up
      */
-    private static final int BACK_OFF_TIME_MILLIS = 50;
+    private static final int MAXIMUM_BACK_OFF_MILLIS = 1000;
 
     private static final int EXECUTOR_KEEP_ALIVE_TIME = 60000;
     private static final int EXECUTOR_MAXIMUM_POOL_SIZE = 10;
@@ -209,6 +215,8 @@ public class Cache implements Ehcache {
 
     private CacheExceptionHandler cacheExceptionHandler;
 
+    private ElementSerializer elementSerializer = JavaElementSerializer.INSTANCE;
+
     private List<CacheLoader> registeredCacheLoaders;
 
     /**
@@ -674,10 +682,15 @@ public class Cache implements Ehcache {
      * <li>diskPersistent is enabled
      * </ol>
      *
+     * If more than one diskStoreShard is configured, a {@link ShardedDiskStore} is created.
+     *
      * @return the disk store
      */
     protected Store createDiskStore() {
         if (isDiskStore()) {
+            if (configuration.getDiskStoreShards() > 1) {
+                return new ShardedDiskStore(this, diskStorePath, configuration.getDiskStoreShards());
+            }
             return new DiskStore(this, diskStorePath);
         } else {
             return null;
@@ -764,6 +777,24 @@ public class Cache implements Ehcache {
     public final void put(Element element, boolean doNotNotifyCacheReplicators) throws IllegalArgumentException,
             IllegalStateException,
             CacheException {
+        put(element, doNotNotifyCacheReplicators, false);
+    }
+
+    /**
+     * Puts a copy of an element fetched from a cache peer, as {@link #put(Element, boolean)} does for a put coming
+     * from a cache peer, but keeping the version and last update time the element was given where it was put, so
+     * that the copies of an element on different peers can be compared.
+     *
+     * @param element the element from the cache peer. If it is <code>null</code> or the key is <code>null</code>, it
+     *                is ignored as a NOOP.
+     * @throws IllegalStateException if the cache is not {@link Status#STATUS_ALIVE}
+     */
+    public final void putPeerCopy(Element element) throws IllegalStateException, CacheException {
+        put(element, true, true);
+    }
+
+    private void put(Element element, boolean doNotNotifyCacheReplicators, boolean keepUpdateStatistics)
+            throws IllegalArgumentException, IllegalStateException, CacheException {
         checkStatus();
 
         if (disabled) {
@@ -793,7 +824,7 @@ public class Cache implements Ehcache {
         Object key = element.getObjectKey();
         elementExists = isElementInMemory(key) || isElementOnDisk(key);
         //如果key值之前存在，则将 最后访问时间设置为当前。
-        if (elementExists) {
+        if (elementExists && !keepUpdateStatistics) {
             element.updateUpdateStatistics();
         }
         //取cache设置的基本时间信息，如果put时没有设置时间信息。
@@ -817,18 +848,18 @@ public class Cache implements Ehcache {
      * 这个可能导致写操作的堆积。
      * 
      * wait outside of synchronized block so as not to block readers
-     * If the disk store spool is full wait a short time to give it a chance to
-     * catch up.
+     * If the disk store spool is full wait, for up to a second, until the spool
+     * thread has written enough of it to make room.
      * todo maybe provide a warning if this is continually happening or monitor via JMX
      */
     private void backOffIfDiskSpoolFull() {
 
         if (diskStore != null && diskStore.bufferFull()) {
-            //back off to avoid OutOfMemoryError
+            //back off to avoid OutOfMemoryError, until the spool thread has made room
             try {
-                Thread.sleep(BACK_OFF_TIME_MILLIS);
+                diskStore.waitForBufferSpace(MAXIMUM_BACK_OFF_MILLIS);
             } catch (InterruptedException e) {
-                //do not care if this happens
+                Thread.currentThread().interrupt();
             }
         }
     }
@@ -895,6 +926,10 @@ public class Cache implements Ehcache {
      * Note that the Element's lastAccessTime is always the time of this get.
      * Use {@link #getQuiet(Object)} to peak into the Element to see its last access time with get
      * <p/>
+     * If a {@link CachePeerReader} extension is registered, such as the {@link PartitionedCacheExtension} or the
+     * {@link net.sf.ehcache.distribution.PeerReadThroughCacheExtension}, an element not held locally is read from the
+     * peers of the cache.
+     * <p/>
      * Synchronization is handled within the method.
      *
      * @param key an Object value
@@ -904,6 +939,10 @@ public class Cache implements Ehcache {
      * @since 1.2
      */
     public final Element get(Object key) throws IllegalStateException, CacheException {
+        return get(key, true);
+    }
+
+    private Element get(Object key, boolean searchInPeers) throws IllegalStateException, CacheException {
         checkStatus();
         Element element;
         long start = System.currentTimeMillis();
@@ -912,6 +951,9 @@ public class Cache implements Ehcache {
         if (element == null && isDiskStore()) {
             element = searchInDiskStore(key, true, true);
         }
+        if (element == null && searchInPeers) {
+            element = searchInPeers(key);
+        }
         if (element == null) {
             missCountNotFound++;
             if (LOG.isLoggable(Level.FINE)) {
@@ -1043,55 +1085,45 @@ public class Cache implements Ehcache {
 
         List<Object> missingKeys = new ArrayList<Object>(keys.size());
 
-        if (registeredCacheLoaders.size() > 0) {
-            Object key = null;
-            try {
-                map = new HashMap<Object, Object>(keys.size());
-
-                for (Object key1 : keys) {
-                    key = key1;
-
-                    if (isKeyInCache(key)) {
-                        Element element = get(key);
-                        if (element != null) {
-                            map.put(key, element.getObjectValue());
-                        } else {
-                            map.put(key, null);
-                        }
-                    } else {
-                        missingKeys.add(key);
-                    }
+        for (Object key : keys) {
+            if (isKeyInCache(key)) {
+                Element element = get(key, false);
+                if (element != null) {
+                    map.put(key, element.getObjectValue());
+                } else {
+                    map.put(key, null);
                 }
+            } else {
+                missingKeys.add(key);
+            }
+        }
+
+        //read what the peers have in batches, rather than one key at a time
+        Map peerElements = searchInPeers(missingKeys);
+        for (Object peerElement : peerElements.values()) {
+            Element element = (Element) peerElement;
+            map.put(element.getObjectKey(), element.getObjectValue());
+        }
 
+        if (registeredCacheLoaders.size() > 0 && missingKeys.size() > 0) {
+            try {
                 //now load everything that's missing.
                 //异步加载所有keys对应的远程数据源的数据，并放入本地缓存。
                 Future future = asynchronousLoadAll(missingKeys, loaderArgument);
                 future.get();
-
-
-                for (Object missingKey : missingKeys) {
-                    key = missingKey;
-                    Element element = get(key);
-                    if (element != null) {
-                        map.put(key, element.getObjectValue());
-                    } else {
-                        map.put(key, null);
-                    }
-                }
-
             } catch (InterruptedException e) {
-                throw new CacheException(e.getMessage() + " for key " + key, e);
+                throw new CacheException(e.getMessage() + " loading " + missingKeys.size() + " keys", e);
             } catch (ExecutionException e) {
-                throw new CacheException(e.getMessage() + " for key " + key, e);
+                throw new CacheException(e.getMessage() + " loading " + missingKeys.size() + " keys", e);
             }
-        } else {
-            for (Object key : keys) {
-                Element element = get(key);
-                if (element != null) {
-                    map.put(key, element.getObjectValue());
-                } else {
-                    map.put(key, null);
-                }
+        }
+
+        for (Object missingKey : missingKeys) {
+            Element element = get(missingKey, false);
+            if (element != null) {
+                map.put(missingKey, element.getObjectValue());
+            } else {
+                map.put(missingKey, null);
             }
         }
         return map;
@@ -1277,6 +1309,39 @@ public class Cache implements Ehcache {
         return allKeys;
     }
 
+    /**
+     * Reads an element which is not held locally from the peers, if a {@link CachePeerReader} is registered.
+     */
+    private Element searchInPeers(Object key) {
+        for (CacheExtension cacheExtension : registeredCacheExtensions) {
+            if (cacheExtension instanceof CachePeerReader) {
+                Element element = ((CachePeerReader) cacheExtension).get(key);
+                if (element != null) {
+                    return element;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads elements which are not held locally from the peers in batches, if a {@link CachePeerReader} is registered.
+     *
+     * @param keys the keys to look for. Those found are removed.
+     * @return a map of key to element for the keys found
+     */
+    private Map searchInPeers(Collection<Object> keys) {
+        Map found = new HashMap();
+        for (CacheExtension cacheExtension : registeredCacheExtensions) {
+            if (cacheExtension instanceof CachePeerReader && !keys.isEmpty()) {
+                Map elements = ((CachePeerReader) cacheExtension).getAll(keys);
+                keys.removeAll(elements.keySet());
+                found.putAll(elements);
+            }
+        }
+        return found;
+    }
+
     private Element searchInMemoryStore(Object key, boolean updateStatistics, boolean notifyListeners) {
         Element element;
         if (updateStatistics) {
@@ -1639,6 +1704,41 @@ public class Cache implements Ehcache {
     }
 
 
+    /**
+     * Writes a point in time copy of the disk store of this cache to a directory, for backup or to move the cache
+     * to a new host. A diskPersistent cache of the same name and configuration, whose diskStore path is that
+     * directory, starts with the copied elements.
+     * <p/>
+     * Unlike {@link #flush()}, this does not hold the cache or disk store lock while files are written, so the
+     * cache carries on serving gets and puts. For diskPersistent caches the elements in the memory store are
+     * spooled to the disk store first, as on flush, without clearing the memory store.
+     *
+     * @param directory the directory to write the data and index files to. It is created if need be.
+     * @throws IllegalStateException if the cache is not {@link Status#STATUS_ALIVE}
+     * @throws CacheException        if the cache has no disk store or the copy cannot be written
+     */
+    public final void snapshot(File directory) throws IllegalStateException, CacheException {
+        checkStatus();
+        if (diskStore == null) {
+            throw new CacheException("Cache " + configuration.getName() + " has no disk store to snapshot.");
+        }
+        if (configuration.isDiskPersistent()) {
+            Object[] keys = memoryStore.getKeyArray();
+            for (int i = 0; i < keys.length; i++) {
+                Element element = memoryStore.getQuiet(keys[i]);
+                if (element != null && element.isSerializable()) {
+                    diskStore.put(element);
+                }
+            }
+        }
+        try {
+            diskStore.snapshot(directory);
+        } catch (IOException e) {
+            throw new CacheException("Unable to snapshot cache: " + configuration.getName()
+                    + ". Initial cause was " + e.getMessage(), e);
+        }
+    }
+
     /**
      * 花擦，这个实现有点不好啊。
      * 不是直接.getSize,而是获取所有keys之后再.getSize
@@ -2286,6 +2386,43 @@ public class Cache implements Ehcache {
         return cacheExceptionHandler;
     }
 
+    /**
+     * Sets the ElementSerializer used to write Elements to disk, copy them, measure them and replicate them.
+     * It must be set before the cache is initialised, as the DiskStore uses the serializer it was created with.
+     *
+     * @param elementSerializer the serializer. null restores the default Java serialization.
+     */
+    public void setElementSerializer(ElementSerializer elementSerializer) {
+        if (elementSerializer == null) {
+            this.elementSerializer = JavaElementSerializer.INSTANCE;
+        } else {
+            this.elementSerializer = elementSerializer;
+        }
+    }
+
+    /**
+     * Gets the ElementSerializer of the cache.
+     *
+     * @return the serializer, which is Java serialization unless another was configured
+     */
+    public ElementSerializer getElementSerializer() {
+        return elementSerializer;
+    }
+
+    /**
+     * Gets the ElementSerializer of any Ehcache. Only a Cache can be given another serializer, so other
+     * implementations use Java serialization.
+     *
+     * @param cache the cache
+     * @return the serializer of the cache
+     */
+    public static ElementSerializer getElementSerializer(Ehcache cache) {
+        if (cache instanceof Cache) {
+            return ((Cache) cache).getElementSerializer();
+        }
+        return JavaElementSerializer.INSTANCE;
+    }
+
     /**
      * Register a {@link CacheLoader} with the cache. It will then be tied into the cache lifecycle.
      * <p/>
@@ -2503,5 +2640,31 @@ public class Cache implements Ehcache {
         memoryStore.setEvictionPolicy(policy);
     }
 
+    /**
+     * @return the current DiskStore policy, which may have been set dynamically, or null if the cache does not
+     *         overflow to disk
+     */
+    public Policy getDiskStoreEvictionPolicy() {
+        if (diskStore == null) {
+            return null;
+        }
+        return diskStore.getEvictionPolicy();
+    }
+
+    /**
+     * Sets the eviction policy strategy of the DiskStore. The DiskStore starts with the configured
+     * diskStoreEvictionPolicy. The policy is given Elements carrying the key and statistics of sampled
+     * elements, but not their values. It is safe to change the policy at any time.
+     *
+     * @param policy the new policy
+     * @throws IllegalStateException if the cache does not overflow to disk
+     */
+    public void setDiskStoreEvictionPolicy(Policy policy) {
+        if (diskStore == null) {
+            throw new IllegalStateException("The " + configuration.getName() + " Cache does not have a DiskStore");
+        }
+        diskStore.setEvictionPolicy(policy);
+    }
+
 
 }
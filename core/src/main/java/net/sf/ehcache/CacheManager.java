@@ -26,6 +26,7 @@ import net.sf.ehcache.distribution.CacheManagerPeerProvider;
 import net.sf.ehcache.event.CacheManagerEventListener;
 import net.sf.ehcache.event.CacheManagerEventListenerRegistry;
 import net.sf.ehcache.store.DiskStore;
+import net.sf.ehcache.store.DiskStoreScheduler;
 import net.sf.ehcache.util.PropertyUtil;
 
 import java.io.File;
@@ -131,6 +132,16 @@ public class CacheManager {
      */
     private String diskStorePath;
 
+    /**
+     * The number of threads shared by the disk stores of this CacheManager, or 0 for a spool thread per store.
+     */
+    private int diskStoreThreads;
+
+    /**
+     * Runs the work of the disk stores of this CacheManager. Created when the first disk store asks for it.
+     */
+    private DiskStoreScheduler diskStoreScheduler;
+
 
     /**
      * An constructor for CacheManager, which takes a configuration object, rather than one created by parsing
@@ -293,6 +304,7 @@ public class CacheManager {
     private void configure(ConfigurationHelper configurationHelper) {
 
         diskStorePath = configurationHelper.getDiskStorePath();
+        diskStoreThreads = configurationHelper.getDiskStoreThreads();
         int cachesRequiringDiskStores = configurationHelper.numberOfCachesThatOverflowToDisk().intValue()
                 + configurationHelper.numberOfCachesThatAreDiskPersistent().intValue();
 
@@ -792,6 +804,10 @@ public class CacheManager {
                     }
                 }
                 defaultCache.dispose();
+                if (diskStoreScheduler != null) {
+                    diskStoreScheduler.dispose();
+                    diskStoreScheduler = null;
+                }
                 status = Status.STATUS_SHUTDOWN;
 
                 //only delete singleton if the singleton is shutting down.
@@ -993,5 +1009,19 @@ public class CacheManager {
     public String getDiskStorePath() {
         return diskStorePath;
     }
+
+    /**
+     * Returns the scheduler which runs the spool, expiry and index work of the disk stores of this CacheManager,
+     * creating it on first use.
+     *
+     * @return the scheduler, or null if the diskStore element sets threads to 0, so that each disk store runs its
+     *         own spool thread, or if the CacheManager is shut down
+     */
+    public synchronized DiskStoreScheduler getDiskStoreScheduler() {
+        if (diskStoreScheduler == null && diskStoreThreads > 0 && !Status.STATUS_SHUTDOWN.equals(status)) {
+            diskStoreScheduler = new DiskStoreScheduler(String.valueOf(hashCode()), diskStoreThreads);
+        }
+        return diskStoreScheduler;
+    }
 }
 
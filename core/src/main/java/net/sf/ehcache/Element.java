@@ -18,8 +18,12 @@
 package net.sf.ehcache;
 
 
+import net.sf.ehcache.serialization.ElementSerializer;
+import net.sf.ehcache.serialization.JavaElementSerializer;
+import net.sf.ehcache.util.BufferPool;
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -453,13 +457,14 @@ public class Element implements Serializable, Cloneable {
     //深层拷贝是这样实现的么。。有待探究和了解
     private Object deepCopy(Object oldValue) {
         Serializable newValue = null;
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        MemoryEfficientByteArrayOutputStream bout = MemoryEfficientByteArrayOutputStream.pooled(BufferPool.MINIMUM_BUFFER_SIZE);
         ObjectOutputStream oos = null;
         ObjectInputStream ois = null;
         try {
             oos = new ObjectOutputStream(bout);
             oos.writeObject(oldValue);
-            ByteArrayInputStream bin = new ByteArrayInputStream(bout.toByteArray());
+            oos.flush();
+            ByteArrayInputStream bin = new ByteArrayInputStream(bout.getBytes(), 0, bout.size());
             ois = new ObjectInputStream(bin);
             newValue = (Serializable) ois.readObject();
         } catch (IOException e) {
@@ -479,6 +484,7 @@ public class Element implements Serializable, Cloneable {
             } catch (Exception e) {
                 LOG.log(Level.SEVERE, "Error closing Stream");
             }
+            bout.release();
         }
         return newValue;
     }
@@ -495,31 +501,33 @@ public class Element implements Serializable, Cloneable {
      * @return The serialized size in bytes
      */
     public final long getSerializedSize() {
+        return getSerializedSize(JavaElementSerializer.INSTANCE);
+    }
+
+    /**
+     * The size of this object when written by the given serializer, normally the serializer of the cache
+     * the element is in.
+     * <p/>
+     * If the key or value of the Element is not Serializable, an error will be logged and 0 will be returned.
+     *
+     * @param serializer the serializer to measure with
+     * @return The serialized size in bytes
+     */
+    public final long getSerializedSize(ElementSerializer serializer) {
 
         if (!isSerializable()) {
             return 0;
         }
-        long size = 0;
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        ObjectOutputStream oos = null;
+        MemoryEfficientByteArrayOutputStream bout = MemoryEfficientByteArrayOutputStream.pooled(BufferPool.MINIMUM_BUFFER_SIZE);
         try {
-            oos = new ObjectOutputStream(bout);
-            oos.writeObject(this);
-            size = bout.size();
-            return size;
+            serializer.serialize(this, bout);
+            return bout.size();
         } catch (IOException e) {
             LOG.log(Level.FINE, "Error measuring element size for element with key " + key + ". Cause was: " + e.getMessage());
+            return 0;
         } finally {
-            try {
-                if (oos != null) {
-                    oos.close();
-                }
-            } catch (Exception e) {
-                LOG.log(Level.SEVERE, "Error closing ObjectOutputStream");
-            }
+            bout.release();
         }
-
-        return size;
     }
 
     /**
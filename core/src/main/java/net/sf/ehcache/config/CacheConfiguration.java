@@ -41,6 +41,16 @@ import java.util.List;
  */
 public class CacheConfiguration implements Cloneable {
 
+    /**
+     * The default I/O budget of DiskStore compaction, 4MB per second
+     */
+    public static final int DEFAULT_DISK_COMPACTION_BYTES_PER_SECOND = 4 * 1024 * 1024;
+
+    /**
+     * The default slack of the DiskStore data file over maxBytesOnDisk, 20 percent
+     */
+    public static final int DEFAULT_DISK_BYTES_SLACK_PERCENT = 20;
+
     /**
      * the name of the cache.
      */
@@ -122,6 +132,58 @@ public class CacheConfiguration implements Cloneable {
      */
     protected long diskExpiryThreadIntervalSeconds;
 
+    /**
+     * The number of shards the {@link net.sf.ehcache.store.DiskStore} key space is split across.
+     * <p/>
+     * Each shard has its own data file, index, spool and spool thread. 0 or 1 means a single, unsharded store.
+     */
+    protected int diskStoreShards;
+
+    /**
+     * Whether the {@link net.sf.ehcache.store.DiskStore} forces each batch of spooled writes to the storage device.
+     */
+    protected boolean diskSyncWrites;
+
+    /**
+     * Records in the {@link net.sf.ehcache.store.DiskStore} of at least this many bytes are compressed. 0 means no compression.
+     */
+    protected int diskCompressionThresholdBytes;
+
+    /**
+     * Whether the {@link net.sf.ehcache.store.DiskStore} index keeps only key hashes and record locations in memory.
+     */
+    protected boolean diskHashedIndex;
+
+    /**
+     * Whether the {@link net.sf.ehcache.store.DiskStore} keeps a Bloom filter of its keys to answer misses without locking.
+     */
+    protected boolean diskBloomFilter = true;
+
+    /**
+     * The sparseness of the {@link net.sf.ehcache.store.DiskStore} data file, in percent, which triggers compaction. 0 is off.
+     */
+    protected int diskCompactionThresholdPercent;
+
+    /**
+     * The bytes per second the {@link net.sf.ehcache.store.DiskStore} compactor may read and write.
+     */
+    protected int diskCompactionBytesPerSecond = DEFAULT_DISK_COMPACTION_BYTES_PER_SECOND;
+
+    /**
+     * The maximum bytes of element data to be held in the {@link net.sf.ehcache.store.DiskStore}. 0 is unlimited.
+     */
+    protected long maxBytesOnDisk;
+
+    /**
+     * How far, in percent of maxBytesOnDisk, the {@link net.sf.ehcache.store.DiskStore} data file may grow beyond it before being compacted.
+     */
+    protected int diskBytesSlackPercent = DEFAULT_DISK_BYTES_SLACK_PERCENT;
+
+    /**
+     * The policy used to evict elements from the {@link net.sf.ehcache.store.DiskStore}. LFU by default.
+     */
+    protected MemoryStoreEvictionPolicy diskStoreEvictionPolicy = MemoryStoreEvictionPolicy.LFU;
+
     /**
      * The event listener factories added by BeanUtils.
      */
@@ -142,6 +204,11 @@ public class CacheConfiguration implements Cloneable {
      */
     protected CacheExceptionHandlerFactoryConfiguration cacheExceptionHandlerFactoryConfiguration;
 
+    /**
+     * The ElementSerializerFactoryConfiguration.
+     */
+    protected ElementSerializerFactoryConfiguration elementSerializerFactoryConfiguration;
+
     /**
      * The cache loader factories added by BeanUtils.
      */
@@ -272,6 +339,105 @@ public class CacheConfiguration implements Cloneable {
         this.diskExpiryThreadIntervalSeconds = diskExpiryThreadIntervalSeconds;
     }
 
+    /**
+     * Sets the number of shards the DiskStore key space is split across. 0 or 1 means unsharded.
+     * <p/>
+     * Each shard spools and writes to its own data file on its own thread, so overflow bandwidth scales with
+     * the number of shards. maxElementsOnDisk, maxBytesOnDisk and diskSpoolBufferSizeMB are divided evenly between
+     * the shards.
+     */
+    public final void setDiskStoreShards(int diskStoreShards) {
+        this.diskStoreShards = diskStoreShards;
+    }
+
+    /**
+     * Sets whether the DiskStore forces each batch of spooled writes to the storage device. false by default.
+     * <p/>
+     * The data file is synced once per spool flush rather than once per element.
+     */
+    public final void setDiskSyncWrites(boolean diskSyncWrites) {
+        this.diskSyncWrites = diskSyncWrites;
+    }
+
+    /**
+     * Sets the size in bytes from which DiskStore records are compressed. 0, the default, switches compression off.
+     * <p/>
+     * Small records compress poorly, so they are kept uncompressed.
+     */
+    public final void setDiskCompressionThresholdBytes(int diskCompressionThresholdBytes) {
+        this.diskCompressionThresholdBytes = diskCompressionThresholdBytes;
+    }
+
+    /**
+     * Sets whether the DiskStore index keeps only a hash of each key and the location of its record in memory,
+     * rather than the key and a DiskElement. false by default.
+     * <p/>
+     * This cuts the heap used per element on disk to about 20 bytes, at the cost of reading keys from disk.
+     */
+    public final void setDiskHashedIndex(boolean diskHashedIndex) {
+        this.diskHashedIndex = diskHashedIndex;
+    }
+
+    /**
+     * Sets whether the DiskStore keeps a Bloom filter of its keys. true by default.
+     * <p/>
+     * Gets of keys which are not on disk then return without taking the DiskStore lock, for about 1.25 bytes
+     * of heap per element on disk.
+     */
+    public final void setDiskBloomFilter(boolean diskBloomFilter) {
+        this.diskBloomFilter = diskBloomFilter;
+    }
+
+    /**
+     * Sets the sparseness of the DiskStore data file, as a percentage of its length not holding data, at which
+     * live records are moved toward the start of the file and the file truncated. 0, the default, switches
+     * compaction off.
+     */
+    public final void setDiskCompactionThresholdPercent(int diskCompactionThresholdPercent) {
+        this.diskCompactionThresholdPercent = diskCompactionThresholdPercent;
+    }
+
+    /**
+     * Sets the I/O budget of DiskStore compaction, in bytes read and written per second. 4MB by default.
+     */
+    public final void setDiskCompactionBytesPerSecond(int diskCompactionBytesPerSecond) {
+        this.diskCompactionBytesPerSecond = diskCompactionBytesPerSecond;
+    }
+
+    /**
+     * Sets the maximum bytes of serialized element data held in the DiskStore. Elements are evicted, using the
+     * DiskStore eviction policy, to keep within it. 0, the default, is unlimited.
+     * <p/>
+     * The data file is compacted when it grows more than diskBytesSlackPercent beyond this.
+     */
+    public final void setMaxBytesOnDisk(long maxBytesOnDisk) {
+        this.maxBytesOnDisk = maxBytesOnDisk;
+    }
+
+    /**
+     * Sets how far beyond maxBytesOnDisk, in percent of it, the DiskStore data file may grow before it is
+     * compacted. 20 by default.
+     */
+    public final void setDiskBytesSlackPercent(int diskBytesSlackPercent) {
+        this.diskBytesSlackPercent = diskBytesSlackPercent;
+    }
+
+    /**
+     * Sets the DiskStore eviction policy. An invalid argument will set it to LRU.
+     *
+     * @param diskStoreEvictionPolicy a String representation of the policy. One of "LRU", "LFU" or "FIFO".
+     */
+    public final void setDiskStoreEvictionPolicy(String diskStoreEvictionPolicy) {
+        this.diskStoreEvictionPolicy = MemoryStoreEvictionPolicy.fromString(diskStoreEvictionPolicy);
+    }
+
+    /**
+     * Sets the DiskStore eviction policy. This method has a strange name to workaround a problem with XML parsing.
+     */
+    public final void setDiskStoreEvictionPolicyFromObject(MemoryStoreEvictionPolicy diskStoreEvictionPolicy) {
+        this.diskStoreEvictionPolicy = diskStoreEvictionPolicy;
+    }
+
     /**
      * Configuration for the CachePeerListenerFactoryConfiguration.
      */
@@ -328,6 +494,20 @@ public class CacheConfiguration implements Cloneable {
         this.cacheExceptionHandlerFactoryConfiguration = cacheExceptionHandlerFactoryConfiguration;
     }
 
+    /**
+     * Configuration for the ElementSerializerFactoryConfiguration.
+     */
+    public final class ElementSerializerFactoryConfiguration extends FactoryConfiguration {
+    }
+
+    /**
+     * Allows BeanHandler to add the ElementSerializerFactory to the configuration.
+     */
+    public final void addElementSerializerFactory(ElementSerializerFactoryConfiguration
+            elementSerializerFactoryConfiguration) {
+        this.elementSerializerFactoryConfiguration = elementSerializerFactoryConfiguration;
+    }
+
     /**
      * Configuration for the CacheLoaderFactoryConfiguration.
      */
@@ -419,6 +599,76 @@ public class CacheConfiguration implements Cloneable {
         return diskExpiryThreadIntervalSeconds;
     }
 
+    /**
+     * Accessor
+     */
+    public int getDiskStoreShards() {
+        return diskStoreShards;
+    }
+
+    /**
+     * Accessor
+     */
+    public boolean isDiskSyncWrites() {
+        return diskSyncWrites;
+    }
+
+    /**
+     * Accessor
+     */
+    public int getDiskCompressionThresholdBytes() {
+        return diskCompressionThresholdBytes;
+    }
+
+    /**
+     * Accessor
+     */
+    public boolean isDiskHashedIndex() {
+        return diskHashedIndex;
+    }
+
+    /**
+     * Accessor
+     */
+    public boolean isDiskBloomFilter() {
+        return diskBloomFilter;
+    }
+
+    /**
+     * Accessor
+     */
+    public int getDiskCompactionThresholdPercent() {
+        return diskCompactionThresholdPercent;
+    }
+
+    /**
+     * Accessor
+     */
+    public int getDiskCompactionBytesPerSecond() {
+        return diskCompactionBytesPerSecond;
+    }
+
+    /**
+     * Accessor
+     */
+    public long getMaxBytesOnDisk() {
+        return maxBytesOnDisk;
+    }
+
+    /**
+     * Accessor
+     */
+    public int getDiskBytesSlackPercent() {
+        return diskBytesSlackPercent;
+    }
+
+    /**
+     * Accessor
+     */
+    public MemoryStoreEvictionPolicy getDiskStoreEvictionPolicy() {
+        return diskStoreEvictionPolicy;
+    }
+
     /**
      * Accessor
      */
@@ -458,4 +708,11 @@ public class CacheConfiguration implements Cloneable {
     public CacheExceptionHandlerFactoryConfiguration getCacheExceptionHandlerFactoryConfiguration() {
         return cacheExceptionHandlerFactoryConfiguration;
     }
+
+    /**
+     * Accessor
+     */
+    public ElementSerializerFactoryConfiguration getElementSerializerFactoryConfiguration() {
+        return elementSerializerFactoryConfiguration;
+    }
 }
@@ -33,6 +33,8 @@ import net.sf.ehcache.event.CacheManagerEventListenerFactory;
 import net.sf.ehcache.event.RegisteredEventListeners;
 import net.sf.ehcache.exceptionhandler.CacheExceptionHandler;
 import net.sf.ehcache.exceptionhandler.CacheExceptionHandlerFactory;
+import net.sf.ehcache.serialization.ElementSerializer;
+import net.sf.ehcache.serialization.ElementSerializerFactory;
 import net.sf.ehcache.exceptionhandler.ExceptionHandlingDynamicCacheProxy;
 import net.sf.ehcache.extension.CacheExtension;
 import net.sf.ehcache.extension.CacheExtensionFactory;
@@ -254,6 +256,28 @@ public final class ConfigurationHelper {
         return cacheExceptionHandler;
     }
 
+    /**
+     * Tries to create an ElementSerializer from the configuration using the factory
+     * specified.
+     *
+     * @return The ElementSerializer, or null if none is configured.
+     */
+    public final ElementSerializer createElementSerializer(
+            CacheConfiguration.ElementSerializerFactoryConfiguration factoryConfiguration) throws CacheException {
+        String className = null;
+        if (factoryConfiguration != null) {
+            className = factoryConfiguration.getFullyQualifiedClassPath();
+        }
+        if (className == null || className.length() == 0) {
+            LOG.log(Level.FINE, "No ElementSerializerFactory class specified. Using Java serialization.");
+            return null;
+        }
+        ElementSerializerFactory factory = (ElementSerializerFactory) ClassLoaderUtil.createNewInstance(className);
+        Properties properties = PropertyUtil.parseProperties(factoryConfiguration.getProperties(),
+                factoryConfiguration.getPropertySeparator());
+        return factory.createElementSerializer(properties);
+    }
+
 
     /**
      * Tries to load the class specified otherwise defaults to null
@@ -345,6 +369,18 @@ public final class ConfigurationHelper {
     }
 
 
+    /**
+     * @return the number of threads shared by the disk stores, which is the default if there is no diskStore element.
+     */
+    public final int getDiskStoreThreads() {
+        DiskStoreConfiguration diskStoreConfiguration = configuration.getDiskStoreConfiguration();
+        if (diskStoreConfiguration == null) {
+            return DiskStoreConfiguration.DEFAULT_THREADS;
+        } else {
+            return diskStoreConfiguration.getThreads();
+        }
+    }
+
     /**
      * @return the disk store path, or null if not set.
      */
@@ -466,6 +502,8 @@ public final class ConfigurationHelper {
                 cacheConfiguration.maxElementsOnDisk,
                 cacheConfiguration.diskSpoolBufferSizeMB,
                 cacheConfiguration.clearOnFlush);
+        applyDiskStoreConfiguration(cacheConfiguration, cache.getCacheConfiguration());
+        ((Cache) cache).setElementSerializer(createElementSerializer(cacheConfiguration.getElementSerializerFactoryConfiguration()));
         RegisteredEventListeners listeners = cache.getCacheEventNotificationService();
         registerCacheListeners(cacheConfiguration, listeners);
         registerCacheExtensions(cacheConfiguration, cache);
@@ -477,6 +515,23 @@ public final class ConfigurationHelper {
         return cache;
     }
 
+    /**
+     * Copies the DiskStore settings which are not covered by the Cache constructor onto the configuration
+     * of the newly created cache.
+     */
+    private static void applyDiskStoreConfiguration(CacheConfiguration source, CacheConfiguration target) {
+        target.setDiskStoreShards(source.diskStoreShards);
+        target.setDiskSyncWrites(source.diskSyncWrites);
+        target.setDiskCompressionThresholdBytes(source.diskCompressionThresholdBytes);
+        target.setDiskHashedIndex(source.diskHashedIndex);
+        target.setDiskBloomFilter(source.diskBloomFilter);
+        target.setDiskCompactionThresholdPercent(source.diskCompactionThresholdPercent);
+        target.setDiskCompactionBytesPerSecond(source.diskCompactionBytesPerSecond);
+        target.setDiskStoreEvictionPolicyFromObject(source.diskStoreEvictionPolicy);
+        target.setMaxBytesOnDisk(source.maxBytesOnDisk);
+        target.setDiskBytesSlackPercent(source.diskBytesSlackPercent);
+    }
+
     private Ehcache applyCacheExceptionHandler(CacheConfiguration cacheConfiguration, Ehcache cache) {
         CacheExceptionHandler cacheExceptionHandler =
                 createCacheExceptionHandler(cacheConfiguration.getCacheExceptionHandlerFactoryConfiguration());
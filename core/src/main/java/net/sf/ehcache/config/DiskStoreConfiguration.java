@@ -38,6 +38,16 @@ public final class DiskStoreConfiguration {
      */
     private String path;
 
+    /**
+     * The default number of threads shared by the DiskStores of a CacheManager
+     */
+    public static final int DEFAULT_THREADS = 4;
+
+    /**
+     * The number of threads shared by the DiskStores of a CacheManager. 0 gives each DiskStore its own spool thread.
+     */
+    private int threads = DEFAULT_THREADS;
+
 
     /**
      * A constants class for environment variables used in disk store paths
@@ -57,6 +67,26 @@ public final class DiskStoreConfiguration {
         return path;
     }
 
+    /**
+     * The number of threads which run the spool, expiry and index work of all the DiskStores in the CacheManager
+     */
+    public final int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Sets the number of threads which run the spool, expiry and index work of all the DiskStores in the
+     * CacheManager. 0 gives each DiskStore its own spool thread, as in earlier versions.
+     *
+     * @param threads the number of shared threads, or 0
+     */
+    public final void setThreads(int threads) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("diskStore threads must be 0 or more. It was " + threads);
+        }
+        this.threads = threads;
+    }
+
     /**
      * The diskStore default path, which is the system environment variable
      * availablen on all Java virtual machines <code>java.io.tmpdir</code>
@@ -0,0 +1,281 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
+import net.sf.ehcache.extension.CacheExtension;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically repairs the differences between a replicated cache and its peers, which arise when replication
+ * messages are dropped.
+ * <p/>
+ * Each round builds one {@link HashTree} of this cache and compares it with that of each peer, starting at the roots
+ * and descending only into nodes whose hashes differ. Elements repaired from one peer may make the tree out of date for
+ * the next, which only costs fetching digests which then match. For the leaves which differ, the digests of the peer's elements are compared
+ * with those here, and only the elements which differ are fetched. A fetched element is put, without replicating it,
+ * if it is missing here or was updated more recently than the local one. Local elements which are newer, or which the
+ * peer does not have, are left for the peer to fetch in its own rounds, so every peer should run this extension.
+ * <p/>
+ * Removes are not repaired: without a record of them, a key the peer is missing cannot be told apart from a put the
+ * peer did not receive.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class AntiEntropyCacheExtension implements CacheExtension {
+
+    private static final Logger LOG = Logger.getLogger(AntiEntropyCacheExtension.class.getName());
+
+    private static final int FETCH_CHUNK_SIZE = 1000;
+
+    private final Ehcache cache;
+    private final long intervalMillis;
+    private final int leafCount;
+    private volatile Status status = Status.STATUS_UNINITIALISED;
+    private AntiEntropyThread thread;
+    private volatile long rounds;
+    private volatile long elementsRepaired;
+
+    /**
+     * Constructor
+     *
+     * @param cache          the cache to keep in step with its peers
+     * @param intervalMillis the time between rounds
+     * @param leafCount      the number of leaves of the hash tree, a power of 16
+     */
+    public AntiEntropyCacheExtension(Ehcache cache, long intervalMillis, int leafCount) {
+        if (!HashTree.isValidLeafCount(leafCount)) {
+            throw new IllegalArgumentException("The leaf count " + leafCount + " is not a power of " + HashTree.FANOUT);
+        }
+        this.cache = cache;
+        this.intervalMillis = intervalMillis;
+        this.leafCount = leafCount;
+    }
+
+    /**
+     * Starts the thread which runs the rounds.
+     */
+    public void init() {
+        thread = new AntiEntropyThread();
+        thread.start();
+        status = Status.STATUS_ALIVE;
+    }
+
+    /**
+     * Stops the thread, waiting for any round in progress to be interrupted.
+     */
+    public void dispose() throws CacheException {
+        status = Status.STATUS_SHUTDOWN;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CacheExtension clone(Ehcache cache) throws CloneNotSupportedException {
+        return new AntiEntropyCacheExtension(cache, intervalMillis, leafCount);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Compares this cache with each of its peers, and fetches what differs.
+     *
+     * @return the number of elements repaired
+     */
+    public int resynchronise() {
+        CacheManagerPeerProvider provider = RMISynchronousCacheReplicator.getCacheManagerPeerProvider(cache);
+        List peers = provider == null ? new ArrayList() : provider.listRemoteCachePeers(cache);
+        HashTree tree = peers.isEmpty() ? null : HashTree.build(cache, leafCount);
+        int repaired = 0;
+        for (int i = 0; i < peers.size() && !status.equals(Status.STATUS_SHUTDOWN); i++) {
+            CachePeer peer = (CachePeer) peers.get(i);
+            try {
+                repaired += resynchronise(peer, tree);
+            } catch (RemoteException e) {
+                LOG.log(Level.WARNING, "Anti-entropy for cache " + cache.getName() + " could not compare with peer "
+                        + peer + ". The cause was: " + e.getMessage());
+            }
+        }
+        rounds++;
+        elementsRepaired += repaired;
+        return repaired;
+    }
+
+    /**
+     * Compares this cache with one peer, and fetches the elements which the peer has newer or this cache is missing.
+     *
+     * @param peer the peer
+     * @param tree the hash tree of this cache, built for the round
+     * @return the number of elements repaired
+     */
+    int resynchronise(CachePeer peer, HashTree tree) throws RemoteException {
+        int[] nodes = new int[]{0};
+        List leaves = new ArrayList();
+        while (nodes.length > 0) {
+            long[] hashes = peer.getHashTreeNodes(leafCount, nodes);
+            List children = new ArrayList();
+            for (int i = 0; i < nodes.length; i++) {
+                int node = nodes[i];
+                if (hashes[i] == tree.getHash(node)) {
+                    continue;
+                }
+                if (tree.isLeaf(node)) {
+                    leaves.add(new Integer(node - tree.getFirstLeaf()));
+                } else {
+                    for (int child = 1; child <= HashTree.FANOUT; child++) {
+                        children.add(new Integer(node * HashTree.FANOUT + child));
+                    }
+                }
+            }
+            nodes = toArray(children);
+        }
+        if (leaves.isEmpty()) {
+            return 0;
+        }
+
+        List keys = peer.getHashTreeLeafKeys(leafCount, toArray(leaves));
+        List changedKeys = new ArrayList();
+        for (int i = 0; i < keys.size(); i += FETCH_CHUNK_SIZE) {
+            List chunk = new ArrayList(keys.subList(i, Math.min(i + FETCH_CHUNK_SIZE, keys.size())));
+            long[] digests = peer.getDigests(chunk);
+            for (int j = 0; j < chunk.size(); j++) {
+                Serializable key = (Serializable) chunk.get(j);
+                if (digests[j] != ElementDigest.ABSENT && digests[j] != ElementDigest.digest(cache.getQuiet(key))) {
+                    changedKeys.add(key);
+                }
+            }
+        }
+
+        int repaired = 0;
+        for (int i = 0; i < changedKeys.size(); i += FETCH_CHUNK_SIZE) {
+            List chunk = changedKeys.subList(i, Math.min(i + FETCH_CHUNK_SIZE, changedKeys.size()));
+            List elements = peer.getElements(new ArrayList(chunk));
+            for (int j = 0; j < elements.size(); j++) {
+                Element element = (Element) elements.get(j);
+                if (isNewer(element, cache.getQuiet(element.getObjectKey()))) {
+                    ElementDigest.putCopy(cache, element);
+                    repaired++;
+                }
+            }
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Anti-entropy for cache " + cache.getName() + " with peer " + peer + ": "
+                    + leaves.size() + " leaves and " + changedKeys.size() + " keys differed. " + repaired
+                    + " elements were repaired.");
+        }
+        return repaired;
+    }
+
+    private static boolean isNewer(Element element, Element local) {
+        if (local == null) {
+            return true;
+        }
+        long time = element.getLatestOfCreationAndUpdateTime();
+        long localTime = local.getLatestOfCreationAndUpdateTime();
+        return time > localTime || (time == localTime && element.getVersion() > local.getVersion());
+    }
+
+    private static int[] toArray(List integers) {
+        int[] array = new int[integers.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = ((Integer) integers.get(i)).intValue();
+        }
+        return array;
+    }
+
+    /**
+     * @return the number of rounds completed
+     */
+    public long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * @return the number of elements repaired since the cache started
+     */
+    public long getElementsRepaired() {
+        return elementsRepaired;
+    }
+
+    /**
+     * @return the time between rounds in ms
+     */
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * @return the number of leaves of the hash tree
+     */
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * A background daemon thread which runs a round every interval
+     */
+    private final class AntiEntropyThread extends Thread {
+
+        AntiEntropyThread() {
+            super("Anti-entropy Thread for cache " + cache.getName());
+            setDaemon(true);
+        }
+
+        /**
+         * Runs rounds until the extension is disposed
+         */
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    resynchronise();
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "Anti-entropy for cache " + cache.getName() + " failed. The cause was: "
+                            + t.getMessage(), t);
+                }
+            }
+        }
+    }
+}
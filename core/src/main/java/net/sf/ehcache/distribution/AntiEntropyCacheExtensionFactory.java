@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.extension.CacheExtension;
+import net.sf.ehcache.extension.CacheExtensionFactory;
+import net.sf.ehcache.util.PropertyUtil;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A factory to create a configured {@link AntiEntropyCacheExtension}.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class AntiEntropyCacheExtensionFactory extends CacheExtensionFactory {
+
+    /**
+     * The property name expected in ehcache.xml for the time between rounds
+     */
+    public static final String INTERVAL_SECONDS = "intervalSeconds";
+
+    /**
+     * The property name expected in ehcache.xml for the number of leaves of the hash tree
+     */
+    public static final String LEAF_COUNT = "leafCount";
+
+    /**
+     * The default time between rounds
+     */
+    protected static final int DEFAULT_INTERVAL_SECONDS = 300;
+
+    /**
+     * The default number of leaves of the hash tree
+     */
+    protected static final int DEFAULT_LEAF_COUNT = 4096;
+
+    /**
+     * The most leaves of the hash tree
+     */
+    protected static final int MAXIMUM_LEAF_COUNT = 1048576;
+
+    private static final Logger LOG = Logger.getLogger(AntiEntropyCacheExtensionFactory.class.getName());
+
+    private static final int ONE_SECOND = 1000;
+
+    /**
+     * @param cache      the cache this extension should hold a reference to, and to whose lifecycle it should be bound.
+     * @param properties implementation specific properties configured as delimiter separated name value pairs in ehcache.xml
+     */
+    public CacheExtension createCacheExtension(Ehcache cache, Properties properties) {
+        return new AntiEntropyCacheExtension(cache, (long) extractIntervalSeconds(properties) * ONE_SECOND,
+                extractLeafCount(properties));
+    }
+
+    /**
+     * Extracts the time between rounds from the properties
+     *
+     * @param properties
+     */
+    protected int extractIntervalSeconds(Properties properties) {
+        String intervalString = PropertyUtil.extractAndLogProperty(INTERVAL_SECONDS, properties);
+        if (intervalString == null) {
+            return DEFAULT_INTERVAL_SECONDS;
+        }
+        try {
+            int interval = Integer.parseInt(intervalString);
+            if (interval < 1) {
+                LOG.log(Level.WARNING, "Trying to set the anti-entropy interval to less than 1 second. Using the default instead.");
+                return DEFAULT_INTERVAL_SECONDS;
+            }
+            return interval;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.WARNING, "Number format exception trying to set the anti-entropy interval. Using the default instead.");
+            return DEFAULT_INTERVAL_SECONDS;
+        }
+    }
+
+    /**
+     * Extracts the number of leaves of the hash tree from the properties
+     *
+     * @param properties
+     */
+    protected int extractLeafCount(Properties properties) {
+        String leafCountString = PropertyUtil.extractAndLogProperty(LEAF_COUNT, properties);
+        if (leafCountString == null) {
+            return DEFAULT_LEAF_COUNT;
+        }
+        try {
+            int leafCount = Integer.parseInt(leafCountString);
+            if (leafCount > MAXIMUM_LEAF_COUNT || !HashTree.isValidLeafCount(leafCount)) {
+                LOG.log(Level.WARNING, "The anti-entropy leaf count must be a power of 16 no more than " + MAXIMUM_LEAF_COUNT
+                        + ". Using the default instead.");
+                return DEFAULT_LEAF_COUNT;
+            }
+            return leafCount;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.WARNING, "Number format exception trying to set the anti-entropy leaf count. Using the default instead.");
+            return DEFAULT_LEAF_COUNT;
+        }
+    }
+}
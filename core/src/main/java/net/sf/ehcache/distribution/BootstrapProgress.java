@@ -0,0 +1,138 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The progress of the most recent bootstrap of a cache by an {@link RMIBootstrapCacheLoader}.
+ * <p/>
+ * The counters are updated by the threads doing the bootstrap and may be read at any time, for example through the
+ * CacheBootstrap MBean registered by {@link net.sf.ehcache.management.ManagementService}.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public final class BootstrapProgress {
+
+    private final AtomicLong keysToLoad = new AtomicLong();
+    private final AtomicLong keysRequested = new AtomicLong();
+    private final AtomicLong elementsLoaded = new AtomicLong();
+    private final AtomicLong chunksFailed = new AtomicLong();
+    private volatile int peers;
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile boolean inProgress;
+
+    /**
+     * Resets the counters at the start of a bootstrap.
+     *
+     * @param peerCount  the number of peers being loaded from
+     * @param keyCount   the number of keys to load
+     */
+    void start(int peerCount, long keyCount) {
+        keysToLoad.set(keyCount);
+        keysRequested.set(0);
+        elementsLoaded.set(0);
+        chunksFailed.set(0);
+        peers = peerCount;
+        endTime = 0;
+        startTime = System.currentTimeMillis();
+        inProgress = true;
+    }
+
+    /**
+     * Records a chunk of keys fetched from a peer.
+     *
+     * @param keys     the number of keys requested
+     * @param elements the number of elements put into the cache
+     */
+    void chunkLoaded(int keys, int elements) {
+        keysRequested.addAndGet(keys);
+        elementsLoaded.addAndGet(elements);
+    }
+
+    /**
+     * Records a chunk of keys which could not be fetched from any peer.
+     */
+    void chunkFailed(int keys) {
+        keysRequested.addAndGet(keys);
+        chunksFailed.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a bootstrap, whether or not it succeeded.
+     */
+    void finish() {
+        endTime = System.currentTimeMillis();
+        inProgress = false;
+    }
+
+    /**
+     * @return true while a bootstrap is running
+     */
+    public boolean isInProgress() {
+        return inProgress;
+    }
+
+    /**
+     * @return the number of peers the current or last bootstrap loaded from
+     */
+    public int getPeers() {
+        return peers;
+    }
+
+    /**
+     * @return the number of keys the current or last bootstrap set out to load
+     */
+    public long getKeysToLoad() {
+        return keysToLoad.get();
+    }
+
+    /**
+     * @return the number of keys requested from peers so far, including those of failed chunks
+     */
+    public long getKeysRequested() {
+        return keysRequested.get();
+    }
+
+    /**
+     * @return the number of elements put into the cache so far. Keys which expired or were removed at the peer
+     *         are requested but not loaded.
+     */
+    public long getElementsLoaded() {
+        return elementsLoaded.get();
+    }
+
+    /**
+     * @return the number of chunks which could not be fetched from any peer
+     */
+    public long getChunksFailed() {
+        return chunksFailed.get();
+    }
+
+    /**
+     * @return how long the current or last bootstrap has taken in ms, or 0 if none has been started
+     */
+    public long getElapsedMillis() {
+        if (startTime == 0) {
+            return 0;
+        }
+        long end = inProgress ? System.currentTimeMillis() : endTime;
+        return end - startTime;
+    }
+}
@@ -78,6 +78,16 @@ public interface CachePeer extends Remote {
      */
     void send(List eventMessages) throws RemoteException;
 
+    /**
+     * Send the cache peer a replication batch: an ordered list of {@link EventMessage}s serialized once by the sender,
+     * and sent as is to every peer. The messages are applied in order in one pass.
+     * <p/>
+     * The elements in the batch are written by the elementSerializer of the sending cache, which must be the same
+     * as that of this cache.
+     * @param payload a payload of one or more batches
+     */
+    void sendBatch(byte[] payload) throws RemoteException;
+
     /**
      * Gets the cache name.
      */
@@ -141,5 +151,32 @@ public interface CachePeer extends Remote {
      */
     List getElements(List keys) throws RemoteException;
 
+    /**
+     * Gets a digest of the version of the element for each of a list of keys, without updating Element statistics.
+     * Two copies of an element have the same digest if they came from the same put.
+     * <p/>
+     * This lets a peer find which of its elements differ from this cache without fetching their values.
+     * @param keys a list of serializable values which represent keys
+     * @return a digest for each key, in order, which is 0 if the key has no element
+     */
+    long[] getDigests(List keys) throws RemoteException;
+
+    /**
+     * Gets the hashes of nodes of a hash tree over this cache, for anti-entropy. The tree is built when first asked for
+     * and reused for a short time, so that a peer can descend through it level by level.
+     * @param leafCount the number of leaves of the tree, a power of 16
+     * @param nodes the node numbers, where the root is 0 and the children of node n are 16n + 1 to 16n + 16
+     * @return the hash of each node, in order
+     */
+    long[] getHashTreeNodes(int leafCount, int[] nodes) throws RemoteException;
+
+    /**
+     * Gets the keys in leaves of a hash tree over this cache.
+     * @param leafCount the number of leaves of the tree, a power of 16
+     * @param leaves the leaves, numbered from 0
+     * @return a list of the keys in those leaves
+     */
+    List getHashTreeLeafKeys(int leafCount, int[] leaves) throws RemoteException;
+
 
 }
@@ -0,0 +1,51 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Element;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Reads elements which a cache does not hold from its peers.
+ * <p/>
+ * A {@link net.sf.ehcache.extension.CacheExtension} implementing this interface is asked by the cache for keys which
+ * miss in the memory and disk stores, before any {@link net.sf.ehcache.loader.CacheLoader} is called. Implementations
+ * are responsible for storing what they read in the cache, if they want it kept.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public interface CachePeerReader {
+
+    /**
+     * Reads an element from the peers.
+     *
+     * @param key the key, which missed locally
+     * @return the element, or null if no peer has it or the peers did not answer in time
+     */
+    Element get(Object key);
+
+    /**
+     * Reads elements from the peers in batches.
+     *
+     * @param keys the keys, which missed locally
+     * @return a map of key to element for the keys found. Keys not found are left out.
+     */
+    Map getAll(Collection keys);
+}
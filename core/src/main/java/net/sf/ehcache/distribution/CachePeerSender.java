@@ -0,0 +1,274 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.serialization.ElementSerializer;
+
+import java.rmi.RemoteException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sends the event messages of an {@link RMIAsynchronousCacheReplicator} to one peer, so that a slow or unavailable
+ * peer does not hold up replication to the others.
+ * <p/>
+ * {@link ReplicationBatch} payloads are queued in the order they are replicated and sent by a thread of the executor,
+ * which takes as many as it can at once so that a peer which falls behind catches up in fewer, larger sends. A send is
+ * at most {@link #MAXIMUM_SEND_BYTES} and {@link #MAXIMUM_SEND_MESSAGES}, unless a single payload is larger, which keeps
+ * it well under the frame size of the NIO transport. The payloads are shared by the senders of all peers, which only
+ * concatenate them. No more than the maximum backlog of messages is queued; beyond that the oldest payloads are
+ * discarded. After a failed send the messages of that send are discarded and the peer is marked degraded. New messages
+ * for it are then discarded rather than queued until a back off has passed, which doubles with each consecutive
+ * failure. What was already queued is kept, and sent when the next message arrives after the back off.
+ * <p/>
+ * A peer from an earlier version, whose registry does not recognise {@link CachePeer#sendBatch}, is remembered, and its
+ * payloads are decoded and sent with {@link CachePeer#send} instead.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class CachePeerSender implements Runnable {
+
+    private static final Logger LOG = Logger.getLogger(CachePeerSender.class.getName());
+
+    /**
+     * The longest a degraded peer is skipped for
+     */
+    private static final long MAXIMUM_BACK_OFF_MILLIS = 30000;
+
+    /**
+     * The most bytes of payloads sent at once
+     */
+    static final int MAXIMUM_SEND_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The most messages sent at once
+     */
+    static final int MAXIMUM_SEND_MESSAGES = 5000;
+
+    private final CachePeer cachePeer;
+    private final ElementSerializer serializer;
+    private final Executor executor;
+    private final int maximumBacklog;
+    private final long minimumBackOffMillis;
+
+    private final LinkedList backlog = new LinkedList();
+    private final LinkedList backlogCounts = new LinkedList();
+    private int backlogMessages;
+    private boolean scheduled;
+    private int consecutiveFailures;
+    private long degradedUntil;
+    private long discarded;
+
+    /**
+     * Set by the thread sending once the peer is found not to accept batches
+     */
+    private volatile boolean batchesUnsupported;
+
+    /**
+     * Constructor
+     *
+     * @param cachePeer            the peer to send to
+     * @param serializer           the serializer of the cache, which payloads are written with
+     * @param executor             runs the sender when it has messages
+     * @param maximumBacklog       the most messages to queue for the peer
+     * @param minimumBackOffMillis how long the peer is skipped for after its first failed send
+     */
+    CachePeerSender(CachePeer cachePeer, ElementSerializer serializer, Executor executor, int maximumBacklog,
+                    long minimumBackOffMillis) {
+        this.cachePeer = cachePeer;
+        this.serializer = serializer;
+        this.executor = executor;
+        this.maximumBacklog = Math.max(maximumBacklog, 1);
+        this.minimumBackOffMillis = Math.max(minimumBackOffMillis, 1);
+    }
+
+    /**
+     * Queues a payload for the peer, discarding it if the peer is degraded.
+     *
+     * @param payload      a {@link ReplicationBatch} payload
+     * @param messageCount the number of messages in the payload
+     */
+    synchronized void enqueue(byte[] payload, int messageCount) {
+        if (isDegraded()) {
+            discarded += messageCount;
+            return;
+        }
+        backlog.add(payload);
+        backlogCounts.add(new Integer(messageCount));
+        backlogMessages += messageCount;
+        int overflow = 0;
+        while (backlogMessages > maximumBacklog && backlog.size() > 1) {
+            backlog.removeFirst();
+            int count = ((Integer) backlogCounts.removeFirst()).intValue();
+            backlogMessages -= count;
+            overflow += count;
+        }
+        if (overflow > 0) {
+            discarded += overflow;
+            LOG.log(Level.WARNING, "The replication backlog for peer " + cachePeer + " exceeded " + maximumBacklog
+                    + " messages. " + overflow + " of the oldest messages were discarded.");
+        }
+        if (!scheduled) {
+            try {
+                executor.execute(this);
+                scheduled = true;
+            } catch (RejectedExecutionException e) {
+                clearBacklog();
+            }
+        }
+    }
+
+    private void clearBacklog() {
+        discarded += backlogMessages;
+        backlog.clear();
+        backlogCounts.clear();
+        backlogMessages = 0;
+    }
+
+    /**
+     * Sends the backlog until it is empty or the peer is degraded.
+     */
+    public void run() {
+        while (true) {
+            byte[] payload;
+            int batchMessages = 0;
+            synchronized (this) {
+                if (backlog.isEmpty() || isDegraded()) {
+                    scheduled = false;
+                    return;
+                }
+                List slice = new ArrayList();
+                int sliceBytes = 0;
+                while (!backlog.isEmpty()) {
+                    byte[] next = (byte[]) backlog.getFirst();
+                    int count = ((Integer) backlogCounts.getFirst()).intValue();
+                    if (!slice.isEmpty() && (sliceBytes + next.length > MAXIMUM_SEND_BYTES
+                            || batchMessages + count > MAXIMUM_SEND_MESSAGES)) {
+                        break;
+                    }
+                    slice.add(backlog.removeFirst());
+                    backlogCounts.removeFirst();
+                    sliceBytes += next.length;
+                    batchMessages += count;
+                }
+                backlogMessages -= batchMessages;
+                payload = ReplicationBatch.concatenate(slice);
+            }
+            boolean sent = send(payload);
+            synchronized (this) {
+                if (sent) {
+                    if (consecutiveFailures > 0) {
+                        LOG.log(Level.INFO, "Replication to peer " + cachePeer + " has recovered. " + discarded
+                                + " messages were discarded while it was degraded.");
+                        discarded = 0;
+                    }
+                    consecutiveFailures = 0;
+                } else {
+                    discarded += batchMessages;
+                    consecutiveFailures++;
+                    long backOff = Math.min(minimumBackOffMillis << Math.min(consecutiveFailures - 1, 20),
+                            MAXIMUM_BACK_OFF_MILLIS);
+                    degradedUntil = System.currentTimeMillis() + backOff;
+                }
+            }
+        }
+    }
+
+    private boolean send(byte[] payload) {
+        try {
+            if (!batchesUnsupported) {
+                try {
+                    cachePeer.sendBatch(payload);
+                    return true;
+                } catch (RemoteException e) {
+                    if (!isUnrecognizedMethod(e)) {
+                        throw e;
+                    }
+                    batchesUnsupported = true;
+                    LOG.log(Level.INFO, "Peer " + cachePeer + " does not accept replication batches. Messages will be"
+                            + " sent to it one by one.");
+                }
+            }
+            cachePeer.send(ReplicationBatch.decode(payload, serializer));
+            return true;
+        } catch (UnmarshalException e) {
+            String message = e.getMessage();
+            if (message.indexOf("Read time out") != 0) {
+                LOG.log(Level.WARNING, "Unable to send message to remote peer due to socket read timeout. Consider increasing" +
+                        " the socketTimeoutMillis setting in the cacheManagerPeerListenerFactory. " +
+                        "Message was: " + e.getMessage());
+            } else {
+                LOG.log(Level.FINE, "Unable to send message to remote peer.  Message was: " + e.getMessage());
+            }
+        } catch (Throwable t) {
+            LOG.log(Level.WARNING, "Unable to send message to remote peer.  Message was: " + t.getMessage(), t);
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the failure is that of a registry which does not have the method called
+     */
+    private static boolean isUnrecognizedMethod(RemoteException e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof UnmarshalException && cause.getMessage() != null
+                    && cause.getMessage().indexOf("unrecognized method hash") >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isDegraded() {
+        return consecutiveFailures > 0 && System.currentTimeMillis() < degradedUntil;
+    }
+
+    /**
+     * @return the number of messages queued for the peer
+     */
+    synchronized int getBacklogSize() {
+        return backlogMessages;
+    }
+
+    /**
+     * @return the number of messages discarded for the peer since it last recovered from a failure
+     */
+    synchronized long getDiscardedCount() {
+        return discarded;
+    }
+
+    /**
+     * @return true if the peer is being skipped after a failed send
+     */
+    synchronized boolean isPeerDegraded() {
+        return isDegraded();
+    }
+
+    /**
+     * @return true if the peer has been found not to accept batches
+     */
+    boolean isBatchesUnsupported() {
+        return batchesUnsupported;
+    }
+}
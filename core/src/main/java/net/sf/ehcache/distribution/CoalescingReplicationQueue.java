@@ -0,0 +1,229 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The replication queue of an {@link RMIAsynchronousCacheReplicator}, which keeps only the last message for each key
+ * in a flush window.
+ * <p/>
+ * A key put or removed many times between flushes is replicated once, with its latest value. A removeAll makes
+ * everything queued before it redundant, so it replaces the window's messages and is sent first. Messages are
+ * otherwise drained in the order their latest version was queued.
+ * <p/>
+ * Queueing does not lock. Each window is a concurrent map; a producer registers with the window it adds to, and
+ * {@link #drain()} swaps in a new window and waits only for producers already adding to the old one.
+ * <p/>
+ * The queue holds at most a maximum number of keys. Once it holds half that, {@link #isFlushDue()} becomes true so that
+ * the replication thread can flush early. Once it is full, messages for keys not already queued are discarded and
+ * counted; messages for queued keys still replace the queued ones. A removeAll is never discarded, as it frees the
+ * keys queued before it.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class CoalescingReplicationQueue {
+
+    private static final Object REMOVE_ALL_KEY = new Object();
+
+    private static final Comparator SEQUENCE_ORDER = new Comparator() {
+        public int compare(Object first, Object second) {
+            long difference = ((Entry) first).sequence - ((Entry) second).sequence;
+            return difference < 0 ? -1 : (difference == 0 ? 0 : 1);
+        }
+    };
+
+    private final int maximumKeys;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+    private final AtomicReference current = new AtomicReference(new Window());
+
+    /**
+     * Constructor
+     *
+     * @param maximumKeys the most keys queued at once
+     */
+    CoalescingReplicationQueue(int maximumKeys) {
+        this.maximumKeys = Math.max(maximumKeys, 1);
+    }
+
+    /**
+     * Queues a message, replacing any queued for the same key.
+     *
+     * @param key     the key the message is for, or null for a removeAll
+     * @param message the message
+     * @return false if the message was discarded because the queue is full. A removeAll is always queued.
+     */
+    boolean offer(Object key, Object message) {
+        Object mapKey = key == null ? REMOVE_ALL_KEY : key;
+        while (true) {
+            Window window = (Window) current.get();
+            window.producers.incrementAndGet();
+            try {
+                if (window != current.get()) {
+                    //drained meanwhile; add to the new window instead
+                    continue;
+                }
+                Entry entry = new Entry(sequence.incrementAndGet(), message);
+                if (key == null) {
+                    window.addRemoveAll(entry);
+                    return true;
+                }
+                return window.add(mapKey, entry);
+            } finally {
+                window.producers.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Takes everything queued.
+     *
+     * @return the messages, a removeAll first, then the latest message for each key in the order they were queued
+     */
+    List drain() {
+        Window window = (Window) current.getAndSet(new Window());
+        while (window.producers.get() > 0) {
+            Thread.yield();
+        }
+        List entries = new ArrayList(window.entries.values());
+        Entry removeAll = (Entry) window.entries.get(REMOVE_ALL_KEY);
+        if (removeAll != null) {
+            for (Iterator iterator = entries.iterator(); iterator.hasNext();) {
+                if (((Entry) iterator.next()).sequence < removeAll.sequence) {
+                    iterator.remove();
+                }
+            }
+        }
+        Collections.sort(entries, SEQUENCE_ORDER);
+        List messages = new ArrayList(entries.size());
+        for (int i = 0; i < entries.size(); i++) {
+            messages.add(((Entry) entries.get(i)).message);
+        }
+        return messages;
+    }
+
+    /**
+     * @return the most keys queued at once
+     */
+    int getMaximumKeys() {
+        return maximumKeys;
+    }
+
+    /**
+     * @return the number of keys queued
+     */
+    int size() {
+        return ((Window) current.get()).size.get();
+    }
+
+    /**
+     * @return true if the queue is at least half full, so that it should be flushed without waiting for the interval
+     */
+    boolean isFlushDue() {
+        return size() >= (maximumKeys + 1) / 2;
+    }
+
+    /**
+     * @return the number of messages discarded because the queue was full, since this was last called
+     */
+    long takeDiscardedCount() {
+        return discarded.getAndSet(0);
+    }
+
+    /**
+     * A flush window
+     */
+    private final class Window {
+
+        private final ConcurrentHashMap entries = new ConcurrentHashMap();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicInteger producers = new AtomicInteger();
+
+        private boolean add(Object mapKey, Entry entry) {
+            while (true) {
+                Entry queued = (Entry) entries.get(mapKey);
+                if (queued == null) {
+                    if (size.incrementAndGet() > maximumKeys) {
+                        size.decrementAndGet();
+                        discarded.incrementAndGet();
+                        return false;
+                    }
+                    queued = (Entry) entries.putIfAbsent(mapKey, entry);
+                    if (queued == null) {
+                        return true;
+                    }
+                    size.decrementAndGet();
+                }
+                if (queued.sequence > entry.sequence || entries.replace(mapKey, queued, entry)) {
+                    //a concurrent producer's later message stands, or ours replaced the queued one
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Queues a removeAll, whether or not the window is full, and drops the messages queued before it.
+         */
+        private void addRemoveAll(Entry entry) {
+            while (true) {
+                Entry queued = (Entry) entries.get(REMOVE_ALL_KEY);
+                if (queued == null) {
+                    if (entries.putIfAbsent(REMOVE_ALL_KEY, entry) == null) {
+                        size.incrementAndGet();
+                        break;
+                    }
+                } else if (queued.sequence > entry.sequence || entries.replace(REMOVE_ALL_KEY, queued, entry)) {
+                    break;
+                }
+            }
+            for (Iterator iterator = entries.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry mapEntry = (Map.Entry) iterator.next();
+                Entry queued = (Entry) mapEntry.getValue();
+                //a message replaced meanwhile is left for drain() to filter by sequence
+                if (mapEntry.getKey() != REMOVE_ALL_KEY && queued.sequence < entry.sequence
+                        && entries.remove(mapEntry.getKey(), queued)) {
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued message and when it was queued
+     */
+    private static final class Entry {
+
+        private final long sequence;
+        private final Object message;
+
+        private Entry(long sequence, Object message) {
+            this.sequence = sequence;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A consistent hash ring which assigns each key to a number of nodes.
+ * <p/>
+ * Each node is placed at many points on the ring, found by hashing its name. A key is owned by the nodes at the first
+ * points found going round the ring from the hash of the key, skipping points of nodes already chosen. When a node joins
+ * or leaves, only the keys next to its points change owner.
+ * <p/>
+ * Nodes are named by the url base of their cache peers, so every node builds the same ring from the same peers.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class ConsistentHashRing {
+
+    /**
+     * The number of points each node has on the ring. More points spread the keys more evenly.
+     */
+    static final int POINTS_PER_NODE = 128;
+
+    private final Set nodes;
+    private final TreeMap points = new TreeMap();
+
+    /**
+     * Constructor
+     *
+     * @param nodes the names of the nodes
+     */
+    ConsistentHashRing(Collection nodes) {
+        this.nodes = new TreeSet(nodes);
+        for (Iterator iterator = this.nodes.iterator(); iterator.hasNext();) {
+            String node = (String) iterator.next();
+            for (int i = 0; i < POINTS_PER_NODE; i++) {
+                points.put(new Integer(hash(node + "#" + i)), node);
+            }
+        }
+    }
+
+    /**
+     * Lists the nodes owning a key, the primary owner first.
+     *
+     * @param key    the key
+     * @param copies the number of owners wanted. Fewer are returned if there are fewer nodes.
+     * @return the names of the owners
+     */
+    List getOwners(Object key, int copies) {
+        List owners = new ArrayList(Math.min(copies, nodes.size()));
+        if (points.isEmpty()) {
+            return owners;
+        }
+        Integer start = new Integer(hash(key));
+        SortedMap tail = points.tailMap(start);
+        addOwners(tail, owners, copies);
+        if (owners.size() < copies && owners.size() < nodes.size()) {
+            addOwners(points.headMap(start), owners, copies);
+        }
+        return owners;
+    }
+
+    private void addOwners(Map section, List owners, int copies) {
+        for (Iterator iterator = section.values().iterator(); iterator.hasNext()
+                && owners.size() < copies && owners.size() < nodes.size();) {
+            Object node = iterator.next();
+            if (!owners.contains(node)) {
+                owners.add(node);
+            }
+        }
+    }
+
+    /**
+     * @return true if the node is one of the owners of the key
+     */
+    boolean isOwner(String node, Object key, int copies) {
+        return node != null && getOwners(key, copies).contains(node);
+    }
+
+    /**
+     * @return the names of the nodes on the ring
+     */
+    Set getNodes() {
+        return nodes;
+    }
+
+    private static int hash(Object object) {
+        int hash = object.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        hash *= 0xC2B2AE35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+}
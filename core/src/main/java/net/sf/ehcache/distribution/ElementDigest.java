@@ -0,0 +1,91 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * A digest of the version of an element, used to find the elements which differ between two copies of a cache
+ * without sending their values.
+ * <p/>
+ * The digest mixes the version, creation time and last update time of the element. Copies fetched to bring a cache in
+ * line with a peer are put with {@link #putCopy(Ehcache, Element)}, which keeps these as they were where the element
+ * was put, so copies of the same put have the same digest, while an update or a remove and put again gives a new one.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class ElementDigest {
+
+    /**
+     * The digest of a key with no element
+     */
+    static final long ABSENT = 0;
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    /**
+     * Utility class
+     */
+    private ElementDigest() {
+        //noop
+    }
+
+    /**
+     * @return the digest of the element, or {@link #ABSENT} if it is null
+     */
+    static long digest(Element element) {
+        if (element == null) {
+            return ABSENT;
+        }
+        long digest = element.getVersion();
+        digest = digest * MULTIPLIER + element.getCreationTime();
+        digest = digest * MULTIPLIER + element.getLastUpdateTime();
+        digest ^= digest >>> 29;
+        return digest == ABSENT ? 1 : digest;
+    }
+
+    /**
+     * Puts a copy of an element fetched from a peer, keeping its version and last update time where the cache is a
+     * {@link Cache}. Other caches are given a put from a cache peer.
+     */
+    static void putCopy(Ehcache cache, Element element) {
+        if (cache instanceof Cache) {
+            ((Cache) cache).putPeerCopy(element);
+        } else {
+            cache.put(element, true);
+        }
+    }
+
+    /**
+     * Digests the elements of a cache for a list of keys, without updating their statistics.
+     *
+     * @return the digests, in the order of the keys
+     */
+    static long[] digests(Ehcache cache, List keys) {
+        long[] digests = new long[keys.size()];
+        for (int i = 0; i < digests.length; i++) {
+            digests[i] = digest(cache.getQuiet((Serializable) keys.get(i)));
+        }
+        return digests;
+    }
+}
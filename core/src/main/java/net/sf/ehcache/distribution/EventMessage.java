@@ -17,7 +17,12 @@
 package net.sf.ehcache.distribution;
 
 import net.sf.ehcache.Element;
+import net.sf.ehcache.serialization.ElementSerializer;
+import net.sf.ehcache.serialization.JavaElementSerializer;
+import net.sf.ehcache.util.BufferPool;
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.lang.ref.SoftReference;
@@ -29,6 +34,9 @@ import java.lang.ref.SoftReference;
  * <p/>
  * The value of an Element is referenced with a SoftReference, so that a
  * value will fail to be delivered in preference to an OutOfMemory error.
+ * <p/>
+ * If the message is created with an {@link ElementSerializer} other than Java serialization, the element is sent as
+ * the bytes written by that serializer, and the receiver reads it with {@link #getElement(ElementSerializer)}.
  *
  * @author Greg Luck
  * @version $Id: EventMessage.java 968 2009-06-12 06:29:56Z gregluck $
@@ -77,6 +85,16 @@ public class EventMessage implements Serializable {
      */
     private final boolean wasElementNotNull;
 
+    /**
+     * The serializer of the sending cache. null for Java serialization.
+     */
+    private transient ElementSerializer elementSerializer;
+
+    /**
+     * The element as written by the serializer of the sending cache, until read by the receiver
+     */
+    private transient byte[] serializedElement;
+
 
     /**
      * Full constructor.
@@ -93,6 +111,21 @@ public class EventMessage implements Serializable {
         elementSoftReference = new SoftReference(element);
     }
 
+    /**
+     * Constructor for a cache with an ElementSerializer.
+     *
+     * @param event
+     * @param key
+     * @param element
+     * @param elementSerializer the serializer of the cache. The element is sent as the bytes it writes.
+     */
+    public EventMessage(int event, Serializable key, Element element, ElementSerializer elementSerializer) {
+        this(event, key, element);
+        if (!(elementSerializer instanceof JavaElementSerializer)) {
+            this.elementSerializer = elementSerializer;
+        }
+    }
+
     /**
      * Gets the event.
      *
@@ -109,6 +142,25 @@ public class EventMessage implements Serializable {
         return (Element) elementSoftReference.get();
     }
 
+    /**
+     * Gets the element of a received message, reading it with the serializer of the receiving cache if it was
+     * sent as serialized bytes.
+     *
+     * @param serializer the serializer of the receiving cache
+     * @return the element component of the message. null if a {@link #REMOVE} event
+     * @throws IOException            if the element cannot be read
+     * @throws ClassNotFoundException if a class of the element cannot be found
+     */
+    public final synchronized Element getElement(ElementSerializer serializer) throws IOException, ClassNotFoundException {
+        if (serializedElement != null) {
+            Element element = serializer.deserialize(new ByteArrayInputStream(serializedElement));
+            serializedElement = null;
+            elementSoftReference = new SoftReference(element);
+            return element;
+        }
+        return getElement();
+    }
+
     /**
      * @return the key component of the message. null if a {@link #PUT} event
      */
@@ -124,20 +176,36 @@ public class EventMessage implements Serializable {
         if (!wasElementNotNull) {
             return true;
         } else {
-            return getElement() != null;
+            return serializedElement != null || getElement() != null;
         }
     }
 
     private void writeObject(java.io.ObjectOutputStream out) throws IOException {
         out.defaultWriteObject();
         Element element = getElement();
-        out.writeObject(element);
+        if (elementSerializer == null || element == null) {
+            out.writeObject(element);
+        } else {
+            MemoryEfficientByteArrayOutputStream bytes = MemoryEfficientByteArrayOutputStream.pooled(
+                    BufferPool.MINIMUM_BUFFER_SIZE);
+            try {
+                elementSerializer.serialize(element, bytes);
+                out.writeObject(bytes.toByteArray());
+            } finally {
+                bytes.release();
+            }
+        }
     }
 
     private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
         in.defaultReadObject();
-        Element element = (Element) in.readObject();
-        elementSoftReference = new SoftReference(element);
+        Object element = in.readObject();
+        if (element instanceof byte[]) {
+            serializedElement = (byte[]) element;
+            elementSoftReference = new SoftReference(null);
+        } else {
+            elementSoftReference = new SoftReference(element);
+        }
     }
 }
 
@@ -0,0 +1,194 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hash tree over the elements of a cache, used to find where two copies of a cache differ by exchanging a few
+ * hashes rather than every key.
+ * <p/>
+ * Keys are placed in leaves by their hash code, so each leaf covers a range of key hashes. A leaf hashes the keys in it
+ * together with the {@link ElementDigest} of their elements, summed so that the order of the keys does not matter.
+ * Each node above hashes its 16 children. Two caches holding the same puts have the same root, and a difference
+ * can be found by descending only into the children whose hashes differ.
+ * <p/>
+ * Nodes are numbered from the root, 0, level by level, so the children of node n are 16n + 1 to 16n + 16. The number
+ * of leaves is a power of 16.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class HashTree {
+
+    /**
+     * The number of children of each node
+     */
+    static final int FANOUT = 16;
+
+    /**
+     * How long a tree built for a peer is reused for, so that one comparison does not rebuild it for each level
+     */
+    static final long REUSE_MILLIS = 10000;
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final int leafCount;
+    private final int firstLeaf;
+    private final long[] nodes;
+    private final long built;
+
+    private HashTree(int leafCount) {
+        this.leafCount = leafCount;
+        firstLeaf = (leafCount - 1) / (FANOUT - 1);
+        nodes = new long[firstLeaf + leafCount];
+        built = System.currentTimeMillis();
+    }
+
+    /**
+     * @return true if the tree can have this many leaves
+     */
+    static boolean isValidLeafCount(int leafCount) {
+        int count = 1;
+        while (count < leafCount && count <= Integer.MAX_VALUE / FANOUT) {
+            count *= FANOUT;
+        }
+        return count == leafCount && leafCount >= FANOUT;
+    }
+
+    /**
+     * Builds the tree of a cache, reading each element without updating its statistics.
+     *
+     * @param cache     the cache
+     * @param leafCount the number of leaves, a power of 16
+     */
+    static HashTree build(Ehcache cache, int leafCount) {
+        if (!isValidLeafCount(leafCount)) {
+            throw new IllegalArgumentException("The leaf count " + leafCount + " is not a power of " + FANOUT);
+        }
+        HashTree tree = new HashTree(leafCount);
+        List keys = cache.getKeys();
+        for (int i = 0; i < keys.size(); i++) {
+            Object key = keys.get(i);
+            Element element = cache.getQuiet(key);
+            if (element != null) {
+                tree.nodes[tree.firstLeaf + leafOf(key, leafCount)] += mix(key.hashCode() * MULTIPLIER
+                        + ElementDigest.digest(element));
+            }
+        }
+        for (int node = tree.firstLeaf - 1; node >= 0; node--) {
+            long hash = 0;
+            for (int child = 0; child < FANOUT; child++) {
+                hash += mix(tree.nodes[node * FANOUT + 1 + child] + child);
+            }
+            tree.nodes[node] = hash;
+        }
+        return tree;
+    }
+
+    /**
+     * Returns a tree built recently enough to be reused, or builds a new one.
+     *
+     * @param tree      the last tree built, or null
+     * @param cache     the cache
+     * @param leafCount the number of leaves wanted
+     */
+    static HashTree reuseOrBuild(HashTree tree, Ehcache cache, int leafCount) {
+        if (tree != null && tree.leafCount == leafCount && System.currentTimeMillis() - tree.built < REUSE_MILLIS) {
+            return tree;
+        }
+        return build(cache, leafCount);
+    }
+
+    /**
+     * @return the leaf a key is in
+     */
+    static int leafOf(Object key, int leafCount) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        hash *= 0x85EBCA6B;
+        hash ^= hash >>> 13;
+        return hash & (leafCount - 1);
+    }
+
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /**
+     * @return the hashes of nodes
+     */
+    long[] getHashes(int[] nodeNumbers) {
+        long[] hashes = new long[nodeNumbers.length];
+        for (int i = 0; i < nodeNumbers.length; i++) {
+            hashes[i] = nodes[nodeNumbers[i]];
+        }
+        return hashes;
+    }
+
+    /**
+     * @return the hash of a node
+     */
+    long getHash(int node) {
+        return nodes[node];
+    }
+
+    /**
+     * @return true if the node is a leaf
+     */
+    boolean isLeaf(int node) {
+        return node >= firstLeaf;
+    }
+
+    /**
+     * @return the number of the first leaf node. Leaf i is node getFirstLeaf() + i.
+     */
+    int getFirstLeaf() {
+        return firstLeaf;
+    }
+
+    /**
+     * Lists the keys of a cache in some leaves.
+     *
+     * @param cache     the cache
+     * @param leafCount the number of leaves
+     * @param leaves    the leaves, numbered from 0
+     */
+    static List getKeys(Ehcache cache, int leafCount, int[] leaves) {
+        boolean[] wanted = new boolean[leafCount];
+        for (int i = 0; i < leaves.length; i++) {
+            wanted[leaves[i]] = true;
+        }
+        List keys = cache.getKeys();
+        List leafKeys = new ArrayList();
+        for (int i = 0; i < keys.size(); i++) {
+            Object key = keys.get(i);
+            if (key instanceof Serializable && wanted[leafOf(key, leafCount)]) {
+                leafKeys.add(key);
+            }
+        }
+        return leafKeys;
+    }
+}
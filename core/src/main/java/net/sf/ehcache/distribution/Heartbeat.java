@@ -0,0 +1,159 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * A binary multicast heartbeat, which announces a CacheManager without listing the URLs of its cache peers.
+ * <p/>
+ * It carries the url base of the CacheManager's RMI listener, which identifies the node, a generation, a hash of the
+ * set of cache peer URLs and their number. The generation is the time the sender was created, so it changes when a
+ * node restarts. The hash changes when caches are added or removed. A receiver which has already seen the same
+ * generation and hash has nothing to do but note that the node is alive. Otherwise it fetches the URLs from the
+ * node's RMI registry.
+ * <p/>
+ * The format is a magic byte, which cannot begin a gzipped URL list, a version byte, the url base in modified UTF-8,
+ * then the generation as a long and the hash and the number of URLs as ints. A heartbeat is well under 100 bytes.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class Heartbeat {
+
+    /**
+     * The first byte of a binary heartbeat. A gzipped URL list starts with 0x1f.
+     */
+    static final byte MAGIC = (byte) 0xEC;
+
+    /**
+     * The version of the format
+     */
+    static final byte VERSION = 1;
+
+    private final String urlBase;
+    private final long generation;
+    private final int cacheSetHash;
+    private final int peerCount;
+
+    /**
+     * Constructor
+     *
+     * @param urlBase      the url base of the sending CacheManager's listener, such as //hostname:40001
+     * @param generation   the generation of the sender, which changes when it restarts
+     * @param cacheSetHash the hash of the set of cache peer URLs, from {@link #hash(Collection)}
+     * @param peerCount    the number of cache peers
+     */
+    Heartbeat(String urlBase, long generation, int cacheSetHash, int peerCount) {
+        this.urlBase = urlBase;
+        this.generation = generation;
+        this.cacheSetHash = cacheSetHash;
+        this.peerCount = peerCount;
+    }
+
+    /**
+     * Hashes a set of URLs independently of their order.
+     *
+     * @param rmiUrls the URLs
+     * @return the hash
+     */
+    static int hash(Collection rmiUrls) {
+        int hash = 0;
+        for (Iterator iterator = rmiUrls.iterator(); iterator.hasNext();) {
+            int urlHash = iterator.next().hashCode() * 0x9E3779B9;
+            hash += urlHash ^ (urlHash >>> 16);
+        }
+        return hash;
+    }
+
+    /**
+     * @return true if the payload is a binary heartbeat rather than a gzipped URL list
+     */
+    static boolean isHeartbeat(byte[] payload, int length) {
+        return length > 2 && payload[0] == MAGIC && payload[1] == VERSION;
+    }
+
+    /**
+     * Reads a heartbeat.
+     *
+     * @param payload the bytes received
+     * @param length  the number of bytes received
+     * @throws IOException if the payload is not a heartbeat
+     */
+    static Heartbeat fromBytes(byte[] payload, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+        if (in.readByte() != MAGIC || in.readByte() != VERSION) {
+            throw new IOException("Not a heartbeat");
+        }
+        return new Heartbeat(in.readUTF(), in.readLong(), in.readInt(), in.readInt());
+    }
+
+    /**
+     * @return the heartbeat as bytes
+     */
+    byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(MAGIC);
+            out.writeByte(VERSION);
+            out.writeUTF(urlBase);
+            out.writeLong(generation);
+            out.writeInt(cacheSetHash);
+            out.writeInt(peerCount);
+            out.flush();
+        } catch (IOException e) {
+            //cannot happen writing to memory
+            throw new IllegalStateException(e.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return the url base of the sending CacheManager's listener
+     */
+    String getUrlBase() {
+        return urlBase;
+    }
+
+    /**
+     * @return the generation of the sender, which changes when it restarts
+     */
+    long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return the hash of the set of cache peer URLs
+     */
+    int getCacheSetHash() {
+        return cacheSetHash;
+    }
+
+    /**
+     * @return the number of cache peers
+     */
+    int getPeerCount() {
+        return peerCount;
+    }
+}
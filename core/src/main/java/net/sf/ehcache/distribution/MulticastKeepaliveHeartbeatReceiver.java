@@ -22,10 +22,14 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.rmi.Naming;
 import java.rmi.RemoteException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.concurrent.ExecutorService;
@@ -37,6 +41,12 @@ import java.util.logging.Logger;
  * Receives heartbeats from any {@link MulticastKeepaliveHeartbeatSender}s out there.
  * <p/>
  * Our own multicast heartbeats are ignored.
+ * <p/>
+ * Both the gzipped list of URLs and the binary {@link Heartbeat} are understood, so that senders can be moved from
+ * one to the other a node at a time. For a binary heartbeat, the generation and hash last seen from each sender are
+ * kept. While they stay the same the sender's peers are simply marked as alive. When they change, the list of URLs is
+ * fetched from the sender's RMI registry, peers which have gone are unregistered and new ones are registered. A new
+ * generation means the sender has restarted, so all of its peers are looked up again.
  *
  * @author Greg Luck
  * @version $Id: MulticastKeepaliveHeartbeatReceiver.java 996 2009-07-11 06:59:32Z gregluck $
@@ -47,6 +57,7 @@ public final class MulticastKeepaliveHeartbeatReceiver {
 
     private ExecutorService processingThreadPool;
     private Set rmiUrlsProcessingQueue = Collections.synchronizedSet(new HashSet());
+    private Map senders = Collections.synchronizedMap(new HashMap());
     private final InetAddress groupMulticastAddress;
     private final Integer groupMulticastPort;
     private MulticastReceiverThread receiverThread;
@@ -120,8 +131,11 @@ public final class MulticastKeepaliveHeartbeatReceiver {
                     try {
                         socket.receive(packet);
                         byte[] payload = packet.getData();
-                        processPayload(payload);
-
+                        if (Heartbeat.isHeartbeat(payload, packet.getLength())) {
+                            processHeartbeat(Heartbeat.fromBytes(payload, packet.getLength()));
+                        } else {
+                            processPayload(payload);
+                        }
 
                     } catch (IOException e) {
                         if (!stopped) {
@@ -148,6 +162,67 @@ public final class MulticastKeepaliveHeartbeatReceiver {
             processRmiUrls(rmiUrls);
         }
 
+        /**
+         * Marks the sender's peers as alive if nothing has changed, otherwise fetches its list of URLs in the
+         * thread pool.
+         */
+        private void processHeartbeat(final Heartbeat heartbeat) {
+            String localUrlBase = localUrlBase();
+            if (localUrlBase != null && localUrlBase.equals(heartbeat.getUrlBase())) {
+                return;
+            }
+            final SenderState state = (SenderState) senders.get(heartbeat.getUrlBase());
+            if (state != null && state.generation == heartbeat.getGeneration()
+                    && state.cacheSetHash == heartbeat.getCacheSetHash() && peerProvider.touchPeers(state.rmiUrls)) {
+                return;
+            }
+            if (processingThreadPool == null || !rmiUrlsProcessingQueue.add(heartbeat.getUrlBase())) {
+                return;
+            }
+            processingThreadPool.execute(new Runnable() {
+                public void run() {
+                    try {
+                        fetchPeers(heartbeat, state);
+                    } finally {
+                        rmiUrlsProcessingQueue.remove(heartbeat.getUrlBase());
+                    }
+                }
+            });
+        }
+
+        /**
+         * Lists the sender's RMI registry, and registers and unregisters peers to match.
+         */
+        private void fetchPeers(Heartbeat heartbeat, SenderState state) {
+            List rmiUrls;
+            try {
+                rmiUrls = Arrays.asList(Naming.list(heartbeat.getUrlBase()));
+            } catch (Exception e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Unable to list the cache peers of " + heartbeat.getUrlBase()
+                            + ". Will try again on its next heartbeat. Cause was: " + e.getMessage());
+                }
+                return;
+            }
+            if (state != null) {
+                for (int i = 0; i < state.rmiUrls.size(); i++) {
+                    String rmiUrl = (String) state.rmiUrls.get(i);
+                    if (state.generation != heartbeat.getGeneration() || !rmiUrls.contains(rmiUrl)) {
+                        peerProvider.unregisterPeer(rmiUrl);
+                    }
+                }
+            }
+            for (int i = 0; i < rmiUrls.size() && !stopped; i++) {
+                registerNotification((String) rmiUrls.get(i));
+            }
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.fine("rmiUrls fetched from " + heartbeat.getUrlBase() + " " + rmiUrls);
+            }
+            //the list may have changed since the heartbeat was sent, so keep the hash of what was fetched
+            senders.put(heartbeat.getUrlBase(),
+                    new SenderState(heartbeat.getGeneration(), Heartbeat.hash(rmiUrls), rmiUrls));
+        }
+
         /**
          * This method forks a new executor to process the received heartbeat in a thread pool.
          * That way each remote cache manager cannot interfere with others.
@@ -202,14 +277,26 @@ public final class MulticastKeepaliveHeartbeatReceiver {
          *         caught our onw multicast, and should be ignored.
          */
         private boolean self(String rmiUrls) {
+            String cacheManagerUrlBase = localUrlBase();
+            if (cacheManagerUrlBase == null) {
+                return false;
+            }
+            int baseUrlMatch = rmiUrls.indexOf(cacheManagerUrlBase);
+            return baseUrlMatch != -1;
+        }
+
+        /**
+         * @return the url base of our own listener, or null if it has no cache peers bound
+         */
+        private String localUrlBase() {
             CacheManager cacheManager = peerProvider.getCacheManager();
             CacheManagerPeerListener cacheManagerPeerListener = cacheManager.getCachePeerListener("RMI");
             if (cacheManagerPeerListener == null) {
-                return false;
+                return null;
             }
             List boundCachePeers = cacheManagerPeerListener.getBoundCachePeers();
             if (boundCachePeers == null || boundCachePeers.size() == 0) {
-                return false;
+                return null;
             }
             CachePeer peer = (CachePeer) boundCachePeers.get(0);
             String cacheManagerUrlBase = null;
@@ -218,8 +305,7 @@ public final class MulticastKeepaliveHeartbeatReceiver {
             } catch (RemoteException e) {
                 LOG.log(Level.SEVERE, "Error geting url base");
             }
-            int baseUrlMatch = rmiUrls.indexOf(cacheManagerUrlBase);
-            return baseUrlMatch != -1;
+            return cacheManagerUrlBase;
         }
 
         private void registerNotification(String rmiUrl) {
@@ -241,5 +327,19 @@ public final class MulticastKeepaliveHeartbeatReceiver {
         }
     }
 
+    /**
+     * What was last fetched from a sender of binary heartbeats
+     */
+    private static final class SenderState {
+
+        private final long generation;
+        private final int cacheSetHash;
+        private final List rmiUrls;
 
+        private SenderState(long generation, int cacheSetHash, List rmiUrls) {
+            this.generation = generation;
+            this.cacheSetHash = cacheSetHash;
+            this.rmiUrls = rmiUrls;
+        }
+    }
 }
@@ -22,6 +22,7 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -43,6 +44,10 @@ import java.util.logging.Logger;
  * <li>255 is unrestricted
  * </ul>
  * You can also control how often the heartbeat sends by setting the interval.
+ * <p/>
+ * A sender created with binaryHeartbeat set sends a {@link Heartbeat} instead, which carries a hash of the list
+ * rather than the list itself, and fits in one small packet however many caches are replicated. Receivers fetch the
+ * list from the RMI registry of the sender only when the hash or generation changes.
  *
  * @author Greg Luck
  * @version $Id: MulticastKeepaliveHeartbeatSender.java 996 2009-07-11 06:59:32Z gregluck $
@@ -65,6 +70,7 @@ public final class MulticastKeepaliveHeartbeatSender {
     private boolean stopped;
     private final CacheManager cacheManager;
     private InetAddress hostAddress;
+    private final boolean binaryHeartbeat;
 
     /**
      * Constructor.
@@ -78,12 +84,28 @@ public final class MulticastKeepaliveHeartbeatSender {
                                              InetAddress multicastAddress, Integer multicastPort,
                                              Integer timeToLive,
                                              InetAddress hostAddress) {
+        this(cacheManager, multicastAddress, multicastPort, timeToLive, hostAddress, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param cacheManager     the bound CacheManager. Each CacheManager has a maximum of one sender
+     * @param multicastAddress
+     * @param multicastPort
+     * @param timeToLive       See class description for the meaning of this parameter.
+     * @param binaryHeartbeat  whether to send a {@link Heartbeat} rather than the list of URLs
+     */
+    public MulticastKeepaliveHeartbeatSender(CacheManager cacheManager,
+                                             InetAddress multicastAddress, Integer multicastPort,
+                                             Integer timeToLive,
+                                             InetAddress hostAddress, boolean binaryHeartbeat) {
         this.cacheManager = cacheManager;
         this.groupMulticastAddress = multicastAddress;
         this.groupMulticastPort = multicastPort;
         this.timeToLive = timeToLive;
         this.hostAddress = hostAddress;
-
+        this.binaryHeartbeat = binaryHeartbeat;
     }
 
     /**
@@ -111,6 +133,7 @@ public final class MulticastKeepaliveHeartbeatSender {
         private MulticastSocket socket;
         private List compressedUrlListList = new ArrayList();
         private int cachePeersHash;
+        private final long generation = System.currentTimeMillis();
 
 
         /**
@@ -132,7 +155,7 @@ public final class MulticastKeepaliveHeartbeatSender {
                     socket.joinGroup(groupMulticastAddress);
 
                     while (!stopped) {
-                        List buffers = createCachePeersPayload();
+                        List buffers = binaryHeartbeat ? createHeartbeatPayload() : createCachePeersPayload();
                         for (Iterator iter = buffers.iterator(); iter.hasNext();) {
                             byte[] buffer = (byte[]) iter.next();
                             DatagramPacket packet = new DatagramPacket(buffer, buffer.length, groupMulticastAddress,
@@ -199,6 +222,33 @@ public final class MulticastKeepaliveHeartbeatSender {
             return compressedUrlListList;
         }
 
+        /**
+         * Creates a binary heartbeat.
+         * <p/>
+         * The heartbeat is only recreated if the list of cache peers has changed.
+         *
+         * @return a list holding the heartbeat, or an empty list if there are no cache peers to announce
+         */
+        private List createHeartbeatPayload() throws RemoteException {
+            List localCachePeers = cacheManager.getCachePeerListener("RMI").getBoundCachePeers();
+            if (localCachePeers.isEmpty()) {
+                return new ArrayList();
+            }
+            List rmiUrls = new ArrayList(localCachePeers.size());
+            for (int i = 0; i < localCachePeers.size(); i++) {
+                rmiUrls.add(((CachePeer) localCachePeers.get(i)).getUrl());
+            }
+            int newCachePeersHash = Heartbeat.hash(rmiUrls);
+            if (compressedUrlListList.isEmpty() || cachePeersHash != newCachePeersHash) {
+                cachePeersHash = newCachePeersHash;
+                String urlBase = ((CachePeer) localCachePeers.get(0)).getUrlBase();
+                Heartbeat heartbeat = new Heartbeat(urlBase, generation, cachePeersHash, rmiUrls.size());
+                compressedUrlListList = new ArrayList();
+                compressedUrlListList.add(heartbeat.toBytes());
+            }
+            return compressedUrlListList;
+        }
+
 
         /**
          * Interrupts this thread.
@@ -290,4 +340,11 @@ public final class MulticastKeepaliveHeartbeatSender {
     public Integer getTimeToLive() {
         return timeToLive;
     }
+
+    /**
+     * @return whether a {@link Heartbeat} is sent rather than the list of URLs
+     */
+    public boolean isBinaryHeartbeat() {
+        return binaryHeartbeat;
+    }
 }
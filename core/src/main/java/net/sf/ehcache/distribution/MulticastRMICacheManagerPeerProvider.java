@@ -76,14 +76,26 @@ public final class MulticastRMICacheManagerPeerProvider extends RMICacheManagerP
      */
     public MulticastRMICacheManagerPeerProvider(CacheManager cacheManager, InetAddress groupMulticastAddress,
                                                 Integer groupMulticastPort, Integer timeToLive, InetAddress hostAddress) {
-        super(cacheManager);
-
-
+        this(cacheManager, groupMulticastAddress, groupMulticastPort, timeToLive, hostAddress, false);
+    }
 
+    /**
+     * Creates and starts a multicast peer provider
+     *
+     * @param groupMulticastAddress 224.0.0.1 to 239.255.255.255 e.g. 230.0.0.1
+     * @param groupMulticastPort    1025 to 65536 e.g. 4446
+     * @param hostAddress the address of the interface to use for sending and receiving multicast. May be null.
+     * @param binaryHeartbeat whether to send a compact {@link Heartbeat} rather than the list of URLs. Both are
+     * always received.
+     */
+    public MulticastRMICacheManagerPeerProvider(CacheManager cacheManager, InetAddress groupMulticastAddress,
+                                                Integer groupMulticastPort, Integer timeToLive, InetAddress hostAddress,
+                                                boolean binaryHeartbeat) {
+        super(cacheManager);
         heartBeatReceiver = new MulticastKeepaliveHeartbeatReceiver(this, groupMulticastAddress,
                 groupMulticastPort, hostAddress);
         heartBeatSender = new MulticastKeepaliveHeartbeatSender(cacheManager, groupMulticastAddress,
-                        groupMulticastPort, timeToLive, hostAddress);
+                        groupMulticastPort, timeToLive, hostAddress, binaryHeartbeat);
     }
 
     /**
@@ -137,6 +149,26 @@ public final class MulticastRMICacheManagerPeerProvider extends RMICacheManagerP
         }
     }
 
+    /**
+     * Updates the last seen timestamp of peers which are already registered, without looking anything up.
+     *
+     * @param rmiUrls the peers heard from
+     * @return false if any of the peers is not registered or has gone stale, and so needs registering again
+     */
+    final boolean touchPeers(List rmiUrls) {
+        Date now = new Date();
+        synchronized (peerUrls) {
+            for (int i = 0; i < rmiUrls.size(); i++) {
+                CachePeerEntry cachePeerEntry = (CachePeerEntry) peerUrls.get(rmiUrls.get(i));
+                if (cachePeerEntry == null || stale(cachePeerEntry.date)) {
+                    return false;
+                }
+                cachePeerEntry.date = now;
+            }
+        }
+        return true;
+    }
+
     /**
      * @return a list of {@link CachePeer} peers, excluding the local peer.
      */
@@ -0,0 +1,212 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A local cache bound to an {@link NIOCacheManagerPeerListener}, to which the requests of remote peers are applied.
+ * <p/>
+ * Changes are made without notifying the replicators of the cache, as with {@link RMICachePeer}.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class NIOBoundCachePeer implements CachePeer {
+
+    private static final Logger LOG = Logger.getLogger(NIOBoundCachePeer.class.getName());
+
+    private final Ehcache cache;
+    private final String urlBase;
+    private HashTree hashTree;
+
+    /**
+     * Constructor
+     *
+     * @param cache   the local cache
+     * @param urlBase the url base of the listener, of the form //hostName:port
+     */
+    NIOBoundCachePeer(Ehcache cache, String urlBase) {
+        this.cache = cache;
+        this.urlBase = urlBase;
+    }
+
+    /**
+     * @return the local cache
+     */
+    Ehcache getBoundCacheInstance() {
+        return cache;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void put(Element element) throws IllegalArgumentException, IllegalStateException {
+        cache.put(element, true);
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "NIOBoundCachePeer for cache " + cache.getName() + ": remote put received. Element is: " + element);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean remove(Serializable key) throws IllegalStateException {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "NIOBoundCachePeer for cache " + cache.getName() + ": remote remove received for key: " + key);
+        }
+        return cache.remove(key, true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeAll() throws IllegalStateException {
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "NIOBoundCachePeer for cache " + cache.getName() + ": remote removeAll received");
+        }
+        cache.removeAll(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void send(List eventMessages) {
+        for (int i = 0; i < eventMessages.size(); i++) {
+            EventMessage eventMessage = (EventMessage) eventMessages.get(i);
+            if (eventMessage.getEvent() == EventMessage.PUT) {
+                Element element = eventMessage.getElement();
+                if (element != null) {
+                    put(element);
+                }
+            } else if (eventMessage.getEvent() == EventMessage.REMOVE) {
+                remove(eventMessage.getSerializableKey());
+            } else if (eventMessage.getEvent() == EventMessage.REMOVE_ALL) {
+                removeAll();
+            } else {
+                LOG.log(Level.SEVERE, "Unknown event: " + eventMessage);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sendBatch(byte[] payload) throws RemoteException {
+        ReplicationBatch.applyRemotely(payload, this, Cache.getElementSerializer(cache), cache.getName());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() {
+        return cache.getName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getGuid() {
+        return cache.getGuid();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUrl() {
+        return urlBase + "/" + cache.getName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUrlBase() {
+        return urlBase;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List getKeys() {
+        return cache.getKeys();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Element getQuiet(Serializable key) {
+        return cache.getQuiet(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List getElements(List keys) {
+        if (keys == null) {
+            return new ArrayList();
+        }
+        List elements = new ArrayList();
+        for (int i = 0; i < keys.size(); i++) {
+            Element element = cache.getQuiet((Serializable) keys.get(i));
+            if (element != null) {
+                elements.add(element);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getDigests(List keys) {
+        if (keys == null) {
+            return new long[0];
+        }
+        return ElementDigest.digests(cache, keys);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long[] getHashTreeNodes(int leafCount, int[] nodes) {
+        hashTree = HashTree.reuseOrBuild(hashTree, cache, leafCount);
+        return hashTree.getHashes(nodes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List getHashTreeLeafKeys(int leafCount, int[] leaves) {
+        return HashTree.getKeys(cache, leafCount, leaves);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "URL: " + getUrl();
+    }
+}
@@ -0,0 +1,669 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
+import net.sf.ehcache.event.CacheEventListener;
+import net.sf.ehcache.util.BufferPool;
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A listener which applies the requests of remote {@link NIOCachePeer}s to the replicated caches of a CacheManager.
+ * <p/>
+ * One thread serves all connections from a selector, and hands the requests it reads to a small pool of worker threads,
+ * so that a slow cache operation does not stop it reading and writing the other connections. The requests of a
+ * connection are applied one at a time, in the order they arrive, and their responses are written back in that order.
+ * A connection is not read from while it has too many requests waiting to be applied. A connection carries requests for
+ * any number of caches, so each remote CacheManager needs only one.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class NIOCacheManagerPeerListener implements CacheManagerPeerListener {
+
+    private static final Logger LOG = Logger.getLogger(NIOCacheManagerPeerListener.class.getName());
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int WORKER_THREADS = 4;
+    private static final int MAXIMUM_QUEUED_REQUESTS = 64;
+
+    /**
+     * The bound cache peers. The value is an NIOBoundCachePeer.
+     */
+    protected final Map cachePeers = new HashMap();
+
+    /**
+     * status.
+     */
+    protected Status status;
+
+    /**
+     * The listener port
+     */
+    protected Integer port;
+
+    private final String hostName;
+    private final CacheManager cacheManager;
+    private ServerSocketChannel serverChannel;
+    private Selector selector;
+    private Thread selectorThread;
+    private ExecutorService workers;
+    private volatile boolean running;
+
+    /**
+     * Connections with responses to write, handed from the workers to the selector thread
+     */
+    private final Queue flushableConnections = new ConcurrentLinkedQueue();
+
+    /**
+     * Constructor
+     *
+     * @param hostName     may be null, in which case the address of the default NIC is used in the urls of the
+     *                     bound caches. The listener accepts connections on all interfaces.
+     * @param port         the port to listen on. 0 or null for a free port.
+     * @param cacheManager the CacheManager this listener belongs to
+     * @throws UnknownHostException if the host address cannot be found
+     */
+    public NIOCacheManagerPeerListener(String hostName, Integer port, CacheManager cacheManager) throws UnknownHostException {
+        status = Status.STATUS_UNINITIALISED;
+        if (hostName != null && hostName.length() != 0) {
+            this.hostName = hostName;
+        } else {
+            this.hostName = InetAddress.getLocalHost().getHostAddress();
+        }
+        if (port == null) {
+            this.port = new Integer(0);
+        } else {
+            this.port = port;
+        }
+        this.cacheManager = cacheManager;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init() throws CacheException {
+        if (!status.equals(Status.STATUS_UNINITIALISED)) {
+            return;
+        }
+        try {
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(port.intValue()));
+            port = new Integer(serverChannel.socket().getLocalPort());
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            closeQuietly();
+            throw new CacheException("Problem starting NIO listener on port " + port + ". Initial cause was " + e.getMessage(), e);
+        }
+
+        String[] names = cacheManager.getCacheNames();
+        for (int i = 0; i < names.length; i++) {
+            bindIfDistributed(cacheManager.getEhcache(names[i]));
+        }
+
+        running = true;
+        workers = Executors.newFixedThreadPool(WORKER_THREADS, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "NIO Replication Listener Worker " + port);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        selectorThread = new Thread(new Runnable() {
+            public void run() {
+                serve();
+            }
+        }, "NIO Replication Listener " + port);
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        LOG.log(Level.FINE, cachePeers.size() + " caches bound to NIO listener on port " + port);
+        status = Status.STATUS_ALIVE;
+    }
+
+    private void bindIfDistributed(Ehcache cache) {
+        if (cache == null || !isDistributed(cache)) {
+            return;
+        }
+        synchronized (cachePeers) {
+            if (cachePeers.get(cache.getName()) == null) {
+                cachePeers.put(cache.getName(), new NIOBoundCachePeer(cache, "//" + hostName + ":" + port));
+            }
+        }
+    }
+
+    /**
+     * Determine if the given cache is distributed.
+     *
+     * @param cache the cache to check
+     * @return true if a <code>CacheReplicator</code> is found in the listeners
+     */
+    protected boolean isDistributed(Ehcache cache) {
+        Set listeners = cache.getCacheEventNotificationService().getCacheEventListeners();
+        for (Iterator iterator = listeners.iterator(); iterator.hasNext();) {
+            CacheEventListener cacheEventListener = (CacheEventListener) iterator.next();
+            if (cacheEventListener instanceof CacheReplicator) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void serve() {
+        while (running) {
+            try {
+                selector.select();
+                for (ServerConnection connection = (ServerConnection) flushableConnections.poll(); connection != null;
+                     connection = (ServerConnection) flushableConnections.poll()) {
+                    try {
+                        connection.flush();
+                    } catch (IOException e) {
+                        if (LOG.isLoggable(Level.FINE)) {
+                            LOG.log(Level.FINE, "Closing replication connection: " + e.getMessage());
+                        }
+                        connection.close();
+                    }
+                }
+                for (Iterator iterator = selector.selectedKeys().iterator(); iterator.hasNext();) {
+                    SelectionKey key = (SelectionKey) iterator.next();
+                    iterator.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        ServerConnection connection = (ServerConnection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException e) {
+                            if (LOG.isLoggable(Level.FINE)) {
+                                LOG.log(Level.FINE, "Closing replication connection: " + e.getMessage());
+                            }
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                return;
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "NIO listener on port " + port + " failed to select: " + e.getMessage(), e);
+            } catch (Throwable e) {
+                LOG.log(Level.SEVERE, "NIO listener on port " + port + " failed: " + e.getMessage() + ". Continuing...", e);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new ServerConnection(channel, key));
+    }
+
+    /**
+     * Applies one request frame.
+     *
+     * @param frame the frame, without its length
+     * @return the response frame
+     */
+    private byte[] handle(byte[] frame) {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        int id = 0;
+        MemoryEfficientByteArrayOutputStream response = NIOProtocol.startFrame();
+        try {
+            DataOutputStream out = new DataOutputStream(response);
+            try {
+                byte operation = in.readByte();
+                id = in.readInt();
+                String cacheName = in.readUTF();
+                NIOBoundCachePeer peer;
+                synchronized (cachePeers) {
+                    peer = (NIOBoundCachePeer) cachePeers.get(cacheName);
+                }
+                if (peer == null) {
+                    throw new CacheException("No replicated cache named " + cacheName + " is bound to this listener");
+                }
+                MemoryEfficientByteArrayOutputStream result = MemoryEfficientByteArrayOutputStream.pooled(
+                        BufferPool.MINIMUM_BUFFER_SIZE);
+                try {
+                    apply(operation, peer, in, new DataOutputStream(result));
+                    out.writeByte(NIOProtocol.OK);
+                    out.writeInt(id);
+                    out.write(result.getBytes(), 0, result.size());
+                } finally {
+                    result.release();
+                }
+            } catch (Throwable e) {
+                response.truncate(NIOProtocol.LENGTH_SIZE);
+                out.writeByte(NIOProtocol.ERROR);
+                out.writeInt(id);
+                String message = e.getMessage();
+                out.writeUTF(message == null ? e.toString() : message.substring(0, Math.min(message.length(), 1000)));
+            }
+            NIOProtocol.finishFrame(response);
+            return response.toByteArray();
+        } catch (IOException e) {
+            //writing to a byte array does not fail
+            throw new CacheException(e);
+        } finally {
+            response.release();
+        }
+    }
+
+    private void apply(byte operation, NIOBoundCachePeer peer, DataInputStream in, DataOutputStream out)
+            throws IOException, ClassNotFoundException {
+        Ehcache cache = peer.getBoundCacheInstance();
+        switch (operation) {
+            case NIOProtocol.PUT:
+                peer.put(NIOProtocol.readElement(in, Cache.getElementSerializer(cache)));
+                break;
+            case NIOProtocol.REMOVE:
+                out.writeBoolean(peer.remove(NIOProtocol.readKey(in)));
+                break;
+            case NIOProtocol.REMOVE_ALL:
+                peer.removeAll();
+                break;
+            case NIOProtocol.SEND:
+                int count = in.readInt();
+                for (int i = 0; i < count; i++) {
+                    byte event = in.readByte();
+                    if (event == EventMessage.PUT) {
+                        peer.put(NIOProtocol.readElement(in, Cache.getElementSerializer(cache)));
+                    } else if (event == EventMessage.REMOVE) {
+                        peer.remove(NIOProtocol.readKey(in));
+                    } else if (event == EventMessage.REMOVE_ALL) {
+                        peer.removeAll();
+                    } else {
+                        throw new IOException("Unknown event " + event);
+                    }
+                }
+                break;
+            case NIOProtocol.SEND_BATCH:
+                byte[] payload = new byte[in.readInt()];
+                in.readFully(payload);
+                ReplicationBatch.apply(payload, peer, Cache.getElementSerializer(cache));
+                break;
+            case NIOProtocol.GET_KEYS:
+                List keys = peer.getKeys();
+                out.writeInt(keys.size());
+                for (int i = 0; i < keys.size(); i++) {
+                    NIOProtocol.writeKey(out, (Serializable) keys.get(i));
+                }
+                break;
+            case NIOProtocol.GET_QUIET:
+                Element element = peer.getQuiet(NIOProtocol.readKey(in));
+                out.writeBoolean(element != null);
+                if (element != null) {
+                    NIOProtocol.writeElement(out, element, Cache.getElementSerializer(cache));
+                }
+                break;
+            case NIOProtocol.GET_ELEMENTS:
+                count = in.readInt();
+                List requested = new ArrayList(count);
+                for (int i = 0; i < count; i++) {
+                    requested.add(NIOProtocol.readKey(in));
+                }
+                List elements = peer.getElements(requested);
+                out.writeInt(elements.size());
+                for (int i = 0; i < elements.size(); i++) {
+                    NIOProtocol.writeElement(out, (Element) elements.get(i), Cache.getElementSerializer(cache));
+                }
+                break;
+            case NIOProtocol.GET_DIGESTS:
+                count = in.readInt();
+                requested = new ArrayList(count);
+                for (int i = 0; i < count; i++) {
+                    requested.add(NIOProtocol.readKey(in));
+                }
+                long[] digests = peer.getDigests(requested);
+                for (int i = 0; i < digests.length; i++) {
+                    out.writeLong(digests[i]);
+                }
+                break;
+            case NIOProtocol.GET_HASH_TREE_NODES:
+            case NIOProtocol.GET_HASH_TREE_LEAF_KEYS:
+                int leafCount = in.readInt();
+                int[] numbers = new int[in.readInt()];
+                for (int i = 0; i < numbers.length; i++) {
+                    numbers[i] = in.readInt();
+                }
+                if (operation == NIOProtocol.GET_HASH_TREE_NODES) {
+                    long[] hashes = peer.getHashTreeNodes(leafCount, numbers);
+                    for (int i = 0; i < hashes.length; i++) {
+                        out.writeLong(hashes[i]);
+                    }
+                } else {
+                    keys = peer.getHashTreeLeafKeys(leafCount, numbers);
+                    out.writeInt(keys.size());
+                    for (int i = 0; i < keys.size(); i++) {
+                        NIOProtocol.writeKey(out, (Serializable) keys.get(i));
+                    }
+                }
+                break;
+            case NIOProtocol.GET_GUID:
+                out.writeUTF(peer.getGuid());
+                break;
+            default:
+                throw new IOException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * Stops the listener, closing all connections.
+     */
+    public void dispose() throws CacheException {
+        if (!status.equals(Status.STATUS_ALIVE)) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+        closeQuietly();
+        synchronized (cachePeers) {
+            cachePeers.clear();
+        }
+        status = Status.STATUS_SHUTDOWN;
+    }
+
+    private void closeQuietly() {
+        try {
+            if (selector != null) {
+                for (Iterator iterator = selector.keys().iterator(); iterator.hasNext();) {
+                    ((SelectionKey) iterator.next()).channel().close();
+                }
+                selector.close();
+            }
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error closing NIO listener: " + e.getMessage());
+        }
+    }
+
+    /**
+     * All of the caches which are listening for remote changes.
+     *
+     * @return a list of <code>CachePeer</code> objects. The list is not live
+     */
+    public List getBoundCachePeers() {
+        synchronized (cachePeers) {
+            return new ArrayList(cachePeers.values());
+        }
+    }
+
+    /**
+     * Returns the listener status.
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the port the listener listens on. If configured as 0, the port chosen once initialised.
+     */
+    public Integer getPort() {
+        return port;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUniqueResourceIdentifier() {
+        return "NIO listener port: " + port;
+    }
+
+    /**
+     * Resolves a port conflict by listening on a free port instead.
+     *
+     * @throws IllegalStateException if the listener has already been started
+     */
+    public void attemptResolutionOfUniqueResourceConflict() throws IllegalStateException, CacheException {
+        if (status != Status.STATUS_UNINITIALISED) {
+            throw new IllegalStateException("Cannot change the port of an already started listener.");
+        }
+        port = new Integer(0);
+        LOG.log(Level.WARNING, "Resolving NIO listener port conflict by automatically using a free TCP/IP port.");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getScheme() {
+        return NIOCacheManagerPeerProvider.SCHEME;
+    }
+
+    /**
+     * Binds a cache added to the CacheManager, if it is replicated.
+     *
+     * @param cacheName the name of the <code>Cache</code> the operation relates to
+     */
+    public void notifyCacheAdded(String cacheName) throws CacheException {
+        bindIfDistributed(cacheManager.getEhcache(cacheName));
+    }
+
+    /**
+     * Unbinds a cache removed from the CacheManager.
+     *
+     * @param cacheName the name of the <code>Cache</code> the operation relates to
+     */
+    public void notifyCacheRemoved(String cacheName) {
+        synchronized (cachePeers) {
+            cachePeers.remove(cacheName);
+        }
+    }
+
+    /**
+     * A connection from a remote CacheManager. It is read and written by the selector thread, and its requests are
+     * applied by one worker at a time.
+     */
+    private final class ServerConnection implements Runnable {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final LinkedList requests = new LinkedList();
+        private final LinkedList writeQueue = new LinkedList();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private boolean applying;
+        private boolean flushRequested;
+        private boolean writeBlocked;
+
+        private ServerConnection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+
+        /**
+         * Reads what has arrived, and queues each complete request to be applied.
+         */
+        void read() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            boolean start = false;
+            while (readBuffer.remaining() >= NIOProtocol.LENGTH_SIZE) {
+                int length = readBuffer.getInt(readBuffer.position());
+                if (length < 0 || length > NIOProtocol.MAXIMUM_FRAME_SIZE) {
+                    throw new IOException("Corrupt frame length " + length);
+                }
+                if (readBuffer.remaining() < NIOProtocol.LENGTH_SIZE + length) {
+                    if (readBuffer.capacity() < NIOProtocol.LENGTH_SIZE + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(NIOProtocol.LENGTH_SIZE + length);
+                        larger.put(readBuffer);
+                        larger.flip();
+                        readBuffer = larger;
+                    }
+                    break;
+                }
+                readBuffer.getInt();
+                byte[] frame = new byte[length];
+                readBuffer.get(frame);
+                synchronized (this) {
+                    requests.add(frame);
+                    if (!applying) {
+                        applying = true;
+                        start = true;
+                    }
+                }
+            }
+            readBuffer.compact();
+            if (start) {
+                workers.execute(this);
+            }
+            updateInterestOps();
+        }
+
+        /**
+         * Applies the queued requests in order, on a worker thread, handing each response to the selector thread.
+         */
+        public void run() {
+            while (true) {
+                byte[] frame;
+                synchronized (this) {
+                    if (requests.isEmpty()) {
+                        applying = false;
+                        return;
+                    }
+                    frame = (byte[]) requests.removeFirst();
+                }
+                byte[] response = handle(frame);
+                boolean requestFlush;
+                synchronized (this) {
+                    writeQueue.add(ByteBuffer.wrap(response));
+                    requestFlush = !flushRequested;
+                    flushRequested = true;
+                }
+                if (requestFlush) {
+                    flushableConnections.add(this);
+                    selector.wakeup();
+                }
+            }
+        }
+
+        /**
+         * Writes queued responses until the socket buffer is full, then waits to be writable.
+         */
+        void flush() throws IOException {
+            synchronized (this) {
+                flushRequested = false;
+            }
+            if (!key.isValid()) {
+                return;
+            }
+            writeBlocked = false;
+            while (true) {
+                ByteBuffer head;
+                synchronized (this) {
+                    if (writeQueue.isEmpty()) {
+                        break;
+                    }
+                    head = (ByteBuffer) writeQueue.getFirst();
+                }
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    writeBlocked = true;
+                    break;
+                }
+                synchronized (this) {
+                    writeQueue.removeFirst();
+                }
+            }
+            updateInterestOps();
+        }
+
+        /**
+         * Waits to be writable while a response is part written, and stops reading while too many requests wait.
+         */
+        private void updateInterestOps() {
+            if (!key.isValid()) {
+                return;
+            }
+            int ops = writeBlocked ? SelectionKey.OP_WRITE : 0;
+            synchronized (this) {
+                if (requests.size() < MAXIMUM_QUEUED_REQUESTS) {
+                    ops |= SelectionKey.OP_READ;
+                }
+            }
+            key.interestOps(ops);
+        }
+
+        void close() {
+            key.cancel();
+            synchronized (this) {
+                requests.clear();
+                writeQueue.clear();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.log(Level.FINE, "Error closing replication connection: " + e.getMessage());
+            }
+        }
+    }
+}
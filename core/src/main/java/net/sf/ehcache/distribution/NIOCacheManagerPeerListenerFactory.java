@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.util.PropertyUtil;
+
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+/**
+ * Builds a listener for the NIO replication transport.
+ * <p/>
+ * Expected configuration line:
+ * <p/>
+ * <code>
+ * &lt;cacheManagerPeerListenerFactory class="net.sf.ehcache.distribution.NIOCacheManagerPeerListenerFactory"
+ * properties="hostName=localhost, port=40010" /&gt;
+ * </code>
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class NIOCacheManagerPeerListenerFactory extends CacheManagerPeerListenerFactory {
+
+    private static final String HOSTNAME = "hostName";
+    private static final String PORT = "port";
+
+    /**
+     * @param properties implementation specific properties. These are configured as comma
+     *                   separated name value pairs in ehcache.xml
+     */
+    public CacheManagerPeerListener createCachePeerListener(CacheManager cacheManager, Properties properties)
+            throws CacheException {
+        String hostName = PropertyUtil.extractAndLogProperty(HOSTNAME, properties);
+        String portString = PropertyUtil.extractAndLogProperty(PORT, properties);
+        Integer port;
+        if (portString != null && portString.length() != 0) {
+            port = new Integer(portString);
+        } else {
+            port = new Integer(0);
+        }
+        try {
+            return new NIOCacheManagerPeerListener(hostName, port, cacheManager);
+        } catch (UnknownHostException e) {
+            throw new CacheException("Unable to create CacheManagerPeerListener. Initial cause was " + e.getMessage(), e);
+        }
+    }
+}
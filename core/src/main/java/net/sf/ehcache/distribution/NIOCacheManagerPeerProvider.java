@@ -0,0 +1,158 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A provider of peers reached over the NIO replication transport, from a manually configured list of urls of the
+ * form //hostName:port/cacheName.
+ * <p/>
+ * One connection is kept open to each remote CacheManager and shared by the peers of all its caches. A failed
+ * connection is reopened the next time peers are listed.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public final class NIOCacheManagerPeerProvider implements CacheManagerPeerProvider {
+
+    /**
+     * The scheme of the NIO transport
+     */
+    public static final String SCHEME = "NIO";
+
+    private static final Logger LOG = Logger.getLogger(NIOCacheManagerPeerProvider.class.getName());
+
+    private final Set peerUrls = new HashSet();
+    private final Map connections = new HashMap();
+    private final int socketTimeoutMillis;
+
+    /**
+     * Constructor
+     *
+     * @param socketTimeoutMillis how long to wait to connect to a peer, and for each response
+     */
+    public NIOCacheManagerPeerProvider(int socketTimeoutMillis) {
+        this.socketTimeoutMillis = socketTimeoutMillis;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void init() {
+        //nothing to do
+    }
+
+    /**
+     * Register a new peer.
+     *
+     * @param nioUrl a url of the form //hostName:port/cacheName
+     */
+    public synchronized void registerPeer(String nioUrl) {
+        peerUrls.add(nioUrl);
+    }
+
+    /**
+     * Unregisters a peer.
+     *
+     * @param nioUrl a url of the form //hostName:port/cacheName
+     */
+    public synchronized void unregisterPeer(String nioUrl) {
+        peerUrls.remove(nioUrl);
+    }
+
+    /**
+     * @return a list of {@link NIOCachePeer}s for the given cache. Peers which cannot be connected to are left out.
+     */
+    public synchronized List listRemoteCachePeers(Ehcache cache) throws CacheException {
+        List remoteCachePeers = new ArrayList();
+        for (Iterator iterator = peerUrls.iterator(); iterator.hasNext();) {
+            String nioUrl = (String) iterator.next();
+            if (!RMICacheManagerPeerProvider.extractCacheName(nioUrl).equals(cache.getName())) {
+                continue;
+            }
+            String urlBase = nioUrl.substring(0, nioUrl.lastIndexOf('/'));
+            try {
+                NIOConnection connection = getConnection(urlBase);
+                remoteCachePeers.add(new NIOCachePeer(nioUrl, connection, Cache.getElementSerializer(cache)));
+            } catch (IOException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Looking up nioUrl " + nioUrl + " through exception " + e.getMessage()
+                            + ". This may be normal if a node has gone offline. Or it may indicate network connectivity"
+                            + " difficulties");
+                }
+            }
+        }
+        return remoteCachePeers;
+    }
+
+    private NIOConnection getConnection(String urlBase) throws IOException {
+        NIOConnection connection = (NIOConnection) connections.get(urlBase);
+        if (connection == null || !connection.isOpen()) {
+            String hostAndPort = urlBase.substring(2);
+            int colon = hostAndPort.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IOException("No port in " + urlBase);
+            }
+            InetSocketAddress address = new InetSocketAddress(hostAndPort.substring(0, colon),
+                    Integer.parseInt(hostAndPort.substring(colon + 1)));
+            connection = new NIOConnection(address, socketTimeoutMillis);
+            connections.put(urlBase, connection);
+        }
+        return connection;
+    }
+
+    /**
+     * Closes the connections to all peers.
+     */
+    public synchronized void dispose() throws CacheException {
+        for (Iterator iterator = connections.values().iterator(); iterator.hasNext();) {
+            ((NIOConnection) iterator.next()).close();
+        }
+        connections.clear();
+    }
+
+    /**
+     * Peers are configured manually, so there is no time to wait.
+     *
+     * @return 0
+     */
+    public long getTimeForClusterToForm() {
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getScheme() {
+        return SCHEME;
+    }
+}
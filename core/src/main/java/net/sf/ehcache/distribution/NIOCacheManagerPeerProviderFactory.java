@@ -0,0 +1,88 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.util.PropertyUtil;
+
+import java.util.Properties;
+import java.util.StringTokenizer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Builds a provider for the NIO replication transport.
+ * <p/>
+ * Expected configuration line:
+ * <p/>
+ * <code>
+ * &lt;cacheManagerPeerProviderFactory class="net.sf.ehcache.distribution.NIOCacheManagerPeerProviderFactory"
+ * properties="peerDiscovery=manual, nioUrls=//server1:40010/sampleCache1|//server2:40010/sampleCache1" /&gt;
+ * </code>
+ * <p/>
+ * Only manual peer discovery is supported.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class NIOCacheManagerPeerProviderFactory extends CacheManagerPeerProviderFactory {
+
+    private static final Logger LOG = Logger.getLogger(NIOCacheManagerPeerProviderFactory.class.getName());
+
+    private static final String PEER_DISCOVERY = "peerDiscovery";
+    private static final String MANUALLY_CONFIGURED_PEER_DISCOVERY = "manual";
+    private static final String NIO_URLS = "nioUrls";
+    private static final String SOCKET_TIMEOUT_MILLIS = "socketTimeoutMillis";
+
+    /**
+     * @param properties implementation specific properties. These are configured as comma
+     *                   separated name value pairs in ehcache.xml
+     */
+    public CacheManagerPeerProvider createCachePeerProvider(CacheManager cacheManager, Properties properties)
+            throws CacheException {
+        String peerDiscovery = PropertyUtil.extractAndLogProperty(PEER_DISCOVERY, properties);
+        if (peerDiscovery != null && !peerDiscovery.equalsIgnoreCase(MANUALLY_CONFIGURED_PEER_DISCOVERY)) {
+            throw new CacheException("The NIO peer provider only supports peerDiscovery=manual");
+        }
+
+        String socketTimeoutMillisString = PropertyUtil.extractAndLogProperty(SOCKET_TIMEOUT_MILLIS, properties);
+        Integer socketTimeoutMillis;
+        if (socketTimeoutMillisString == null || socketTimeoutMillisString.length() == 0) {
+            socketTimeoutMillis = RMICacheManagerPeerListenerFactory.DEFAULT_SOCKET_TIMEOUT_MILLIS;
+        } else {
+            socketTimeoutMillis = new Integer(socketTimeoutMillisString);
+        }
+
+        String nioUrls = PropertyUtil.extractAndLogProperty(NIO_URLS, properties);
+        if (nioUrls == null || nioUrls.length() == 0) {
+            LOG.log(Level.INFO, "Starting NIO peer provider with empty list of peers. " +
+                    "No replication will occur unless peers are added.");
+            nioUrls = "";
+        }
+        NIOCacheManagerPeerProvider provider = new NIOCacheManagerPeerProvider(socketTimeoutMillis.intValue());
+        StringTokenizer stringTokenizer = new StringTokenizer(nioUrls.trim(), PayloadUtil.URL_DELIMITER);
+        while (stringTokenizer.hasMoreTokens()) {
+            String nioUrl = stringTokenizer.nextToken().trim();
+            provider.registerPeer(nioUrl);
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Registering peer " + nioUrl);
+            }
+        }
+        return provider;
+    }
+}
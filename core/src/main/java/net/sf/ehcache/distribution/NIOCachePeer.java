@@ -0,0 +1,345 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.serialization.ElementSerializer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link CachePeer} for a cache in another CacheManager, reached over an {@link NIOConnection}.
+ * <p/>
+ * Elements are written and read with the serializer of the local cache, so all peers of a cache must be configured
+ * with the same serializer.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public final class NIOCachePeer implements CachePeer {
+
+    private final String url;
+    private final String cacheName;
+    private final NIOConnection connection;
+    private final ElementSerializer elementSerializer;
+
+    /**
+     * Constructor
+     *
+     * @param url               the url of the remote cache, of the form //hostName:port/cacheName
+     * @param connection        the connection to the CacheManager of the remote cache
+     * @param elementSerializer the serializer of the local cache
+     */
+    NIOCachePeer(String url, NIOConnection connection, ElementSerializer elementSerializer) {
+        this.url = url;
+        this.cacheName = RMICacheManagerPeerProvider.extractCacheName(url);
+        this.connection = connection;
+        this.elementSerializer = elementSerializer;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void put(Element element) throws IllegalArgumentException, IllegalStateException, RemoteException {
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.PUT, cacheName);
+            NIOProtocol.writeElement(request.data, element, elementSerializer);
+            connection.call(request);
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean remove(Serializable key) throws IllegalStateException, RemoteException {
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.REMOVE, cacheName);
+            NIOProtocol.writeKey(request.data, key);
+            return connection.call(request).readBoolean();
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void removeAll() throws RemoteException, IllegalStateException {
+        try {
+            connection.call(connection.startRequest(NIOProtocol.REMOVE_ALL, cacheName));
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * Sends the events in one frame, to be applied in order.
+     *
+     * @param eventMessages a list of type {@link EventMessage}
+     */
+    public void send(List eventMessages) throws RemoteException {
+        try {
+            List events = new ArrayList(eventMessages.size());
+            List elements = new ArrayList(eventMessages.size());
+            for (int i = 0; i < eventMessages.size(); i++) {
+                EventMessage eventMessage = (EventMessage) eventMessages.get(i);
+                Element element = eventMessage.getElement();
+                //a put whose element has been garbage collected is dropped
+                if (eventMessage.getEvent() != EventMessage.PUT || element != null) {
+                    events.add(eventMessage);
+                    elements.add(element);
+                }
+            }
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.SEND, cacheName);
+            request.data.writeInt(events.size());
+            for (int i = 0; i < events.size(); i++) {
+                EventMessage eventMessage = (EventMessage) events.get(i);
+                int event = eventMessage.getEvent();
+                if (event == EventMessage.PUT) {
+                    request.data.writeByte(EventMessage.PUT);
+                    NIOProtocol.writeElement(request.data, (Element) elements.get(i), elementSerializer);
+                } else if (event == EventMessage.REMOVE) {
+                    request.data.writeByte(EventMessage.REMOVE);
+                    NIOProtocol.writeKey(request.data, eventMessage.getSerializableKey());
+                } else {
+                    request.data.writeByte(event);
+                }
+            }
+            connection.call(request);
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void sendBatch(byte[] payload) throws RemoteException {
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.SEND_BATCH, cacheName);
+            request.data.writeInt(payload.length);
+            request.data.write(payload);
+            connection.call(request);
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getName() throws RemoteException {
+        return cacheName;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getGuid() throws RemoteException {
+        try {
+            return connection.call(connection.startRequest(NIOProtocol.GET_GUID, cacheName)).readUTF();
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUrl() throws RemoteException {
+        return url;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String getUrlBase() throws RemoteException {
+        return url.substring(0, url.lastIndexOf('/'));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List getKeys() throws RemoteException {
+        try {
+            DataInputStream in = connection.call(connection.startRequest(NIOProtocol.GET_KEYS, cacheName));
+            int count = in.readInt();
+            List keys = new ArrayList(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(NIOProtocol.readKey(in));
+            }
+            return keys;
+        } catch (IOException e) {
+            throw remoteException(e);
+        } catch (ClassNotFoundException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Element getQuiet(Serializable key) throws RemoteException {
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.GET_QUIET, cacheName);
+            NIOProtocol.writeKey(request.data, key);
+            DataInputStream in = connection.call(request);
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return NIOProtocol.readElement(in, elementSerializer);
+        } catch (IOException e) {
+            throw remoteException(e);
+        } catch (ClassNotFoundException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List getElements(List keys) throws RemoteException {
+        if (keys == null) {
+            return new ArrayList();
+        }
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.GET_ELEMENTS, cacheName);
+            request.data.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                NIOProtocol.writeKey(request.data, (Serializable) keys.get(i));
+            }
+            DataInputStream in = connection.call(request);
+            int count = in.readInt();
+            List elements = new ArrayList(count);
+            for (int i = 0; i < count; i++) {
+                elements.add(NIOProtocol.readElement(in, elementSerializer));
+            }
+            return elements;
+        } catch (IOException e) {
+            throw remoteException(e);
+        } catch (ClassNotFoundException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getDigests(List keys) throws RemoteException {
+        if (keys == null) {
+            return new long[0];
+        }
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.GET_DIGESTS, cacheName);
+            request.data.writeInt(keys.size());
+            for (int i = 0; i < keys.size(); i++) {
+                NIOProtocol.writeKey(request.data, (Serializable) keys.get(i));
+            }
+            DataInputStream in = connection.call(request);
+            long[] digests = new long[keys.size()];
+            for (int i = 0; i < digests.length; i++) {
+                digests[i] = in.readLong();
+            }
+            return digests;
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getHashTreeNodes(int leafCount, int[] nodes) throws RemoteException {
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.GET_HASH_TREE_NODES, cacheName);
+            writeTreeArguments(request.data, leafCount, nodes);
+            DataInputStream in = connection.call(request);
+            long[] hashes = new long[nodes.length];
+            for (int i = 0; i < hashes.length; i++) {
+                hashes[i] = in.readLong();
+            }
+            return hashes;
+        } catch (IOException e) {
+            throw remoteException(e);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List getHashTreeLeafKeys(int leafCount, int[] leaves) throws RemoteException {
+        try {
+            NIOConnection.Request request = connection.startRequest(NIOProtocol.GET_HASH_TREE_LEAF_KEYS, cacheName);
+            writeTreeArguments(request.data, leafCount, leaves);
+            DataInputStream in = connection.call(request);
+            int count = in.readInt();
+            List keys = new ArrayList(count);
+            for (int i = 0; i < count; i++) {
+                keys.add(NIOProtocol.readKey(in));
+            }
+            return keys;
+        } catch (IOException e) {
+            throw remoteException(e);
+        } catch (ClassNotFoundException e) {
+            throw remoteException(e);
+        }
+    }
+
+    private static void writeTreeArguments(DataOutputStream data, int leafCount, int[] numbers) throws IOException {
+        data.writeInt(leafCount);
+        data.writeInt(numbers.length);
+        for (int i = 0; i < numbers.length; i++) {
+            data.writeInt(numbers[i]);
+        }
+    }
+
+    private RemoteException remoteException(Exception e) {
+        if (e instanceof RemoteException) {
+            return (RemoteException) e;
+        }
+        return new RemoteException("Could not communicate with " + url + ". " + e.getMessage(), e);
+    }
+
+    /**
+     * Peers are equal if they have the same url, so that a peer listed again is recognised.
+     */
+    public boolean equals(Object object) {
+        return object instanceof NIOCachePeer && ((NIOCachePeer) object).url.equals(url);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int hashCode() {
+        return url.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "URL: " + url;
+    }
+}
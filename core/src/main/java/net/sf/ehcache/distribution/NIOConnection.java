@@ -0,0 +1,309 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent connection to the {@link NIOCacheManagerPeerListener} of another CacheManager, shared by the
+ * {@link NIOCachePeer}s of all its caches.
+ * <p/>
+ * Any number of threads may have requests outstanding on the connection at once. Each request is queued as one frame
+ * for a writer thread, so that callers never block on the socket, and its caller waits for the response with the same
+ * request id, which a reader thread hands over as it arrives. A caller whose response does not arrive within the socket
+ * timeout closes the connection if the writer has been stuck on one frame for as long, as a peer which does not read
+ * would otherwise hold up every request. Once the connection fails all waiting callers are failed, and the provider
+ * opens a new connection on next use.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class NIOConnection {
+
+    private static final Logger LOG = Logger.getLogger(NIOConnection.class.getName());
+
+    private final InetSocketAddress address;
+    private final int socketTimeoutMillis;
+    private final SocketChannel channel;
+    private final BlockingQueue writes = new LinkedBlockingQueue();
+    private final Map pending = new ConcurrentHashMap();
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+    private final Thread writer;
+    private volatile boolean open = true;
+
+    /**
+     * When the writer started on the frame it is writing, or 0 when it is idle
+     */
+    private volatile long writeStartedMillis;
+
+    /**
+     * Connects to a listener and starts writing requests and reading responses.
+     *
+     * @param address             the address of the listener
+     * @param socketTimeoutMillis how long to wait to connect, and for each response
+     * @throws IOException if the connection cannot be made
+     */
+    NIOConnection(InetSocketAddress address, int socketTimeoutMillis) throws IOException {
+        this.address = address;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, socketTimeoutMillis);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        Thread reader = new Thread(new Runnable() {
+            public void run() {
+                readResponses();
+            }
+        }, "NIO Replication Connection " + address);
+        reader.setDaemon(true);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                writeRequests();
+            }
+        }, "NIO Replication Connection Writer " + address);
+        writer.setDaemon(true);
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * @return false once the connection has failed or been closed
+     */
+    boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Starts a request frame.
+     *
+     * @param operation one of the {@link NIOProtocol} operations
+     * @param cacheName the cache the request is for
+     * @return the request, to which the arguments are written
+     */
+    Request startRequest(byte operation, String cacheName) throws IOException {
+        Request request = new Request(nextRequestId.incrementAndGet());
+        request.data.writeByte(operation);
+        request.data.writeInt(request.id);
+        request.data.writeUTF(cacheName);
+        return request;
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @param request a request started with {@link #startRequest}
+     * @return the result carried by the response
+     * @throws RemoteException if the request fails remotely, times out, or the connection fails
+     */
+    DataInputStream call(Request request) throws RemoteException {
+        Response response = new Response();
+        Integer id = new Integer(request.id);
+        pending.put(id, response);
+        if (!open) {
+            pending.remove(id);
+            request.frame.release();
+            throw new RemoteException("Could not send to " + address + ". The connection is closed.");
+        }
+        NIOProtocol.finishFrame(request.frame);
+        writes.add(request);
+        byte[] result = response.await(socketTimeoutMillis);
+        if (result == null) {
+            pending.remove(id);
+            long started = writeStartedMillis;
+            if (started != 0 && System.currentTimeMillis() - started >= socketTimeoutMillis) {
+                close(new IOException("Timed out writing to " + address));
+            }
+            throw new RemoteException("Timed out waiting " + socketTimeoutMillis + "ms for a response from " + address);
+        }
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(result));
+        try {
+            if (response.status == NIOProtocol.ERROR) {
+                throw new RemoteException(in.readUTF());
+            }
+        } catch (IOException e) {
+            throw new RemoteException("Corrupt response from " + address, e);
+        }
+        return in;
+    }
+
+    /**
+     * Closes the connection, failing any callers still waiting.
+     */
+    void close() {
+        close(null);
+    }
+
+    private void close(Exception cause) {
+        if (!open) {
+            return;
+        }
+        open = false;
+        writer.interrupt();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.log(Level.FINE, "Error closing connection to " + address + ": " + e.getMessage());
+        }
+        if (cause != null && LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Connection to " + address + " failed: " + cause.getMessage());
+        }
+        for (Iterator iterator = pending.values().iterator(); iterator.hasNext();) {
+            ((Response) iterator.next()).fail();
+            iterator.remove();
+        }
+    }
+
+    private void writeRequests() {
+        try {
+            while (open) {
+                Request request = (Request) writes.take();
+                try {
+                    ByteBuffer buffer = ByteBuffer.wrap(request.frame.getBytes(), 0, request.frame.size());
+                    writeStartedMillis = System.currentTimeMillis();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    writeStartedMillis = 0;
+                } finally {
+                    request.frame.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            //closed
+        } catch (IOException e) {
+            close(e);
+        } finally {
+            for (Request request = (Request) writes.poll(); request != null; request = (Request) writes.poll()) {
+                request.frame.release();
+            }
+        }
+    }
+
+    private void readResponses() {
+        ByteBuffer length = ByteBuffer.allocate(NIOProtocol.LENGTH_SIZE);
+        try {
+            while (open) {
+                length.clear();
+                readFully(length);
+                int frameLength = length.getInt(0);
+                if (frameLength < 1 + NIOProtocol.LENGTH_SIZE || frameLength > NIOProtocol.MAXIMUM_FRAME_SIZE) {
+                    throw new IOException("Corrupt frame length " + frameLength);
+                }
+                ByteBuffer frame = ByteBuffer.allocate(frameLength);
+                readFully(frame);
+                byte status = frame.get(0);
+                int id = frame.getInt(1);
+                Response response = (Response) pending.remove(new Integer(id));
+                if (response != null) {
+                    byte[] result = new byte[frameLength - 1 - NIOProtocol.LENGTH_SIZE];
+                    System.arraycopy(frame.array(), 1 + NIOProtocol.LENGTH_SIZE, result, 0, result.length);
+                    response.complete(status, result);
+                }
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("Connection closed by " + address);
+            }
+        }
+    }
+
+    /**
+     * A request being written.
+     */
+    static final class Request {
+
+        private final int id;
+        private final MemoryEfficientByteArrayOutputStream frame = NIOProtocol.startFrame();
+
+        /**
+         * The stream to write the arguments of the request to
+         */
+        final DataOutputStream data = new DataOutputStream(frame);
+
+        private Request(int id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * The response to a request, handed from the reader thread to the waiting caller.
+     */
+    private static final class Response {
+
+        private byte status;
+        private byte[] result;
+        private boolean failed;
+
+        synchronized void complete(byte status, byte[] result) {
+            this.status = status;
+            this.result = result;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+        synchronized byte[] await(long timeoutMillis) throws RemoteException {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            while (result == null && !failed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return null;
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted waiting for a response");
+                }
+            }
+            if (failed) {
+                throw new RemoteException("Connection failed before a response was received");
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.serialization.ElementSerializer;
+import net.sf.ehcache.util.BufferPool;
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+
+/**
+ * The framed binary protocol of the NIO replication transport.
+ * <p/>
+ * Every frame starts with its length, as an int which does not count itself. A request frame continues with the
+ * operation, a request id chosen by the sender and the name of the cache, followed by the arguments of the operation.
+ * A response frame continues with a status and the id of the request it answers, followed by the result, or by an
+ * error message. Responses are sent in the order requests arrive, but a sender need not wait for one response
+ * before sending its next request.
+ * <p/>
+ * Elements are written by the {@link ElementSerializer} of the cache, prefixed with their length. String, Long and
+ * Integer keys are written directly, and other keys with Java serialization.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class NIOProtocol {
+
+    /**
+     * Put an element. No result.
+     */
+    static final byte PUT = 1;
+
+    /**
+     * Remove a key. The result is a boolean.
+     */
+    static final byte REMOVE = 2;
+
+    /**
+     * Remove all elements. No result.
+     */
+    static final byte REMOVE_ALL = 3;
+
+    /**
+     * Apply a list of events in order. No result.
+     */
+    static final byte SEND = 4;
+
+    /**
+     * List the keys. The result is a count and the keys.
+     */
+    static final byte GET_KEYS = 5;
+
+    /**
+     * Get an element quietly. The result is a boolean, and the element if true.
+     */
+    static final byte GET_QUIET = 6;
+
+    /**
+     * Get the elements for a list of keys quietly. The result is a count and the elements found.
+     */
+    static final byte GET_ELEMENTS = 7;
+
+    /**
+     * Get the guid of the cache. The result is a UTF string.
+     */
+    static final byte GET_GUID = 8;
+
+    /**
+     * Apply a {@link ReplicationBatch} payload, written as an int length and the bytes. No result.
+     */
+    static final byte SEND_BATCH = 9;
+
+    /**
+     * Get the digests of the elements for a list of keys. The result is a long for each key.
+     */
+    static final byte GET_DIGESTS = 10;
+
+    /**
+     * Get hashes of nodes of the hash tree of the cache, for a leaf count and a count of node numbers. The result is a
+     * long for each node.
+     */
+    static final byte GET_HASH_TREE_NODES = 11;
+
+    /**
+     * Get the keys in leaves of the hash tree of the cache, for a leaf count and a count of leaves. The result is a
+     * count and the keys.
+     */
+    static final byte GET_HASH_TREE_LEAF_KEYS = 12;
+
+    /**
+     * The status of a response carrying a result
+     */
+    static final byte OK = 0;
+
+    /**
+     * The status of a response carrying an error message
+     */
+    static final byte ERROR = 1;
+
+    /**
+     * The size of the frame length prefix
+     */
+    static final int LENGTH_SIZE = 4;
+
+    /**
+     * Frames longer than this are taken to be corrupt, and the connection is closed
+     */
+    static final int MAXIMUM_FRAME_SIZE = 256 * 1024 * 1024;
+
+    private static final byte STRING_KEY = 1;
+    private static final byte LONG_KEY = 2;
+    private static final byte INTEGER_KEY = 3;
+    private static final byte SERIALIZED_KEY = 4;
+
+    /**
+     * Strings up to this length always fit the 65535 byte limit of modified UTF-8
+     */
+    private static final int MAXIMUM_UTF_LENGTH = 65535 / 3;
+
+    /**
+     * Utility class
+     */
+    private NIOProtocol() {
+        //noop
+    }
+
+    /**
+     * Starts a frame, leaving room for its length.
+     *
+     * @return a stream to write the rest of the frame to. Finish it with {@link #finishFrame}.
+     */
+    static MemoryEfficientByteArrayOutputStream startFrame() {
+        MemoryEfficientByteArrayOutputStream frame = MemoryEfficientByteArrayOutputStream.pooled(
+                BufferPool.MINIMUM_BUFFER_SIZE);
+        for (int i = 0; i < LENGTH_SIZE; i++) {
+            frame.write(0);
+        }
+        return frame;
+    }
+
+    /**
+     * Fills in the length of a frame.
+     *
+     * @param frame a frame started with {@link #startFrame()}
+     */
+    static void finishFrame(MemoryEfficientByteArrayOutputStream frame) {
+        byte[] bytes = frame.getBytes();
+        int length = frame.size() - LENGTH_SIZE;
+        bytes[0] = (byte) (length >>> 24);
+        bytes[1] = (byte) (length >>> 16);
+        bytes[2] = (byte) (length >>> 8);
+        bytes[3] = (byte) length;
+    }
+
+    /**
+     * Writes a key.
+     */
+    static void writeKey(DataOutputStream out, Serializable key) throws IOException {
+        if (key instanceof String && ((String) key).length() <= MAXIMUM_UTF_LENGTH) {
+            out.writeByte(STRING_KEY);
+            out.writeUTF((String) key);
+        } else if (key instanceof Long) {
+            out.writeByte(LONG_KEY);
+            out.writeLong(((Long) key).longValue());
+        } else if (key instanceof Integer) {
+            out.writeByte(INTEGER_KEY);
+            out.writeInt(((Integer) key).intValue());
+        } else {
+            MemoryEfficientByteArrayOutputStream bytes = MemoryEfficientByteArrayOutputStream.pooled(
+                    BufferPool.MINIMUM_BUFFER_SIZE);
+            try {
+                ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes);
+                objectOutputStream.writeObject(key);
+                objectOutputStream.flush();
+                out.writeByte(SERIALIZED_KEY);
+                out.writeInt(bytes.size());
+                out.write(bytes.getBytes(), 0, bytes.size());
+            } finally {
+                bytes.release();
+            }
+        }
+    }
+
+    /**
+     * Reads a key written by {@link #writeKey}.
+     */
+    static Serializable readKey(DataInputStream in) throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case STRING_KEY:
+                return in.readUTF();
+            case LONG_KEY:
+                return new Long(in.readLong());
+            case INTEGER_KEY:
+                return new Integer(in.readInt());
+            case SERIALIZED_KEY:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                return (Serializable) new ContextClassLoaderObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+            default:
+                throw new StreamCorruptedException("Unknown key tag " + tag);
+        }
+    }
+
+    /**
+     * Writes an element with the serializer of its cache.
+     */
+    static void writeElement(DataOutputStream out, Element element, ElementSerializer serializer) throws IOException {
+        MemoryEfficientByteArrayOutputStream bytes = MemoryEfficientByteArrayOutputStream.pooled(
+                BufferPool.MINIMUM_BUFFER_SIZE);
+        try {
+            serializer.serialize(element, bytes);
+            out.writeInt(bytes.size());
+            out.write(bytes.getBytes(), 0, bytes.size());
+        } finally {
+            bytes.release();
+        }
+    }
+
+    /**
+     * Reads an element written by {@link #writeElement}.
+     */
+    static Element readElement(DataInputStream in, ElementSerializer serializer) throws IOException, ClassNotFoundException {
+        int length = in.readInt();
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return serializer.deserialize(new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Resolves classes with the thread context ClassLoader, falling back to the default resolution.
+     */
+    private static final class ContextClassLoaderObjectInputStream extends ObjectInputStream {
+
+        ContextClassLoaderObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        protected Class resolveClass(ObjectStreamClass descriptor) throws IOException, ClassNotFoundException {
+            ClassLoader loader = Thread.currentThread().getContextClassLoader();
+            if (loader != null) {
+                try {
+                    return Class.forName(descriptor.getName(), false, loader);
+                } catch (ClassNotFoundException e) {
+                    //fall back to the default
+                }
+            }
+            return super.resolveClass(descriptor);
+        }
+    }
+}
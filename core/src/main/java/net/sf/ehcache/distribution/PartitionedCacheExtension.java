@@ -0,0 +1,635 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
+import net.sf.ehcache.extension.CacheExtension;
+import net.sf.ehcache.serialization.JavaElementSerializer;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Partitions a cache across its peers, so that the capacity of the cluster is the sum of that of its nodes rather than
+ * that of one node.
+ * <p/>
+ * Each key is owned by a primary node and a configurable number of backup nodes, chosen with a
+ * {@link ConsistentHashRing} of this node and the peers listed by the {@link CacheManagerPeerProvider}. A put or remove
+ * is sent to the owners of the key. A node which does not own the key does not keep the element, unless the near
+ * cache is turned on, in which case it keeps a copy which expires after a short time to live. A get which misses locally
+ * is answered by the owners, in order. A node without a {@link CacheManagerPeerListener} owns no keys, and acts as a
+ * client of the others.
+ * <p/>
+ * When peers join or leave, each node pushes the elements it owned to the nodes which have become owners of them, and
+ * then drops those it no longer owns.
+ * <p/>
+ * The cache must not also be configured with a replicator. Local views such as the keys and size of the cache are not
+ * partitioned, and only cover what this node holds.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class PartitionedCacheExtension implements CacheExtension, CachePeerReader {
+
+    private static final Logger LOG = Logger.getLogger(PartitionedCacheExtension.class.getName());
+
+    private static final int MOVE_CHUNK_SIZE = 1000;
+
+    private final Ehcache cache;
+    private final int backups;
+    private final boolean nearCache;
+    private final int nearCacheTimeToLiveSeconds;
+    private final long rebalanceIntervalMillis;
+    private final PartitionReplicator replicator = new PartitionReplicator();
+    private final Object partitionLock = new Object();
+    private final Map urlBases = new WeakHashMap();
+    private volatile Status status = Status.STATUS_UNINITIALISED;
+    private RebalanceThread thread;
+    private String localNode;
+    private ConsistentHashRing ring = new ConsistentHashRing(Collections.EMPTY_SET);
+    private ConsistentHashRing rebalancedRing;
+    private volatile long remoteGets;
+    private volatile long elementsMoved;
+
+    /**
+     * Constructor
+     *
+     * @param cache                      the cache to partition
+     * @param backups                    the number of nodes, besides the primary, which hold each element
+     * @param nearCache                  whether a node which does not own a key keeps a copy of elements it puts or gets
+     * @param nearCacheTimeToLiveSeconds the time to live of a near cache copy
+     * @param rebalanceIntervalMillis    how often to check whether peers have joined or left
+     */
+    public PartitionedCacheExtension(Ehcache cache, int backups, boolean nearCache, int nearCacheTimeToLiveSeconds,
+                                     long rebalanceIntervalMillis) {
+        this.cache = cache;
+        this.backups = backups;
+        this.nearCache = nearCache;
+        this.nearCacheTimeToLiveSeconds = nearCacheTimeToLiveSeconds;
+        this.rebalanceIntervalMillis = rebalanceIntervalMillis;
+    }
+
+    /**
+     * Registers the listener which sends puts and removes to the owners, and starts the rebalancing thread.
+     */
+    public void init() {
+        cache.getCacheEventNotificationService().registerListener(replicator);
+        status = Status.STATUS_ALIVE;
+        thread = new RebalanceThread();
+        thread.start();
+    }
+
+    /**
+     * Stops the rebalancing thread.
+     */
+    public void dispose() throws CacheException {
+        status = Status.STATUS_SHUTDOWN;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CacheExtension clone(Ehcache cache) throws CloneNotSupportedException {
+        return new PartitionedCacheExtension(cache, backups, nearCache, nearCacheTimeToLiveSeconds,
+                rebalanceIntervalMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * Gets an element which was not found locally from the owners of its key, trying each in turn.
+     * <p/>
+     * If this node is an owner, the element is stored here as it should have been. Otherwise, with the near cache
+     * turned on, a copy is kept.
+     *
+     * @param key the key
+     * @return the element, or null if no owner has it
+     */
+    public Element get(Object key) {
+        return (Element) getAll(Collections.singletonList(key)).get(key);
+    }
+
+    /**
+     * Gets elements which were not found locally from the owners of their keys. The keys are grouped by owner, so
+     * each owner is asked once for all the keys it is the first remaining owner of, and the keys it did not have are
+     * asked of their next owner.
+     *
+     * @param keys the keys
+     * @return a map of key to element for the keys found
+     */
+    public Map getAll(Collection keys) {
+        Map found = new HashMap();
+        if (!status.equals(Status.STATUS_ALIVE)) {
+            return found;
+        }
+        Partition partition = getPartition();
+        int copies = backups + 1;
+        Map ownersByKey = new HashMap();
+        for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+            Object key = iterator.next();
+            if (key instanceof Serializable) {
+                ownersByKey.put(key, partition.ring.getOwners(key, copies));
+            }
+        }
+        for (int round = 0; round < copies && !ownersByKey.isEmpty(); round++) {
+            Map keysByOwner = new HashMap();
+            for (Iterator iterator = ownersByKey.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry entry = (Map.Entry) iterator.next();
+                List owners = (List) entry.getValue();
+                if (round >= owners.size()) {
+                    iterator.remove();
+                    continue;
+                }
+                Object owner = owners.get(round);
+                if (partition.peers.containsKey(owner)) {
+                    List ownerKeys = (List) keysByOwner.get(owner);
+                    if (ownerKeys == null) {
+                        ownerKeys = new ArrayList();
+                        keysByOwner.put(owner, ownerKeys);
+                    }
+                    ownerKeys.add(entry.getKey());
+                }
+            }
+            for (Iterator iterator = keysByOwner.entrySet().iterator(); iterator.hasNext();) {
+                Map.Entry entry = (Map.Entry) iterator.next();
+                CachePeer peer = (CachePeer) partition.peers.get(entry.getKey());
+                List ownerKeys = (List) entry.getValue();
+                try {
+                    List elements;
+                    if (ownerKeys.size() == 1) {
+                        Element element = peer.getQuiet((Serializable) ownerKeys.get(0));
+                        elements = element == null ? Collections.EMPTY_LIST : Collections.singletonList(element);
+                    } else {
+                        elements = peer.getElements(ownerKeys);
+                    }
+                    for (int i = 0; i < elements.size(); i++) {
+                        Element element = (Element) elements.get(i);
+                        Object key = element.getObjectKey();
+                        List owners = (List) ownersByKey.remove(key);
+                        if (owners == null) {
+                            //not asked for, or already returned
+                            continue;
+                        }
+                        if (owners.contains(partition.localNode)) {
+                            cache.putQuiet(element);
+                        } else if (nearCache) {
+                            cache.putQuiet(createNearCopy(element));
+                        }
+                        found.put(key, element);
+                    }
+                } catch (RemoteException e) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.log(Level.FINE, "Could not get keys from owner " + entry.getKey() + ". Trying the next"
+                                + " owners. The cause was: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        remoteGets += found.size();
+        return found;
+    }
+
+    private Element createNearCopy(Element element) {
+        Element copy = new Element(element.getObjectKey(), element.getObjectValue(), element.getVersion());
+        copy.setTimeToLive(nearCacheTimeToLiveSeconds);
+        copy.setTimeToIdle(0);
+        return copy;
+    }
+
+    /**
+     * Moves elements to their new owners if peers have joined or left since the last rebalance, and drops those this
+     * node no longer owns. The first call only records the current peers.
+     *
+     * @return the number of elements sent to new owners
+     */
+    public synchronized int rebalance() {
+        Partition partition = getPartition();
+        ConsistentHashRing previous = rebalancedRing;
+        if (previous == null || previous.getNodes().equals(partition.ring.getNodes())) {
+            rebalancedRing = partition.ring;
+            return 0;
+        }
+        int copies = backups + 1;
+        Map messagesByNode = new HashMap();
+        Map newOwnersByKey = new HashMap();
+        List keys = cache.getKeys();
+        for (int i = 0; i < keys.size(); i++) {
+            Object key = keys.get(i);
+            Element element = cache.getQuiet(key);
+            if (element == null || !element.isSerializable() || !previous.isOwner(partition.localNode, key, copies)) {
+                continue;
+            }
+            List oldOwners = previous.getOwners(key, copies);
+            List newOwners = partition.ring.getOwners(key, copies);
+            List pushedTo = new ArrayList();
+            for (int j = 0; j < newOwners.size(); j++) {
+                Object owner = newOwners.get(j);
+                if (!oldOwners.contains(owner) && !owner.equals(partition.localNode)) {
+                    List messages = (List) messagesByNode.get(owner);
+                    if (messages == null) {
+                        messages = new ArrayList();
+                        messagesByNode.put(owner, messages);
+                    }
+                    messages.add(new EventMessage(EventMessage.PUT, (Serializable) key, element,
+                            Cache.getElementSerializer(cache)));
+                    pushedTo.add(owner);
+                }
+            }
+            if (!newOwners.contains(partition.localNode)) {
+                newOwnersByKey.put(key, pushedTo);
+            }
+        }
+
+        int moved = 0;
+        Set failedNodes = new HashSet();
+        for (Iterator iterator = messagesByNode.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            CachePeer peer = (CachePeer) partition.peers.get(entry.getKey());
+            List messages = (List) entry.getValue();
+            try {
+                for (int i = 0; i < messages.size(); i += MOVE_CHUNK_SIZE) {
+                    peer.send(new ArrayList(messages.subList(i, Math.min(i + MOVE_CHUNK_SIZE, messages.size()))));
+                }
+                moved += messages.size();
+            } catch (Throwable t) {
+                failedNodes.add(entry.getKey());
+                LOG.log(Level.WARNING, "Could not move elements of cache " + cache.getName() + " to "
+                        + entry.getKey() + ". They will be kept here. The cause was: " + t.getMessage());
+            }
+        }
+        for (Iterator iterator = newOwnersByKey.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            if (Collections.disjoint((List) entry.getValue(), failedNodes)) {
+                cache.removeQuiet(entry.getKey());
+            }
+        }
+        if (failedNodes.isEmpty()) {
+            rebalancedRing = partition.ring;
+        }
+        elementsMoved += moved;
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Rebalanced cache " + cache.getName() + " over nodes " + partition.ring.getNodes()
+                    + ". " + moved + " elements were moved.");
+        }
+        return moved;
+    }
+
+    /**
+     * Lists the peers of the cache and returns the ring they form with this node, reusing the last ring if the peers
+     * have not changed. The url base of each peer is remembered, as asking an RMI peer for it is a remote call.
+     */
+    private Partition getPartition() {
+        CacheManagerPeerProvider provider = RMISynchronousCacheReplicator.getCacheManagerPeerProvider(cache);
+        List cachePeers = provider == null ? Collections.EMPTY_LIST : provider.listRemoteCachePeers(cache);
+        synchronized (partitionLock) {
+            if (localNode == null) {
+                localNode = findLocalNode();
+            }
+            Map peers = new HashMap();
+            for (int i = 0; i < cachePeers.size(); i++) {
+                CachePeer peer = (CachePeer) cachePeers.get(i);
+                String urlBase = (String) urlBases.get(peer);
+                try {
+                    if (urlBase == null) {
+                        urlBase = peer.getUrlBase();
+                        urlBases.put(peer, urlBase);
+                    }
+                    peers.put(urlBase, peer);
+                } catch (RemoteException e) {
+                    if (LOG.isLoggable(Level.FINE)) {
+                        LOG.log(Level.FINE, "Leaving unreachable peer " + peer + " out of the partition of cache "
+                                + cache.getName() + ". The cause was: " + e.getMessage());
+                    }
+                }
+            }
+            Set nodes = new HashSet(peers.keySet());
+            if (localNode != null) {
+                nodes.add(localNode);
+            }
+            if (!ring.getNodes().equals(nodes)) {
+                ring = new ConsistentHashRing(nodes);
+            }
+            return new Partition(ring, peers, localNode);
+        }
+    }
+
+    /**
+     * Finds the url base under which this node's peer for the cache is bound, which is how the other nodes name it.
+     */
+    private String findLocalNode() {
+        CacheManager cacheManager = cache.getCacheManager();
+        CacheManagerPeerListener listener = cacheManager.getCachePeerListener("RMI");
+        if (listener == null) {
+            listener = cacheManager.getCachePeerListener(NIOCacheManagerPeerProvider.SCHEME);
+        }
+        if (listener == null) {
+            return null;
+        }
+        List boundPeers = listener.getBoundCachePeers();
+        for (int i = 0; i < boundPeers.size(); i++) {
+            CachePeer peer = (CachePeer) boundPeers.get(i);
+            try {
+                if (cache.getName().equals(peer.getName())) {
+                    return peer.getUrlBase();
+                }
+            } catch (RemoteException e) {
+                //a bound peer is local
+                throw new CacheException(e.getMessage(), e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the number of gets answered by another node
+     */
+    public long getRemoteGets() {
+        return remoteGets;
+    }
+
+    /**
+     * @return the number of elements moved to new owners by rebalancing
+     */
+    public long getElementsMoved() {
+        return elementsMoved;
+    }
+
+    /**
+     * @return the number of nodes, besides the primary, which hold each element
+     */
+    public int getBackups() {
+        return backups;
+    }
+
+    /**
+     * @return whether a node keeps copies of elements owned by others
+     */
+    public boolean isNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * @return the time to live of a near cache copy
+     */
+    public int getNearCacheTimeToLiveSeconds() {
+        return nearCacheTimeToLiveSeconds;
+    }
+
+    /**
+     * @return how often to check whether peers have joined or left, in ms
+     */
+    public long getRebalanceIntervalMillis() {
+        return rebalanceIntervalMillis;
+    }
+
+    /**
+     * The ring and the peers of one lookup
+     */
+    private static final class Partition {
+
+        private final ConsistentHashRing ring;
+        private final Map peers;
+        private final String localNode;
+
+        Partition(ConsistentHashRing ring, Map peers, String localNode) {
+            this.ring = ring;
+            this.peers = peers;
+            this.localNode = localNode;
+        }
+    }
+
+    /**
+     * Sends local puts and removes to the owners of the key.
+     * <p/>
+     * This is a {@link CacheReplicator} so that it is not notified of puts and removes received from peers.
+     */
+    private final class PartitionReplicator implements CacheReplicator {
+
+        /**
+         * {@inheritDoc}
+         */
+        public void notifyElementPut(Ehcache cache, Element element) throws CacheException {
+            sendPut(cache, element);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void notifyElementUpdated(Ehcache cache, Element element) throws CacheException {
+            sendPut(cache, element);
+        }
+
+        private void sendPut(Ehcache cache, Element element) {
+            if (notAlive()) {
+                return;
+            }
+            if (!element.isSerializable()) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Object with key " + element.getObjectKey()
+                            + " is not Serializable and cannot be partitioned");
+                }
+                return;
+            }
+            Partition partition = getPartition();
+            List owners = partition.ring.getOwners(element.getObjectKey(), backups + 1);
+            for (int i = 0; i < owners.size(); i++) {
+                CachePeer peer = (CachePeer) partition.peers.get(owners.get(i));
+                if (peer == null) {
+                    continue;
+                }
+                try {
+                    if (Cache.getElementSerializer(cache) instanceof JavaElementSerializer) {
+                        peer.put(element);
+                    } else {
+                        peer.send(Collections.singletonList(new EventMessage(EventMessage.PUT,
+                                (Serializable) element.getObjectKey(), element, Cache.getElementSerializer(cache))));
+                    }
+                } catch (Throwable t) {
+                    LOG.log(Level.SEVERE, "Exception on partitioned put to " + owners.get(i) + ". "
+                            + t.getMessage() + ". Continuing...", t);
+                }
+            }
+            if (!owners.contains(partition.localNode)) {
+                if (nearCache) {
+                    cache.putQuiet(createNearCopy(element));
+                } else {
+                    cache.removeQuiet(element.getObjectKey());
+                }
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void notifyElementRemoved(Ehcache cache, Element element) throws CacheException {
+            if (notAlive()) {
+                return;
+            }
+            if (!element.isKeySerializable()) {
+                if (LOG.isLoggable(Level.WARNING)) {
+                    LOG.log(Level.WARNING, "Key " + element.getObjectKey() + " is not Serializable and cannot be partitioned.");
+                }
+                return;
+            }
+            Partition partition = getPartition();
+            List owners = partition.ring.getOwners(element.getObjectKey(), backups + 1);
+            for (int i = 0; i < owners.size(); i++) {
+                CachePeer peer = (CachePeer) partition.peers.get(owners.get(i));
+                if (peer == null) {
+                    continue;
+                }
+                try {
+                    peer.remove((Serializable) element.getObjectKey());
+                } catch (Throwable t) {
+                    LOG.log(Level.SEVERE, "Exception on partitioned remove from " + owners.get(i) + ". "
+                            + t.getMessage() + ". Continuing...", t);
+                }
+            }
+        }
+
+        /**
+         * Expiries are not sent. The element expires on its owners at the same time.
+         */
+        public void notifyElementExpired(Ehcache cache, Element element) {
+            //noop
+        }
+
+        /**
+         * Evictions are local.
+         */
+        public void notifyElementEvicted(Ehcache cache, Element element) {
+            //noop
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public void notifyRemoveAll(Ehcache cache) {
+            if (notAlive()) {
+                return;
+            }
+            Iterator iterator = getPartition().peers.values().iterator();
+            while (iterator.hasNext()) {
+                CachePeer peer = (CachePeer) iterator.next();
+                try {
+                    peer.removeAll();
+                } catch (Throwable t) {
+                    LOG.log(Level.SEVERE, "Exception on partitioned removeAll. " + t.getMessage() + ". Continuing...", t);
+                }
+            }
+        }
+
+        /**
+         * @return true, as elements are always sent to their owners
+         */
+        public boolean isReplicateUpdatesViaCopy() {
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean notAlive() {
+            return !alive();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean alive() {
+            return status.equals(Status.STATUS_ALIVE);
+        }
+
+        /**
+         * The extension is disposed by the cache.
+         */
+        public void dispose() {
+            //noop
+        }
+
+        /**
+         * The listener belongs to one extension, which registers its own listener in a clone of the cache.
+         *
+         * @throws CloneNotSupportedException always
+         */
+        public Object clone() throws CloneNotSupportedException {
+            throw new CloneNotSupportedException("The partition listener cannot be cloned. Clone the cache before"
+                    + " it is initialised.");
+        }
+    }
+
+    /**
+     * A background daemon thread which rebalances every interval
+     */
+    private final class RebalanceThread extends Thread {
+
+        RebalanceThread() {
+            super("Partition Rebalance Thread for cache " + cache.getName());
+            setDaemon(true);
+        }
+
+        /**
+         * Rebalances until the extension is disposed
+         */
+        public void run() {
+            while (!isInterrupted()) {
+                try {
+                    rebalance();
+                } catch (Throwable t) {
+                    LOG.log(Level.WARNING, "Rebalancing cache " + cache.getName() + " failed. The cause was: "
+                            + t.getMessage(), t);
+                }
+                try {
+                    Thread.sleep(rebalanceIntervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.extension.CacheExtension;
+import net.sf.ehcache.extension.CacheExtensionFactory;
+import net.sf.ehcache.util.PropertyUtil;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A factory to create a configured {@link PartitionedCacheExtension}.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class PartitionedCacheExtensionFactory extends CacheExtensionFactory {
+
+    /**
+     * The property name expected in ehcache.xml for the number of backup copies of each element
+     */
+    public static final String BACKUPS = "backups";
+
+    /**
+     * The property name expected in ehcache.xml for whether to keep near cache copies of elements owned by others
+     */
+    public static final String NEAR_CACHE = "nearCache";
+
+    /**
+     * The property name expected in ehcache.xml for the time to live of near cache copies
+     */
+    public static final String NEAR_CACHE_TIME_TO_LIVE_SECONDS = "nearCacheTimeToLiveSeconds";
+
+    /**
+     * The property name expected in ehcache.xml for how often to check whether peers have joined or left
+     */
+    public static final String REBALANCE_INTERVAL_SECONDS = "rebalanceIntervalSeconds";
+
+    /**
+     * The default number of backup copies
+     */
+    protected static final int DEFAULT_BACKUPS = 1;
+
+    /**
+     * The default time to live of near cache copies
+     */
+    protected static final int DEFAULT_NEAR_CACHE_TIME_TO_LIVE_SECONDS = 10;
+
+    /**
+     * The default time between checks for peers joining or leaving
+     */
+    protected static final int DEFAULT_REBALANCE_INTERVAL_SECONDS = 10;
+
+    private static final Logger LOG = Logger.getLogger(PartitionedCacheExtensionFactory.class.getName());
+
+    private static final int ONE_SECOND = 1000;
+
+    /**
+     * @param cache      the cache this extension should hold a reference to, and to whose lifecycle it should be bound.
+     * @param properties implementation specific properties configured as delimiter separated name value pairs in ehcache.xml
+     */
+    public CacheExtension createCacheExtension(Ehcache cache, Properties properties) {
+        boolean nearCache = PropertyUtil.parseBoolean(PropertyUtil.extractAndLogProperty(NEAR_CACHE, properties));
+        return new PartitionedCacheExtension(cache, extractBackups(properties), nearCache,
+                extractPositiveInt(NEAR_CACHE_TIME_TO_LIVE_SECONDS, DEFAULT_NEAR_CACHE_TIME_TO_LIVE_SECONDS, properties),
+                (long) extractPositiveInt(REBALANCE_INTERVAL_SECONDS, DEFAULT_REBALANCE_INTERVAL_SECONDS, properties)
+                        * ONE_SECOND);
+    }
+
+    /**
+     * Extracts the number of backup copies from the properties
+     *
+     * @param properties
+     */
+    protected int extractBackups(Properties properties) {
+        String backupsString = PropertyUtil.extractAndLogProperty(BACKUPS, properties);
+        if (backupsString == null) {
+            return DEFAULT_BACKUPS;
+        }
+        try {
+            int backups = Integer.parseInt(backupsString);
+            if (backups < 0) {
+                LOG.log(Level.WARNING, "Trying to set the number of backups to less than 0. Using the default instead.");
+                return DEFAULT_BACKUPS;
+            }
+            return backups;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.WARNING, "Number format exception trying to set the number of backups. Using the default instead.");
+            return DEFAULT_BACKUPS;
+        }
+    }
+
+    /**
+     * Extracts a number of seconds, which must be at least 1, from the properties
+     *
+     * @param name         the property name
+     * @param defaultValue the value to use if the property is missing or invalid
+     * @param properties
+     */
+    protected int extractPositiveInt(String name, int defaultValue, Properties properties) {
+        String valueString = PropertyUtil.extractAndLogProperty(name, properties);
+        if (valueString == null) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt(valueString);
+            if (value < 1) {
+                LOG.log(Level.WARNING, "Trying to set " + name + " to less than 1. Using the default instead.");
+                return defaultValue;
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.WARNING, "Number format exception trying to set " + name + ". Using the default instead.");
+            return defaultValue;
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package net.sf.ehcache.distribution;
 
+import net.sf.ehcache.util.BufferPool;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -123,13 +124,17 @@ final class PayloadUtil {
         try {
             final GZIPInputStream inputStream = new GZIPInputStream(new ByteArrayInputStream(gzipped));
             ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream(gzipped.length);
-            final byte[] buffer = new byte[PayloadUtil.MTU];
-            int bytesRead = 0;
-            while (bytesRead != -1) {
-                bytesRead = inputStream.read(buffer, 0, PayloadUtil.MTU);
-                if (bytesRead != -1) {
-                    byteArrayOutputStream.write(buffer, 0, bytesRead);
+            final byte[] buffer = BufferPool.acquire(PayloadUtil.MTU);
+            try {
+                int bytesRead = 0;
+                while (bytesRead != -1) {
+                    bytesRead = inputStream.read(buffer, 0, PayloadUtil.MTU);
+                    if (bytesRead != -1) {
+                        byteArrayOutputStream.write(buffer, 0, bytesRead);
+                    }
                 }
+            } finally {
+                BufferPool.release(buffer);
             }
             ungzipped = byteArrayOutputStream.toByteArray();
             inputStream.close();
@@ -0,0 +1,283 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
+import net.sf.ehcache.extension.CacheExtension;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Reads elements which miss locally from the peers of a replicated cache, before the cache falls back to its
+ * {@link net.sf.ehcache.loader.CacheLoader}s.
+ * <p/>
+ * This helps most with invalidation style replication, where a put on one node removes the element on the others, and
+ * with a node which has just started, as the value can be got from a peer rather than loaded again from the system of
+ * record.
+ * <p/>
+ * Peers are listed and asked in turn, starting with a different one each time, until one has the element or the time
+ * allowed is up. A lookup which is still running then is abandoned, so a slow or unreachable peer delays a get by no more than
+ * that time before the cache falls back to its loaders. Batches of keys are read with {@link CachePeer#getElements}.
+ * Elements found are put in the cache without being replicated.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class PeerReadThroughCacheExtension implements CacheExtension, CachePeerReader {
+
+    private static final Logger LOG = Logger.getLogger(PeerReadThroughCacheExtension.class.getName());
+
+    private static final int MAXIMUM_THREADS = 20;
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final Ehcache cache;
+    private final long timeoutMillis;
+    private volatile Status status = Status.STATUS_UNINITIALISED;
+    private ThreadPoolExecutor executor;
+    private int nextPeer;
+    private volatile long peerHits;
+    private volatile long peerMisses;
+    private volatile long timeouts;
+
+    /**
+     * Constructor
+     *
+     * @param cache         the cache to read through for
+     * @param timeoutMillis how long to wait for the peers before giving up
+     */
+    public PeerReadThroughCacheExtension(Ehcache cache, long timeoutMillis) {
+        this.cache = cache;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Starts the pool of threads which ask the peers.
+     */
+    public void init() {
+        executor = new ThreadPoolExecutor(0, MAXIMUM_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Peer Read Through Thread for cache " + cache.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        status = Status.STATUS_ALIVE;
+    }
+
+    /**
+     * Stops the pool of threads.
+     */
+    public void dispose() throws CacheException {
+        status = Status.STATUS_SHUTDOWN;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public CacheExtension clone(Ehcache cache) throws CloneNotSupportedException {
+        return new PeerReadThroughCacheExtension(cache, timeoutMillis);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Element get(Object key) {
+        if (!(key instanceof Serializable)) {
+            return null;
+        }
+        Map elements = read(Collections.singletonList(key));
+        return (Element) elements.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Map getAll(Collection keys) {
+        List serializableKeys = new ArrayList(keys.size());
+        for (Iterator iterator = keys.iterator(); iterator.hasNext();) {
+            Object key = iterator.next();
+            if (key instanceof Serializable) {
+                serializableKeys.add(key);
+            }
+        }
+        if (serializableKeys.isEmpty()) {
+            return new HashMap(0);
+        }
+        return read(serializableKeys);
+    }
+
+    /**
+     * Asks the peers for the keys, waiting no longer than the timeout, and puts what was found in the cache.
+     */
+    private Map read(final List keys) {
+        if (!status.equals(Status.STATUS_ALIVE)) {
+            return new HashMap(0);
+        }
+        final CacheManagerPeerProvider provider = RMISynchronousCacheReplicator.getCacheManagerPeerProvider(cache);
+        if (provider == null) {
+            return new HashMap(0);
+        }
+        final Map found = Collections.synchronizedMap(new HashMap());
+        Future future;
+        try {
+            future = executor.submit(new Callable() {
+                public Object call() throws Exception {
+                    //listing can block on the provider and on registry lookups, so it counts against the timeout
+                    List peers = provider.listRemoteCachePeers(cache);
+                    if (!peers.isEmpty()) {
+                        readFromPeers(peers, nextFirstPeer(peers.size()), keys, found);
+                    }
+                    return null;
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            timeouts++;
+            return new HashMap(0);
+        }
+        try {
+            future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts++;
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Peers of cache " + cache.getName() + " did not answer within " + timeoutMillis
+                        + "ms. Falling back to the loaders.");
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOG.log(Level.WARNING, "Reading through to the peers of cache " + cache.getName() + " failed. The cause was: "
+                    + e.getCause().getMessage());
+        }
+
+        Map elements;
+        synchronized (found) {
+            elements = new HashMap(found);
+        }
+        for (Iterator iterator = elements.values().iterator(); iterator.hasNext();) {
+            cache.put((Element) iterator.next(), true);
+        }
+        peerHits += elements.size();
+        peerMisses += keys.size() - elements.size();
+        return elements;
+    }
+
+    private synchronized int nextFirstPeer(int peerCount) {
+        nextPeer = (nextPeer + 1) % peerCount;
+        return nextPeer;
+    }
+
+    /**
+     * Asks each peer in turn for the keys which have not been found yet.
+     */
+    private void readFromPeers(List peers, int firstPeer, List keys, Map found) {
+        List remaining = keys;
+        for (int i = 0; i < peers.size() && !remaining.isEmpty() && !Thread.currentThread().isInterrupted(); i++) {
+            CachePeer peer = (CachePeer) peers.get((firstPeer + i) % peers.size());
+            try {
+                List elements;
+                if (remaining.size() == 1) {
+                    Element element = peer.getQuiet((Serializable) remaining.get(0));
+                    elements = element == null ? Collections.EMPTY_LIST : Collections.singletonList(element);
+                } else {
+                    elements = peer.getElements(remaining);
+                }
+                for (int j = 0; j < elements.size(); j++) {
+                    Element element = (Element) elements.get(j);
+                    found.put(element.getObjectKey(), element);
+                }
+            } catch (RemoteException e) {
+                if (LOG.isLoggable(Level.FINE)) {
+                    LOG.log(Level.FINE, "Could not read from peer " + peer + ". Trying the next peer. The cause was: "
+                            + e.getMessage());
+                }
+            }
+            if (found.size() > 0) {
+                List stillMissing = new ArrayList(remaining.size());
+                for (int j = 0; j < remaining.size(); j++) {
+                    if (!found.containsKey(remaining.get(j))) {
+                        stillMissing.add(remaining.get(j));
+                    }
+                }
+                remaining = stillMissing;
+            }
+        }
+    }
+
+    /**
+     * @return the number of keys found on a peer
+     */
+    public long getPeerHits() {
+        return peerHits;
+    }
+
+    /**
+     * @return the number of keys no peer had, including those not found in time
+     */
+    public long getPeerMisses() {
+        return peerMisses;
+    }
+
+    /**
+     * @return the number of reads abandoned because the peers did not answer in time
+     */
+    public long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return how long to wait for the peers, in ms
+     */
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.extension.CacheExtension;
+import net.sf.ehcache.extension.CacheExtensionFactory;
+import net.sf.ehcache.util.PropertyUtil;
+
+import java.util.Properties;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A factory to create a configured {@link PeerReadThroughCacheExtension}.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class PeerReadThroughCacheExtensionFactory extends CacheExtensionFactory {
+
+    /**
+     * The property name expected in ehcache.xml for how long to wait for the peers
+     */
+    public static final String TIMEOUT_MILLIS = "timeoutMillis";
+
+    /**
+     * The default time to wait for the peers
+     */
+    protected static final int DEFAULT_TIMEOUT_MILLIS = 50;
+
+    private static final Logger LOG = Logger.getLogger(PeerReadThroughCacheExtensionFactory.class.getName());
+
+    /**
+     * @param cache      the cache this extension should hold a reference to, and to whose lifecycle it should be bound.
+     * @param properties implementation specific properties configured as delimiter separated name value pairs in ehcache.xml
+     */
+    public CacheExtension createCacheExtension(Ehcache cache, Properties properties) {
+        return new PeerReadThroughCacheExtension(cache, extractTimeoutMillis(properties));
+    }
+
+    /**
+     * Extracts the time to wait for the peers from the properties
+     *
+     * @param properties
+     */
+    protected int extractTimeoutMillis(Properties properties) {
+        String timeoutString = PropertyUtil.extractAndLogProperty(TIMEOUT_MILLIS, properties);
+        if (timeoutString == null) {
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+        try {
+            int timeout = Integer.parseInt(timeoutString);
+            if (timeout < 1) {
+                LOG.log(Level.WARNING, "Trying to set the peer read through timeout to less than 1ms. Using the default instead.");
+                return DEFAULT_TIMEOUT_MILLIS;
+            }
+            return timeout;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.WARNING, "Number format exception trying to set the peer read through timeout. Using the default instead.");
+            return DEFAULT_TIMEOUT_MILLIS;
+        }
+    }
+}
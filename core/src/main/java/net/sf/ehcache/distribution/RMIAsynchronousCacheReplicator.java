@@ -16,16 +16,23 @@
 
 package net.sf.ehcache.distribution;
 
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.Status;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.rmi.UnmarshalException;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,6 +55,16 @@ import java.util.logging.Logger;
  * of SoftReferences is that the VM (JDK1.5 anyway) will do that rather than grow the heap size to the maximum.
  * The workaround is to either set minimum heap size to the maximum heap size to force heap allocation at start
  * up, or put up with a few lost messages while the heap grows.
+ * <p/>
+ * Each peer is sent to by its own {@link CachePeerSender}, so a slow or unavailable peer delays only its own
+ * messages. Updates are replicated to each peer in order. A peer's backlog is limited to maximumBacklogPerPeer
+ * messages, and a peer which fails is skipped for a while rather than tried with every batch.
+ * <p/>
+ * The replication queue is a {@link CoalescingReplicationQueue}: within each interval only the last put or remove of a
+ * key is replicated. It holds at most maximumReplicationQueueSize keys, and is flushed early once half full.
+ * <p/>
+ * Each flush is serialized once into a {@link ReplicationBatch}, deflated if longer than
+ * batchCompressionThresholdBytes, and the same bytes are sent to every peer with {@link CachePeer#sendBatch}.
  *
  * @author Greg Luck
  * @version $Id: RMIAsynchronousCacheReplicator.java 992 2009-07-05 08:43:33Z gregluck $
@@ -69,9 +86,35 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
     protected int asynchronousReplicationInterval;
 
     /**
-     * A queue of updates.
+     * A queue of updates, coalesced by key.
+     */
+    private final CoalescingReplicationQueue replicationQueue;
+
+    /**
+     * The most messages queued for any one peer
      */
-    protected final List replicationQueue = new LinkedList();
+    protected final int maximumBacklogPerPeer;
+
+    /**
+     * Batches longer than this many bytes are deflated. 0 for no compression.
+     */
+    protected final int batchCompressionThresholdBytes;
+
+    /**
+     * The senders to each peer. The key is the CachePeer and the value its CachePeerSender.
+     */
+    private final Map peerSenders = new HashMap();
+
+    /**
+     * Runs the peer senders which have messages to send
+     */
+    private final ExecutorService senderPool = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Replication Sender Thread");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
 
     /**
      * Constructor for internal and subclass use
@@ -83,12 +126,38 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
             boolean replicateUpdatesViaCopy,
             boolean replicateRemovals,
             int asynchronousReplicationInterval) {
+        this(replicatePuts, replicatePutsViaCopy, replicateUpdates, replicateUpdatesViaCopy, replicateRemovals,
+                asynchronousReplicationInterval, RMICacheReplicatorFactory.DEFAULT_MAXIMUM_BACKLOG_PER_PEER,
+                RMICacheReplicatorFactory.DEFAULT_MAXIMUM_REPLICATION_QUEUE_SIZE,
+                RMICacheReplicatorFactory.DEFAULT_BATCH_COMPRESSION_THRESHOLD_BYTES);
+    }
+
+    /**
+     * Constructor for internal and subclass use
+     *
+     * @param maximumBacklogPerPeer       the most messages to queue for a peer before the oldest are discarded
+     * @param maximumReplicationQueueSize the most keys to queue between flushes before messages are discarded
+     * @param batchCompressionThresholdBytes batches longer than this are deflated. 0 for no compression.
+     */
+    public RMIAsynchronousCacheReplicator(
+            boolean replicatePuts,
+            boolean replicatePutsViaCopy,
+            boolean replicateUpdates,
+            boolean replicateUpdatesViaCopy,
+            boolean replicateRemovals,
+            int asynchronousReplicationInterval,
+            int maximumBacklogPerPeer,
+            int maximumReplicationQueueSize,
+            int batchCompressionThresholdBytes) {
         super(replicatePuts,
                 replicatePutsViaCopy,
                 replicateUpdates,
                 replicateUpdatesViaCopy,
                 replicateRemovals);
         this.asynchronousReplicationInterval = asynchronousReplicationInterval;
+        this.maximumBacklogPerPeer = maximumBacklogPerPeer;
+        replicationQueue = new CoalescingReplicationQueue(maximumReplicationQueueSize);
+        this.batchCompressionThresholdBytes = batchCompressionThresholdBytes;
         status = Status.STATUS_ALIVE;
         replicationThread.start();
     }
@@ -96,15 +165,18 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
     /**
      * RemoteDebugger method for the replicationQueue thread.
      * <p/>
-     * Note that the replicationQueue thread locks the cache for the entire time it is writing elements to the disk.
+     * Flushes once per interval, measured from the start of the last flush, or as soon as it is unparked because the
+     * queue is half full.
      */
     private void replicationThreadMain() {
+        long nextFlushTime = System.currentTimeMillis() + asynchronousReplicationInterval;
         while (true) {
-            // Wait for elements in the replicationQueue
-            while (alive() && replicationQueue != null && replicationQueue.size() == 0) {
-                try {
-                    Thread.sleep(asynchronousReplicationInterval);
-                } catch (InterruptedException e) {
+            // Wait for the interval to pass, or for the replicationQueue to fill
+            long wait;
+            while (alive() && !replicationQueue.isFlushDue()
+                    && (wait = nextFlushTime - System.currentTimeMillis()) > 0) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(wait));
+                if (Thread.interrupted()) {
                     LOG.log(Level.FINE, "Spool Thread interrupted.");
                     return;
                 }
@@ -112,6 +184,7 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
             if (notAlive()) {
                 return;
             }
+            nextFlushTime = System.currentTimeMillis() + asynchronousReplicationInterval;
             try {
                 if (replicationQueue.size() != 0) {
                     flushReplicationQueue();
@@ -263,7 +336,8 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
 
 
     /**
-     * Adds a message to the queue.
+     * Adds a message to the queue, replacing any queued for the same key. The replication thread is woken if the
+     * queue is due to be flushed.
      * <p/>
      * This method checks the state of the replication thread and warns
      * if it has stopped and then discards the message.
@@ -275,8 +349,9 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
             LOG.log(Level.SEVERE, "CacheEventMessages cannot be added to the replication queue"
                     + " because the replication thread has died.");
         } else {
-            synchronized (replicationQueue) {
-                replicationQueue.add(cacheEventMessage);
+            replicationQueue.offer(cacheEventMessage.key, cacheEventMessage);
+            if (replicationQueue.isFlushDue()) {
+                LockSupport.unpark(replicationThread);
             }
         }
     }
@@ -285,10 +360,11 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
     /**
      * Gets called once per {@link #asynchronousReplicationInterval}.
      * <p/>
-     * Sends accumulated messages in bulk to each peer. i.e. if ther are 100 messages and 1 peer,
+     * Hands accumulated messages in bulk to the sender of each peer. i.e. if ther are 100 messages and 1 peer,
      * 1 RMI invocation results, not 100. Also, if a peer is unavailable this is discovered in only 1 try.
+     * The senders send in parallel, so this method does not wait for any peer.
      * <p/>
-     * Makes a copy of the queue so as not to hold up the enqueue operations.
+     * Swaps in a new queue window so as not to hold up the enqueue operations.
      * <p/>
      * Any exceptions are caught so that the replication thread does not die, and because errors are expected,
      * due to peers becoming unavailable.
@@ -296,14 +372,14 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
      * This method issues warnings for problems that can be fixed with configuration changes.
      */
     private void flushReplicationQueue() {
-        List replicationQueueCopy;
-        synchronized (replicationQueue) {
-            if (replicationQueue.size() == 0) {
-                return;
-            }
-
-            replicationQueueCopy = new ArrayList(replicationQueue);
-            replicationQueue.clear();
+        List replicationQueueCopy = replicationQueue.drain();
+        long discardedOnOverflow = replicationQueue.takeDiscardedCount();
+        if (discardedOnOverflow > 0) {
+            LOG.log(Level.WARNING, discardedOnOverflow + " messages were discarded because the replication queue was "
+                    + "full. Consider increasing maximumReplicationQueueSize.");
+        }
+        if (replicationQueueCopy.size() == 0) {
+            return;
         }
 
 
@@ -313,21 +389,33 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
         List resolvedEventMessages = extractAndResolveEventMessages(replicationQueueCopy);
 
 
-        for (int j = 0; j < cachePeers.size(); j++) {
-            CachePeer cachePeer = (CachePeer) cachePeers.get(j);
+        if (resolvedEventMessages.size() > 0 && cachePeers.size() > 0) {
+            byte[] payload;
+            int messageCount;
             try {
-                cachePeer.send(resolvedEventMessages);
-            } catch (UnmarshalException e) {
-                String message = e.getMessage();
-                if (message.indexOf("Read time out") != 0) {
-                    LOG.log(Level.WARNING, "Unable to send message to remote peer due to socket read timeout. Consider increasing" +
-                            " the socketTimeoutMillis setting in the cacheManagerPeerListenerFactory. " +
-                            "Message was: " + e.getMessage());
-                } else {
-                    LOG.log(Level.FINE, "Unable to send message to remote peer.  Message was: " + e.getMessage());
+                payload = ReplicationBatch.encode(resolvedEventMessages, Cache.getElementSerializer(cache),
+                        batchCompressionThresholdBytes);
+                messageCount = ReplicationBatch.countMessages(payload);
+            } catch (IOException e) {
+                LOG.log(Level.SEVERE, "Could not serialize replication batch for cache " + cache.getName()
+                        + ". " + resolvedEventMessages.size() + " messages were discarded. " + e.getMessage(), e);
+                return;
+            }
+            synchronized (peerSenders) {
+                Map listedSenders = new HashMap();
+                for (int j = 0; j < cachePeers.size(); j++) {
+                    CachePeer cachePeer = (CachePeer) cachePeers.get(j);
+                    CachePeerSender sender = (CachePeerSender) peerSenders.get(cachePeer);
+                    if (sender == null) {
+                        sender = new CachePeerSender(cachePeer, Cache.getElementSerializer(cache), senderPool,
+                                maximumBacklogPerPeer, asynchronousReplicationInterval);
+                    }
+                    listedSenders.put(cachePeer, sender);
+                    sender.enqueue(payload, messageCount);
                 }
-            } catch (Throwable t) {
-                LOG.log(Level.WARNING, "Unable to send message to remote peer.  Message was: " + t.getMessage(), t);
+                //senders of peers which are no longer listed finish what they have queued
+                peerSenders.clear();
+                peerSenders.putAll(listedSenders);
             }
         }
         if (LOG.isLoggable(Level.WARNING)) {
@@ -392,9 +480,19 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
         private final Ehcache cache;
         private final EventMessage eventMessage;
 
+        /**
+         * The key the message is coalesced by. null for a removeAll.
+         */
+        private final Object key;
+
         public CacheEventMessage(int event, Ehcache cache, Element element, Serializable key) {
-            eventMessage = new EventMessage(event, key, element);
+            eventMessage = new EventMessage(event, key, element, Cache.getElementSerializer(cache));
             this.cache = cache;
+            if (element != null) {
+                this.key = element.getObjectKey();
+            } else {
+                this.key = key;
+            }
         }
 
         /**
@@ -412,6 +510,15 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
     public final void dispose() {
         status = Status.STATUS_SHUTDOWN;
         flushReplicationQueue();
+        senderPool.shutdown();
+        try {
+            if (!senderPool.awaitTermination(RMICacheManagerPeerListenerFactory.DEFAULT_SOCKET_TIMEOUT_MILLIS.longValue(),
+                    TimeUnit.MILLISECONDS)) {
+                LOG.log(Level.WARNING, "Replication to some peers did not complete before shutdown.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
 
@@ -428,7 +535,8 @@ public class RMIAsynchronousCacheReplicator extends RMISynchronousCacheReplicato
         //shutup checkstyle
         super.clone();
         return new RMIAsynchronousCacheReplicator(replicatePuts, replicatePutsViaCopy,
-                replicateUpdates, replicateUpdatesViaCopy, replicateRemovals, asynchronousReplicationInterval);
+                replicateUpdates, replicateUpdatesViaCopy, replicateRemovals, asynchronousReplicationInterval,
+                maximumBacklogPerPeer, replicationQueue.getMaximumKeys(), batchCompressionThresholdBytes);
     }
 
 
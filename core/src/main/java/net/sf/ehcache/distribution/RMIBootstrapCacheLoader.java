@@ -23,13 +23,32 @@ import net.sf.ehcache.bootstrap.BootstrapCacheLoader;
 import java.io.Serializable;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
- * Loads Elements from a random Cache Peer
+ * Loads Elements from a random Cache Peer, or with a parallelism greater than 1, from all of them.
+ * <p/>
+ * In both cases the keys are listed by one random peer and split into chunks. With a parallelism of 1 the chunks are
+ * fetched one at a time from that peer. Otherwise the chunks are dealt to that many threads, each of which fetches from
+ * a different peer in turn, so that the load is spread across the cluster. A chunk which cannot be fetched from one
+ * peer is retried on the others. Either way, elements are put into the cache as each chunk arrives, and the progress
+ * of the bootstrap is available from {@link #getProgress()}.
+ * <p/>
+ * A delta bootstrap keeps what the cache already holds, which for a persistent DiskStore is what was on disk when
+ * it restarted. Digests of the versions of the peer's elements are fetched in chunks and compared with the local
+ * elements, and only the elements which are missing or differ are then fetched. Local elements the peer no longer has
+ * are removed.
  *
  * @author Greg Luck
  * @version $Id: RMIBootstrapCacheLoader.java 978 2009-06-16 23:29:59Z gregluck $
@@ -38,6 +57,8 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
 
     private static final int ONE_SECOND = 1000;
 
+    private static final int DIGEST_CHUNK_SIZE = 10000;
+
     private static final Logger LOG = Logger.getLogger(RMIBootstrapCacheLoader.class.getName());
 
     /**
@@ -50,14 +71,53 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
      */
     protected int maximumChunkSizeBytes;
 
+    /**
+     * The number of chunks to fetch at once. 1 fetches everything from a single peer.
+     */
+    protected int parallelism;
+
+    /**
+     * Whether to fetch only the elements which differ from those already in the cache
+     */
+    protected boolean deltaBootstrap;
+
+    private final BootstrapProgress progress = new BootstrapProgress();
+
     /**
      * Creates a boostrap cache loader that will work with RMI based distribution
      *
      * @param asynchronous Whether to load asynchronously
      */
     public RMIBootstrapCacheLoader(boolean asynchronous, int maximumChunkSize) {
+        this(asynchronous, maximumChunkSize, 1);
+    }
+
+    /**
+     * Creates a boostrap cache loader that will work with RMI based distribution
+     *
+     * @param asynchronous     Whether to load asynchronously
+     * @param maximumChunkSize the maximum serialized size of the elements to request at once
+     * @param parallelism      the number of chunks to fetch at once, spread across all peers. 1 fetches everything from
+     *                         a single peer.
+     */
+    public RMIBootstrapCacheLoader(boolean asynchronous, int maximumChunkSize, int parallelism) {
+        this(asynchronous, maximumChunkSize, parallelism, false);
+    }
+
+    /**
+     * Creates a boostrap cache loader that will work with RMI based distribution
+     *
+     * @param asynchronous     Whether to load asynchronously
+     * @param maximumChunkSize the maximum serialized size of the elements to request at once
+     * @param parallelism      the number of chunks to fetch at once, spread across all peers. 1 fetches everything from
+     *                         a single peer.
+     * @param deltaBootstrap   whether to fetch only the elements which differ from those already in the cache
+     */
+    public RMIBootstrapCacheLoader(boolean asynchronous, int maximumChunkSize, int parallelism, boolean deltaBootstrap) {
         this.asynchronous = asynchronous;
         this.maximumChunkSizeBytes = maximumChunkSize;
+        this.parallelism = Math.max(parallelism, 1);
+        this.deltaBootstrap = deltaBootstrap;
     }
 
 
@@ -140,9 +200,13 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
 
         try {
 
+            List keys = cachePeer.getKeys();
+            if (deltaBootstrap && keys.size() > 0 && cache.getSize() > 0) {
+                keys = findChangedKeys(cache, keys, cachePeer);
+            }
+
             //Estimate element size
             Element sampleElement = null;
-            List keys = cachePeer.getKeys();
             for (int i = 0; i < keys.size(); i++) {
                 Serializable key = (Serializable) keys.get(i);
                 sampleElement = cachePeer.getQuiet(key);
@@ -156,19 +220,33 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
                 return;
             }
             long size = sampleElement.getSerializedSize();
-            int chunkSize = (int) (maximumChunkSizeBytes / size);
+            int chunkSize = (int) Math.max(maximumChunkSizeBytes / size, 1);
+
+            if (parallelism > 1 && (cachePeers.size() > 1 || keys.size() > chunkSize)) {
+                List peers = new ArrayList(cachePeers);
+                //start with the peer which listed the keys, which is known to be up
+                peers.remove(randomPeerNumber);
+                peers.add(0, cachePeer);
+                loadInParallel(cache, keys, chunkSize, peers);
+                return;
+            }
 
-            List requestChunk = new ArrayList();
-            for (int i = 0; i < keys.size(); i++) {
-                Serializable serializable = (Serializable) keys.get(i);
-                requestChunk.add(serializable);
-                if (requestChunk.size() == chunkSize) {
-                    fetchAndPutElements(cache, requestChunk, cachePeer);
-                    requestChunk.clear();
+            progress.start(1, keys.size());
+            try {
+                List requestChunk = new ArrayList();
+                for (int i = 0; i < keys.size(); i++) {
+                    Serializable serializable = (Serializable) keys.get(i);
+                    requestChunk.add(serializable);
+                    if (requestChunk.size() == chunkSize) {
+                        progress.chunkLoaded(requestChunk.size(), fetchAndPutElements(cache, requestChunk, cachePeer));
+                        requestChunk.clear();
+                    }
                 }
+                //get leftovers
+                progress.chunkLoaded(requestChunk.size(), fetchAndPutElements(cache, requestChunk, cachePeer));
+            } finally {
+                progress.finish();
             }
-            //get leftovers
-            fetchAndPutElements(cache, requestChunk, cachePeer);
             LOG.log(Level.FINE, "Bootstrap of " + cache.getName() + " from " + cachePeer + " finished. "
                     + keys.size() + " keys requested.");
         } catch (Throwable t) {
@@ -176,6 +254,124 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
         }
     }
 
+    /**
+     * Compares the elements already in the cache with those of a peer, using digests of their versions, and removes
+     * local elements the peer does not have.
+     *
+     * @param cache     the cache being bootstrapped
+     * @param keys      the keys of the peer
+     * @param cachePeer the peer
+     * @return the keys whose elements are missing from the cache or differ from those of the peer
+     */
+    protected List findChangedKeys(Ehcache cache, List keys, CachePeer cachePeer) throws RemoteException {
+        Set remoteKeys = new HashSet(keys);
+        List localKeys = cache.getKeys();
+        int removed = 0;
+        for (int i = 0; i < localKeys.size(); i++) {
+            Object key = localKeys.get(i);
+            if (!remoteKeys.contains(key)) {
+                cache.remove(key, true);
+                removed++;
+            }
+        }
+
+        List changedKeys = new ArrayList();
+        for (int i = 0; i < keys.size(); i += DIGEST_CHUNK_SIZE) {
+            List chunk = new ArrayList(keys.subList(i, Math.min(i + DIGEST_CHUNK_SIZE, keys.size())));
+            long[] digests = cachePeer.getDigests(chunk);
+            for (int j = 0; j < chunk.size(); j++) {
+                Serializable key = (Serializable) chunk.get(j);
+                //a key removed at the peer since it was listed has an absent digest
+                if (digests[j] != ElementDigest.ABSENT && digests[j] != ElementDigest.digest(cache.getQuiet(key))) {
+                    changedKeys.add(key);
+                }
+            }
+        }
+        LOG.log(Level.FINE, "Delta bootstrap of " + cache.getName() + " from " + cachePeer + ": " + changedKeys.size()
+                + " of " + keys.size() + " keys differ. " + removed + " local keys were removed.");
+        return changedKeys;
+    }
+
+    /**
+     * Fetches chunks of keys from all of the peers at once. Each thread starts with a different peer and moves on to the
+     * next for each chunk. A chunk which fails is retried on the following peers, and a peer which fails is not used
+     * again by that thread.
+     *
+     * @param cache     the cache to put elements in
+     * @param keys      all of the keys to load
+     * @param chunkSize the number of keys to request at once
+     * @param peers     the peers to fetch from
+     */
+    protected void loadInParallel(final Ehcache cache, List keys, int chunkSize, final List peers)
+            throws InterruptedException, ExecutionException {
+        final LinkedList chunks = new LinkedList();
+        for (int i = 0; i < keys.size(); i += chunkSize) {
+            chunks.add(new ArrayList(keys.subList(i, Math.min(i + chunkSize, keys.size()))));
+        }
+        int threads = Math.min(parallelism, chunks.size());
+        LOG.log(Level.FINE, "Bootstrapping " + cache.getName() + " from " + peers.size() + " peers in " + chunks.size()
+                + " chunks with " + threads + " threads.");
+        progress.start(peers.size(), keys.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Bootstrap Thread " + ++count + " for cache " + cache.getName());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List futures = new ArrayList();
+            for (int i = 0; i < threads; i++) {
+                final int firstPeer = i;
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        fetchChunks(cache, chunks, peers, firstPeer);
+                    }
+                }));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                ((Future) futures.get(i)).get();
+            }
+        } finally {
+            executor.shutdownNow();
+            progress.finish();
+        }
+        LOG.log(Level.FINE, "Bootstrap of " + cache.getName() + " from " + peers.size() + " peers finished. "
+                + progress.getKeysRequested() + " keys requested, " + progress.getElementsLoaded() + " elements loaded. "
+                + progress.getChunksFailed() + " chunks failed.");
+    }
+
+    private void fetchChunks(Ehcache cache, LinkedList chunks, List peers, int firstPeer) {
+        List livePeers = new ArrayList(peers);
+        int next = firstPeer;
+        while (!Thread.currentThread().isInterrupted()) {
+            List chunk;
+            synchronized (chunks) {
+                if (chunks.isEmpty()) {
+                    return;
+                }
+                chunk = (List) chunks.removeFirst();
+            }
+            boolean loaded = false;
+            while (!loaded && !livePeers.isEmpty()) {
+                CachePeer cachePeer = (CachePeer) livePeers.get(next++ % livePeers.size());
+                try {
+                    progress.chunkLoaded(chunk.size(), fetchAndPutElements(cache, chunk, cachePeer));
+                    loaded = true;
+                } catch (RemoteException e) {
+                    LOG.log(Level.WARNING, "Error fetching a bootstrap chunk for " + cache.getName() + " from " + cachePeer
+                            + ". Trying the remaining peers. The cause was: " + e.getMessage());
+                    livePeers.remove(cachePeer);
+                }
+            }
+            if (!loaded) {
+                progress.chunkFailed(chunk.size());
+            }
+        }
+    }
+
     /**
      * Acquires the cache peers for this cache.
      *
@@ -184,7 +380,7 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
     protected List acquireCachePeers(Ehcache cache) {
 
         long timeForClusterToForm = 0;
-        CacheManagerPeerProvider cacheManagerPeerProvider = cache.getCacheManager().getCacheManagerPeerProvider("RMI");
+        CacheManagerPeerProvider cacheManagerPeerProvider = RMISynchronousCacheReplicator.getCacheManagerPeerProvider(cache);
         if (cacheManagerPeerProvider != null) {
             timeForClusterToForm = cacheManagerPeerProvider.getTimeForClusterToForm();
         }
@@ -219,17 +415,24 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
      * @param cache        the cache to put elements in
      * @param requestChunk the chunk of keys to request
      * @param cachePeer    the peer to fetch from
+     * @return the number of elements put
      * @throws java.rmi.RemoteException
      */
-    protected void fetchAndPutElements(Ehcache cache, List requestChunk, CachePeer cachePeer) throws RemoteException {
+    protected int fetchAndPutElements(Ehcache cache, List requestChunk, CachePeer cachePeer) throws RemoteException {
+        if (requestChunk.isEmpty()) {
+            return 0;
+        }
         List receivedChunk = cachePeer.getElements(requestChunk);
+        int put = 0;
         for (int i = 0; i < receivedChunk.size(); i++) {
             Element element = (Element) receivedChunk.get(i);
             // element could be expired at the peer
             if (element != null) {
-                cache.put(element, true);
+                ElementDigest.putCopy(cache, element);
+                put++;
             }
         }
+        return put;
     }
 
     /**
@@ -238,7 +441,7 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
      * @param cache
      */
     protected List listRemoteCachePeers(Ehcache cache) {
-        CacheManagerPeerProvider provider = cache.getCacheManager().getCacheManagerPeerProvider("RMI");
+        CacheManagerPeerProvider provider = RMISynchronousCacheReplicator.getCacheManagerPeerProvider(cache);
         if (provider == null) {
             return null;
         } else {
@@ -254,12 +457,33 @@ public class RMIBootstrapCacheLoader implements BootstrapCacheLoader {
         return maximumChunkSizeBytes;
     }
 
+    /**
+     * Gets the number of chunks fetched at once
+     */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Whether only the elements which differ from those already in the cache are fetched
+     */
+    public boolean isDeltaBootstrap() {
+        return deltaBootstrap;
+    }
+
+    /**
+     * Gets the progress of the current or last bootstrap
+     */
+    public BootstrapProgress getProgress() {
+        return progress;
+    }
+
     /**
      * Clones this loader
      */
     public Object clone() throws CloneNotSupportedException {
         //checkstyle
-        return new RMIBootstrapCacheLoader(asynchronous, maximumChunkSizeBytes);
+        return new RMIBootstrapCacheLoader(asynchronous, maximumChunkSizeBytes, parallelism, deltaBootstrap);
     }
 
 }
@@ -43,6 +43,21 @@ public class RMIBootstrapCacheLoaderFactory extends BootstrapCacheLoaderFactory
      */
     public static final String MAXIMUM_CHUNK_SIZE_BYTES = "maximumChunkSizeBytes";
 
+    /**
+     * The property name expected in ehcache.xml for the number of chunks to fetch at once
+     */
+    public static final String PARALLELISM = "parallelism";
+
+    /**
+     * The property name expected in ehcache.xml for the delta bootstrap switch
+     */
+    public static final String DELTA_BOOTSTRAP = "deltaBootstrap";
+
+    /**
+     * The default number of chunks to fetch at once, which fetches everything from a single peer
+     */
+    protected static final int DEFAULT_PARALLELISM = 1;
+
     /**
      * The default maximum serialized size of the elements to request from a remote cache peer during bootstrap.
      */
@@ -71,7 +86,42 @@ public class RMIBootstrapCacheLoaderFactory extends BootstrapCacheLoaderFactory
     public BootstrapCacheLoader createBootstrapCacheLoader(Properties properties) {
         boolean bootstrapAsynchronously = extractBootstrapAsynchronously(properties);
         int maximumChunkSizeBytes = extractMaximumChunkSizeBytes(properties);
-        return new RMIBootstrapCacheLoader(bootstrapAsynchronously, maximumChunkSizeBytes);
+        int parallelism = extractParallelism(properties);
+        boolean deltaBootstrap = extractDeltaBootstrap(properties);
+        return new RMIBootstrapCacheLoader(bootstrapAsynchronously, maximumChunkSizeBytes, parallelism, deltaBootstrap);
+    }
+
+    /**
+     * Extracts the value of deltaBootstrap from the properties
+     *
+     * @param properties
+     */
+    protected boolean extractDeltaBootstrap(Properties properties) {
+        String deltaBootstrapString = PropertyUtil.extractAndLogProperty(DELTA_BOOTSTRAP, properties);
+        return deltaBootstrapString != null && PropertyUtil.parseBoolean(deltaBootstrapString);
+    }
+
+    /**
+     * Extracts the number of chunks to fetch at once from the properties
+     *
+     * @param properties
+     */
+    protected int extractParallelism(Properties properties) {
+        String parallelismString = PropertyUtil.extractAndLogProperty(PARALLELISM, properties);
+        if (parallelismString == null) {
+            return DEFAULT_PARALLELISM;
+        }
+        try {
+            int parallelism = Integer.parseInt(parallelismString);
+            if (parallelism < 1) {
+                LOG.log(Level.WARNING, "Trying to set the bootstrap parallelism to less than 1. Using the default instead.");
+                return DEFAULT_PARALLELISM;
+            }
+            return parallelism;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.WARNING, "Number format exception trying to set bootstrap parallelism. Using the default instead.");
+            return DEFAULT_PARALLELISM;
+        }
     }
 
     /**
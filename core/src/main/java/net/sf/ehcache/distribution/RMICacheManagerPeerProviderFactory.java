@@ -45,6 +45,7 @@ public class RMICacheManagerPeerProviderFactory extends CacheManagerPeerProvider
     private static final String MULTICAST_GROUP_PORT = "multicastGroupPort";
     private static final String MULTICAST_GROUP_ADDRESS = "multicastGroupAddress";
     private static final String MULTICAST_PACKET_TTL = "timeToLive";
+    private static final String BINARY_HEARTBEAT = "binaryHeartbeat";
     private static final int MAXIMUM_TTL = 255;
 
 
@@ -96,7 +97,8 @@ public class RMICacheManagerPeerProviderFactory extends CacheManagerPeerProvider
     }
 
     /**
-     * peerDiscovery=automatic, multicastGroupAddress=230.0.0.1, multicastGroupPort=4446, multicastPacketTimeToLive=255
+     * peerDiscovery=automatic, multicastGroupAddress=230.0.0.1, multicastGroupPort=4446, multicastPacketTimeToLive=255,
+     * binaryHeartbeat=false
      */
     protected CacheManagerPeerProvider createAutomaticallyConfiguredCachePeerProvider(CacheManager cacheManager,
                                                                                       Properties properties) throws IOException {
@@ -126,6 +128,9 @@ public class RMICacheManagerPeerProviderFactory extends CacheManagerPeerProvider
                 throw new CacheException("The TTL must be set to a value between 0 and 255");
             }
         }
-        return new MulticastRMICacheManagerPeerProvider(cacheManager, groupAddress, multicastPort, timeToLive, hostAddress);
+        String binaryHeartbeatString = PropertyUtil.extractAndLogProperty(BINARY_HEARTBEAT, properties);
+        boolean binaryHeartbeat = binaryHeartbeatString != null && PropertyUtil.parseBoolean(binaryHeartbeatString);
+        return new MulticastRMICacheManagerPeerProvider(cacheManager, groupAddress, multicastPort, timeToLive,
+                hostAddress, binaryHeartbeat);
     }
 }
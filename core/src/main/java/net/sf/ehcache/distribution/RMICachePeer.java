@@ -16,6 +16,7 @@
 
 package net.sf.ehcache.distribution;
 
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 
@@ -45,6 +46,7 @@ public class RMICachePeer extends UnicastRemoteObject implements CachePeer, Remo
     private final Integer rmiRegistryPort;
     private Integer remoteObjectPort;
     private final Ehcache cache;
+    private HashTree hashTree;
 
     /**
      * Construct a new remote peer.
@@ -161,6 +163,31 @@ public class RMICachePeer extends UnicastRemoteObject implements CachePeer, Remo
     }
 
 
+    /**
+     * {@inheritDoc}
+     */
+    public long[] getDigests(List keys) throws RemoteException {
+        if (keys == null) {
+            return new long[0];
+        }
+        return ElementDigest.digests(cache, keys);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized long[] getHashTreeNodes(int leafCount, int[] nodes) throws RemoteException {
+        hashTree = HashTree.reuseOrBuild(hashTree, cache, leafCount);
+        return hashTree.getHashes(nodes);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List getHashTreeLeafKeys(int leafCount, int[] leaves) throws RemoteException {
+        return HashTree.getKeys(cache, leafCount, leaves);
+    }
+
     /**
      * Puts an Element into the underlying cache without notifying listeners or updating statistics.
      *
@@ -213,7 +240,7 @@ public class RMICachePeer extends UnicastRemoteObject implements CachePeer, Remo
         for (int i = 0; i < eventMessages.size(); i++) {
             EventMessage eventMessage = (EventMessage) eventMessages.get(i);
             if (eventMessage.getEvent() == EventMessage.PUT) {
-                put(eventMessage.getElement());
+                put(readElement(eventMessage));
             } else if (eventMessage.getEvent() == EventMessage.REMOVE) {
                 remove(eventMessage.getSerializableKey());
             } else if (eventMessage.getEvent() == EventMessage.REMOVE_ALL) {
@@ -224,6 +251,22 @@ public class RMICachePeer extends UnicastRemoteObject implements CachePeer, Remo
         }
     }
 
+    /**
+     * Applies a replication batch in one pass.
+     */
+    public final void sendBatch(byte[] payload) throws RemoteException {
+        ReplicationBatch.applyRemotely(payload, this, Cache.getElementSerializer(cache), cache.getName());
+    }
+
+    private Element readElement(EventMessage eventMessage) throws RemoteException {
+        try {
+            return eventMessage.getElement(Cache.getElementSerializer(cache));
+        } catch (Exception e) {
+            throw new RemoteException("Could not read replicated element for cache " + cache.getName()
+                    + ". Check that all peers use the same elementSerializerFactory.", e);
+        }
+    }
+
     /**
      * Gets the cache name
      */
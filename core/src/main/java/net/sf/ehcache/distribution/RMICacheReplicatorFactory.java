@@ -47,6 +47,21 @@ public class RMICacheReplicatorFactory extends CacheEventListenerFactory {
      */
     protected static final int DEFAULT_ASYNCHRONOUS_REPLICATION_INTERVAL_MILLIS = 1000;
 
+    /**
+     * A default for the most replication messages queued for one peer before the oldest are discarded.
+     */
+    protected static final int DEFAULT_MAXIMUM_BACKLOG_PER_PEER = 100000;
+
+    /**
+     * A default for the most keys queued for asynchronous replication between flushes.
+     */
+    protected static final int DEFAULT_MAXIMUM_REPLICATION_QUEUE_SIZE = 100000;
+
+    /**
+     * A default for the size in bytes above which replication batches are deflated.
+     */
+    protected static final int DEFAULT_BATCH_COMPRESSION_THRESHOLD_BYTES = 4096;
+
     private static final Logger LOG = Logger.getLogger(RMICacheReplicatorFactory.class.getName());
     private static final String REPLICATE_PUTS = "replicatePuts";
     private static final String REPLICATE_PUTS_VIA_COPY = "replicatePutsViaCopy";
@@ -55,6 +70,9 @@ public class RMICacheReplicatorFactory extends CacheEventListenerFactory {
     private static final String REPLICATE_REMOVALS = "replicateRemovals";
     private static final String REPLICATE_ASYNCHRONOUSLY = "replicateAsynchronously";
     private static final String ASYNCHRONOUS_REPLICATION_INTERVAL_MILLIS = "asynchronousReplicationIntervalMillis";
+    private static final String MAXIMUM_BACKLOG_PER_PEER = "maximumBacklogPerPeer";
+    private static final String MAXIMUM_REPLICATION_QUEUE_SIZE = "maximumReplicationQueueSize";
+    private static final String BATCH_COMPRESSION_THRESHOLD_BYTES = "batchCompressionThresholdBytes";
     private static final int MINIMUM_REASONABLE_INTERVAL = 10;
 
     /**
@@ -69,6 +87,9 @@ public class RMICacheReplicatorFactory extends CacheEventListenerFactory {
      * <li>replicateRemovals=true;
      * <li>replicateAsynchronously=true
      * <li>asynchronousReplicationIntervalMillis=1000
+     * <li>maximumBacklogPerPeer=100000
+     * <li>maximumReplicationQueueSize=100000
+     * <li>batchCompressionThresholdBytes=4096
      * </ul>
      *
      * @param properties implementation specific properties. These are configured as comma
@@ -94,6 +115,9 @@ public class RMICacheReplicatorFactory extends CacheEventListenerFactory {
         boolean replicateRemovals = extractReplicateRemovals(properties);
         boolean replicateAsynchronously = extractReplicateAsynchronously(properties);
         int asynchronousReplicationIntervalMillis = extractReplicationIntervalMilis(properties);
+        int maximumBacklogPerPeer = extractMaximumBacklogPerPeer(properties);
+        int maximumReplicationQueueSize = extractMaximumReplicationQueueSize(properties);
+        int batchCompressionThresholdBytes = extractBatchCompressionThresholdBytes(properties);
 
         if (replicateAsynchronously) {
             return new RMIAsynchronousCacheReplicator(
@@ -102,7 +126,10 @@ public class RMICacheReplicatorFactory extends CacheEventListenerFactory {
                     replicateUpdates,
                     replicateUpdatesViaCopy,
                     replicateRemovals,
-                    asynchronousReplicationIntervalMillis);
+                    asynchronousReplicationIntervalMillis,
+                    maximumBacklogPerPeer,
+                    maximumReplicationQueueSize,
+                    batchCompressionThresholdBytes);
         } else {
             return new RMISynchronousCacheReplicator(
                     replicatePuts,
@@ -144,6 +171,56 @@ public class RMICacheReplicatorFactory extends CacheEventListenerFactory {
         return asynchronousReplicationIntervalMillis;
     }
 
+    /**
+     * Extracts the value of maximumBacklogPerPeer. Sets it to 100000 if either not set or there is a problem
+     * parsing the number
+     * @param properties
+     */
+    protected int extractMaximumBacklogPerPeer(Properties properties) {
+        return extractPositiveInt(MAXIMUM_BACKLOG_PER_PEER, properties, DEFAULT_MAXIMUM_BACKLOG_PER_PEER);
+    }
+
+    /**
+     * Extracts the value of maximumReplicationQueueSize. Sets it to 100000 if either not set or there is a problem
+     * parsing the number
+     * @param properties
+     */
+    protected int extractMaximumReplicationQueueSize(Properties properties) {
+        return extractPositiveInt(MAXIMUM_REPLICATION_QUEUE_SIZE, properties, DEFAULT_MAXIMUM_REPLICATION_QUEUE_SIZE);
+    }
+
+    /**
+     * Extracts the value of batchCompressionThresholdBytes. 0 turns compression off. Sets it to 4096 if either not
+     * set or there is a problem parsing the number
+     * @param properties
+     */
+    protected int extractBatchCompressionThresholdBytes(Properties properties) {
+        return extractInt(BATCH_COMPRESSION_THRESHOLD_BYTES, properties, 0, DEFAULT_BATCH_COMPRESSION_THRESHOLD_BYTES);
+    }
+
+    private static int extractPositiveInt(String name, Properties properties, int defaultValue) {
+        return extractInt(name, properties, 1, defaultValue);
+    }
+
+    private static int extractInt(String name, Properties properties, int minimum, int defaultValue) {
+        String valueString = PropertyUtil.extractAndLogProperty(name, properties);
+        if (valueString == null) {
+            return defaultValue;
+        }
+        try {
+            int value = Integer.parseInt(valueString);
+            if (value < minimum) {
+                LOG.log(Level.WARNING, name + " must be at least " + minimum + ". Using the default instead.");
+                return defaultValue;
+            }
+            return value;
+        } catch (NumberFormatException e) {
+            LOG.log(Level.WARNING, "Number format exception trying to set " + name + ". " +
+                    "Using the default instead. String value was: '" + valueString + "'");
+            return defaultValue;
+        }
+    }
+
     /**
      * Extracts the value of replicateAsynchronously from the properties
      * @param properties
@@ -16,12 +16,15 @@
 
 package net.sf.ehcache.distribution;
 
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.Status;
+import net.sf.ehcache.serialization.JavaElementSerializer;
 
 import java.io.Serializable;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -148,7 +151,12 @@ public class RMISynchronousCacheReplicator implements CacheReplicator {
         for (Object cachePeer1 : cachePeers) {
             CachePeer cachePeer = (CachePeer) cachePeer1;
             try {
-                cachePeer.put(element);
+                if (Cache.getElementSerializer(cache) instanceof JavaElementSerializer) {
+                    cachePeer.put(element);
+                } else {
+                    cachePeer.send(Collections.singletonList(new EventMessage(EventMessage.PUT,
+                            (Serializable) element.getObjectKey(), element, Cache.getElementSerializer(cache))));
+                }
             } catch (Throwable t) {
                 LOG.log(Level.SEVERE, "Exception on replication of putNotification. "
                         + t.getMessage() + ". Continuing...", t);
@@ -336,10 +344,24 @@ public class RMISynchronousCacheReplicator implements CacheReplicator {
      * @return a list of {@link CachePeer} peers for the given cache, excluding the local peer.
      */
     static List listRemoteCachePeers(Ehcache cache) {
-        CacheManagerPeerProvider provider = cache.getCacheManager().getCacheManagerPeerProvider("RMI");
+        CacheManagerPeerProvider provider = getCacheManagerPeerProvider(cache);
         return provider.listRemoteCachePeers(cache);
     }
 
+    /**
+     * The provider replicators use: the RMI provider, or if the CacheManager has none, the NIO provider.
+     *
+     * @param cache the replicated cache
+     * @return the provider, or null if the CacheManager has neither
+     */
+    static CacheManagerPeerProvider getCacheManagerPeerProvider(Ehcache cache) {
+        CacheManagerPeerProvider provider = cache.getCacheManager().getCacheManagerPeerProvider("RMI");
+        if (provider == null) {
+            provider = cache.getCacheManager().getCacheManagerPeerProvider(NIOCacheManagerPeerProvider.SCHEME);
+        }
+        return provider;
+    }
+
 
     /**
      * @return whether update is through copy or invalidate
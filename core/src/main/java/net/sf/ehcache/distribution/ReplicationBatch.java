@@ -0,0 +1,321 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.serialization.ElementSerializer;
+import net.sf.ehcache.util.BufferPool;
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The payload of a replication flush: a list of {@link EventMessage}s serialized once, and sent as is to every peer.
+ * <p/>
+ * A payload is one or more segments. Each segment has a header of a version, flags, the number of messages, the
+ * length of the messages uncompressed, and the length of the body which follows. Segments whose messages are longer than
+ * the compression threshold are deflated. Because segments are self delimiting, the payloads queued for a peer are
+ * sent together by simply concatenating them.
+ * <p/>
+ * Each message is an event byte followed by the element for a put, written by the {@link ElementSerializer} of the
+ * cache, or by the key for a remove. Keys and elements are written as by the NIO transport, see {@link NIOProtocol}.
+ * A payload can be decoded back into messages for a peer which does not accept batches.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class ReplicationBatch {
+
+    /**
+     * The size of a segment header
+     */
+    static final int HEADER_SIZE = 14;
+
+    private static final byte VERSION = 1;
+    private static final byte COMPRESSED = 1;
+
+    /**
+     * Utility class
+     */
+    private ReplicationBatch() {
+        //noop
+    }
+
+    /**
+     * Serializes messages into a payload of one segment.
+     *
+     * @param eventMessages        the messages, in order. Puts whose element has been collected are left out.
+     * @param serializer           the serializer of the cache
+     * @param compressionThreshold messages longer than this many bytes are deflated. 0 for no compression.
+     * @return the payload
+     */
+    static byte[] encode(List eventMessages, ElementSerializer serializer, int compressionThreshold) throws IOException {
+        MemoryEfficientByteArrayOutputStream body = MemoryEfficientByteArrayOutputStream.pooled(
+                BufferPool.MINIMUM_BUFFER_SIZE);
+        try {
+            DataOutputStream out = new DataOutputStream(body);
+            int count = 0;
+            for (int i = 0; i < eventMessages.size(); i++) {
+                EventMessage eventMessage = (EventMessage) eventMessages.get(i);
+                int event = eventMessage.getEvent();
+                if (event == EventMessage.PUT) {
+                    Element element = eventMessage.getElement();
+                    if (element == null) {
+                        continue;
+                    }
+                    out.writeByte(event);
+                    NIOProtocol.writeElement(out, element, serializer);
+                } else if (event == EventMessage.REMOVE) {
+                    out.writeByte(event);
+                    NIOProtocol.writeKey(out, eventMessage.getSerializableKey());
+                } else {
+                    out.writeByte(event);
+                }
+                count++;
+            }
+            out.flush();
+
+            byte[] bytes = body.getBytes();
+            int length = body.size();
+            byte flags = 0;
+            if (compressionThreshold > 0 && length > compressionThreshold) {
+                byte[] deflated = deflate(bytes, length);
+                if (deflated != null) {
+                    bytes = deflated;
+                    flags = COMPRESSED;
+                }
+            }
+            int bodyLength = flags == COMPRESSED ? bytes.length : length;
+            byte[] segment = new byte[HEADER_SIZE + bodyLength];
+            segment[0] = VERSION;
+            segment[1] = flags;
+            writeInt(segment, 2, count);
+            writeInt(segment, 6, length);
+            writeInt(segment, 10, bodyLength);
+            System.arraycopy(bytes, 0, segment, HEADER_SIZE, bodyLength);
+            return segment;
+        } finally {
+            body.release();
+        }
+    }
+
+    /**
+     * @return the deflated bytes, or null if deflating does not make them smaller
+     */
+    private static byte[] deflate(byte[] bytes, int length) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(bytes, 0, length);
+            deflater.finish();
+            byte[] deflated = new byte[length];
+            int deflatedLength = 0;
+            while (!deflater.finished() && deflatedLength < deflated.length) {
+                deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            byte[] result = new byte[deflatedLength];
+            System.arraycopy(deflated, 0, result, 0, deflatedLength);
+            return result;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Counts the messages in a payload.
+     */
+    static int countMessages(byte[] payload) throws StreamCorruptedException {
+        int count = 0;
+        for (int position = 0; position < payload.length;) {
+            checkHeader(payload, position);
+            count += readInt(payload, position + 2);
+            position += HEADER_SIZE + readInt(payload, position + 10);
+        }
+        return count;
+    }
+
+    /**
+     * Applies the messages of a payload in order, through the put, remove and removeAll methods of a local peer.
+     *
+     * @param payload    one or more segments
+     * @param target     the peer of the local cache
+     * @param serializer the serializer of the local cache, which must be that of the sender
+     * @return the number of messages applied
+     */
+    static int apply(byte[] payload, CachePeer target, ElementSerializer serializer)
+            throws IOException, ClassNotFoundException {
+        int applied = 0;
+        for (int position = 0; position < payload.length;) {
+            checkHeader(payload, position);
+            int count = readInt(payload, position + 2);
+            DataInputStream in = readSegment(payload, position);
+            for (int i = 0; i < count; i++) {
+                byte event = in.readByte();
+                if (event == EventMessage.PUT) {
+                    target.put(NIOProtocol.readElement(in, serializer));
+                } else if (event == EventMessage.REMOVE) {
+                    target.remove(NIOProtocol.readKey(in));
+                } else if (event == EventMessage.REMOVE_ALL) {
+                    target.removeAll();
+                } else {
+                    throw new StreamCorruptedException("Unknown event " + event);
+                }
+                applied++;
+            }
+            position += HEADER_SIZE + readInt(payload, position + 10);
+        }
+        return applied;
+    }
+
+    /**
+     * Reads the messages of a payload, so that they can be sent to a peer which does not accept batches.
+     *
+     * @param payload    one or more segments
+     * @param serializer the serializer the payload was written with
+     * @return the {@link EventMessage}s, in order, with their elements for Java serialization
+     */
+    static List decode(byte[] payload, ElementSerializer serializer) throws IOException, ClassNotFoundException {
+        List eventMessages = new ArrayList();
+        for (int position = 0; position < payload.length;) {
+            checkHeader(payload, position);
+            int count = readInt(payload, position + 2);
+            DataInputStream in = readSegment(payload, position);
+            for (int i = 0; i < count; i++) {
+                byte event = in.readByte();
+                if (event == EventMessage.PUT) {
+                    Element element = NIOProtocol.readElement(in, serializer);
+                    eventMessages.add(new EventMessage(event, element.getKey(), element));
+                } else if (event == EventMessage.REMOVE) {
+                    eventMessages.add(new EventMessage(event, NIOProtocol.readKey(in), null));
+                } else if (event == EventMessage.REMOVE_ALL) {
+                    eventMessages.add(new EventMessage(event, null, null));
+                } else {
+                    throw new StreamCorruptedException("Unknown event " + event);
+                }
+            }
+            position += HEADER_SIZE + readInt(payload, position + 10);
+        }
+        return eventMessages;
+    }
+
+    /**
+     * @return a stream of the messages of the segment at a position, inflated if need be
+     */
+    private static DataInputStream readSegment(byte[] payload, int position) throws IOException {
+        int length = readInt(payload, position + 6);
+        if (payload[position + 1] == COMPRESSED) {
+            byte[] inflated = inflate(payload, position + HEADER_SIZE, readInt(payload, position + 10), length);
+            return new DataInputStream(new ByteArrayInputStream(inflated, 0, length));
+        }
+        return new DataInputStream(new ByteArrayInputStream(payload, position + HEADER_SIZE, length));
+    }
+
+    /**
+     * Concatenates payloads, to be sent and applied as one.
+     *
+     * @param payloads a list of byte[] payloads
+     */
+    static byte[] concatenate(List payloads) {
+        if (payloads.size() == 1) {
+            return (byte[]) payloads.get(0);
+        }
+        int length = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            length += ((byte[]) payloads.get(i)).length;
+        }
+        byte[] payload = new byte[length];
+        int position = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            byte[] segment = (byte[]) payloads.get(i);
+            System.arraycopy(segment, 0, payload, position, segment.length);
+            position += segment.length;
+        }
+        return payload;
+    }
+
+    /**
+     * Applies a payload for a peer, as its sendBatch implementation.
+     */
+    static void applyRemotely(byte[] payload, CachePeer target, ElementSerializer serializer, String cacheName)
+            throws RemoteException {
+        try {
+            apply(payload, target, serializer);
+        } catch (RemoteException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RemoteException("Could not apply replicated batch for cache " + cacheName
+                    + ". Check that all peers use the same elementSerializerFactory.", e);
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes, int offset, int length, int inflatedLength) throws IOException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes, offset, length);
+            byte[] inflated = new byte[inflatedLength];
+            int position = 0;
+            while (position < inflatedLength) {
+                int read = inflater.inflate(inflated, position, inflatedLength - position);
+                if (read == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new StreamCorruptedException("Compressed replication batch is truncated");
+                }
+                position += read;
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new StreamCorruptedException("Corrupt compressed replication batch: " + e.getMessage());
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void checkHeader(byte[] payload, int position) throws StreamCorruptedException {
+        if (payload.length - position < HEADER_SIZE || payload[position] != VERSION) {
+            throw new StreamCorruptedException("Corrupt replication batch at " + position);
+        }
+        int count = readInt(payload, position + 2);
+        int length = readInt(payload, position + 6);
+        int bodyLength = readInt(payload, position + 10);
+        if (count < 0 || length < 0 || bodyLength < 0 || payload.length - position - HEADER_SIZE < bodyLength) {
+            throw new StreamCorruptedException("Corrupt replication batch at " + position);
+        }
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16)
+                | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+    }
+}
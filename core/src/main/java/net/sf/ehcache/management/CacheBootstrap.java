@@ -0,0 +1,136 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.management;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.distribution.BootstrapProgress;
+import net.sf.ehcache.distribution.RMIBootstrapCacheLoader;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * A JMX view of the bootstrap progress of a cache which uses an {@link RMIBootstrapCacheLoader}.
+ * <p/>
+ * The values are read live from the loader, so this is not a value object and is not serializable.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ * @since 1.7
+ */
+public class CacheBootstrap implements CacheBootstrapMBean {
+
+    private final String cacheName;
+    private final BootstrapProgress progress;
+    private final ObjectName objectName;
+
+    /**
+     * Constructs an MBean for the bootstrap of a cache
+     *
+     * @param ehcache the cache, which must have an {@link RMIBootstrapCacheLoader}
+     */
+    public CacheBootstrap(Ehcache ehcache) {
+        cacheName = ehcache.getName();
+        progress = ((RMIBootstrapCacheLoader) ehcache.getBootstrapCacheLoader()).getProgress();
+        objectName = createObjectName(ehcache.getCacheManager().toString(), cacheName);
+    }
+
+    /**
+     * @return true if the progress of bootstrapping the cache can be reported
+     */
+    static boolean isSupported(Ehcache ehcache) {
+        return ehcache.getBootstrapCacheLoader() instanceof RMIBootstrapCacheLoader;
+    }
+
+    /**
+     * Creates an object name using the scheme "net.sf.ehcache:type=CacheBootstrap,CacheManager=<cacheManagerName>,name=<cacheName>"
+     */
+    static ObjectName createObjectName(String cacheManagerName, String cacheName) {
+        ObjectName objectName;
+        try {
+            objectName = new ObjectName("net.sf.ehcache:type=CacheBootstrap,CacheManager="
+                    + cacheManagerName + ",name=" + cacheName);
+        } catch (MalformedObjectNameException e) {
+            throw new CacheException(e);
+        }
+        return objectName;
+    }
+
+    /**
+     * @return true while a bootstrap is running
+     */
+    public boolean isInProgress() {
+        return progress.isInProgress();
+    }
+
+    /**
+     * @return the number of peers the current or last bootstrap loaded from
+     */
+    public int getPeers() {
+        return progress.getPeers();
+    }
+
+    /**
+     * @return the number of keys the current or last bootstrap set out to load
+     */
+    public long getKeysToLoad() {
+        return progress.getKeysToLoad();
+    }
+
+    /**
+     * @return the number of keys requested from peers so far
+     */
+    public long getKeysRequested() {
+        return progress.getKeysRequested();
+    }
+
+    /**
+     * @return the number of elements put into the cache so far
+     */
+    public long getElementsLoaded() {
+        return progress.getElementsLoaded();
+    }
+
+    /**
+     * @return the number of chunks which could not be fetched from any peer
+     */
+    public long getChunksFailed() {
+        return progress.getChunksFailed();
+    }
+
+    /**
+     * @return how long the current or last bootstrap has taken in ms
+     */
+    public long getElapsedMillis() {
+        return progress.getElapsedMillis();
+    }
+
+    /**
+     * @return the name of the cache being bootstrapped
+     */
+    public String getAssociatedCacheName() {
+        return cacheName;
+    }
+
+    /**
+     * @return the object name for this MBean
+     */
+    ObjectName getObjectName() {
+        return objectName;
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.management;
+
+/**
+ * The progress of bootstrapping a cache from its peers.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ * @since 1.7
+ */
+public interface CacheBootstrapMBean {
+
+    /**
+     * @return true while a bootstrap is running
+     */
+    public boolean isInProgress();
+
+    /**
+     * @return the number of peers the current or last bootstrap loaded from
+     */
+    public int getPeers();
+
+    /**
+     * @return the number of keys the current or last bootstrap set out to load
+     */
+    public long getKeysToLoad();
+
+    /**
+     * @return the number of keys requested from peers so far
+     */
+    public long getKeysRequested();
+
+    /**
+     * @return the number of elements put into the cache so far
+     */
+    public long getElementsLoaded();
+
+    /**
+     * @return the number of chunks which could not be fetched from any peer
+     */
+    public long getChunksFailed();
+
+    /**
+     * @return how long the current or last bootstrap has taken in ms
+     */
+    public long getElapsedMillis();
+
+    /**
+     * @return the name of the cache being bootstrapped
+     */
+    public String getAssociatedCacheName();
+}
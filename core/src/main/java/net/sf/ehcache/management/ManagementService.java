@@ -17,6 +17,7 @@
 package net.sf.ehcache.management;
 
 import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Status;
 import net.sf.ehcache.event.CacheManagerEventListener;
 
@@ -91,7 +92,8 @@ public class ManagementService implements CacheManagerEventListener {
      * @param registerCacheManager        Whether to register the CacheManager MBean
      * @param registerCaches              Whether to register the Cache MBeans
      * @param registerCacheConfigurations Whether to register the CacheConfiguration MBeans
-     * @param registerCacheStatistics     Whether to register the CacheStatistics MBeans
+     * @param registerCacheStatistics     Whether to register the CacheStatistics MBeans, and the CacheBootstrap MBeans
+     *                                    of caches bootstrapped from their peers
      * @throws net.sf.ehcache.CacheException if something goes wrong with init()
      */
     public ManagementService(net.sf.ehcache.CacheManager cacheManager,
@@ -120,7 +122,8 @@ public class ManagementService implements CacheManagerEventListener {
      * @param registerCacheManager        Whether to register the CacheManager MBean
      * @param registerCaches              Whether to register the Cache MBeans
      * @param registerCacheConfigurations Whether to register the CacheConfiguration MBeans
-     * @param registerCacheStatistics     Whether to register the CacheStatistics MBeans
+     * @param registerCacheStatistics     Whether to register the CacheStatistics MBeans, and the CacheBootstrap MBeans
+     *                                    of caches bootstrapped from their peers
      * @see ManagementService#ManagementService(net.sf.ehcache.CacheManager, javax.management.MBeanServer, boolean, boolean, boolean, boolean)
      */
     public static void registerMBeans(
@@ -160,6 +163,7 @@ public class ManagementService implements CacheManagerEventListener {
                 registerCachesIfRequired(cache);
                 registerCacheStatisticsIfRequired(cache);
                 registerCacheConfigurationIfRequired(cache);
+                registerCacheBootstrapIfRequired(backingCacheManager.getEhcache(cache.getName()));
             }
         } catch (Exception e) {
             throw new CacheException(e);
@@ -191,6 +195,14 @@ public class ManagementService implements CacheManagerEventListener {
         }
     }
 
+    private void registerCacheBootstrapIfRequired(Ehcache ehcache) throws InstanceAlreadyExistsException,
+            MBeanRegistrationException, NotCompliantMBeanException {
+        if (registerCacheStatistics && ehcache != null && CacheBootstrap.isSupported(ehcache)) {
+            CacheBootstrap cacheBootstrap = new CacheBootstrap(ehcache);
+            mBeanServer.registerMBean(cacheBootstrap, cacheBootstrap.getObjectName());
+        }
+    }
+
     private void registerCachesIfRequired(Cache cache) throws InstanceAlreadyExistsException,
             MBeanRegistrationException, NotCompliantMBeanException {
         if (registerCaches) {
@@ -267,6 +279,7 @@ public class ManagementService implements CacheManagerEventListener {
                 registerCachesIfRequired(cache);
                 registerCacheStatisticsIfRequired(cache);
                 registerCacheConfigurationIfRequired(cache);
+                registerCacheBootstrapIfRequired(backingCacheManager.getCache(cacheName));
             } catch (Exception e) {
                 LOG.log(Level.SEVERE, "Error registering cache for management for " + cache.getObjectName()
                         + " . Error was " + e.getMessage(), e);
@@ -301,6 +314,10 @@ public class ManagementService implements CacheManagerEventListener {
             if (registerCacheStatistics) {
                 objectName = CacheStatistics.createObjectName(backingCacheManager.toString(), cacheName);
                 mBeanServer.unregisterMBean(objectName);
+                objectName = CacheBootstrap.createObjectName(backingCacheManager.toString(), cacheName);
+                if (mBeanServer.isRegistered(objectName)) {
+                    mBeanServer.unregisterMBean(objectName);
+                }
             }
         } catch (Exception e) {
             LOG.log(Level.SEVERE, "Error unregistering cache for management for " + objectName
@@ -0,0 +1,334 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.serialization;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.util.BufferPool;
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+import net.sf.ehcache.util.PooledByteArrayInputStream;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * A compact binary {@link ElementSerializer}.
+ * <p/>
+ * The fields of the Element are written directly. Keys and values which are null, Strings, boxed primitives,
+ * byte[]s or ArrayLists, LinkedLists, HashMaps, LinkedHashMaps, HashSets and LinkedHashSets of these are written
+ * as a one byte type tag followed by their data, with no class descriptors. Subclasses of these collection classes,
+ * and any other Serializable types, are written with Java serialization.
+ * <p/>
+ * This serializer is stateless and threadsafe.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class CompactElementSerializer implements ElementSerializer {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG_STRING = 2;
+    private static final byte INTEGER = 3;
+    private static final byte LONG = 4;
+    private static final byte SHORT = 5;
+    private static final byte BYTE = 6;
+    private static final byte BOOLEAN = 7;
+    private static final byte CHARACTER = 8;
+    private static final byte FLOAT = 9;
+    private static final byte DOUBLE = 10;
+    private static final byte BYTE_ARRAY = 11;
+    private static final byte ARRAY_LIST = 12;
+    private static final byte LINKED_LIST = 13;
+    private static final byte HASH_MAP = 14;
+    private static final byte LINKED_HASH_MAP = 15;
+    private static final byte HASH_SET = 16;
+    private static final byte LINKED_HASH_SET = 17;
+    private static final byte JAVA_SERIALIZED = 127;
+
+    /**
+     * Strings up to this length always fit the 65535 byte limit of modified UTF-8
+     */
+    private static final int MAXIMUM_UTF_LENGTH = 65535 / 3;
+
+    private static final int LIFESPAN_SET = 1;
+    private static final int ETERNAL = 2;
+
+    /**
+     * {@inheritDoc}
+     */
+    public void serialize(Element element, OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeByte(FORMAT_VERSION);
+        writeValue(data, element.getObjectKey());
+        writeValue(data, element.getObjectValue());
+        data.writeLong(element.getVersion());
+        data.writeLong(element.getCreationTime());
+        data.writeLong(element.getLastAccessTime());
+        data.writeLong(element.getNextToLastAccessTime());
+        data.writeLong(element.getLastUpdateTime());
+        data.writeLong(element.getHitCount());
+        int flags = 0;
+        if (element.isLifespanSet()) {
+            flags |= LIFESPAN_SET;
+        }
+        if (element.isEternal()) {
+            flags |= ETERNAL;
+        }
+        data.writeByte(flags);
+        if (element.isLifespanSet()) {
+            data.writeInt(element.getTimeToLive());
+            data.writeInt(element.getTimeToIdle());
+        }
+        data.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Element deserialize(InputStream in) throws IOException, ClassNotFoundException {
+        DataInputStream data = new DataInputStream(in);
+        byte formatVersion = data.readByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new StreamCorruptedException("Unknown compact element format " + formatVersion);
+        }
+        Object key = readValue(data);
+        Object value = readValue(data);
+        long version = data.readLong();
+        long creationTime = data.readLong();
+        long lastAccessTime = data.readLong();
+        long nextToLastAccessTime = data.readLong();
+        long lastUpdateTime = data.readLong();
+        long hitCount = data.readLong();
+        Element element = new Element(key, value, version, creationTime, lastAccessTime, nextToLastAccessTime,
+                lastUpdateTime, hitCount);
+        int flags = data.readByte();
+        if ((flags & LIFESPAN_SET) != 0) {
+            element.setTimeToLive(data.readInt());
+            element.setTimeToIdle(data.readInt());
+            element.setEternal((flags & ETERNAL) != 0);
+        }
+        return element;
+    }
+
+    private static void writeValue(DataOutputStream data, Object value) throws IOException {
+        if (value == null) {
+            data.writeByte(NULL);
+            return;
+        }
+        Class type = value.getClass();
+        if (type == String.class) {
+            writeString(data, (String) value);
+        } else if (type == Integer.class) {
+            data.writeByte(INTEGER);
+            data.writeInt(((Integer) value).intValue());
+        } else if (type == Long.class) {
+            data.writeByte(LONG);
+            data.writeLong(((Long) value).longValue());
+        } else if (type == Short.class) {
+            data.writeByte(SHORT);
+            data.writeShort(((Short) value).shortValue());
+        } else if (type == Byte.class) {
+            data.writeByte(BYTE);
+            data.writeByte(((Byte) value).byteValue());
+        } else if (type == Boolean.class) {
+            data.writeByte(BOOLEAN);
+            data.writeBoolean(((Boolean) value).booleanValue());
+        } else if (type == Character.class) {
+            data.writeByte(CHARACTER);
+            data.writeChar(((Character) value).charValue());
+        } else if (type == Float.class) {
+            data.writeByte(FLOAT);
+            data.writeFloat(((Float) value).floatValue());
+        } else if (type == Double.class) {
+            data.writeByte(DOUBLE);
+            data.writeDouble(((Double) value).doubleValue());
+        } else if (type == byte[].class) {
+            byte[] bytes = (byte[]) value;
+            data.writeByte(BYTE_ARRAY);
+            data.writeInt(bytes.length);
+            data.write(bytes);
+        } else if (type == ArrayList.class) {
+            writeCollection(data, ARRAY_LIST, (Collection) value);
+        } else if (type == LinkedList.class) {
+            writeCollection(data, LINKED_LIST, (Collection) value);
+        } else if (type == HashSet.class) {
+            writeCollection(data, HASH_SET, (Collection) value);
+        } else if (type == LinkedHashSet.class) {
+            writeCollection(data, LINKED_HASH_SET, (Collection) value);
+        } else if (type == HashMap.class) {
+            writeMap(data, HASH_MAP, (Map) value);
+        } else if (type == LinkedHashMap.class) {
+            writeMap(data, LINKED_HASH_MAP, (Map) value);
+        } else {
+            writeJavaSerialized(data, value);
+        }
+    }
+
+    private static void writeString(DataOutputStream data, String string) throws IOException {
+        if (string.length() <= MAXIMUM_UTF_LENGTH) {
+            data.writeByte(STRING);
+            data.writeUTF(string);
+        } else {
+            data.writeByte(LONG_STRING);
+            data.writeInt(string.length());
+            data.writeChars(string);
+        }
+    }
+
+    private static void writeCollection(DataOutputStream data, byte tag, Collection collection) throws IOException {
+        data.writeByte(tag);
+        data.writeInt(collection.size());
+        for (Iterator iterator = collection.iterator(); iterator.hasNext();) {
+            writeValue(data, iterator.next());
+        }
+    }
+
+    private static void writeMap(DataOutputStream data, byte tag, Map map) throws IOException {
+        data.writeByte(tag);
+        data.writeInt(map.size());
+        for (Iterator iterator = map.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            writeValue(data, entry.getKey());
+            writeValue(data, entry.getValue());
+        }
+    }
+
+    private static void writeJavaSerialized(DataOutputStream data, Object value) throws IOException {
+        if (!(value instanceof Serializable)) {
+            throw new NotSerializableException(value.getClass().getName());
+        }
+        MemoryEfficientByteArrayOutputStream bytes = MemoryEfficientByteArrayOutputStream.pooled(
+                BufferPool.MINIMUM_BUFFER_SIZE);
+        try {
+            ObjectOutputStream objectOutputStream = new ObjectOutputStream(bytes);
+            objectOutputStream.writeObject(value);
+            objectOutputStream.flush();
+            data.writeByte(JAVA_SERIALIZED);
+            data.writeInt(bytes.size());
+            data.write(bytes.getBytes(), 0, bytes.size());
+        } finally {
+            bytes.release();
+        }
+    }
+
+    private static Object readValue(DataInputStream data) throws IOException, ClassNotFoundException {
+        byte tag = data.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return data.readUTF();
+            case LONG_STRING:
+                char[] chars = new char[data.readInt()];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = data.readChar();
+                }
+                return new String(chars);
+            case INTEGER:
+                return new Integer(data.readInt());
+            case LONG:
+                return new Long(data.readLong());
+            case SHORT:
+                return new Short(data.readShort());
+            case BYTE:
+                return new Byte(data.readByte());
+            case BOOLEAN:
+                return Boolean.valueOf(data.readBoolean());
+            case CHARACTER:
+                return new Character(data.readChar());
+            case FLOAT:
+                return new Float(data.readFloat());
+            case DOUBLE:
+                return new Double(data.readDouble());
+            case BYTE_ARRAY:
+                byte[] bytes = new byte[data.readInt()];
+                data.readFully(bytes);
+                return bytes;
+            case ARRAY_LIST:
+                int size = data.readInt();
+                return readCollection(data, new ArrayList(size), size);
+            case LINKED_LIST:
+                return readCollection(data, new LinkedList(), data.readInt());
+            case HASH_SET:
+                size = data.readInt();
+                return readCollection(data, new HashSet(capacityFor(size)), size);
+            case LINKED_HASH_SET:
+                size = data.readInt();
+                return readCollection(data, new LinkedHashSet(capacityFor(size)), size);
+            case HASH_MAP:
+                size = data.readInt();
+                return readMap(data, new HashMap(capacityFor(size)), size);
+            case LINKED_HASH_MAP:
+                size = data.readInt();
+                return readMap(data, new LinkedHashMap(capacityFor(size)), size);
+            case JAVA_SERIALIZED:
+                return readJavaSerialized(data);
+            default:
+                throw new StreamCorruptedException("Unknown compact type tag " + tag);
+        }
+    }
+
+    private static int capacityFor(int size) {
+        return Math.max(size * 4 / 3 + 1, 16);
+    }
+
+    private static Collection readCollection(DataInputStream data, Collection collection, int size)
+            throws IOException, ClassNotFoundException {
+        for (int i = 0; i < size; i++) {
+            collection.add(readValue(data));
+        }
+        return collection;
+    }
+
+    private static Map readMap(DataInputStream data, Map map, int size) throws IOException, ClassNotFoundException {
+        for (int i = 0; i < size; i++) {
+            Object key = readValue(data);
+            map.put(key, readValue(data));
+        }
+        return map;
+    }
+
+    private static Object readJavaSerialized(DataInputStream data) throws IOException, ClassNotFoundException {
+        int length = data.readInt();
+        byte[] bytes = BufferPool.acquire(length);
+        data.readFully(bytes, 0, length);
+        PooledByteArrayInputStream in = new PooledByteArrayInputStream(bytes, 0, length);
+        try {
+            return new JavaElementSerializer.ContextClassLoaderObjectInputStream(in).readObject();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.serialization;
+
+import net.sf.ehcache.Element;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Converts Elements to and from bytes.
+ * <p/>
+ * A cache uses its serializer to write Elements to the DiskStore, to copy them, to measure their serialized size and
+ * to replicate them. Data written by one serializer can only be read by the same serializer, so all the peers of a
+ * replicated cache, and every run of a persistent DiskStore, must be configured with the same serializer.
+ * <p/>
+ * Implementations must be threadsafe.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public interface ElementSerializer {
+
+    /**
+     * Writes an Element, including its key, value, version, statistics and lifespan.
+     *
+     * @param element the element to write
+     * @param out     the stream to write to. It is flushed but not closed.
+     * @throws IOException if the element cannot be serialized, for example because its key or value is not
+     *                     Serializable
+     */
+    void serialize(Element element, OutputStream out) throws IOException;
+
+    /**
+     * Reads an Element written by {@link #serialize}.
+     *
+     * @param in the stream to read from. It is not closed.
+     * @return the element
+     * @throws IOException            if the stream is corrupt
+     * @throws ClassNotFoundException if a class of the key or value cannot be found
+     */
+    Element deserialize(InputStream in) throws IOException, ClassNotFoundException;
+}
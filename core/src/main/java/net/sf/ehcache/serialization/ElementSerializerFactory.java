@@ -0,0 +1,39 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.serialization;
+
+import java.util.Properties;
+
+/**
+ * An abstract factory for creating <code>ElementSerializer</code>s at configuration time, in ehcache.xml.
+ * <p/>
+ * Extend to create a concrete factory
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public abstract class ElementSerializerFactory {
+
+    /**
+     * Create an <code>ElementSerializer</code>
+     *
+     * @param properties implementation specific properties. These are configured as comma
+     *                   separated name value pairs in ehcache.xml
+     * @return a constructed ElementSerializer
+     */
+    public abstract ElementSerializer createElementSerializer(Properties properties);
+}
@@ -0,0 +1,87 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.serialization;
+
+import net.sf.ehcache.Element;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+
+/**
+ * The default {@link ElementSerializer}, which uses Java serialization.
+ * <p/>
+ * Classes are resolved with the thread context ClassLoader first, so that Elements holding classes of a web
+ * application can be read.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class JavaElementSerializer implements ElementSerializer {
+
+    /**
+     * A shared instance, used by caches which do not configure a serializer
+     */
+    public static final JavaElementSerializer INSTANCE = new JavaElementSerializer();
+
+    /**
+     * {@inheritDoc}
+     */
+    public void serialize(Element element, OutputStream out) throws IOException {
+        ObjectOutputStream objectOutputStream = new ObjectOutputStream(out);
+        objectOutputStream.writeObject(element);
+        objectOutputStream.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Element deserialize(InputStream in) throws IOException, ClassNotFoundException {
+        return (Element) new ContextClassLoaderObjectInputStream(in).readObject();
+    }
+
+    /**
+     * An ObjectInputStream which resolves classes with the thread context ClassLoader.
+     */
+    static final class ContextClassLoaderObjectInputStream extends ObjectInputStream {
+
+        /**
+         * Constructor
+         */
+        ContextClassLoaderObjectInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        /**
+         * Overridden because of:
+         * Bug 1324221 ehcache DiskStore has issues when used in Tomcat
+         */
+        protected Class resolveClass(ObjectStreamClass clazz) throws ClassNotFoundException, IOException {
+            try {
+                ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+                return Class.forName(clazz.getName(), false, classLoader);
+            } catch (ClassNotFoundException e) {
+                // Use the default as a fallback because of
+                // bug 1517565 - DiskStore loadElementFromDiskElement
+                return super.resolveClass(clazz);
+            }
+        }
+    }
+}
@@ -43,7 +43,7 @@ public abstract class AbstractPolicy implements Policy {
      * @param populationSize the size of the store
      * @return the smaller of the map size and the default sample size of 30
      */
-    private static int calculateSampleSize(int populationSize) {
+    static int calculateSampleSize(int populationSize) {
         if (populationSize < DEFAULT_SAMPLE_SIZE) {
             return populationSize;
         } else {
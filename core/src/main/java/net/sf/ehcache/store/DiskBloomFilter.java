@@ -0,0 +1,127 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A Bloom filter over the 64 bit key hashes of a {@link DiskStore}, used to answer gets for keys which are
+ * definitely not in the store without locking the store.
+ * <p/>
+ * The filter uses 10 bits and 7 probes per key, for a false positive rate of about 1% at capacity. Bits are
+ * set with compare and swap, so keys may be added and looked up concurrently without locking. Keys cannot be
+ * removed, so the store rebuilds the filter from its index once enough keys have come and gone.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class DiskBloomFilter {
+
+    /**
+     * The smallest number of keys a filter is sized for
+     */
+    static final int MINIMUM_CAPACITY = 1024;
+
+    /**
+     * The largest number of keys a filter is sized for, which keeps the number of bits within an int
+     */
+    static final int MAXIMUM_CAPACITY = 200000000;
+
+    private static final int BITS_PER_KEY = 10;
+    private static final int PROBES = 7;
+    private static final int BITS_PER_WORD_SHIFT = 6;
+    private static final int WORD_MASK = 63;
+
+    private final AtomicLongArray words;
+    private final int bitCount;
+    private final int capacity;
+    private final AtomicInteger insertions = new AtomicInteger();
+
+    /**
+     * Creates an empty filter.
+     *
+     * @param capacity the number of keys the filter is sized for
+     */
+    DiskBloomFilter(int capacity) {
+        this.capacity = Math.min(Math.max(capacity, MINIMUM_CAPACITY), MAXIMUM_CAPACITY);
+        bitCount = this.capacity * BITS_PER_KEY;
+        words = new AtomicLongArray((bitCount >> BITS_PER_WORD_SHIFT) + 1);
+    }
+
+    /**
+     * Adds a key hash.
+     *
+     * @param hash the key hash, as calculated by {@link HashedDiskIndex#hash(Object)}
+     */
+    void add(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        boolean changed = false;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            int word = bit >> BITS_PER_WORD_SHIFT;
+            long mask = 1L << (bit & WORD_MASK);
+            while (true) {
+                long current = words.get(word);
+                if ((current & mask) != 0) {
+                    break;
+                }
+                if (words.compareAndSet(word, current, current | mask)) {
+                    changed = true;
+                    break;
+                }
+            }
+        }
+        if (changed) {
+            insertions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Checks whether a key hash may have been added.
+     *
+     * @param hash the key hash
+     * @return false if the hash was definitely never added
+     */
+    boolean mightContain(long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        for (int i = 0; i < PROBES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % bitCount;
+            if ((words.get(bit >> BITS_PER_WORD_SHIFT) & (1L << (bit & WORD_MASK))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the number of keys the filter is sized for
+     */
+    int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of adds which set at least one bit. Repeated adds of a key are not counted, so this
+     *         estimates the number of distinct keys added.
+     */
+    int getInsertions() {
+        return insertions.get();
+    }
+}
@@ -0,0 +1,126 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Element;
+
+import java.io.Serializable;
+
+/**
+ * A reference to an on-disk elements.
+ * <p/>
+ * Copies of expiryTime, hitcount and the access and update times are held here as a performance optimisation, so
+ * that we do not need to load the data from Disk to get this often used information, for expiry and eviction.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+class DiskElement implements Serializable {
+
+    //changed in 1.7 when records gained a header, and again when the header gained a checksum. Indexes of older
+    //data files fail to load and are discarded.
+    private static final long serialVersionUID = -4512678344120795123L;
+
+    /**
+     * the file pointer
+     */
+    long position;
+
+    /**
+     * The size used for data.
+     */
+    int payloadSize;
+
+    /**
+     * the size of this element.
+     */
+    int blockSize;
+
+    /**
+     * The key this element is mapped with in DiskElements. This is only a reference
+     * to the key. It is used in DiskElements and therefore the only memory cost is the
+     * reference.
+     * <p/>
+     * Null for the DiskElements handed out by a {@link HashedDiskIndex}, which does not keep keys.
+     */
+    Object key;
+
+    /**
+     * The expiry time in milliseconds
+     */
+    long expiryTime;
+
+    /**
+     * The numbe of times the element has been requested and found in the cache.
+     */
+    long hitcount;
+
+    /**
+     * The last access time of the element in milliseconds
+     */
+    long lastAccessTime;
+
+    /**
+     * The later of the creation and last update times of the element in milliseconds
+     */
+    long lastUpdateTime;
+
+    /**
+     * The slot of this DiskElement in the sample array of an {@link ObjectDiskIndex}, or -1
+     */
+    transient int sampleSlot = -1;
+
+
+    /**
+     * @return the key of this object
+     */
+    public Object getObjectKey() {
+        return key;
+    }
+
+    /**
+     * @return the hit count for the element
+     */
+    public long getHitCount() {
+        return hitcount;
+    }
+
+    /**
+     * @return a copy of this DiskElement, outside any index
+     */
+    DiskElement copy() {
+        DiskElement copy = new DiskElement();
+        copy.position = position;
+        copy.payloadSize = payloadSize;
+        copy.blockSize = blockSize;
+        copy.key = key;
+        copy.expiryTime = expiryTime;
+        copy.hitcount = hitcount;
+        copy.lastAccessTime = lastAccessTime;
+        copy.lastUpdateTime = lastUpdateTime;
+        return copy;
+    }
+
+    /**
+     * Creates an Element carrying the key and statistics held here, with no value, for eviction policies to compare.
+     *
+     * @return a new Element
+     */
+    Element toMetadataElement() {
+        return new Element(key, null, 0, lastUpdateTime, lastAccessTime, 0, lastUpdateTime, hitcount);
+    }
+}
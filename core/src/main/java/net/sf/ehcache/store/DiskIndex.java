@@ -0,0 +1,135 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import java.io.Serializable;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The in-memory index of the records in a {@link DiskStore} data file.
+ * <p/>
+ * An index may not keep the keys themselves. In that case lookups may return the {@link DiskElement} of a different
+ * key which shares the same hash, and the DiskStore verifies the key against the record read from disk.
+ * <p/>
+ * Implementations are threadsafe. The index is written to the index file of persistent stores.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+interface DiskIndex extends Serializable {
+
+    /**
+     * Gets the DiskElement for a key.
+     *
+     * @param key the key
+     * @return the DiskElement, which may belong to a different key if the index does not keep keys, or null
+     */
+    DiskElement get(Object key);
+
+    /**
+     * Checks whether the index may hold a key.
+     *
+     * @param key the key
+     * @return true if the key, or a key with the same hash where the index does not keep keys, is indexed
+     */
+    boolean containsKey(Object key);
+
+    /**
+     * Adds a DiskElement for a key.
+     * <p/>
+     * Indexes which only keep block sizes set the payloadSize of the DiskElement to its blockSize, so that callers
+     * account for the same size when the DiskElement is later removed.
+     *
+     * @param key         the key
+     * @param diskElement the written DiskElement
+     * @return the DiskElement which was replaced, which may belong to a different key, or null
+     */
+    DiskElement put(Object key, DiskElement diskElement);
+
+    /**
+     * Removes the DiskElement for a key.
+     *
+     * @param key the key
+     * @return the removed DiskElement, which may belong to a different key if the index does not keep keys, or null
+     */
+    DiskElement remove(Object key);
+
+    /**
+     * Removes a DiskElement previously returned by this index, if it is still indexed.
+     *
+     * @param diskElement the DiskElement
+     * @return true if it was removed
+     */
+    boolean remove(DiskElement diskElement);
+
+    /**
+     * Moves a DiskElement previously returned by this index to a new block, if it is still indexed. The position
+     * and blockSize of the DiskElement are updated.
+     *
+     * @param diskElement the DiskElement
+     * @param position    the position of the new block
+     * @param blockSize   the size of the new block
+     * @return true if it was moved
+     */
+    boolean relocate(DiskElement diskElement, long position, int blockSize);
+
+    /**
+     * @return the number of indexed DiskElements
+     */
+    int size();
+
+    /**
+     * Iterates over the indexed DiskElements. The iterator does not support removal.
+     *
+     * @return an Iterator of {@link DiskElement}s
+     */
+    Iterator iterator();
+
+    /**
+     * Gets the DiskElements which may have expired by the given time. Callers must check the expiry time of each.
+     *
+     * @param now the current time
+     * @return a List of {@link DiskElement}s
+     */
+    List expiryCandidates(long now);
+
+    /**
+     * Takes a random sample of the indexed DiskElements, for eviction.
+     *
+     * @return the sampled DiskElements
+     */
+    DiskElement[] sample();
+
+    /**
+     * @return the largest block size the index can hold
+     */
+    int getMaximumBlockSize();
+
+    /**
+     * Copies the index, for a snapshot. Later changes to either index do not affect the other.
+     * The copy is taken under the store lock, so it should defer copying the entries until it is used.
+     *
+     * @return a point in time copy of the index
+     */
+    DiskIndex copy();
+
+    /**
+     * Removes all DiskElements.
+     */
+    void clear();
+}
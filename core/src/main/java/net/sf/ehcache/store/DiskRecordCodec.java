@@ -0,0 +1,352 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.util.BufferPool;
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+import net.sf.ehcache.util.PooledByteArrayInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the records of the {@link DiskStore} data file.
+ * <p/>
+ * Each record starts with a header of {@link #HEADER_SIZE} bytes:
+ * <ol>
+ * <li>a magic int, {@link #LIVE_MAGIC} for a record, or {@link #FREE_MAGIC} once the record has been removed
+ * <li>the id of the codec used for the body of the record, {@link #RAW} or {@link #DEFLATE}
+ * <li>the 64 bit hash of the key, as calculated by {@link HashedDiskIndex#hash(Object)}
+ * <li>the length of the body as an int
+ * <li>the CRC32 of the body as an int
+ * </ol>
+ * For {@link #RAW} the body is the serialized element. For {@link #DEFLATE} it is the length of the serialized
+ * element as an int, then the deflated serialized element. Records smaller than the compression threshold, or
+ * which do not get smaller when deflated, are stored raw.
+ * <p/>
+ * The header lets the index be rebuilt by scanning the data file when it has been lost in a crash. Torn records
+ * fail their checksum and removed ones carry the free magic, so neither is recovered.
+ * <p/>
+ * Encoding is done by the spool thread only. Decoding may be done by several threads.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class DiskRecordCodec {
+
+    /**
+     * Codec id of an uncompressed record
+     */
+    static final byte RAW = 0;
+
+    /**
+     * Codec id of a record compressed with {@link Deflater}
+     */
+    static final byte DEFLATE = 1;
+
+    /**
+     * Magic number at the start of a record
+     */
+    static final int LIVE_MAGIC = 0x45484331;
+
+    /**
+     * Magic number written over that of a record when its block is freed
+     */
+    static final int FREE_MAGIC = 0x45484330;
+
+    /**
+     * The size of the magic number, which is all that is written to free a record
+     */
+    static final int MAGIC_SIZE = 4;
+
+    /**
+     * The offset of the codec id in the header
+     */
+    static final int CODEC_OFFSET = 4;
+
+    /**
+     * The size of the header, which is written before the body of the record
+     */
+    static final int HEADER_SIZE = 21;
+
+    private static final int KEY_HASH_OFFSET = 5;
+    private static final int BODY_LENGTH_OFFSET = 13;
+    private static final int CRC_OFFSET = 17;
+    private static final int INT_SIZE = 4;
+    private static final int BYTE_MASK = 0xFF;
+    private static final int BITS_PER_BYTE = 8;
+
+    private final int compressionThreshold;
+    private final Deflater deflater;
+    private final Inflater inflater;
+    private final CRC32 encodeChecksum = new CRC32();
+    private byte[] compressed;
+
+    /**
+     * Creates a codec.
+     *
+     * @param compressionThreshold records of at least this many bytes are deflated. 0 means no compression.
+     */
+    DiskRecordCodec(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+        if (compressionThreshold > 0) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        } else {
+            deflater = null;
+        }
+        //always able to read compressed records, in case compression was switched off for a persistent store
+        inflater = new Inflater();
+    }
+
+    /**
+     * Writes the placeholder for the header of a new record, which is filled in by {@link #encode}.
+     *
+     * @param buffer the staging buffer
+     */
+    void writeHeaderPlaceholder(MemoryEfficientByteArrayOutputStream buffer) {
+        for (int i = 0; i < HEADER_SIZE; i++) {
+            buffer.write(0);
+        }
+    }
+
+    /**
+     * Encodes the record starting at <code>recordStart</code>, which runs to the end of the buffer. The record must
+     * have been written as {@link #HEADER_SIZE} placeholder bytes followed by the serialized element.
+     * The record is compressed in place if that is worthwhile, and the header filled in.
+     *
+     * @param buffer      the staging buffer
+     * @param recordStart the offset of the record in the buffer
+     * @param keyHash     the hash of the key of the element
+     */
+    void encode(MemoryEfficientByteArrayOutputStream buffer, int recordStart, long keyHash) {
+        byte codec = compress(buffer, recordStart);
+        byte[] bytes = buffer.getBytes();
+        int bodyStart = recordStart + HEADER_SIZE;
+        int bodyLength = buffer.size() - bodyStart;
+        encodeChecksum.reset();
+        encodeChecksum.update(bytes, bodyStart, bodyLength);
+        writeInt(bytes, recordStart, LIVE_MAGIC);
+        bytes[recordStart + CODEC_OFFSET] = codec;
+        writeLong(bytes, recordStart + KEY_HASH_OFFSET, keyHash);
+        writeInt(bytes, recordStart + BODY_LENGTH_OFFSET, bodyLength);
+        writeInt(bytes, recordStart + CRC_OFFSET, (int) encodeChecksum.getValue());
+    }
+
+    private byte compress(MemoryEfficientByteArrayOutputStream buffer, int recordStart) {
+        int serializedStart = recordStart + HEADER_SIZE;
+        int serializedLength = buffer.size() - serializedStart;
+        if (deflater == null || serializedLength < compressionThreshold) {
+            return RAW;
+        }
+
+        if (compressed == null || compressed.length < serializedLength) {
+            compressed = new byte[serializedLength];
+        }
+        deflater.reset();
+        deflater.setInput(buffer.getBytes(), serializedStart, serializedLength);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished() && compressedLength < compressed.length) {
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        if (!deflater.finished() || compressedLength + INT_SIZE >= serializedLength) {
+            //incompressible
+            return RAW;
+        }
+
+        buffer.truncate(serializedStart);
+        buffer.write((serializedLength >>> 24) & BYTE_MASK);
+        buffer.write((serializedLength >>> 16) & BYTE_MASK);
+        buffer.write((serializedLength >>> 8) & BYTE_MASK);
+        buffer.write(serializedLength & BYTE_MASK);
+        buffer.write(compressed, 0, compressedLength);
+        return DEFLATE;
+    }
+
+    /**
+     * Decodes a record read from the data file.
+     * <p/>
+     * Records with the free magic are decoded too, as a snapshot may still refer to records freed after it was
+     * taken.
+     *
+     * @param record the record bytes
+     * @param length the length of the record
+     * @return a stream of the serialized element. Close it to release any buffer taken from the {@link BufferPool}.
+     * @throws IOException if the record is corrupt or uses an unknown codec
+     */
+    InputStream decode(byte[] record, int length) throws IOException {
+        return decode(record, 0, length);
+    }
+
+    /**
+     * Decodes a record held in a larger buffer.
+     * <p/>
+     * The length of the record is taken from its header. <code>length</code> may be longer, as when the whole of an
+     * index block is read for a record which does not fill it.
+     *
+     * @param bytes  a buffer holding the record
+     * @param offset the offset of the record in the buffer
+     * @param length the number of bytes read, at least the length of the record
+     * @return a stream of the serialized element. Close it to release any buffer taken from the {@link BufferPool}.
+     * @throws IOException if the record is corrupt or uses an unknown codec
+     */
+    InputStream decode(byte[] bytes, int offset, int length) throws IOException {
+        int magic = readInt(bytes, offset);
+        if (magic != LIVE_MAGIC && magic != FREE_MAGIC) {
+            throw new IOException("Disk record has no record header");
+        }
+        if (!isIntact(bytes, offset, length)) {
+            throw new IOException("Disk record failed its checksum");
+        }
+        length = HEADER_SIZE + bodyLength(bytes, offset);
+        byte codec = bytes[offset + CODEC_OFFSET];
+        if (codec == RAW) {
+            return new ByteArrayInputStream(bytes, offset + HEADER_SIZE, length - HEADER_SIZE);
+        } else if (codec == DEFLATE) {
+            return inflate(bytes, offset, length);
+        } else {
+            throw new IOException("Unknown disk record codec " + codec);
+        }
+    }
+
+    /**
+     * Checks that the body length in the header of a record fits in the bytes read, and that the checksum in the
+     * header matches the body. Bytes after the body are ignored.
+     *
+     * @param bytes  a buffer holding the record
+     * @param offset the offset of the record in the buffer
+     * @param length the number of bytes read, header included
+     * @return true if the record is complete and uncorrupted
+     */
+    static boolean isIntact(byte[] bytes, int offset, int length) {
+        if (length < HEADER_SIZE) {
+            return false;
+        }
+        int bodyLength = bodyLength(bytes, offset);
+        if (bodyLength < 0 || bodyLength > length - HEADER_SIZE) {
+            return false;
+        }
+        CRC32 checksum = new CRC32();
+        checksum.update(bytes, offset + HEADER_SIZE, bodyLength);
+        return (int) checksum.getValue() == readInt(bytes, offset + CRC_OFFSET);
+    }
+
+    /**
+     * @return the magic number of the header at <code>offset</code>
+     */
+    static int magic(byte[] header, int offset) {
+        return readInt(header, offset);
+    }
+
+    /**
+     * @return the key hash in the header at <code>offset</code>
+     */
+    static long keyHash(byte[] header, int offset) {
+        long hash = 0;
+        for (int i = 0; i < BITS_PER_BYTE; i++) {
+            hash = (hash << BITS_PER_BYTE) | (header[offset + KEY_HASH_OFFSET + i] & BYTE_MASK);
+        }
+        return hash;
+    }
+
+    /**
+     * @return the body length in the header at <code>offset</code>
+     */
+    static int bodyLength(byte[] header, int offset) {
+        return readInt(header, offset + BODY_LENGTH_OFFSET);
+    }
+
+    /**
+     * @return the bytes written over the start of a record to free it
+     */
+    static byte[] freeMagic() {
+        byte[] bytes = new byte[MAGIC_SIZE];
+        writeInt(bytes, 0, FREE_MAGIC);
+        return bytes;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return ((bytes[offset] & BYTE_MASK) << 24) | ((bytes[offset + 1] & BYTE_MASK) << 16)
+                | ((bytes[offset + 2] & BYTE_MASK) << 8) | (bytes[offset + 3] & BYTE_MASK);
+    }
+
+    private static void writeInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static void writeLong(byte[] bytes, int offset, long value) {
+        for (int i = 0; i < BITS_PER_BYTE; i++) {
+            bytes[offset + i] = (byte) (value >>> ((BITS_PER_BYTE - 1 - i) * BITS_PER_BYTE));
+        }
+    }
+
+    private InputStream inflate(byte[] bytes, int recordOffset, int length) throws IOException {
+        int serializedLength = readInt(bytes, recordOffset + HEADER_SIZE);
+        int compressedOffset = recordOffset + HEADER_SIZE + INT_SIZE;
+        byte[] serialized = BufferPool.acquire(serializedLength);
+        boolean inflated = false;
+        try {
+            inflate(bytes, compressedOffset, length - HEADER_SIZE - INT_SIZE, serialized, serializedLength);
+            inflated = true;
+        } finally {
+            if (!inflated) {
+                BufferPool.release(serialized);
+            }
+        }
+        return new PooledByteArrayInputStream(serialized, 0, serializedLength);
+    }
+
+    private void inflate(byte[] record, int offset, int length, byte[] serialized, int serializedLength)
+            throws IOException {
+        synchronized (inflater) {
+            inflater.reset();
+            inflater.setInput(record, offset, length);
+            try {
+                int inflated = 0;
+                while (inflated < serializedLength) {
+                    int count = inflater.inflate(serialized, inflated, serializedLength - inflated);
+                    if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("Truncated compressed disk record");
+                    }
+                    inflated += count;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed disk record: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Releases the native resources of the codec.
+     */
+    void dispose() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        synchronized (inflater) {
+            inflater.end();
+        }
+    }
+}
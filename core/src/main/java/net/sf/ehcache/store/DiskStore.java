@@ -17,27 +17,34 @@
 
 package net.sf.ehcache.store;
 
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.Status;
 import net.sf.ehcache.config.CacheConfiguration;
 import net.sf.ehcache.event.RegisteredEventListeners;
+import net.sf.ehcache.serialization.ElementSerializer;
+import net.sf.ehcache.util.BufferPool;
 import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.io.ObjectStreamClass;
 import java.io.RandomAccessFile;
 import java.io.Serializable;
 import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -76,10 +83,35 @@ public class DiskStore implements Store {
 
     private static final Logger LOG = Logger.getLogger(DiskStore.class.getName());
     private static final int MS_PER_SECOND = 1000;
+    /**
+     * The longest a spooled element waits for the spool to fill before it is written, and the interval at which
+     * the spool thread works while a compaction pass is in progress
+     */
     private static final int SPOOL_THREAD_INTERVAL = 200;
+
+    /**
+     * The spool is written as soon as it reaches this fraction of diskSpoolBufferSizeMB
+     */
+    private static final int SPOOL_FLUSH_FRACTION = 4;
     private static final int ESTIMATED_MINIMUM_PAYLOAD_SIZE = 512;
     private static final int ONE_MEGABYTE = 1048576;
     private static final int QUARTER_OF_A_SECOND = 250;
+    private static final int MAXIMUM_STAGING_BUFFER_SIZE = 4 * ONE_MEGABYTE;
+    private static final int RECOVERY_WINDOW_SIZE = ONE_MEGABYTE;
+    private static final byte[] FREE_MAGIC_BYTES = DiskRecordCodec.freeMagic();
+    private static final int MAXIMUM_BUFFERS_PER_WRITE = 256;
+    private static final int PERCENT = 100;
+
+    /**
+     * Orders DiskElements by position in the data file
+     */
+    private static final Comparator POSITION_ORDER = new Comparator() {
+        public int compare(Object first, Object second) {
+            long firstPosition = ((DiskElement) first).position;
+            long secondPosition = ((DiskElement) second).position;
+            return firstPosition < secondPosition ? -1 : (firstPosition == secondPosition ? 0 : 1);
+        }
+    };
 
     private long expiryThreadInterval;
 
@@ -87,13 +119,48 @@ public class DiskStore implements Store {
     private boolean active;
     private RandomAccessFile randomAccessFile;
 
-    private ConcurrentHashMap diskElements = new ConcurrentHashMap();
+    private DiskIndex diskElements;
     private List freeSpace = Collections.synchronizedList(new ArrayList());
+
+    /**
+     * Blocks freed while a snapshot is being copied. They are returned to the freeSpace list when the last snapshot
+     * is done, so that the records of the snapshot are not overwritten while it is copied. Also guards
+     * snapshotsInProgress.
+     */
+    private final List frozenFreeSpace = new ArrayList();
+
+    /**
+     * The positions of the records freed while a snapshot is being copied. They are marked free in the data file
+     * when the last snapshot is done, as the copy would otherwise have free magic in records its index holds.
+     * Guarded by frozenFreeSpace.
+     */
+    private final List frozenFreeMarks = new ArrayList();
+
+    /**
+     * The number of snapshots being copied. Guarded by frozenFreeSpace.
+     */
+    private int snapshotsInProgress;
+
+    /**
+     * Whether the index keeps only key hashes rather than keys
+     */
+    private final boolean hashedIndex;
     //todo set concurrency level
     private ConcurrentHashMap spool = new ConcurrentHashMap();
 
     private Thread spoolAndExpiryThread;
 
+    /**
+     * Set instead of the spoolAndExpiryThread when the CacheManager runs the work of its disk stores on a shared
+     * {@link DiskStoreScheduler}
+     */
+    private volatile DiskStoreScheduler.Registration schedulerRegistration;
+
+    /**
+     * The time of the next expiry run. Only used by the spool thread or scheduled round.
+     */
+    private long nextExpiryTime;
+
     private Ehcache cache;
 
     /**
@@ -121,10 +188,28 @@ public class DiskStore implements Store {
      */
     private long totalSize;
 
+    /**
+     * Whether the index file on disk describes the data file. Cleared, and the index file emptied, before the
+     * data file is first changed after the index is written or read, so that after a crash the index file is
+     * either current or empty, in which case the data file is scanned. Guarded by indexFileLock.
+     */
+    private boolean indexFileCurrent;
+    private final Object indexFileLock = new Object();
+
     /**
      * The maximum elements to allow in the disk file.
      */
     private final long maxElementsOnDisk;
+
+    /**
+     * The maximum live payload bytes to allow in the disk file. 0 means unlimited.
+     */
+    private final long maxBytesOnDisk;
+
+    /**
+     * The data file length above which the file is compacted, when maxBytesOnDisk is set
+     */
+    private final long maxDataFileSize;
     /**
      * Whether the cache is eternal
      */
@@ -132,6 +217,27 @@ public class DiskStore implements Store {
     private int lastElementSize;
     private int diskSpoolBufferSizeBytes;
 
+    /**
+     * Whether each batch of spooled writes is forced to the storage device
+     */
+    private final boolean syncWrites;
+
+    /**
+     * Spooled elements are serialized into this buffer, which is reused from one flush to the next.
+     * Only used by the spool thread, while holding the store lock.
+     */
+    private MemoryEfficientByteArrayOutputStream stagingBuffer;
+
+    /**
+     * Compresses and decompresses records
+     */
+    private final DiskRecordCodec recordCodec;
+
+    /**
+     * Writes and reads the Elements in records. Fixed for the life of the store, and recorded in the index.
+     */
+    private final ElementSerializer elementSerializer;
+
     // indicates to the spoolAndExpiryThread that it needs to write the index on next flush to disk.
     private final AtomicBoolean writeIndexFlag;
     private final Object writeIndexFlagLock;
@@ -139,6 +245,81 @@ public class DiskStore implements Store {
     //The spoolAndExpiryThread keeps running until this is set to false;
     private volatile boolean spoolAndExpiryThreadActive;
 
+    /**
+     * The spool thread waits on this for work, and producers wait on it for room in the spool
+     */
+    private final Object spoolLock = new Object();
+
+    /**
+     * The number of elements taken from the spool by the spool thread and not yet written
+     */
+    private volatile int spoolInFlight;
+
+    /**
+     * Set by the put which fills the spool to its flush threshold, so that only that put wakes the spool thread
+     */
+    private volatile boolean spoolFlushSignalled;
+
+    /**
+     * Set by the put which finds the spool empty, so that exactly one of any concurrent puts wakes the spool thread.
+     * Cleared by the spool thread once it finds the spool empty.
+     */
+    private final AtomicBoolean spoolPending = new AtomicBoolean();
+
+    /**
+     * While the spool is being flushed, the positions of the blocks freed, whose free magic is written with the
+     * next batch rather than one seek and write each. null otherwise.
+     */
+    private volatile List deferredFreeMarks;
+
+    /**
+     * Holds the hashes of the keys in the spool and the index, so that gets of absent keys need not lock the store.
+     * null if switched off.
+     */
+    private volatile DiskBloomFilter bloomFilter;
+
+    /**
+     * A filter being rebuilt, which puts add to as well as to the current filter. Only set while rebuilding.
+     */
+    private volatile DiskBloomFilter rebuildingBloomFilter;
+
+    /**
+     * The next time the spool thread checks whether the filter has gathered enough removed keys to rebuild it
+     */
+    private long nextBloomFilterCheckTime;
+
+    /**
+     * The data file sparseness, as a percentage, at which records are relocated to shrink the file. 0 is off.
+     */
+    private final int compactionThresholdPercent;
+
+    /**
+     * The bytes the compactor may read and write per spool thread interval
+     */
+    private final long compactionBytesPerInterval;
+
+    /**
+     * The live records of a compaction pass, in file order, moved from the last. null between passes.
+     * Only used by the spool thread.
+     */
+    private List compactionQueue;
+
+    /**
+     * Whether the compaction pass is sliding records down, in which case the queue is in reverse file order.
+     * Only used by the spool thread.
+     */
+    private boolean compactionSliding;
+
+    /**
+     * The next time the spool thread checks the sparseness of the data file
+     */
+    private long nextCompactionCheckTime;
+
+    /**
+     * Chooses the element to evict from the DiskStore
+     */
+    private volatile Policy evictionPolicy;
+
     /**
      * Creates a disk store.
      *
@@ -146,29 +327,69 @@ public class DiskStore implements Store {
      * @param diskPath the directory in which to create data and index files
      */
     public DiskStore(Ehcache cache, String diskPath) {
+        this(cache, diskPath, cache.getName(), 1);
+    }
+
+    /**
+     * Creates one shard of a {@link ShardedDiskStore}.
+     * <p/>
+     * The shard takes its share of maxElementsOnDisk and of the spool buffer, and uses its own
+     * data and index files, named after <code>storeName</code>.
+     *
+     * @param cache      the {@link net.sf.ehcache.Cache} that the store is part of
+     * @param diskPath   the directory in which to create data and index files
+     * @param storeName  the name of this store, used for the data and index file names
+     * @param shardCount the number of shards the cache's disk store is split into
+     */
+    DiskStore(Ehcache cache, String diskPath, String storeName, int shardCount) {
         status = Status.STATUS_UNINITIALISED;
         this.cache = cache;
-        name = cache.getName();
+        name = storeName;
         this.diskPath = diskPath;
 
         CacheConfiguration config = cache.getCacheConfiguration();
         expiryThreadInterval = config.getDiskExpiryThreadIntervalSeconds();
         persistent = config.isDiskPersistent();
-        maxElementsOnDisk = config.getMaxElementsOnDisk();
+        maxElementsOnDisk = (config.getMaxElementsOnDisk() + shardCount - 1) / shardCount;
+        maxBytesOnDisk = (config.getMaxBytesOnDisk() + shardCount - 1) / shardCount;
+        maxDataFileSize = maxBytesOnDisk + maxBytesOnDisk / PERCENT * config.getDiskBytesSlackPercent();
         eternal = config.isEternal();
-        diskSpoolBufferSizeBytes = cache.getCacheConfiguration().getDiskSpoolBufferSizeMB() * ONE_MEGABYTE;
+        diskSpoolBufferSizeBytes = config.getDiskSpoolBufferSizeMB() * ONE_MEGABYTE / shardCount;
+        syncWrites = config.isDiskSyncWrites();
+        recordCodec = new DiskRecordCodec(config.getDiskCompressionThresholdBytes());
+        elementSerializer = Cache.getElementSerializer(cache);
         writeIndexFlag = new AtomicBoolean(false);
         writeIndexFlagLock = new Object();
+        hashedIndex = config.isDiskHashedIndex();
+        evictionPolicy = createEvictionPolicy(config.getDiskStoreEvictionPolicy());
+        compactionThresholdPercent = config.getDiskCompactionThresholdPercent();
+        compactionBytesPerInterval = Math.max((long) config.getDiskCompactionBytesPerSecond() / shardCount
+                * SPOOL_THREAD_INTERVAL / MS_PER_SECOND, 1);
+        diskElements = createIndex();
 
 
         try {
             initialiseFiles();
+            if (config.isDiskBloomFilter()) {
+                rebuildBloomFilter();
+            }
 
             active = true;
+            nextExpiryTime = System.currentTimeMillis();
 
-            // Always start up the spool thread
-            spoolAndExpiryThread = new SpoolAndExpiryThread();
-            spoolAndExpiryThread.start();
+            // Use the CacheManager's shared scheduler if there is one, otherwise start up a spool thread
+            DiskStoreScheduler scheduler = null;
+            if (cache.getCacheManager() != null) {
+                scheduler = cache.getCacheManager().getDiskStoreScheduler();
+            }
+            if (scheduler != null) {
+                spoolAndExpiryThreadActive = true;
+                schedulerRegistration = scheduler.register(this, cache.getName());
+                schedulerRegistration.signalAt(nextSpoolAndExpiryWorkTime());
+            } else {
+                spoolAndExpiryThread = new SpoolAndExpiryThread();
+                spoolAndExpiryThread.start();
+            }
 
             status = Status.STATUS_ALIVE;
         } catch (final Exception e) {
@@ -181,6 +402,7 @@ public class DiskStore implements Store {
 
 
     private void initialiseFiles() throws Exception {
+        boolean recoveryRequired = false;
         // Make sure the cache directory exists
         final File diskDir = new File(diskPath);
         if (diskDir.exists() && !diskDir.isDirectory()) {
@@ -204,10 +426,7 @@ public class DiskStore implements Store {
                         + "Deleting data file " + getDataFileName());
                 dataFile.delete();
             } else if (!readIndex()) {
-                if (LOG.isLoggable(Level.FINE)) {
-                    LOG.log(Level.FINE, "Index file dirty or empty. Deleting data file " + getDataFileName());
-                }
-                dataFile.delete();
+                recoveryRequired = dataFile.exists();
             }
         } else {
             if (LOG.isLoggable(Level.FINE)) {
@@ -219,6 +438,171 @@ public class DiskStore implements Store {
 
         // Open the data file as random access. The dataFile is created if necessary.
         randomAccessFile = new RandomAccessFile(dataFile, "rw");
+
+        if (recoveryRequired) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, "Index file dirty or empty. Recovering elements from data file " + getDataFileName());
+            }
+            recoverIndex();
+        }
+        totalSize = 0;
+        for (Iterator iterator = diskElements.iterator(); iterator.hasNext();) {
+            totalSize += ((DiskElement) iterator.next()).payloadSize;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the data file, after a crash has left the index file empty or out of date.
+     * <p/>
+     * The file is read in order. Each record with a live header and an intact checksum is read back and, if its
+     * key matches the key hash in its header and it has not expired, indexed. Where a key has more than one
+     * record, the most recently updated wins. Freed records are stepped over, and anything else, such as a record
+     * torn by the crash, is stepped over a byte at a time until the next header. Everything not indexed becomes
+     * free space, and the free space at the end of the file is truncated.
+     */
+    private void recoverIndex() throws IOException {
+        long start = System.currentTimeMillis();
+        long fileLength = randomAccessFile.length();
+        byte[] window = new byte[RECOVERY_WINDOW_SIZE];
+        long windowStart = 0;
+        int windowLength = 0;
+        List free = new ArrayList();
+        List discarded = new ArrayList();
+        List superseded = new ArrayList();
+        //the record indexed for each key so far. A hashed index does not hand back the key or update time of an entry.
+        Map recoveredByKey = new HashMap();
+        long endOfLiveRecord = 0;
+        int recovered = 0;
+
+        long position = 0;
+        while (position + DiskRecordCodec.HEADER_SIZE <= fileLength) {
+            if (position + DiskRecordCodec.HEADER_SIZE > windowStart + windowLength) {
+                windowStart = position;
+                windowLength = readFully(position, window, (int) Math.min(window.length, fileLength - position));
+            }
+            int offset = (int) (position - windowStart);
+            int magic = DiskRecordCodec.magic(window, offset);
+            int bodyLength = DiskRecordCodec.bodyLength(window, offset);
+            long recordLength = (long) DiskRecordCodec.HEADER_SIZE + bodyLength;
+            if ((magic != DiskRecordCodec.LIVE_MAGIC && magic != DiskRecordCodec.FREE_MAGIC) || bodyLength < 0
+                    || position + recordLength > fileLength || recordLength > diskElements.getMaximumBlockSize()) {
+                position++;
+                continue;
+            }
+            if (magic == DiskRecordCodec.FREE_MAGIC) {
+                position += recordLength;
+                continue;
+            }
+
+            byte[] record = window;
+            if (position + recordLength > windowStart + windowLength) {
+                if (recordLength <= window.length) {
+                    windowStart = position;
+                    windowLength = readFully(position, window, (int) Math.min(window.length, fileLength - position));
+                    offset = 0;
+                } else {
+                    record = new byte[(int) recordLength];
+                    readFully(position, record, record.length);
+                    offset = 0;
+                }
+            }
+            if (!DiskRecordCodec.isIntact(record, offset, (int) recordLength)) {
+                position++;
+                continue;
+            }
+
+            DiskElement diskElement = recoverRecord(record, offset, (int) recordLength, position);
+            if (diskElement == null) {
+                //lies in a gap between indexed records, which becomes free space
+                discarded.add(Long.valueOf(position));
+            } else {
+                DiskElement previous = (DiskElement) recoveredByKey.get(diskElement.key);
+                if (previous != null && previous.lastUpdateTime > diskElement.lastUpdateTime) {
+                    superseded.add(freeBlockAt(diskElement.position, diskElement.blockSize));
+                } else {
+                    DiskElement replaced = diskElements.put(diskElement.key, diskElement);
+                    recoveredByKey.put(diskElement.key, diskElement);
+                    if (replaced != null) {
+                        superseded.add(freeBlockAt(replaced.position, replaced.blockSize));
+                    } else {
+                        recovered++;
+                    }
+                }
+                if (position > endOfLiveRecord) {
+                    free.add(freeBlockAt(endOfLiveRecord, (int) Math.min(position - endOfLiveRecord, Integer.MAX_VALUE)));
+                }
+                endOfLiveRecord = position + recordLength;
+            }
+            position += recordLength;
+        }
+
+        for (int i = 0; i < discarded.size(); i++) {
+            writeFreeMagic(((Long) discarded.get(i)).longValue());
+        }
+        for (int i = 0; i < superseded.size(); i++) {
+            DiskElement block = (DiskElement) superseded.get(i);
+            writeFreeMagic(block.position);
+            free.add(block);
+        }
+        if (endOfLiveRecord < fileLength) {
+            randomAccessFile.setLength(endOfLiveRecord);
+        }
+        freeSpace = Collections.synchronizedList(free);
+        LOG.log(Level.INFO, name + "Cache: Recovered " + recovered + " elements from the data file in "
+                + (System.currentTimeMillis() - start) + " ms. " + (discarded.size() + superseded.size())
+                + " records were discarded.");
+    }
+
+    /**
+     * Reads back a recovered record.
+     *
+     * @return a DiskElement for the record, or null if it cannot be read, does not match its key hash, or has expired
+     */
+    private DiskElement recoverRecord(byte[] record, int offset, int length, long position) {
+        Element element;
+        try {
+            InputStream in = recordCodec.decode(record, offset, length);
+            try {
+                element = elementSerializer.deserialize(in);
+            } finally {
+                in.close();
+            }
+        } catch (Exception e) {
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, name + "Cache: Could not recover the record at " + position + ". " + e.getMessage());
+            }
+            return null;
+        }
+        if (element == null || element.isExpired()
+                || HashedDiskIndex.hash(element.getObjectKey()) != DiskRecordCodec.keyHash(record, offset)) {
+            return null;
+        }
+        DiskElement diskElement = new DiskElement();
+        diskElement.position = position;
+        diskElement.blockSize = length;
+        diskElement.payloadSize = length;
+        diskElement.key = element.getObjectKey();
+        diskElement.expiryTime = element.getExpirationTime();
+        diskElement.hitcount = element.getHitCount();
+        diskElement.lastAccessTime = element.getLastAccessTime();
+        diskElement.lastUpdateTime = element.getLatestOfCreationAndUpdateTime();
+        return diskElement;
+    }
+
+    private int readFully(long position, byte[] buffer, int length) throws IOException {
+        synchronized (randomAccessFile) {
+            randomAccessFile.seek(position);
+            randomAccessFile.readFully(buffer, 0, length);
+        }
+        return length;
+    }
+
+    private DiskIndex createIndex() {
+        if (hashedIndex) {
+            return new HashedDiskIndex();
+        } else {
+            return new ObjectDiskIndex(Math.max(expiryThreadInterval, 1) * MS_PER_SECOND);
+        }
     }
 
     private void deleteIndexIfNoData() {
@@ -246,7 +630,14 @@ public class DiskStore implements Store {
      *
      * @return The element
      */
-    public final synchronized Element get(final Object key) {
+    public final Element get(final Object key) {
+        if (isDefinitelyAbsent(key)) {
+            return null;
+        }
+        return getFromSpoolOrDisk(key);
+    }
+
+    private synchronized Element getFromSpoolOrDisk(final Object key) {
         try {
             checkActive();
 
@@ -259,15 +650,18 @@ public class DiskStore implements Store {
             }
 
             // Check if the element is on disk
-            final DiskElement diskElement = (DiskElement) diskElements.get(key);
+            final DiskElement diskElement = diskElements.get(key);
             if (diskElement == null) {
                 // Not on disk
                 return null;
             }
 
-            element = loadElementFromDiskElement(diskElement);
+            element = loadElementForKey(key, diskElement);
             if (element != null) {
                 element.updateAccessStatistics();
+                //keep the statistics used for eviction current. No effect for a hashed index, which does not keep them.
+                diskElement.hitcount = element.getHitCount();
+                diskElement.lastAccessTime = element.getLastAccessTime();
             }
             return element;
         } catch (Exception exception) {
@@ -285,38 +679,77 @@ public class DiskStore implements Store {
      *         If it returns true, there is an Element there. An attempt to get it may return null if the Element has expired.
      */
     public final boolean containsKey(Object key) {
-        return diskElements.containsKey(key) || spool.containsKey(key);
+        if (isDefinitelyAbsent(key)) {
+            return false;
+        }
+        if (diskElements.containsKey(key)) {
+            //a hashed index may hold the entry of another key with the same hashCode
+            return !hashedIndex || HashedDiskIndex.isIdentifiedByHash(key) || isKeyOfRecord(key) || spool.containsKey(key);
+        }
+        return spool.containsKey(key);
+    }
+
+    /**
+     * Reads the record indexed for a key, to check that it is the record of that key.
+     */
+    private synchronized boolean isKeyOfRecord(Object key) {
+        DiskElement diskElement = diskElements.get(key);
+        if (!active || diskElement == null) {
+            return false;
+        }
+        try {
+            return loadElementForKey(key, diskElement) != null;
+        } catch (Exception exception) {
+            LOG.log(Level.SEVERE, name + "Cache: Could not read disk store element for key " + key + ". Error was "
+                    + exception.getMessage(), exception);
+            return false;
+        }
+    }
+
+    /**
+     * Checks the Bloom filter, without locking.
+     *
+     * @return true if the key is definitely in neither the spool nor the index
+     */
+    private boolean isDefinitelyAbsent(Object key) {
+        DiskBloomFilter filter = bloomFilter;
+        return filter != null && key != null && !filter.mightContain(HashedDiskIndex.hash(key));
+    }
+
+    /**
+     * Loads the element of a DiskElement looked up by key. An index which keeps only key hashes may return the
+     * DiskElement of a different key, so the key of the record is checked.
+     *
+     * @return the element, or null if the record belongs to a different key
+     */
+    private Element loadElementForKey(Object key, DiskElement diskElement) throws IOException, ClassNotFoundException {
+        Element element = loadElementFromDiskElement(diskElement);
+        if (element != null && diskElement.key == null && !key.equals(element.getObjectKey())) {
+            return null;
+        }
+        return element;
     }
 
     private Element loadElementFromDiskElement(DiskElement diskElement) throws IOException, ClassNotFoundException {
         Element element;
-        final byte[] buffer;
-        synchronized (randomAccessFile) {
-            // Load the element
-            randomAccessFile.seek(diskElement.position);
-            buffer = new byte[diskElement.payloadSize];
-            randomAccessFile.readFully(buffer);
-        }
-        final ByteArrayInputStream instr = new ByteArrayInputStream(buffer);
-
-        final ObjectInputStream objstr = new ObjectInputStream(instr) {
-            /**
-             * Overridden because of:
-             * Bug 1324221 ehcache DiskStore has issues when used in Tomcat
-             */
-            protected Class resolveClass(ObjectStreamClass clazz) throws ClassNotFoundException, IOException {
-                try {
-                    ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
-                    return Class.forName(clazz.getName(), false, classLoader);
-                } catch (ClassNotFoundException e) {
-                    // Use the default as a fallback because of
-                    // bug 1517565 - DiskStore loadElementFromDiskElement
-                    return super.resolveClass(clazz);
-                }
+        final int length = diskElement.payloadSize;
+        final byte[] buffer = BufferPool.acquire(length);
+        try {
+            synchronized (randomAccessFile) {
+                // Load the element
+                randomAccessFile.seek(diskElement.position);
+                randomAccessFile.readFully(buffer, 0, length);
+            }
+            InputStream instr = recordCodec.decode(buffer, length);
+            try {
+                element = elementSerializer.deserialize(instr);
+            } finally {
+                //releases any pooled buffer of the decoded record
+                instr.close();
             }
-        };
-        element = (Element) objstr.readObject();
-        objstr.close();
+        } finally {
+            BufferPool.release(buffer);
+        }
         return element;
     }
 
@@ -325,7 +758,14 @@ public class DiskStore implements Store {
      *
      * @return The element
      */
-    public final synchronized Element getQuiet(final Object key) {
+    public final Element getQuiet(final Object key) {
+        if (isDefinitelyAbsent(key)) {
+            return null;
+        }
+        return getQuietFromSpoolOrDisk(key);
+    }
+
+    private synchronized Element getQuietFromSpoolOrDisk(final Object key) {
         try {
             checkActive();
 
@@ -338,13 +778,13 @@ public class DiskStore implements Store {
             }
 
             // Check if the element is on disk
-            final DiskElement diskElement = (DiskElement) diskElements.get(key);
+            final DiskElement diskElement = diskElements.get(key);
             if (diskElement == null) {
                 // Not on disk
                 return null;
             }
 
-            element = loadElementFromDiskElement(diskElement);
+            element = loadElementForKey(key, diskElement);
             //element.updateAccessStatistics(); Don't update statistics
             return element;
         } catch (Exception e) {
@@ -361,12 +801,23 @@ public class DiskStore implements Store {
      * @return An Object[] of {@link Serializable} keys
      */
     public final synchronized Object[] getKeyArray() {
-        Set elementKeySet;
-        elementKeySet = diskElements.keySet();
         Set spoolKeySet;
         spoolKeySet = spool.keySet();
-        Set allKeysSet = new HashSet(elementKeySet.size() + spoolKeySet.size());
-        allKeysSet.addAll(elementKeySet);
+        Set allKeysSet = new HashSet(diskElements.size() + spoolKeySet.size());
+        for (Iterator iterator = diskElements.iterator(); iterator.hasNext();) {
+            DiskElement diskElement = (DiskElement) iterator.next();
+            if (diskElement.key != null) {
+                allKeysSet.add(diskElement.key);
+            } else {
+                //a hashed index does not keep keys. Read them from the records.
+                try {
+                    allKeysSet.add(loadElementFromDiskElement(diskElement).getObjectKey());
+                } catch (Exception e) {
+                    LOG.log(Level.SEVERE, name + "Cache: Could not read disk store key. Initial cause was "
+                            + e.getMessage(), e);
+                }
+            }
+        }
         allKeysSet.addAll(spoolKeySet);
         return allKeysSet.toArray();
     }
@@ -421,8 +872,10 @@ public class DiskStore implements Store {
             checkActive();
 
             // Spool the element
-            if (spoolAndExpiryThread.isAlive()) {
+            if (isSpoolThreadAlive()) {
                 spool.put(element.getObjectKey(), element);
+                addToBloomFilter(element.getObjectKey());
+                signalSpoolThreadIfRequired();
             } else {
                 LOG.log(Level.SEVERE, name + "Cache: Elements cannot be written to disk store because the" +
                         " spool thread has died.");
@@ -444,8 +897,7 @@ public class DiskStore implements Store {
      * @return true if the spool is not being cleared fast enough
      */
     public boolean bufferFull() {
-        long estimatedSpoolSize = spool.size() * lastElementSize;
-        boolean backedUp = estimatedSpoolSize > diskSpoolBufferSizeBytes;
+        boolean backedUp = estimatedSpoolSize() > diskSpoolBufferSizeBytes;
         if (backedUp && LOG.isLoggable(Level.FINE)) {
             LOG.log(Level.FINE, "A back up on disk store puts occurred. Consider increasing diskSpoolBufferSizeMB for cache " + name);
         }
@@ -453,6 +905,89 @@ public class DiskStore implements Store {
 
     }
 
+    /**
+     * Waits until the spool thread has written enough of the spool for it to be no longer full, or the timeout
+     * passes. Returns at once if the spool is not full or the spool thread has died.
+     *
+     * @param timeoutMillis the longest to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void waitForBufferSpace(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (spoolLock) {
+            while (active && isSpoolThreadAlive() && estimatedSpoolSize() > diskSpoolBufferSizeBytes) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return;
+                }
+                spoolLock.wait(remaining);
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements spooled and not yet written to the data file
+     */
+    public final int getSpoolBacklog() {
+        return spool.size() + spoolInFlight;
+    }
+
+    /**
+     * Estimates the bytes held by the spool, and by the elements taken from it but not yet written, from the size
+     * of the last element written.
+     */
+    private long estimatedSpoolSize() {
+        int recordSize = lastElementSize > 0 ? lastElementSize : ESTIMATED_MINIMUM_PAYLOAD_SIZE;
+        return ((long) spool.size() + spoolInFlight) * recordSize;
+    }
+
+    private boolean isSpoolFlushDue() {
+        return estimatedSpoolSize() >= diskSpoolBufferSizeBytes / SPOOL_FLUSH_FRACTION;
+    }
+
+    /**
+     * Wakes the spool thread when the first element arrives in an empty spool, so that it writes it within
+     * {@link #SPOOL_THREAD_INTERVAL}, and when the spool reaches its flush threshold, so that it writes at once.
+     * Other puts do not touch the lock.
+     */
+    private void signalSpoolThreadIfRequired() {
+        boolean first = spoolPending.compareAndSet(false, true);
+        boolean due = !spoolFlushSignalled && isSpoolFlushDue();
+        if (first || due) {
+            if (due) {
+                spoolFlushSignalled = true;
+            }
+            DiskStoreScheduler.Registration registration = schedulerRegistration;
+            if (registration == null) {
+                notifySpoolLock();
+            } else if (due) {
+                registration.signal();
+            } else {
+                registration.signalAt(System.currentTimeMillis() + SPOOL_THREAD_INTERVAL);
+            }
+        }
+    }
+
+    /**
+     * Wakes the spool thread, or queues a scheduled round, to do its work now.
+     */
+    private void signalSpoolWork() {
+        DiskStoreScheduler.Registration registration = schedulerRegistration;
+        if (registration != null) {
+            registration.signal();
+        }
+        notifySpoolLock();
+    }
+
+    /**
+     * Wakes the spool thread and any producers waiting for room in the spool.
+     */
+    private void notifySpoolLock() {
+        synchronized (spoolLock) {
+            spoolLock.notifyAll();
+        }
+    }
+
     /**
      * Removes an item from the disk store.
      */
@@ -465,10 +1000,13 @@ public class DiskStore implements Store {
             element = (Element) spool.remove(key);
 
             // Remove the entry from the file. Could be in both places.
-            final DiskElement diskElement = (DiskElement) diskElements.remove(key);
+            final DiskElement diskElement = diskElements.get(key);
             if (diskElement != null) {
-                element = loadElementFromDiskElement(diskElement);
-                freeBlock(diskElement);
+                Element onDisk = loadElementForKey(key, diskElement);
+                if (onDisk != null && diskElements.remove(diskElement)) {
+                    element = onDisk;
+                    freeBlock(diskElement);
+                }
             }
         } catch (Exception exception) {
             String message = name + "Cache: Could not remove disk store entry for key " + key
@@ -493,9 +1031,63 @@ public class DiskStore implements Store {
         diskElement.hitcount = 0;
         diskElement.expiryTime = 0;
 
+        synchronized (frozenFreeSpace) {
+            if (snapshotsInProgress > 0) {
+                invalidateIndexFile();
+                frozenFreeMarks.add(new Long(diskElement.position));
+                frozenFreeSpace.add(diskElement);
+                return;
+            }
+        }
+        List freeMarks = deferredFreeMarks;
+        if (freeMarks != null) {
+            invalidateIndexFile();
+            freeMarks.add(new Long(diskElement.position));
+        } else {
+            writeFreeMagic(diskElement.position);
+        }
         freeSpace.add(diskElement);
     }
 
+    /**
+     * Marks the record at a position as freed, so that it is not recovered after a crash. Only persistent stores
+     * recover from the data file, so others write nothing.
+     */
+    private void writeFreeMagic(long position) {
+        if (!persistent) {
+            return;
+        }
+        invalidateIndexFile();
+        try {
+            synchronized (randomAccessFile) {
+                randomAccessFile.seek(position);
+                randomAccessFile.write(FREE_MAGIC_BYTES);
+            }
+        } catch (IOException e) {
+            LOG.log(Level.WARNING, name + "Cache: Could not mark the record at " + position
+                    + " as free. It may be recovered after a crash. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Empties the index file, if it is current, before the data file is changed.
+     */
+    private void invalidateIndexFile() {
+        if (!persistent) {
+            return;
+        }
+        synchronized (indexFileLock) {
+            if (indexFileCurrent) {
+                indexFileCurrent = false;
+                try {
+                    createNewIndexFile();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, name + "Cache: Could not empty the index file. " + e.getMessage());
+                }
+            }
+        }
+    }
+
     /**
      * Remove all of the elements from the store.
      * <p/>
@@ -507,16 +1099,37 @@ public class DiskStore implements Store {
             checkActive();
 
             // Ditch all the elements, and truncate the file
+            DiskBloomFilter emptyFilter = null;
+            if (bloomFilter != null) {
+                emptyFilter = new DiskBloomFilter(DiskBloomFilter.MINIMUM_CAPACITY);
+                rebuildingBloomFilter = emptyFilter;
+            }
             spool = new ConcurrentHashMap();
-            diskElements = new ConcurrentHashMap();
+            DiskIndex removed = diskElements;
+            diskElements = createIndex();
+            if (emptyFilter != null) {
+                bloomFilter = emptyFilter;
+                rebuildingBloomFilter = null;
+            }
             freeSpace = Collections.synchronizedList(new ArrayList());
             totalSize = 0;
+            invalidateIndexFile();
             synchronized (randomAccessFile) {
-                randomAccessFile.setLength(0);
-            }
-            if (persistent) {
-                indexFile.delete();
-                indexFile.createNewFile();
+                synchronized (frozenFreeSpace) {
+                    if (snapshotsInProgress > 0) {
+                        //a snapshot is copying the file. Free all of it once the snapshot is done.
+                        for (Iterator iterator = removed.iterator(); iterator.hasNext();) {
+                            frozenFreeMarks.add(new Long(((DiskElement) iterator.next()).position));
+                        }
+                        frozenFreeSpace.clear();
+                        long fileLength = randomAccessFile.length();
+                        for (long position = 0; position < fileLength; position += Integer.MAX_VALUE) {
+                            frozenFreeSpace.add(freeBlockAt(position, (int) Math.min(fileLength - position, Integer.MAX_VALUE)));
+                        }
+                    } else {
+                        randomAccessFile.setLength(0);
+                    }
+                }
             }
         } catch (Exception e) {
             // Clean up
@@ -528,10 +1141,9 @@ public class DiskStore implements Store {
     /**
      * Shuts down the disk store in preparation for cache shutdown
      * <p/>
-     * If a VM crash happens, the shutdown hook will not run. The data file and the index file
-     * will be out of synchronisation. At initialisation we always delete the index file
-     * after we have read the elements, so that it has a zero length. On a dirty restart, it still will have
-     * and the data file will automatically be deleted, thus preserving safety.
+     * If a VM crash happens, the shutdown hook will not run. The index file is emptied before the data file is
+     * first changed after the index is written or read, so after a crash it is either current or empty. If it is
+     * empty the index is recovered by scanning the checksummed records of the data file.
      */
     public final void dispose() {
 
@@ -548,10 +1160,14 @@ public class DiskStore implements Store {
             //tell the spool thread to spool down. It will loop one last time if flush was caled.
             spoolAndExpiryThreadActive = false;
 
-            //interrupt the spoolAndExpiryThread if it is waiting to run again to get it to run now
+            //wake the spoolAndExpiryThread if it is waiting to run again to get it to run now
             // Then wait for it to write
-            spoolAndExpiryThread.interrupt();
-            if (spoolAndExpiryThread != null) {
+            notifySpoolLock();
+            if (schedulerRegistration != null) {
+                //wait for any scheduled round in progress, then write on this thread
+                schedulerRegistration.unregister();
+                throwableSafeFlushSpoolIfRequired();
+            } else if (spoolAndExpiryThread != null) {
                 spoolAndExpiryThread.join();
             }
 
@@ -564,6 +1180,7 @@ public class DiskStore implements Store {
                     randomAccessFile.close();
                 }
             }
+            recordCodec.dispose();
             deleteFilesInAutoGeneratedDirectory();
             if (!persistent) {
                 LOG.log(Level.FINE, "Deleting file " + dataFile.getName());
@@ -581,71 +1198,524 @@ public class DiskStore implements Store {
     }
 
     /**
-     * Delete files in the auto generated directory. These are one time only for those who create multiple
-     * CacheManagers with the same disk path settings. 
+     * Delete files in the auto generated directory. These are one time only for those who create multiple
+     * CacheManagers with the same disk path settings. 
+     */
+    protected void deleteFilesInAutoGeneratedDirectory() {
+        if (diskPath.indexOf(AUTO_DISK_PATH_DIRECTORY_PREFIX) != -1) {
+            if (dataFile != null && dataFile.exists()) {
+                LOG.log(Level.FINE, "Deleting file " + dataFile.getName());
+                dataFile.delete();
+            }
+            if (indexFile != null && indexFile.exists()) {
+                LOG.log(Level.FINE, "Deleting file " + indexFile.getName());
+                indexFile.delete();
+            }
+            //try to delete the auto_createtimestamp directory. Will work when the last Disk Store deletes
+            //the last files and the directory becomes empty.
+            File dataDirectory = new File(diskPath);
+            if (dataDirectory != null && dataDirectory.exists()) {
+                if (dataDirectory.delete()) {
+                    LOG.log(Level.FINE, "Deleted directory " + dataDirectory.getName());
+                }
+            }
+
+        }
+    }
+
+    /**
+     * Flush the spool if persistent, so we don't lose any data.
+     * <p/>
+     * This, as of ehcache-1.6.0, is an asynchronous operation. It wakes the spoolAndExpiryThread, or queues a round
+     * on the {@link DiskStoreScheduler}, which writes the spool and index.
+     */
+    public final void flush() {
+        if (persistent) {
+            synchronized (writeIndexFlagLock) {
+                writeIndexFlag.set(true);
+            }
+            signalSpoolWork();
+        }
+    }
+
+    /**
+     * both flushing and expiring contend for the same lock on diskElement, so
+     * might as well do them sequentially in the one thread.
+     * <p/>
+     * This thread is protected from Throwables by only calling methods that guard
+     * against these.
+     */
+    private void spoolAndExpiryThreadMain() {
+        while (spoolAndExpiryThreadActive || writeIndexFlag.get()) {
+
+            //don't wait when we want to flush
+            if (!writeIndexFlag.get()) {
+                waitForWork(nextExpiryTime);
+            }
+
+            if (!doSpoolAndExpiryWork()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Does one round of spool and expiry work.
+     *
+     * @return false if the store is shutting down
+     */
+    private boolean doSpoolAndExpiryWork() {
+        throwableSafeFlushSpoolIfRequired();
+
+        if (!spoolAndExpiryThreadActive) {
+            return false;
+        }
+        nextExpiryTime = throwableSafeExpireElementsIfRequired(nextExpiryTime);
+        throwableSafeRebuildBloomFilterIfRequired();
+        throwableSafeCompactIfRequired();
+        return true;
+    }
+
+    /**
+     * Does one round of spool and expiry work for the {@link DiskStoreScheduler}.
+     *
+     * @return the time the next round is due, or Long.MAX_VALUE if none is due until the store is signalled
+     */
+    long runScheduledWork() {
+        if (!doSpoolAndExpiryWork()) {
+            return Long.MAX_VALUE;
+        }
+        return nextSpoolAndExpiryWorkTime();
+    }
+
+    private long nextSpoolAndExpiryWorkTime() {
+        long now = System.currentTimeMillis();
+        if (writeIndexFlag.get() || isSpoolFlushDue()) {
+            return now;
+        }
+        long wakeTime = nextMaintenanceTime(nextExpiryTime, now);
+        if (isSpoolPending()) {
+            wakeTime = Math.min(wakeTime, now + SPOOL_THREAD_INTERVAL);
+        }
+        return wakeTime;
+    }
+
+    /**
+     * Clears {@link #spoolPending} if the spool is empty, so that the next put signals. The spool is checked again
+     * afterwards, as a put may have found the flag still set and not signalled.
+     *
+     * @return true if the spool holds elements
+     */
+    private boolean isSpoolPending() {
+        if (spool.size() > 0) {
+            return true;
+        }
+        spoolPending.set(false);
+        return spool.size() > 0;
+    }
+
+    /**
+     * Waits until the spool thread has something to do: the spool has reached its flush threshold, an element has
+     * waited {@link #SPOOL_THREAD_INTERVAL} in the spool, the index is to be written, the store is shutting down,
+     * or an expiry run, Bloom filter check or compaction step is due. An idle store does not wake otherwise.
+     */
+    private void waitForWork(long nextExpiryTime) {
+        synchronized (spoolLock) {
+            long now = System.currentTimeMillis();
+            long spoolDeadline = 0;
+            while (spoolAndExpiryThreadActive && !writeIndexFlag.get() && !isSpoolFlushDue()) {
+                long wakeTime = nextMaintenanceTime(nextExpiryTime, now);
+                if (isSpoolPending()) {
+                    if (spoolDeadline == 0) {
+                        spoolDeadline = now + SPOOL_THREAD_INTERVAL;
+                    }
+                    wakeTime = Math.min(wakeTime, spoolDeadline);
+                }
+                if (wakeTime <= now) {
+                    return;
+                }
+                try {
+                    spoolLock.wait(wakeTime - now);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                now = System.currentTimeMillis();
+            }
+        }
+    }
+
+    private long nextMaintenanceTime(long nextExpiryTime, long now) {
+        long wakeTime = Long.MAX_VALUE;
+        if (!eternal) {
+            wakeTime = nextExpiryTime;
+        }
+        if (bloomFilter != null) {
+            wakeTime = Math.min(wakeTime, nextBloomFilterCheckTime);
+        }
+        if (compactionQueue != null) {
+            wakeTime = Math.min(wakeTime, now + SPOOL_THREAD_INTERVAL);
+        } else if (compactionThresholdPercent > 0 || maxBytesOnDisk > 0) {
+            wakeTime = Math.min(wakeTime, nextCompactionCheckTime);
+        }
+        return wakeTime;
+    }
+
+    private void throwableSafeCompactIfRequired() {
+        if (compactionThresholdPercent <= 0 && maxBytesOnDisk <= 0) {
+            return;
+        }
+        try {
+            compact();
+        } catch (Throwable e) {
+            compactionQueue = null;
+            LOG.log(Level.SEVERE, name + " Cache: Could not compact the disk store due to "
+                    + e.getMessage() + ". Continuing...", e);
+        }
+    }
+
+    /**
+     * Does one interval's worth of online compaction.
+     * <p/>
+     * Once per expiry interval the sparseness of the data file is checked. If it is at or above the threshold, or
+     * the file is longer than maxBytesOnDisk plus its slack, a pass starts, which moves live records from the end of
+     * the file into the lowest free blocks they fit, and truncates the free blocks left at the end of the file.
+     * <p/>
+     * A record which fits none of the free blocks before it would hold the file at its length. If one is met, the
+     * pass goes on by sliding every record, in file order, down into the free space directly before it, so that the
+     * free space gathers at the end of the file however the records and gaps are sized.
+     * <p/>
+     * Each interval moves no more than the configured I/O budget. The store lock is taken for each record moved
+     * rather than for the pass, so gets wait for at most one move.
+     */
+    private void compact() throws IOException {
+        if (isSnapshotInProgress()) {
+            //moving records would overwrite those of the snapshot. Carry on once it is done.
+            return;
+        }
+        if (compactionQueue == null) {
+            long now = System.currentTimeMillis();
+            if (now < nextCompactionCheckTime) {
+                return;
+            }
+            nextCompactionCheckTime = now + Math.max(expiryThreadInterval, 1) * MS_PER_SECOND;
+            if (!isCompactionDue()) {
+                return;
+            }
+            compactionQueue = liveRecordsInFileOrder();
+            compactionSliding = false;
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, name + " Cache: Compacting data file of sparseness " + calculateDataFileSparseness());
+            }
+        }
+
+        long budget = compactionBytesPerInterval;
+        while (budget > 0 && compactionQueue != null && !compactionQueue.isEmpty()) {
+            DiskElement record = (DiskElement) compactionQueue.remove(compactionQueue.size() - 1);
+            int moved = compactionSliding ? slideRecord(record) : relocateRecord(record);
+            if (moved < 0) {
+                //no free block lies before this record, nor before any record left in the queue
+                compactionQueue = null;
+            } else if (moved == 0 && !compactionSliding && record.payloadSize > 0) {
+                //the record fits no gap before it. Slide everything down from the first gap instead.
+                compactionQueue = liveRecordsInFileOrder();
+                Collections.reverse(compactionQueue);
+                compactionSliding = true;
+            } else {
+                budget -= 2L * moved;
+            }
+        }
+        if (compactionQueue != null && compactionQueue.isEmpty()) {
+            compactionQueue = null;
+        }
+        truncateFreeTail();
+    }
+
+    /**
+     * @return true if the data file is at least as sparse as the compaction threshold, or longer than the
+     *         maxBytesOnDisk budget and its slack allow
+     */
+    private boolean isCompactionDue() {
+        long dataFileSize = getDataFileSize();
+        if (dataFileSize == 0) {
+            return false;
+        }
+        return (compactionThresholdPercent > 0 && calculateDataFileSparseness() * PERCENT >= compactionThresholdPercent)
+                || (maxBytesOnDisk > 0 && dataFileSize > maxDataFileSize);
+    }
+
+    private synchronized List liveRecordsInFileOrder() {
+        coalesceFreeSpace();
+        List records = new ArrayList(diskElements.size());
+        for (Iterator iterator = diskElements.iterator(); iterator.hasNext();) {
+            records.add(iterator.next());
+        }
+        Collections.sort(records, POSITION_ORDER);
+        return records;
+    }
+
+    /**
+     * Moves a record into the lowest free block before it which is large enough. What is left of the free block,
+     * and the old block of the record, are returned to the free list.
+     *
+     * @return the number of bytes moved, 0 if the record was not moved, or -1 if there is no free block before it
+     */
+    private synchronized int relocateRecord(DiskElement record) throws IOException {
+        if (!active) {
+            return -1;
+        }
+        final long position = record.position;
+        final int length = record.payloadSize;
+        DiskElement target = null;
+        boolean anyBefore = false;
+        for (int i = 0; i < freeSpace.size(); i++) {
+            DiskElement block = (DiskElement) freeSpace.get(i);
+            if (block.position < position) {
+                anyBefore = true;
+                if (block.blockSize >= length && (target == null || block.position < target.position)) {
+                    target = block;
+                }
+            }
+        }
+        if (!anyBefore) {
+            return -1;
+        }
+        if (target == null || length == 0) {
+            return 0;
+        }
+
+        invalidateIndexFile();
+        final byte[] buffer = BufferPool.acquire(length);
+        try {
+            synchronized (randomAccessFile) {
+                randomAccessFile.seek(position);
+                randomAccessFile.readFully(buffer, 0, length);
+                randomAccessFile.seek(target.position);
+                randomAccessFile.write(buffer, 0, length);
+                if (syncWrites) {
+                    randomAccessFile.getChannel().force(false);
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        final int oldBlockSize = record.blockSize;
+        if (!diskElements.relocate(record, target.position, length)) {
+            //removed meanwhile. The copy went to a block which is still free.
+            writeFreeMagic(target.position);
+            return length;
+        }
+        freeSpace.remove(target);
+        if (target.blockSize > length) {
+            freeSpace.add(freeBlockAt(target.position + length, target.blockSize - length));
+        }
+        writeFreeMagic(position);
+        addCoalescedFreeBlock(position, oldBlockSize);
+        return length;
+    }
+
+    /**
+     * Moves a record down into the free block which ends where it starts, so that the free space moves past it. The
+     * free block may be smaller than the record, in which case the record is written over its own start, and a crash
+     * during the move loses it, as a crash during a spool flush loses the elements being written.
+     *
+     * @return the number of bytes moved, 0 if there is no free block directly before the record or it is no longer
+     *         indexed there, or -1 if the store is no longer active
+     */
+    private synchronized int slideRecord(DiskElement record) throws IOException {
+        if (!active) {
+            return -1;
+        }
+        final long position = record.position;
+        final int length = record.payloadSize;
+        if (length == 0) {
+            return 0;
+        }
+        DiskElement before = null;
+        for (int i = 0; i < freeSpace.size() && before == null; i++) {
+            DiskElement block = (DiskElement) freeSpace.get(i);
+            if (block.position + block.blockSize == position) {
+                before = block;
+            }
+        }
+        if (before == null) {
+            return 0;
+        }
+        if (!diskElements.relocate(record, position, record.blockSize)) {
+            //no longer indexed where the pass found it. Its old block may hold another record now.
+            return 0;
+        }
+
+        invalidateIndexFile();
+        final byte[] buffer = BufferPool.acquire(length);
+        try {
+            synchronized (randomAccessFile) {
+                randomAccessFile.seek(position);
+                randomAccessFile.readFully(buffer, 0, length);
+                randomAccessFile.seek(before.position);
+                randomAccessFile.write(buffer, 0, length);
+                if (syncWrites) {
+                    randomAccessFile.getChannel().force(false);
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+
+        final long freeStart = before.position + length;
+        final long freeEnd = position + record.blockSize;
+        diskElements.relocate(record, before.position, length);
+        freeSpace.remove(before);
+        if (position >= freeStart) {
+            //the old header was not overwritten by the move
+            writeFreeMagic(position);
+        }
+        addCoalescedFreeBlock(freeStart, (int) (freeEnd - freeStart));
+        return length;
+    }
+
+    /**
+     * Merges adjacent free blocks, so that larger records fit them.
+     */
+    private synchronized void coalesceFreeSpace() {
+        if (freeSpace.size() < 2) {
+            return;
+        }
+        List blocks = new ArrayList(freeSpace);
+        Collections.sort(blocks, POSITION_ORDER);
+        List coalesced = new ArrayList(blocks.size());
+        DiskElement current = (DiskElement) blocks.get(0);
+        for (int i = 1; i < blocks.size(); i++) {
+            DiskElement next = (DiskElement) blocks.get(i);
+            if (current.position + current.blockSize == next.position
+                    && (long) current.blockSize + next.blockSize <= Integer.MAX_VALUE) {
+                current = freeBlockAt(current.position, current.blockSize + next.blockSize);
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        freeSpace = Collections.synchronizedList(coalesced);
+    }
+
+    /**
+     * Returns a block to the free list, merged with the free blocks either side of it.
+     */
+    private void addCoalescedFreeBlock(long position, int blockSize) {
+        long start = position;
+        long end = position + blockSize;
+        for (int i = freeSpace.size() - 1; i >= 0; i--) {
+            DiskElement block = (DiskElement) freeSpace.get(i);
+            if ((block.position + block.blockSize == start || block.position == end)
+                    && end - start + block.blockSize <= Integer.MAX_VALUE) {
+                freeSpace.remove(i);
+                start = Math.min(start, block.position);
+                end = Math.max(end, block.position + block.blockSize);
+            }
+        }
+        freeSpace.add(freeBlockAt(start, (int) (end - start)));
+    }
+
+    private static DiskElement freeBlockAt(long position, int blockSize) {
+        DiskElement block = new DiskElement();
+        block.position = position;
+        block.blockSize = blockSize;
+        return block;
+    }
+
+    /**
+     * Truncates the data file before any free blocks at its end.
+     */
+    private synchronized void truncateFreeTail() throws IOException {
+        if (!active || freeSpace.isEmpty()) {
+            return;
+        }
+        List blocks = new ArrayList(freeSpace);
+        Collections.sort(blocks, POSITION_ORDER);
+        synchronized (randomAccessFile) {
+            long end = randomAccessFile.length();
+            long newEnd = end;
+            List truncated = new ArrayList();
+            for (int i = blocks.size() - 1; i >= 0; i--) {
+                DiskElement block = (DiskElement) blocks.get(i);
+                if (block.position + block.blockSize != newEnd) {
+                    break;
+                }
+                newEnd = block.position;
+                truncated.add(block);
+            }
+            if (newEnd < end) {
+                invalidateIndexFile();
+                freeSpace.removeAll(truncated);
+                randomAccessFile.setLength(newEnd);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the Bloom filter when it holds more keys than it was sized for, or, checked once per expiry
+     * interval, when most of the keys it holds have since been removed.
      */
-    protected void deleteFilesInAutoGeneratedDirectory() {
-        if (diskPath.indexOf(AUTO_DISK_PATH_DIRECTORY_PREFIX) != -1) {
-            if (dataFile != null && dataFile.exists()) {
-                LOG.log(Level.FINE, "Deleting file " + dataFile.getName());
-                dataFile.delete();
-            }
-            if (indexFile != null && indexFile.exists()) {
-                LOG.log(Level.FINE, "Deleting file " + indexFile.getName());
-                indexFile.delete();
+    private void throwableSafeRebuildBloomFilterIfRequired() {
+        DiskBloomFilter filter = bloomFilter;
+        if (filter == null) {
+            return;
+        }
+        try {
+            boolean rebuild = filter.getInsertions() > filter.getCapacity();
+            long now = System.currentTimeMillis();
+            if (!rebuild && now >= nextBloomFilterCheckTime) {
+                nextBloomFilterCheckTime = now + Math.max(expiryThreadInterval, 1) * MS_PER_SECOND;
+                rebuild = filter.getInsertions() > 2 * (diskElements.size() + spool.size()) + DiskBloomFilter.MINIMUM_CAPACITY;
             }
-            //try to delete the auto_createtimestamp directory. Will work when the last Disk Store deletes
-            //the last files and the directory becomes empty.
-            File dataDirectory = new File(diskPath);
-            if (dataDirectory != null && dataDirectory.exists()) {
-                if (dataDirectory.delete()) {
-                    LOG.log(Level.FINE, "Deleted directory " + dataDirectory.getName());
-                }
+            if (rebuild) {
+                rebuildBloomFilter();
             }
-
+        } catch (Throwable e) {
+            LOG.log(Level.SEVERE, name + " Cache: Could not rebuild the disk store Bloom filter due to "
+                    + e.getMessage() + ". Continuing...", e);
         }
     }
 
     /**
-     * Flush the spool if persistent, so we don't lose any data.
+     * Rebuilds the Bloom filter from the index and the spool, sized for twice the number of keys now held.
      * <p/>
-     * This, as of ehcache-1.6.0, is an asynchronous operation. It will write the next time the spoolAndExpiryThread
-     * runs. By default this is every 200ms.
+     * Holding the store lock keeps the spool from being flushed meanwhile. Puts are not locked out, so while the
+     * new filter is filled they add to it as well as to the current one.
      */
-    public final void flush() {
-        if (persistent) {
-            synchronized (writeIndexFlagLock) {
-                writeIndexFlag.set(true);
-            }
+    private synchronized void rebuildBloomFilter() {
+        int liveKeys = diskElements.size() + spool.size();
+        int capacity = Math.max(2 * liveKeys, DiskBloomFilter.MINIMUM_CAPACITY);
+        if (maxElementsOnDisk > 0) {
+            capacity = (int) Math.min(capacity, Math.max(maxElementsOnDisk, liveKeys));
         }
+        DiskBloomFilter rebuilt = new DiskBloomFilter(capacity);
+        rebuildingBloomFilter = rebuilt;
+        for (Iterator iterator = diskElements.iterator(); iterator.hasNext();) {
+            rebuilt.add(HashedDiskIndex.keyHash((DiskElement) iterator.next()));
+        }
+        for (Iterator iterator = spool.keySet().iterator(); iterator.hasNext();) {
+            rebuilt.add(HashedDiskIndex.hash(iterator.next()));
+        }
+        bloomFilter = rebuilt;
+        rebuildingBloomFilter = null;
     }
 
     /**
-     * both flushing and expiring contend for the same lock on diskElement, so
-     * might as well do them sequentially in the one thread.
-     * <p/>
-     * This thread is protected from Throwables by only calling methods that guard
-     * against these.
+     * Adds a spooled key to the Bloom filter. Must be called after the key is put in the spool. The filter being
+     * rebuilt, if any, is read first, so that a key missed by the rebuild is always added to the new filter.
      */
-    private void spoolAndExpiryThreadMain() {
-        long nextExpiryTime = System.currentTimeMillis();
-        while (spoolAndExpiryThreadActive || writeIndexFlag.get()) {
-
-            try {
-                //don't wait when we want to flish
-                if (!writeIndexFlag.get()) {
-                    Thread.sleep(SPOOL_THREAD_INTERVAL);
-                }
-            } catch (InterruptedException e) {
-                //expected on shutdown
-            }
-
-            throwableSafeFlushSpoolIfRequired();
-
-            if (!spoolAndExpiryThreadActive) {
-                return;
-            }
-            nextExpiryTime = throwableSafeExpireElementsIfRequired(nextExpiryTime);
+    private void addToBloomFilter(Object key) {
+        DiskBloomFilter rebuilding = rebuildingBloomFilter;
+        DiskBloomFilter filter = bloomFilter;
+        if (filter == null) {
+            return;
+        }
+        long hash = HashedDiskIndex.hash(key);
+        filter.add(hash);
+        if (rebuilding != null && rebuilding != filter) {
+            rebuilding.add(hash);
         }
     }
 
@@ -692,19 +1762,81 @@ public class DiskStore implements Store {
 
     /**
      * Flushes all spooled elements to disk.
+     * <p/>
+     * Elements are serialized one after the other into the staging buffer and assigned blocks. The batch is then
+     * sorted by file position and written with one gathering write per run of adjacent blocks, so that a flush
+     * costs a few mostly sequential writes rather than a seek and a write per element. Large spools are written in
+     * several batches to bound the size of the staging buffer. The free magic of the records replaced or evicted
+     * meanwhile is written in file order with each batch, rather than as each is freed.
      */
     private synchronized void flushSpool() throws IOException {
         if (spool.size() == 0) {
             return;
         }
 
+        invalidateIndexFile();
         Map copyOfSpool = swapSpoolReference();
+        spoolInFlight = copyOfSpool.size();
+        spoolFlushSignalled = false;
+        if (persistent) {
+            deferredFreeMarks = Collections.synchronizedList(new ArrayList());
+        }
+        try {
+            writeSpool(copyOfSpool);
+        } finally {
+            List freeMarks = deferredFreeMarks;
+            deferredFreeMarks = null;
+            if (freeMarks != null) {
+                synchronized (randomAccessFile) {
+                    writeFreeMarks(freeMarks);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stages and writes the elements taken from the spool, in batches.
+     */
+    private void writeSpool(Map copyOfSpool) throws IOException {
+        List batch = new ArrayList(copyOfSpool.size());
+        if (stagingBuffer == null) {
+            stagingBuffer = new MemoryEfficientByteArrayOutputStream(estimatedPayloadSize());
+        }
+        stagingBuffer.reset();
+        long endOfFile;
+        synchronized (randomAccessFile) {
+            endOfFile = randomAccessFile.length();
+        }
 
         //does not guarantee insertion order
         Iterator valuesIterator = copyOfSpool.values().iterator();
         while (valuesIterator.hasNext()) {
-            writeOrReplaceEntry(valuesIterator.next());
+            Element element = (Element) valuesIterator.next();
             valuesIterator.remove();
+            PendingWrite pendingWrite = stageElement(element, batch.size(), endOfFile);
+            if (pendingWrite == null) {
+                spoolInFlight--;
+                continue;
+            }
+            endOfFile = Math.max(endOfFile, pendingWrite.diskElement.position + pendingWrite.diskElement.blockSize);
+            batch.add(pendingWrite);
+            if (stagingBuffer.size() >= MAXIMUM_STAGING_BUFFER_SIZE) {
+                writeBatch(batch);
+                spoolInFlight -= batch.size();
+                notifySpoolLock();
+                batch.clear();
+                stagingBuffer.reset();
+            }
+        }
+        try {
+            writeBatch(batch);
+        } finally {
+            spoolInFlight = 0;
+            notifySpoolLock();
+        }
+        if (stagingBuffer.getBytes().length > MAXIMUM_STAGING_BUFFER_SIZE) {
+            //do not hold on to the memory of an unusually large batch
+            stagingBuffer = null;
         }
     }
 
@@ -718,79 +1850,211 @@ public class DiskStore implements Store {
         return copyOfSpool;
     }
 
-
-    private void writeOrReplaceEntry(Object object) throws IOException {
-        Element element = (Element) object;
+    /**
+     * Serializes an element onto the end of the staging buffer and allocates a block for it.
+     * Any previous entry for the key is removed, and an element evicted if the store is full.
+     *
+     * @param element      the element to write
+     * @param pendingCount the number of elements already staged in this batch
+     * @param endOfFile    the position new blocks are appended at
+     * @return the staged write, or null if the element could not be serialized
+     */
+    private PendingWrite stageElement(Element element, int pendingCount, long endOfFile) {
         if (element == null) {
-            return;
+            return null;
         }
         final Serializable key = (Serializable) element.getObjectKey();
         removeOldEntryIfAny(key);
-        if (maxElementsOnDisk > 0 && diskElements.size() >= maxElementsOnDisk) {
-            evictLfuDiskElement();
+        if (element.isExpired()) {
+            //expired while waiting in the spool. Expire it here rather than write it.
+            if (LOG.isLoggable(Level.FINE)) {
+                LOG.log(Level.FINE, name + "Cache: Removing expired spool element " + key);
+            }
+            notifyExpiryListeners(element);
+            return null;
+        }
+        //staged elements are not in the index yet, and must not be chosen for eviction
+        if (maxElementsOnDisk > 0 && diskElements.size() > 0 && diskElements.size() + pendingCount >= maxElementsOnDisk) {
+            evictDiskElement();
         }
-        writeElement(element, key);
-    }
-
 
-    private void writeElement(Element element, Serializable key) throws IOException {
+        int offset = stagingBuffer.size();
         try {
-            int bufferLength;
-            long expirationTime = element.getExpirationTime();
-
-            //try two times to Serialize. A ConcurrentModificationException can occur because Java's serialization
-            //mechanism is not threadsafe and POJOs are seldom implemented in a threadsafe way.
-            //e.g. we are serializing an ArrayList field while another thread somewhere in the application is appending to it.
-            //The best we can do is try again and then give up.
-            int retryCount = 0;
-            MemoryEfficientByteArrayOutputStream buffer = null;
+            serializeIntoStagingBuffer(element, key);
+            recordCodec.encode(stagingBuffer, offset, HashedDiskIndex.hash(key));
+        } catch (Exception e) {
+            stagingBuffer.truncate(offset);
+            // Catch any exception that occurs during serialization
+            LOG.log(Level.SEVERE, name + "Cache: Failed to write element to disk '" + key
+                    + "'. Initial cause was " + e.getMessage(), e);
+            return null;
+        } catch (OutOfMemoryError e) {
+            stagingBuffer.truncate(offset);
+            LOG.log(Level.SEVERE, "OutOfMemoryError on serialize: " + key);
+            return null;
+        }
+        int length = stagingBuffer.size() - offset;
+        if (length > diskElements.getMaximumBlockSize()) {
+            stagingBuffer.truncate(offset);
+            LOG.log(Level.SEVERE, name + "Cache: Element " + key + " of " + length
+                    + " bytes is too large for the disk index. It will not be written to disk.");
+            return null;
+        }
+        if (maxBytesOnDisk > 0) {
+            if (length > maxBytesOnDisk) {
+                stagingBuffer.truncate(offset);
+                LOG.log(Level.WARNING, name + "Cache: Element " + key + " of " + length
+                        + " bytes is larger than maxBytesOnDisk. It will not be written to disk.");
+                return null;
+            }
+            //the staging buffer holds the payloads of the batch, which are not in the index yet
+            while (diskElements.size() > 0 && totalSize + stagingBuffer.size() > maxBytesOnDisk) {
+                if (!evictDiskElement()) {
+                    break;
+                }
+            }
+        }
+        DiskElement diskElement = findFreeBlock(length);
+        if (diskElement == null) {
+            diskElement = new DiskElement();
+            diskElement.position = endOfFile;
+            diskElement.blockSize = length;
+        }
+        return new PendingWrite(element, key, diskElement, offset, length);
+    }
+
+    /**
+     * Try two times to serialize. A ConcurrentModificationException can occur because Java's serialization
+     * mechanism is not threadsafe and POJOs are seldom implemented in a threadsafe way.
+     * e.g. we are serializing an ArrayList field while another thread somewhere in the application is appending to it.
+     * The best we can do is try again and then give up.
+     */
+    private void serializeIntoStagingBuffer(Element element, Serializable key) throws IOException, InterruptedException {
+        int offset = stagingBuffer.size();
+        for (int attempt = 1; ; attempt++) {
             try {
-                buffer = MemoryEfficientByteArrayOutputStream.serialize(element, estimatedPayloadSize());
-                retryCount++;
+                recordCodec.writeHeaderPlaceholder(stagingBuffer);
+                elementSerializer.serialize(element, stagingBuffer);
+                return;
             } catch (ConcurrentModificationException e) {
-                if (retryCount == 2) {
+                stagingBuffer.truncate(offset);
+                if (attempt == 2) {
                     //give up.
-                    if (LOG.isLoggable(Level.FINE)) {
-                        LOG.log(Level.FINE, "Gave up trying to Serialize " + key, e);
-                    }
-                    return;
-                } else {
-                    //wait for the other thread(s) to finish
-                    Thread.sleep(QUARTER_OF_A_SECOND);
+                    throw new IOException("Gave up trying to Serialize " + key + " after concurrent modification.");
                 }
+                //wait for the other thread(s) to finish
+                Thread.sleep(QUARTER_OF_A_SECOND);
             }
-            bufferLength = buffer.size();
-
-            try {
-
-                DiskElement diskElement = checkForFreeBlock(bufferLength);
+        }
+    }
 
-                // Write the record
-                synchronized (randomAccessFile) {
-                    randomAccessFile.seek(diskElement.position);
-                    randomAccessFile.write(buffer.toByteArray(), 0, bufferLength);
+    /**
+     * Writes a batch of staged elements in file order and then adds them to the index.
+     * <p/>
+     * Adjacent blocks are written with a single gathering write. If configured, the data file is forced to the
+     * storage device once for the whole batch. If the write fails the blocks are returned to the free list and
+     * the elements of the batch are lost, as they would be if they had been evicted.
+     */
+    private void writeBatch(List batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        Collections.sort(batch);
+        byte[] staged = stagingBuffer.getBytes();
+        try {
+            synchronized (randomAccessFile) {
+                //before the records, as the batch may reuse freed blocks
+                if (deferredFreeMarks != null) {
+                    writeFreeMarks(deferredFreeMarks);
+                }
+                FileChannel channel = randomAccessFile.getChannel();
+                int runStart = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    PendingWrite current = (PendingWrite) batch.get(i);
+                    boolean lastInRun = i == batch.size() - 1
+                            || i - runStart + 1 == MAXIMUM_BUFFERS_PER_WRITE
+                            || ((PendingWrite) batch.get(i + 1)).diskElement.position
+                            != current.diskElement.position + current.length;
+                    if (lastInRun) {
+                        writeRun(channel, staged, batch, runStart, i);
+                        runStart = i + 1;
+                    }
                 }
-                buffer = null;
+                if (syncWrites) {
+                    channel.force(false);
+                }
+            }
+        } catch (IOException e) {
+            for (int i = 0; i < batch.size(); i++) {
+                freeSpace.add(((PendingWrite) batch.get(i)).diskElement);
+            }
+            throw e;
+        }
 
-                // Add to index, update stats
-                diskElement.payloadSize = bufferLength;
-                diskElement.key = key;
-                diskElement.expiryTime = expirationTime;
-                diskElement.hitcount = element.getHitCount();
-                totalSize += bufferLength;
-                lastElementSize = bufferLength;
-                diskElements.put(key, diskElement);
-            } catch (OutOfMemoryError e) {
-                LOG.log(Level.SEVERE, "OutOfMemoryError on serialize: " + key);
+        // Add to index, update stats
+        for (int i = 0; i < batch.size(); i++) {
+            PendingWrite pendingWrite = (PendingWrite) batch.get(i);
+            DiskElement diskElement = pendingWrite.diskElement;
+            diskElement.payloadSize = pendingWrite.length;
+            diskElement.key = pendingWrite.key;
+            diskElement.expiryTime = pendingWrite.expiryTime;
+            diskElement.hitcount = pendingWrite.hitCount;
+            diskElement.lastAccessTime = pendingWrite.lastAccessTime;
+            diskElement.lastUpdateTime = pendingWrite.lastUpdateTime;
+            DiskElement replaced = diskElements.put(pendingWrite.key, diskElement);
+            if (replaced != null) {
+                //only with a hashed index, where two keys of the batch have the same hash
+                freeBlock(replaced);
+            }
+            totalSize += diskElement.payloadSize;
+            lastElementSize = pendingWrite.length;
+        }
 
+        //a batch larger than the room left in the store is trimmed once written
+        while (maxElementsOnDisk > 0 && diskElements.size() > maxElementsOnDisk) {
+            evictDiskElement();
+        }
+        while (maxBytesOnDisk > 0 && totalSize > maxBytesOnDisk && diskElements.size() > 0) {
+            if (!evictDiskElement()) {
+                break;
             }
+        }
+    }
 
-        } catch (Exception e) {
-            // Catch any exception that occurs during serialization
-            LOG.log(Level.SEVERE, name + "Cache: Failed to write element to disk '" + key
-                    + "'. Initial cause was " + e.getMessage(), e);
+    /**
+     * Writes the free magic of the blocks freed during a flush in file order, and empties the list. The caller holds
+     * the lock on the data file.
+     */
+    private void writeFreeMarks(List freeMarks) {
+        Long[] positions;
+        synchronized (freeMarks) {
+            positions = (Long[]) freeMarks.toArray(new Long[freeMarks.size()]);
+            freeMarks.clear();
         }
+        Arrays.sort(positions);
+        for (int i = 0; i < positions.length; i++) {
+            try {
+                randomAccessFile.seek(positions[i].longValue());
+                randomAccessFile.write(FREE_MAGIC_BYTES);
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, name + "Cache: Could not mark the record at " + positions[i]
+                        + " as free. It may be recovered after a crash. " + e.getMessage());
+            }
+        }
+    }
 
+    private static void writeRun(FileChannel channel, byte[] staged, List batch, int first, int last) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[last - first + 1];
+        long remaining = 0;
+        for (int i = first; i <= last; i++) {
+            PendingWrite pendingWrite = (PendingWrite) batch.get(i);
+            buffers[i - first] = ByteBuffer.wrap(staged, pendingWrite.offset, pendingWrite.length);
+            remaining += pendingWrite.length;
+        }
+        channel.position(((PendingWrite) batch.get(first)).diskElement.position);
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
     }
 
     private int estimatedPayloadSize() {
@@ -814,24 +2078,12 @@ public class DiskStore implements Store {
     private void removeOldEntryIfAny(Serializable key) {
 
         final DiskElement oldBlock;
-        oldBlock = (DiskElement) diskElements.remove(key);
+        oldBlock = diskElements.remove(key);
         if (oldBlock != null) {
             freeBlock(oldBlock);
         }
     }
 
-    private DiskElement checkForFreeBlock(int bufferLength) throws IOException {
-        DiskElement diskElement = findFreeBlock(bufferLength);
-        if (diskElement == null) {
-            diskElement = new DiskElement();
-            synchronized (randomAccessFile) {
-                diskElement.position = randomAccessFile.length();
-            }
-            diskElement.blockSize = bufferLength;
-        }
-        return diskElement;
-    }
-
     /**
      * Writes the Index to disk on shutdown or flush
      * <p/>
@@ -840,13 +2092,27 @@ public class DiskStore implements Store {
      * Note that the store is locked for the entire time that the index is being written
      */
     private synchronized void writeIndex() throws IOException {
+        List free = freeSpace;
+        synchronized (frozenFreeSpace) {
+            if (!frozenFreeSpace.isEmpty()) {
+                free = Collections.synchronizedList(new ArrayList(freeSpace));
+                free.addAll(frozenFreeSpace);
+            }
+        }
+        synchronized (indexFileLock) {
+            writeIndex(indexFile, diskElements, free);
+            indexFileCurrent = true;
+        }
+    }
 
+    private void writeIndex(File file, DiskIndex index, List free) throws IOException {
         ObjectOutputStream objectOutputStream = null;
         try {
-            FileOutputStream fout = new FileOutputStream(indexFile);
+            FileOutputStream fout = new FileOutputStream(file);
             objectOutputStream = new ObjectOutputStream(fout);
-            objectOutputStream.writeObject(diskElements);
-            objectOutputStream.writeObject(freeSpace);
+            objectOutputStream.writeObject(index);
+            objectOutputStream.writeObject(free);
+            objectOutputStream.writeObject(elementSerializer.getClass().getName());
         } finally {
             if (objectOutputStream != null) {
                 objectOutputStream.close();
@@ -854,6 +2120,125 @@ public class DiskStore implements Store {
         }
     }
 
+    /**
+     * Writes a point in time copy of the data and index files to a directory. A persistent store of the same name
+     * and configuration started from that directory has the elements the store had at the time of the call. Use it
+     * for backups, or to move a cache to a new host.
+     * <p/>
+     * The spool is written and the in-memory index copied under the store lock. The data file is then copied, and
+     * the index written, without the lock, while the store carries on. Until the copy is done, blocks freed by
+     * removals, updates, expiry and eviction are not reused and compaction waits, so that the records of the
+     * snapshot are not overwritten. New records go to blocks which were already free, or the end of the file.
+     *
+     * @param directory the directory to write to, which is created if need be. Files of the same names are
+     *                  overwritten.
+     * @throws IOException if the copy cannot be written
+     */
+    public final void snapshot(File directory) throws IOException {
+        writeSnapshot(beginSnapshot(directory), directory);
+    }
+
+    /**
+     * Takes the in-memory part of a snapshot: writes the spool, copies the index and free list, and stops blocks
+     * from being reused until {@link #writeSnapshot(Snapshot, File)} is done.
+     */
+    synchronized Snapshot beginSnapshot(File directory) throws IOException {
+        checkActive();
+        if (directory.getCanonicalFile().equals(dataFile.getParentFile().getCanonicalFile())) {
+            throw new IOException("A snapshot cannot be written to the directory of the store it is taken from: " + directory);
+        }
+        flushSpool();
+        Snapshot snapshot = new Snapshot();
+        synchronized (frozenFreeSpace) {
+            snapshotsInProgress++;
+            copyFreeBlocks(frozenFreeSpace, snapshot.free);
+        }
+        synchronized (freeSpace) {
+            copyFreeBlocks(freeSpace, snapshot.free);
+        }
+        snapshot.index = diskElements.copy();
+        synchronized (randomAccessFile) {
+            snapshot.dataLength = randomAccessFile.length();
+        }
+        return snapshot;
+    }
+
+    /**
+     * Copies the data file and writes the index of a snapshot begun with {@link #beginSnapshot(File)}, without
+     * holding the store lock, then lets freed blocks be reused again.
+     */
+    void writeSnapshot(Snapshot snapshot, File directory) throws IOException {
+        try {
+            if (!directory.exists() && !directory.mkdirs()) {
+                throw new IOException("Could not create snapshot directory " + directory);
+            }
+            copyDataFile(new File(directory, getDataFileName()), snapshot.dataLength);
+            writeIndex(new File(directory, getIndexFileName()), snapshot.index, Collections.synchronizedList(snapshot.free));
+        } finally {
+            synchronized (this) {
+                List released = null;
+                synchronized (frozenFreeSpace) {
+                    snapshotsInProgress--;
+                    if (snapshotsInProgress == 0) {
+                        released = new ArrayList(frozenFreeSpace);
+                        frozenFreeSpace.clear();
+                    }
+                }
+                if (released != null) {
+                    if (persistent) {
+                        synchronized (randomAccessFile) {
+                            writeFreeMarks(frozenFreeMarks);
+                        }
+                    } else {
+                        frozenFreeMarks.clear();
+                    }
+                    freeSpace.addAll(released);
+                }
+            }
+        }
+    }
+
+    private boolean isSnapshotInProgress() {
+        synchronized (frozenFreeSpace) {
+            return snapshotsInProgress > 0;
+        }
+    }
+
+    private static void copyFreeBlocks(List source, List target) {
+        for (int i = 0; i < source.size(); i++) {
+            DiskElement block = (DiskElement) source.get(i);
+            target.add(freeBlockAt(block.position, block.blockSize));
+        }
+    }
+
+    /**
+     * Copies the first <code>length</code> bytes of the data file, reading through a channel of its own so that
+     * the store is not held up.
+     */
+    private void copyDataFile(File target, long length) throws IOException {
+        FileInputStream in = new FileInputStream(dataFile);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                FileChannel source = in.getChannel();
+                FileChannel destination = out.getChannel();
+                long position = 0;
+                while (position < length) {
+                    long transferred = source.transferTo(position, length - position, destination);
+                    if (transferred <= 0) {
+                        throw new IOException("The data file of " + name + " is shorter than the snapshot of its index.");
+                    }
+                    position += transferred;
+                }
+                destination.force(false);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
     /**
      * Reads Index to disk on startup.
      * <p/>
@@ -871,9 +2256,19 @@ public class DiskStore implements Store {
             try {
                 fin = new FileInputStream(indexFile);
                 objectInputStream = new ObjectInputStream(fin);
-                diskElements = (ConcurrentHashMap) objectInputStream.readObject();
-                freeSpace = (List) objectInputStream.readObject();
-                success = true;
+                Object index = objectInputStream.readObject();
+                List savedFreeSpace = (List) objectInputStream.readObject();
+                Object serializerName = objectInputStream.readObject();
+                if (index instanceof DiskIndex && index instanceof HashedDiskIndex == hashedIndex
+                        && elementSerializer.getClass().getName().equals(serializerName)) {
+                    diskElements = (DiskIndex) index;
+                    freeSpace = savedFreeSpace;
+                    indexFileCurrent = true;
+                    success = true;
+                } else {
+                    LOG.log(Level.WARNING, "The index of " + name + " was written by an earlier version or with a different"
+                            + " diskHashedIndex or elementSerializerFactory setting. Creating new index.");
+                }
             } catch (StreamCorruptedException e) {
                 LOG.log(Level.SEVERE, "Corrupt index file. Creating new index.");
             } catch (IOException e) {
@@ -929,47 +2324,35 @@ public class DiskStore implements Store {
     /**
      * Removes expired elements.
      * <p/>
+     * Only the entries in the expiry index buckets which are due are examined, so the cost of an expiry run
+     * is proportional to the number of entries expiring rather than to the size of the store. Elements which
+     * expire while waiting in the spool are expired when the spool is flushed.
+     * <p/>
      * Note that the DiskStore cannot efficiently expire based on TTI. It does it on TTL. However any gets out
      * of the DiskStore are check for both before return.
      */
     public void expireElements() {
         final long now = System.currentTimeMillis();
 
-        // Clean up the spool
-        for (Iterator iterator = spool.values().iterator(); iterator.hasNext();) {
-            final Element element = (Element) iterator.next();
-            if (element.isExpired()) {
-                // An expired element
-                if (LOG.isLoggable(Level.FINE)) {
-                    LOG.log(Level.FINE, name + "Cache: Removing expired spool element " + element.getObjectKey());
-                }
-                iterator.remove();
-                notifyExpiryListeners(element);
-            }
-        }
-
-        Element element = null;
         RegisteredEventListeners listeners = cache.getCacheEventNotificationService();
-        // Clean up disk elements
-        for (Iterator iterator = diskElements.entrySet().iterator(); iterator.hasNext();) {
-            final Map.Entry entry = (Map.Entry) iterator.next();
-            final DiskElement diskElement = (DiskElement) entry.getValue();
+        List candidates = diskElements.expiryCandidates(now);
+        for (int i = 0; i < candidates.size(); i++) {
+            final DiskElement diskElement = (DiskElement) candidates.get(i);
+            final Object key = diskElement.key;
 
-            if (now >= diskElement.expiryTime) {
+            if (now >= diskElement.expiryTime && diskElements.remove(diskElement)) {
                 // An expired element
                 if (LOG.isLoggable(Level.FINE)) {
-                    LOG.log(Level.FINE, name + "Cache: Removing expired spool element " + entry.getKey() + " from Disk Store");
+                    LOG.log(Level.FINE, name + "Cache: Removing expired spool element " + key + " from Disk Store");
                 }
 
-                iterator.remove();
-
                 // only load the element from the file if there is a listener interested in hearing about its expiration
                 if (listeners.hasCacheEventListeners()) {
                     try {
-                        element = loadElementFromDiskElement(diskElement);
+                        Element element = loadElementFromDiskElement(diskElement);
                         notifyExpiryListeners(element);
                     } catch (Exception exception) {
-                        LOG.log(Level.SEVERE, name + "Cache: Could not remove disk store entry for " + entry.getKey()
+                        LOG.log(Level.SEVERE, name + "Cache: Could not remove disk store entry for " + key
                                 + ". Error was " + exception.getMessage(), exception);
                     }
                 }
@@ -996,6 +2379,11 @@ public class DiskStore implements Store {
             final DiskElement element = (DiskElement) freeSpace.get(i);
             if (element.blockSize >= length) {
                 freeSpace.remove(i);
+                if (element.blockSize - length >= ESTIMATED_MINIMUM_PAYLOAD_SIZE) {
+                    //split blocks, such as merged ones, which are much larger than needed
+                    freeSpace.add(freeBlockAt(element.position + length, element.blockSize - length));
+                    element.blockSize = length;
+                }
                 return element;
             }
         }
@@ -1028,63 +2416,58 @@ public class DiskStore implements Store {
 
 
     /**
-     * A reference to an on-disk elements.
-     * <p/>
-     * Copies of expiryTime and hitcount are held here as a performance optimisation, so
-     * that we do not need to load the data from Disk to get this often used information.
+     * An element which has been serialized into the staging buffer and assigned a block, but not yet written.
+     * Pending writes order by file position.
      */
-    private static final class DiskElement implements Serializable {
-
-        private static final long serialVersionUID = -717310932566592289L;
-
-        /**
-         * the file pointer
-         */
-        private long position;
-
-        /**
-         * The size used for data.
-         */
-        private int payloadSize;
-
-        /**
-         * the size of this element.
-         */
-        private int blockSize;
+    private static final class PendingWrite implements Comparable {
 
-        /**
-         * The key this element is mapped with in DiskElements. This is only a reference
-         * to the key. It is used in DiskElements and therefore the only memory cost is the
-         * reference.
-         */
-        private Object key;
-
-        /**
-         * The expiry time in milliseconds
-         */
-        private long expiryTime;
+        private final Object key;
+        private final DiskElement diskElement;
+        private final long expiryTime;
+        private final long hitCount;
+        private final long lastAccessTime;
+        private final long lastUpdateTime;
 
         /**
-         * The numbe of times the element has been requested and found in the cache.
+         * The offset of the serialized element in the staging buffer
          */
-        private long hitcount;
-
+        private final int offset;
 
         /**
-         * @return the key of this object
+         * The length of the serialized element
          */
-        public Object getObjectKey() {
-            return key;
+        private final int length;
+
+        private PendingWrite(Element element, Object key, DiskElement diskElement, int offset, int length) {
+            this.key = key;
+            this.diskElement = diskElement;
+            this.expiryTime = element.getExpirationTime();
+            this.hitCount = element.getHitCount();
+            this.lastAccessTime = element.getLastAccessTime();
+            this.lastUpdateTime = element.getLatestOfCreationAndUpdateTime();
+            this.offset = offset;
+            this.length = length;
         }
 
         /**
-         * @return the hit count for the element
+         * Orders by position in the data file
          */
-        public long getHitCount() {
-            return hitcount;
+        public int compareTo(Object other) {
+            long otherPosition = ((PendingWrite) other).diskElement.position;
+            long position = diskElement.position;
+            return position < otherPosition ? -1 : (position == otherPosition ? 0 : 1);
         }
     }
 
+    /**
+     * The in-memory part of a snapshot, taken under the store lock.
+     */
+    static final class Snapshot {
+        private DiskIndex index;
+        private final List free = new ArrayList();
+        private long dataLength;
+    }
+
     /**
      * A background daemon thread that writes objects to the file.
      */
@@ -1178,38 +2561,74 @@ public class DiskStore implements Store {
     }
 
     /**
-     * The spool thread is started when the disk store is created.
+     * The spool thread is started when the disk store is created, unless the store is given its work by the
+     * CacheManager's {@link DiskStoreScheduler}.
      * <p/>
      * It will continue to run until the {@link #dispose()} method is called,
      * at which time it should be interrupted and then die.
      *
-     * @return true if the spoolThread is still alive.
+     * @return true if the spoolThread, or the store's registration with the scheduler, is still alive.
      */
     public final boolean isSpoolThreadAlive() {
-        if (spoolAndExpiryThread == null) {
+        DiskStoreScheduler.Registration registration = schedulerRegistration;
+        if (registration != null) {
+            return registration.isAlive();
+        } else if (spoolAndExpiryThread == null) {
             return false;
         } else {
             return spoolAndExpiryThread.isAlive();
         }
     }
 
-    private void evictLfuDiskElement() {
+    private boolean evictDiskElement() {
         synchronized (diskElements) {
             DiskElement diskElement = findRelativelyUnused();
-            diskElements.remove(diskElement.key);
+            if (diskElement == null || !diskElements.remove(diskElement)) {
+                return false;
+            }
             notifyEvictionListeners(diskElement);
             freeBlock(diskElement);
+            return true;
         }
     }
 
     /**
-     * Find a "relatively" unused disk element, but not the element just added.
+     * Find a "relatively" unused disk element, according to the eviction policy.
+     * <p/>
+     * The policy compares Elements made from the statistics kept in the sampled DiskElements, so that nothing
+     * is read from disk. These Elements have no value.
      *
-     * @return a DiskElement likely not to be in the bottom quartile of use
+     * @return a DiskElement likely to be in the bottom quartile of the policy's ordering
      */
     private DiskElement findRelativelyUnused() {
-        DiskElement[] elements = sampleElements(diskElements);
-        return leastHit(elements, null);
+        DiskElement[] sampled = diskElements.sample();
+        if (sampled.length == 0) {
+            return null;
+        }
+        Element[] elements = new Element[sampled.length];
+        for (int i = 0; i < sampled.length; i++) {
+            elements[i] = sampled[i].toMetadataElement();
+        }
+        Element selected = evictionPolicy.selectedBasedOnPolicy(elements, null);
+        for (int i = 0; i < elements.length; i++) {
+            if (elements[i] == selected) {
+                return sampled[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates one of the inbuilt policies
+     */
+    private static Policy createEvictionPolicy(MemoryStoreEvictionPolicy policySelection) {
+        if (MemoryStoreEvictionPolicy.LRU.equals(policySelection)) {
+            return new LruPolicy();
+        } else if (MemoryStoreEvictionPolicy.FIFO.equals(policySelection)) {
+            return new FifoPolicy();
+        } else {
+            return new LfuPolicy();
+        }
     }
 
 
@@ -1240,25 +2659,6 @@ public class DiskStore implements Store {
         return lowestElement;
     }
 
-    /**
-     * Uses random numbers to sample the entire map.
-     *
-     * @param map
-     * @return an array of sampled elements
-     */
-    private DiskElement[] sampleElements(Map map) {
-        int[] offsets = AbstractPolicy.generateRandomSample(map.size());
-        DiskElement[] elements = new DiskElement[offsets.length];
-        Iterator iterator = map.values().iterator();
-        for (int i = 0; i < offsets.length; i++) {
-            for (int j = 0; j < offsets[i]; j++) {
-                iterator.next();
-            }
-            elements[i] = (DiskElement) iterator.next();
-        }
-        return elements;
-    }
-
     private void notifyEvictionListeners(DiskElement diskElement) {
         RegisteredEventListeners listeners = cache.getCacheEventNotificationService();
         // only load the element from the file if there is a listener interested in hearing about its expiration
@@ -1282,18 +2682,24 @@ public class DiskStore implements Store {
      * @see #setEvictionPolicy(Policy)
      */
     public Policy getEvictionPolicy() {
-        return new LfuPolicy();
+        return evictionPolicy;
     }
 
     /**
-     * Sets the eviction policy strategy. The Store will use a policy at startup. The store may allow changing
-     * the eviction policy strategy dynamically. Otherwise implementations will throw an exception if this method
-     * is called.
+     * Sets the eviction policy strategy. The DiskStore starts with the configured diskStoreEvictionPolicy, LFU
+     * by default. The policy may be changed at any time, and takes effect at the next eviction.
+     * <p/>
+     * Policies are given Elements holding the key, hit count, last access time and the later of the creation and
+     * update times of the sampled elements, but no value. With a hashed index the key and statistics are not kept,
+     * so every policy evicts at random.
      *
      * @param policy the new policy
      */
     public void setEvictionPolicy(Policy policy) {
-        throw new UnsupportedOperationException("Disk store only uses LFU.");
+        if (policy == null) {
+            throw new IllegalArgumentException("The DiskStore eviction policy cannot be null");
+        }
+        evictionPolicy = policy;
     }
 
 
@@ -0,0 +1,277 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the spool, expiry, index and compaction work of all the {@link DiskStore}s in a CacheManager on a
+ * bounded pool of worker threads, instead of a spool thread per store.
+ * <p/>
+ * Each registered store has at most one round of work queued at a time. Stores are queued in the order they
+ * asked for work and requeued at the back after each round, so a busy store cannot starve the others. A store
+ * asks for work when its spool reaches its flush threshold, when an element has waited in its spool for the
+ * maximum spool delay, when it is flushed, and when its next expiry run, Bloom filter check or compaction step
+ * is due. Idle stores cost nothing.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public final class DiskStoreScheduler {
+
+    private static final Logger LOG = Logger.getLogger(DiskStoreScheduler.class.getName());
+
+    private static final int IDLE = 0;
+    private static final int QUEUED = 1;
+    private static final int RUNNING = 2;
+    private static final int RUNNING_AND_SIGNALLED = 3;
+
+    private final ScheduledThreadPoolExecutor executor;
+    private final CopyOnWriteArraySet registrations = new CopyOnWriteArraySet();
+
+    /**
+     * Creates a scheduler and starts its worker threads.
+     *
+     * @param name    a name for the worker threads
+     * @param threads the number of worker threads
+     */
+    public DiskStoreScheduler(final String name, int threads) {
+        executor = new ScheduledThreadPoolExecutor(Math.max(threads, 1), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "DiskStore Scheduler " + name + "-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Registers a store. The store is given a round of work whenever its {@link Registration} is signalled.
+     *
+     * @param store     the store
+     * @param cacheName the name of the cache the store belongs to
+     * @return the registration, through which the store signals for work
+     */
+    Registration register(DiskStore store, String cacheName) {
+        Registration registration = new Registration(store, cacheName);
+        registrations.add(registration);
+        return registration;
+    }
+
+    /**
+     * @return the number of worker threads
+     */
+    public int getThreadCount() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * @return the number of registered stores
+     */
+    public int getStoreCount() {
+        return registrations.size();
+    }
+
+    /**
+     * @return the number of store rounds waiting for a worker thread, not counting those scheduled for later
+     */
+    public int getQueuedStoreCount() {
+        int queued = 0;
+        for (Iterator iterator = registrations.iterator(); iterator.hasNext();) {
+            if (((Registration) iterator.next()).state.get() == QUEUED) {
+                queued++;
+            }
+        }
+        return queued;
+    }
+
+    /**
+     * Gets the write backlog of each registered store, being the number of elements spooled and not yet written.
+     * The shards of a sharded store are summed under the cache name.
+     *
+     * @return a map of cache name to Integer backlog
+     */
+    public Map getSpoolBacklogs() {
+        Map backlogs = new HashMap();
+        for (Iterator iterator = registrations.iterator(); iterator.hasNext();) {
+            Registration registration = (Registration) iterator.next();
+            Integer backlog = (Integer) backlogs.get(registration.cacheName);
+            int previous = backlog == null ? 0 : backlog.intValue();
+            backlogs.put(registration.cacheName, Integer.valueOf(previous + registration.store.getSpoolBacklog()));
+        }
+        return backlogs;
+    }
+
+    /**
+     * @return true until {@link #dispose()} is called
+     */
+    public boolean isAlive() {
+        return !executor.isShutdown();
+    }
+
+    /**
+     * Stops the worker threads. Stores should be disposed first, as they are no longer given work.
+     */
+    public void dispose() {
+        executor.shutdownNow();
+        registrations.clear();
+    }
+
+    /**
+     * A store's place in the scheduler.
+     */
+    final class Registration implements Runnable {
+
+        private final DiskStore store;
+        private final String cacheName;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private volatile boolean registered = true;
+        private long timerTime = Long.MAX_VALUE;
+
+        private Registration(DiskStore store, String cacheName) {
+            this.store = store;
+            this.cacheName = cacheName;
+        }
+
+        /**
+         * Queues a round of work for the store, unless one is already queued. If a round is running, another
+         * follows it.
+         */
+        void signal() {
+            while (true) {
+                int current = state.get();
+                if (current == QUEUED || current == RUNNING_AND_SIGNALLED) {
+                    return;
+                }
+                if (current == IDLE && state.compareAndSet(IDLE, QUEUED)) {
+                    submit();
+                    return;
+                }
+                if (current == RUNNING && state.compareAndSet(RUNNING, RUNNING_AND_SIGNALLED)) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Queues a round of work for the store at the given time, unless one is already scheduled by then.
+         *
+         * @param time the time in ms, or Long.MAX_VALUE for never
+         */
+        void signalAt(final long time) {
+            if (time == Long.MAX_VALUE || !registered) {
+                return;
+            }
+            long delay = time - System.currentTimeMillis();
+            if (delay <= 0) {
+                signal();
+                return;
+            }
+            synchronized (this) {
+                if (time >= timerTime) {
+                    return;
+                }
+                timerTime = time;
+            }
+            try {
+                executor.schedule(new Runnable() {
+                    public void run() {
+                        synchronized (Registration.this) {
+                            if (timerTime == time) {
+                                timerTime = Long.MAX_VALUE;
+                            }
+                        }
+                        signal();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                //the scheduler has been disposed
+            }
+        }
+
+        /**
+         * @return false once the store has been unregistered or the scheduler disposed
+         */
+        boolean isAlive() {
+            return registered && DiskStoreScheduler.this.isAlive();
+        }
+
+        /**
+         * Stops giving the store work, waiting for any round in progress to finish.
+         *
+         * @throws InterruptedException if interrupted while waiting
+         */
+        void unregister() throws InterruptedException {
+            registered = false;
+            registrations.remove(this);
+            synchronized (this) {
+                while (state.get() == RUNNING || state.get() == RUNNING_AND_SIGNALLED) {
+                    wait();
+                }
+            }
+        }
+
+        /**
+         * Runs one round of work for the store, then schedules the next.
+         */
+        public void run() {
+            state.set(RUNNING);
+            long nextWorkTime = Long.MAX_VALUE;
+            try {
+                if (registered) {
+                    nextWorkTime = store.runScheduledWork();
+                }
+            } catch (Throwable e) {
+                LOG.log(Level.SEVERE, cacheName + " Cache: DiskStore scheduled work failed due to "
+                        + e.getMessage() + ". Continuing...", e);
+            } finally {
+                if (!state.compareAndSet(RUNNING, IDLE)) {
+                    state.set(QUEUED);
+                    submit();
+                }
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+            signalAt(nextWorkTime);
+        }
+
+        private void submit() {
+            if (!registered) {
+                state.set(IDLE);
+                return;
+            }
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                state.set(IDLE);
+            }
+        }
+    }
+}
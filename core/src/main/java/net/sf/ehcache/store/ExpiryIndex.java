@@ -0,0 +1,141 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A time bucketed index of keys by expiry time.
+ * <p/>
+ * Keys are grouped into buckets of a fixed width of time. An expiry run only needs to look at the keys in the buckets
+ * which have started before now, rather than at every entry in the store. Keys which never expire are not indexed.
+ * <p/>
+ * The index is threadsafe.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class ExpiryIndex {
+
+    private final long bucketWidth;
+
+    /**
+     * Bucket number to the Set of keys expiring in that bucket
+     */
+    private final TreeMap buckets = new TreeMap();
+
+    private int size;
+
+    /**
+     * Creates an index.
+     *
+     * @param bucketWidthMillis the width of each bucket. This is normally the interval between expiry runs.
+     */
+    ExpiryIndex(long bucketWidthMillis) {
+        if (bucketWidthMillis <= 0) {
+            throw new IllegalArgumentException("Bucket width must be positive. Was " + bucketWidthMillis);
+        }
+        this.bucketWidth = bucketWidthMillis;
+    }
+
+    /**
+     * Adds a key to the index.
+     *
+     * @param key        the key
+     * @param expiryTime the time the entry expires. Long.MAX_VALUE means never, and the key is not indexed.
+     */
+    synchronized void add(Object key, long expiryTime) {
+        if (expiryTime == Long.MAX_VALUE) {
+            return;
+        }
+        Long bucket = new Long(bucketFor(expiryTime));
+        Set keys = (Set) buckets.get(bucket);
+        if (keys == null) {
+            keys = new HashSet();
+            buckets.put(bucket, keys);
+        }
+        if (keys.add(key)) {
+            size++;
+        }
+    }
+
+    /**
+     * Removes a key from the index.
+     *
+     * @param key        the key
+     * @param expiryTime the expiry time the key was added with
+     */
+    synchronized void remove(Object key, long expiryTime) {
+        if (expiryTime == Long.MAX_VALUE) {
+            return;
+        }
+        Long bucket = new Long(bucketFor(expiryTime));
+        Set keys = (Set) buckets.get(bucket);
+        if (keys != null && keys.remove(key)) {
+            size--;
+            if (keys.isEmpty()) {
+                buckets.remove(bucket);
+            }
+        }
+    }
+
+    /**
+     * Gets the keys which may have expired by the given time. These are all keys in buckets which started at or
+     * before that time. Keys in the last of those buckets may not be due yet, so callers must check the actual
+     * expiry time of each entry.
+     * <p/>
+     * Keys are not removed from the index by this method.
+     *
+     * @param now the current time
+     * @return a copy of the candidate keys
+     */
+    synchronized List candidateKeys(long now) {
+        SortedMap due = buckets.headMap(new Long(bucketFor(now) + 1));
+        List keys = new ArrayList();
+        for (Iterator iterator = due.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            keys.addAll((Set) entry.getValue());
+        }
+        return keys;
+    }
+
+    /**
+     * Removes all keys.
+     */
+    synchronized void clear() {
+        buckets.clear();
+        size = 0;
+    }
+
+    /**
+     * @return the number of keys in the index
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    private long bucketFor(long time) {
+        return time / bucketWidth;
+    }
+}
@@ -0,0 +1,584 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * A compact {@link DiskIndex} which keeps no objects per entry.
+ * <p/>
+ * Each entry is held in three primitive arrays of an open addressing hash table: a 64 bit hash of the key, the
+ * position and block size of the record packed into a long, and the expiry time in seconds. That is 20 bytes per
+ * entry, plus the free slots of the table, where the default index costs a key and a {@link DiskElement} and a
+ * map entry per element.
+ * <p/>
+ * The price is that the keys are only known from the records on disk:
+ * <ul>
+ * <li>lookups may find the entry of another key with the same hash. The {@link DiskStore} checks the key of every
+ * record it reads. When two keys collide, the newer entry replaces the older one, which is lost as if evicted.
+ * <li>Strings and Numbers are hashed to 64 bits. Other keys are hashed with their <code>hashCode()</code>, so
+ * collisions are more frequent, and persistent stores need key classes whose hashCode is the same from one JVM to
+ * the next. For such keys, the {@link DiskStore} reads the record back to confirm that it holds the key.
+ * <li>hit counts are not kept, so eviction picks a random entry.
+ * <li>payload sizes are not kept. A record is read as the whole of its block, and its length is then taken from its
+ * header, as a reused block may be longer than the record written into it.
+ * <li>blocks are limited to {@link #MAXIMUM_BLOCK_SIZE} and the data file to {@link #MAXIMUM_POSITION}.
+ * </ul>
+ * For expiry, the table is divided into runs of 64 slots, each with the earliest expiry time in it, so that an expiry
+ * run only reads the runs which hold something due. A copy shares the arrays of the index until either is changed.
+ * All methods synchronize on the index.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class HashedDiskIndex implements DiskIndex {
+
+    /**
+     * The largest block which can be indexed, about 16MB
+     */
+    static final int MAXIMUM_BLOCK_SIZE = (1 << 24) - 1;
+
+    /**
+     * The largest position which can be indexed, about 1TB
+     */
+    static final long MAXIMUM_POSITION = (1L << 40) - 1;
+
+    private static final long serialVersionUID = -6092371985533241902L;
+
+    private static final int BLOCK_SIZE_BITS = 24;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int EXPIRY_RUN_BITS = 6;
+    private static final int ITERATION_CHUNK_SIZE = 256;
+    private static final int NEVER = Integer.MAX_VALUE;
+    private static final int MS_PER_SECOND = 1000;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final Random RANDOM = new Random();
+
+    /**
+     * Hashes of the keys. 0 marks a free slot.
+     */
+    private long[] hashes;
+
+    /**
+     * Position shifted left by {@link #BLOCK_SIZE_BITS}, or'ed with the block size
+     */
+    private long[] locations;
+
+    /**
+     * Expiry times in seconds, rounded up. {@link #NEVER} for elements which do not expire.
+     */
+    private int[] expiries;
+
+    /**
+     * The earliest expiry time in each run of 64 slots. It may be earlier than any left in the run, after removals,
+     * until the run is next scanned.
+     */
+    private transient int[] earliestExpiries;
+
+    private int size;
+
+    /**
+     * Counts the changes which move entries between slots, so that an iterator can tell it may have missed some
+     */
+    private transient int modifications;
+
+    /**
+     * True when the arrays may be shared with a copy, and must be cloned before they are changed
+     */
+    private transient boolean shared;
+
+    /**
+     * Creates an empty index.
+     */
+    HashedDiskIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Gets the key hash of an entry of any index.
+     *
+     * @param diskElement an entry of a hashed index, or a DiskElement which holds its key
+     * @return the hash, as calculated by {@link #hash(Object)}
+     */
+    static long keyHash(DiskElement diskElement) {
+        if (diskElement instanceof HashedDiskElement) {
+            return ((HashedDiskElement) diskElement).hash;
+        }
+        return hash(diskElement.key);
+    }
+
+    /**
+     * Hashes a key to 64 bits. Equal keys always have equal hashes. 0 is never returned.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    static long hash(Object key) {
+        long hash;
+        if (key instanceof String) {
+            String string = (String) key;
+            hash = FNV_OFFSET_BASIS;
+            for (int i = 0; i < string.length(); i++) {
+                hash = (hash ^ string.charAt(i)) * FNV_PRIME;
+            }
+        } else if (isIntegral(key)) {
+            hash = ((Number) key).longValue();
+        } else {
+            hash = key.hashCode();
+        }
+        hash = mix(hash ^ key.getClass().getName().hashCode());
+        return hash == 0 ? 1 : hash;
+    }
+
+    /**
+     * Whether entries are told apart by the hash of the key alone: Strings, whose 64 bit hashes are taken to be
+     * unique, and integral Numbers, whose hashes are. Other keys are hashed from their 32 bit hashCode.
+     *
+     * @param key the key
+     * @return true if the entry found for the key is the entry of the key
+     */
+    static boolean isIdentifiedByHash(Object key) {
+        return key instanceof String || isIntegral(key);
+    }
+
+    private static boolean isIntegral(Object key) {
+        return key instanceof Long || key instanceof Integer || key instanceof Short || key instanceof Byte;
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every bit of the input over the output
+     */
+    private static long mix(long value) {
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DiskElement get(Object key) {
+        int slot = find(hash(key));
+        return slot < 0 ? null : diskElementAt(slot);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean containsKey(Object key) {
+        return find(hash(key)) >= 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DiskElement put(Object key, DiskElement diskElement) {
+        if (diskElement.blockSize > MAXIMUM_BLOCK_SIZE || diskElement.position > MAXIMUM_POSITION) {
+            throw new IllegalArgumentException("Block of " + diskElement.blockSize + " bytes at " + diskElement.position
+                    + " is beyond the limits of a hashed disk index");
+        }
+        diskElement.payloadSize = diskElement.blockSize;
+        unshare();
+        long hash = hash(key);
+        int slot = find(hash);
+        DiskElement replaced = null;
+        if (slot >= 0) {
+            replaced = diskElementAt(slot);
+        } else {
+            if ((size + 1) * 4 > hashes.length * 3) {
+                resize(hashes.length * 2);
+            }
+            slot = -(find(hash) + 1);
+            hashes[slot] = hash;
+            size++;
+        }
+        locations[slot] = (diskElement.position << BLOCK_SIZE_BITS) | diskElement.blockSize;
+        setExpiry(slot, toSeconds(diskElement.expiryTime));
+        return replaced;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DiskElement remove(Object key) {
+        int slot = find(hash(key));
+        if (slot < 0) {
+            return null;
+        }
+        DiskElement diskElement = diskElementAt(slot);
+        removeSlot(slot);
+        return diskElement;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean remove(DiskElement diskElement) {
+        int slot = findIndexed(diskElement);
+        if (slot < 0) {
+            return false;
+        }
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean relocate(DiskElement diskElement, long position, int blockSize) {
+        if (blockSize > MAXIMUM_BLOCK_SIZE || position > MAXIMUM_POSITION) {
+            return false;
+        }
+        int slot = findIndexed(diskElement);
+        if (slot < 0) {
+            return false;
+        }
+        unshare();
+        locations[slot] = (position << BLOCK_SIZE_BITS) | blockSize;
+        diskElement.position = position;
+        diskElement.blockSize = blockSize;
+        diskElement.payloadSize = blockSize;
+        return true;
+    }
+
+    /**
+     * @return the slot of a DiskElement if it is still indexed at its position, otherwise -1
+     */
+    private int findIndexed(DiskElement diskElement) {
+        long hash;
+        if (diskElement instanceof HashedDiskElement) {
+            hash = ((HashedDiskElement) diskElement).hash;
+        } else if (diskElement.key != null) {
+            hash = hash(diskElement.key);
+        } else {
+            return -1;
+        }
+        int slot = find(hash);
+        if (slot < 0 || (locations[slot] >>> BLOCK_SIZE_BITS) != diskElement.position) {
+            return -1;
+        }
+        return slot;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Iterates over the index a chunk of slots at a time, reading each chunk under the lock rather than copying the
+     * whole index. Entries added or changed during the iteration may or may not be seen.
+     *
+     * @return an Iterator of {@link DiskElement}s without keys
+     * @throws ConcurrentModificationException from the iterator, if entries have been removed, or the index resized,
+     *                                         since it started
+     */
+    public synchronized Iterator iterator() {
+        return new ChunkIterator(modifications);
+    }
+
+    /**
+     * Reads the occupied slots of a chunk.
+     *
+     * @return the slot after the chunk, or -1 once past the end
+     */
+    private synchronized int readChunk(int from, int expectedModifications, List chunk) {
+        if (modifications != expectedModifications) {
+            throw new ConcurrentModificationException();
+        }
+        if (from >= hashes.length) {
+            return -1;
+        }
+        int end = Math.min(from + ITERATION_CHUNK_SIZE, hashes.length);
+        for (int slot = from; slot < end; slot++) {
+            if (hashes[slot] != 0) {
+                chunk.add(diskElementAt(slot));
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Scans the runs of slots which hold an expiry time which has passed.
+     *
+     * @param now the current time
+     * @return the DiskElements which have expired
+     */
+    public synchronized List expiryCandidates(long now) {
+        long nowSeconds = now / MS_PER_SECOND;
+        List candidates = new ArrayList();
+        for (int run = 0; run < earliestExpiries.length; run++) {
+            if (earliestExpiries[run] > nowSeconds) {
+                continue;
+            }
+            int earliest = NEVER;
+            int end = (run + 1) << EXPIRY_RUN_BITS;
+            for (int slot = run << EXPIRY_RUN_BITS; slot < end; slot++) {
+                if (hashes[slot] != 0) {
+                    if (expiries[slot] <= nowSeconds) {
+                        candidates.add(diskElementAt(slot));
+                    }
+                    earliest = Math.min(earliest, expiries[slot]);
+                }
+            }
+            if (!shared) {
+                earliestExpiries[run] = earliest;
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Samples the occupied slots following a random slot.
+     *
+     * @return the sampled DiskElements, all with a hit count of 0
+     */
+    public synchronized DiskElement[] sample() {
+        int sampleSize = AbstractPolicy.calculateSampleSize(size);
+        DiskElement[] sampled = new DiskElement[sampleSize];
+        int slot = RANDOM.nextInt(hashes.length);
+        for (int i = 0; i < sampleSize; slot = (slot + 1) & (hashes.length - 1)) {
+            if (hashes[slot] != 0) {
+                sampled[i++] = diskElementAt(slot);
+            }
+        }
+        return sampled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getMaximumBlockSize() {
+        return MAXIMUM_BLOCK_SIZE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void clear() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DiskIndex copy() {
+        HashedDiskIndex copy = new HashedDiskIndex();
+        copy.hashes = hashes;
+        copy.locations = locations;
+        copy.expiries = expiries;
+        copy.earliestExpiries = earliestExpiries;
+        copy.size = size;
+        copy.shared = true;
+        shared = true;
+        return copy;
+    }
+
+    /**
+     * Clones the arrays if they may be shared with a copy, before they are changed.
+     */
+    private void unshare() {
+        if (shared) {
+            hashes = (long[]) hashes.clone();
+            locations = (long[]) locations.clone();
+            expiries = (int[]) expiries.clone();
+            earliestExpiries = (int[]) earliestExpiries.clone();
+            shared = false;
+        }
+    }
+
+    private void allocate(int capacity) {
+        hashes = new long[capacity];
+        locations = new long[capacity];
+        expiries = new int[capacity];
+        earliestExpiries = new int[capacity >> EXPIRY_RUN_BITS];
+        Arrays.fill(earliestExpiries, NEVER);
+        size = 0;
+        modifications++;
+        shared = false;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        earliestExpiries = new int[hashes.length >> EXPIRY_RUN_BITS];
+        Arrays.fill(earliestExpiries, NEVER);
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0) {
+                setExpiry(slot, expiries[slot]);
+            }
+        }
+    }
+
+    private void setExpiry(int slot, int expiry) {
+        expiries[slot] = expiry;
+        int run = slot >> EXPIRY_RUN_BITS;
+        if (expiry < earliestExpiries[run]) {
+            earliestExpiries[run] = expiry;
+        }
+    }
+
+    /**
+     * Linear probing.
+     *
+     * @return the slot holding the hash, or -(free slot + 1) if it is not present
+     */
+    private int find(long hash) {
+        int mask = hashes.length - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        while (hashes[slot] != 0) {
+            if (hashes[slot] == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -(slot + 1);
+    }
+
+    /**
+     * Removes a slot, shifting back the entries of the probe sequence which follows it so that no tombstones are
+     * needed.
+     */
+    private void removeSlot(int removed) {
+        unshare();
+        modifications++;
+        int mask = hashes.length - 1;
+        int free = removed;
+        int slot = removed;
+        while (true) {
+            slot = (slot + 1) & mask;
+            long hash = hashes[slot];
+            if (hash == 0) {
+                break;
+            }
+            int home = (int) (hash ^ (hash >>> 32)) & mask;
+            //move the entry back if its home slot is not cyclically between the free slot and its slot
+            boolean movable = free <= slot ? (home <= free || home > slot) : (home <= free && home > slot);
+            if (movable) {
+                hashes[free] = hash;
+                locations[free] = locations[slot];
+                setExpiry(free, expiries[slot]);
+                free = slot;
+            }
+        }
+        hashes[free] = 0;
+        locations[free] = 0;
+        expiries[free] = 0;
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldHashes = hashes;
+        long[] oldLocations = locations;
+        int[] oldExpiries = expiries;
+        int oldSize = size;
+        allocate(capacity);
+        for (int i = 0; i < oldHashes.length; i++) {
+            if (oldHashes[i] != 0) {
+                int slot = -(find(oldHashes[i]) + 1);
+                hashes[slot] = oldHashes[i];
+                locations[slot] = oldLocations[i];
+                setExpiry(slot, oldExpiries[i]);
+            }
+        }
+        size = oldSize;
+    }
+
+    private DiskElement diskElementAt(int slot) {
+        return createDiskElement(hashes[slot], locations[slot], expiries[slot]);
+    }
+
+    private static DiskElement createDiskElement(long hash, long location, int expiry) {
+        DiskElement diskElement = new HashedDiskElement(hash);
+        diskElement.position = location >>> BLOCK_SIZE_BITS;
+        diskElement.blockSize = (int) (location & MAXIMUM_BLOCK_SIZE);
+        diskElement.payloadSize = diskElement.blockSize;
+        diskElement.expiryTime = expiry == NEVER ? Long.MAX_VALUE : (long) expiry * MS_PER_SECOND;
+        return diskElement;
+    }
+
+    private static int toSeconds(long expiryTime) {
+        if (expiryTime == Long.MAX_VALUE) {
+            return NEVER;
+        }
+        long seconds = (expiryTime + MS_PER_SECOND - 1) / MS_PER_SECOND;
+        return seconds >= NEVER ? NEVER : (int) Math.max(seconds, 0);
+    }
+
+    /**
+     * Iterates over the index, reading a chunk of slots at a time.
+     */
+    private final class ChunkIterator implements Iterator {
+
+        private final int expectedModifications;
+        private final List chunk = new ArrayList();
+        private int chunkIndex;
+        private int nextSlot;
+
+        private ChunkIterator(int expectedModifications) {
+            this.expectedModifications = expectedModifications;
+        }
+
+        public boolean hasNext() {
+            while (chunkIndex == chunk.size() && nextSlot >= 0) {
+                chunk.clear();
+                chunkIndex = 0;
+                nextSlot = readChunk(nextSlot, expectedModifications, chunk);
+            }
+            return chunkIndex < chunk.size();
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return chunk.get(chunkIndex++);
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * A DiskElement created from the index, which remembers the hash it was found under.
+     */
+    private static final class HashedDiskElement extends DiskElement {
+
+        private static final long serialVersionUID = -1297624353461529731L;
+
+        private final long hash;
+
+        private HashedDiskElement(long hash) {
+            this.hash = hash;
+        }
+    }
+}
@@ -16,11 +16,13 @@
 
 package net.sf.ehcache.store;
 
+import net.sf.ehcache.Cache;
 import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Ehcache;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.Status;
 
+import java.io.File;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.logging.Level;
@@ -300,7 +302,7 @@ public class LruMemoryStore implements Store {
         for (Iterator iterator = map.values().iterator(); iterator.hasNext();) {
             Element element = (Element) iterator.next();
             if (element != null) {
-                sizeInBytes += element.getSerializedSize();
+                sizeInBytes += element.getSerializedSize(Cache.getElementSerializer(cache));
             }
         }
         return sizeInBytes;
@@ -371,6 +373,22 @@ public class LruMemoryStore implements Store {
         return false;
     }
 
+    /**
+     * Memory stores have no write buffer, so this returns at once.
+     */
+    public void waitForBufferSpace(long timeoutMillis) {
+        //nothing to wait for
+    }
+
+    /**
+     * Memory stores have no files to copy.
+     *
+     * @throws CacheException always
+     */
+    public void snapshot(File directory) throws CacheException {
+        throw new CacheException("A memory store cannot be snapshotted. Snapshot the disk store of the cache instead.");
+    }
+
 
     /**
      * Package local access to the map for testing
@@ -0,0 +1,395 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The default {@link DiskIndex}, which maps each key to a {@link DiskElement} holding the key and the statistics
+ * of the element.
+ * <p/>
+ * Keys which expire are also held in an {@link ExpiryIndex}, so that expiry runs do not have to look at every entry.
+ * <p/>
+ * The DiskElements are also kept in a dense array, each remembering its slot, so that eviction samples are drawn in
+ * constant time. Removals move the last DiskElement into the freed slot. Lookups do not lock; changes lock the index.
+ * <p/>
+ * A copy does not copy the DiskElements when it is taken. Until it is first used, the index it was taken from
+ * keeps the DiskElements it changes as they were, and the copy is then built from the index and those.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+final class ObjectDiskIndex implements DiskIndex {
+
+    private static final long serialVersionUID = -2396342174935738412L;
+
+    private static final int INITIAL_SAMPLE_ARRAY_SIZE = 64;
+
+    private final ConcurrentHashMap diskElements = new ConcurrentHashMap();
+
+    /**
+     * Stands for a key which was not in the index when a copy was taken
+     */
+    private static final DiskElement ABSENT = new DiskElement();
+
+    private final long expiryBucketWidth;
+
+    /**
+     * The keys of the disk elements, by expiry time. Rebuilt when the index is read.
+     */
+    private transient ExpiryIndex expiryIndex;
+
+    /**
+     * The indexed DiskElements in no particular order, for sampling. Rebuilt when the index is read.
+     */
+    private transient DiskElement[] sampleArray;
+
+    private transient int sampleCount;
+
+    private transient Random random;
+
+    /**
+     * Weak references to the copies of this index which have not been built yet. null if there are none.
+     */
+    private transient List pendingCopies;
+
+    /**
+     * For a copy which has not been built yet, the index it was taken from. null otherwise.
+     */
+    private transient volatile ObjectDiskIndex source;
+
+    /**
+     * For a copy which has not been built yet, the DiskElements of the source changed since the copy was taken, as
+     * they were then, by key.
+     */
+    private transient ConcurrentHashMap originals;
+
+    /**
+     * Creates an empty index.
+     *
+     * @param expiryBucketWidth the width of the expiry index buckets, normally the interval between expiry runs
+     */
+    ObjectDiskIndex(long expiryBucketWidth) {
+        this.expiryBucketWidth = expiryBucketWidth;
+        expiryIndex = new ExpiryIndex(expiryBucketWidth);
+        sampleArray = new DiskElement[INITIAL_SAMPLE_ARRAY_SIZE];
+        random = new Random();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public DiskElement get(Object key) {
+        if (source != null) {
+            build();
+        }
+        return (DiskElement) diskElements.get(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public boolean containsKey(Object key) {
+        if (source != null) {
+            build();
+        }
+        return diskElements.containsKey(key);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DiskElement put(Object key, DiskElement diskElement) {
+        build();
+        keepOriginal(key);
+        return index(key, diskElement);
+    }
+
+    private DiskElement index(Object key, DiskElement diskElement) {
+        DiskElement replaced = (DiskElement) diskElements.put(key, diskElement);
+        if (replaced == diskElement) {
+            return replaced;
+        } else if (replaced != null) {
+            expiryIndex.remove(key, replaced.expiryTime);
+            diskElement.sampleSlot = replaced.sampleSlot;
+            sampleArray[replaced.sampleSlot] = diskElement;
+            replaced.sampleSlot = -1;
+        } else {
+            addToSample(diskElement);
+        }
+        expiryIndex.add(key, diskElement.expiryTime);
+        return replaced;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DiskElement remove(Object key) {
+        build();
+        keepOriginal(key);
+        return unindex(key);
+    }
+
+    private DiskElement unindex(Object key) {
+        DiskElement diskElement = (DiskElement) diskElements.remove(key);
+        if (diskElement != null) {
+            expiryIndex.remove(key, diskElement.expiryTime);
+            removeFromSample(diskElement);
+        }
+        return diskElement;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean remove(DiskElement diskElement) {
+        build();
+        Object key = diskElement.key;
+        if (key == null) {
+            return false;
+        }
+        keepOriginal(key);
+        if (diskElements.remove(key, diskElement)) {
+            expiryIndex.remove(key, diskElement.expiryTime);
+            removeFromSample(diskElement);
+            return true;
+        }
+        return false;
+    }
+
+    private void addToSample(DiskElement diskElement) {
+        if (sampleCount == sampleArray.length) {
+            DiskElement[] grown = new DiskElement[sampleArray.length * 2];
+            System.arraycopy(sampleArray, 0, grown, 0, sampleCount);
+            sampleArray = grown;
+        }
+        diskElement.sampleSlot = sampleCount;
+        sampleArray[sampleCount++] = diskElement;
+    }
+
+    private void removeFromSample(DiskElement diskElement) {
+        int slot = diskElement.sampleSlot;
+        DiskElement last = sampleArray[--sampleCount];
+        sampleArray[slot] = last;
+        last.sampleSlot = slot;
+        sampleArray[sampleCount] = null;
+        diskElement.sampleSlot = -1;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized boolean relocate(DiskElement diskElement, long position, int blockSize) {
+        build();
+        Object key = diskElement.key;
+        if (key == null || diskElements.get(key) != diskElement) {
+            return false;
+        }
+        keepOriginal(key);
+        diskElement.position = position;
+        diskElement.blockSize = blockSize;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int size() {
+        if (source != null) {
+            build();
+        }
+        return diskElements.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public Iterator iterator() {
+        if (source != null) {
+            build();
+        }
+        return Collections.unmodifiableCollection(diskElements.values()).iterator();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public List expiryCandidates(long now) {
+        if (source != null) {
+            build();
+        }
+        List candidateKeys = expiryIndex.candidateKeys(now);
+        List candidates = new ArrayList(candidateKeys.size());
+        for (int i = 0; i < candidateKeys.size(); i++) {
+            Object diskElement = diskElements.get(candidateKeys.get(i));
+            if (diskElement != null) {
+                candidates.add(diskElement);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Samples the dense array of DiskElements, in time independent of the size of the index.
+     * The same DiskElement may be sampled more than once.
+     *
+     * @return an array of sampled elements
+     */
+    public synchronized DiskElement[] sample() {
+        build();
+        DiskElement[] sampled = new DiskElement[AbstractPolicy.calculateSampleSize(sampleCount)];
+        for (int i = 0; i < sampled.length; i++) {
+            sampled[i] = sampleArray[random.nextInt(sampleCount)];
+        }
+        return sampled;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public int getMaximumBlockSize() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized void clear() {
+        build();
+        if (pendingCopies != null) {
+            for (Iterator iterator = diskElements.keySet().iterator(); iterator.hasNext();) {
+                keepOriginal(iterator.next());
+            }
+        }
+        for (int i = 0; i < sampleCount; i++) {
+            sampleArray[i].sampleSlot = -1;
+        }
+        diskElements.clear();
+        expiryIndex.clear();
+        sampleArray = new DiskElement[INITIAL_SAMPLE_ARRAY_SIZE];
+        sampleCount = 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public synchronized DiskIndex copy() {
+        build();
+        ObjectDiskIndex copy = new ObjectDiskIndex(expiryBucketWidth);
+        copy.originals = new ConcurrentHashMap();
+        copy.source = this;
+        if (pendingCopies == null) {
+            pendingCopies = new ArrayList();
+        }
+        pendingCopies.add(new WeakReference(copy));
+        return copy;
+    }
+
+    /**
+     * Gives the copies not built yet the DiskElement of a key as it is, before it is changed. Only the first
+     * change after a copy is taken is kept. The caller holds the index lock.
+     */
+    private void keepOriginal(Object key) {
+        if (pendingCopies == null) {
+            return;
+        }
+        DiskElement original = (DiskElement) diskElements.get(key);
+        for (Iterator iterator = pendingCopies.iterator(); iterator.hasNext();) {
+            ObjectDiskIndex copy = (ObjectDiskIndex) ((WeakReference) iterator.next()).get();
+            if (copy == null) {
+                iterator.remove();
+            } else if (!copy.originals.containsKey(key)) {
+                copy.originals.put(key, original == null ? ABSENT : original.copy());
+            }
+        }
+        if (pendingCopies.isEmpty()) {
+            pendingCopies = null;
+        }
+    }
+
+    /**
+     * Builds a copy from the index it was taken from, and the DiskElements that index has changed since, as they
+     * were. Runs on first use of the copy, so that taking it does not hold up the source.
+     */
+    private synchronized void build() {
+        ObjectDiskIndex from = source;
+        if (from == null) {
+            return;
+        }
+        for (Iterator iterator = from.diskElements.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            DiskElement diskElement = ((DiskElement) entry.getValue()).copy();
+            //checked after copying, as the source keeps the original before it changes a DiskElement
+            if (!originals.containsKey(entry.getKey())) {
+                diskElement.key = entry.getKey();
+                index(entry.getKey(), diskElement);
+            }
+        }
+        synchronized (from) {
+            from.forgetCopy(this);
+        }
+        for (Iterator iterator = originals.entrySet().iterator(); iterator.hasNext();) {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            if (entry.getValue() == ABSENT) {
+                unindex(entry.getKey());
+            } else {
+                index(entry.getKey(), (DiskElement) entry.getValue());
+            }
+        }
+        originals = null;
+        source = null;
+    }
+
+    private void forgetCopy(ObjectDiskIndex copy) {
+        for (Iterator iterator = pendingCopies.iterator(); iterator.hasNext();) {
+            Object pending = ((WeakReference) iterator.next()).get();
+            if (pending == null || pending == copy) {
+                iterator.remove();
+            }
+        }
+        if (pendingCopies.isEmpty()) {
+            pendingCopies = null;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        build();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        expiryIndex = new ExpiryIndex(expiryBucketWidth);
+        sampleArray = new DiskElement[Math.max(INITIAL_SAMPLE_ARRAY_SIZE, diskElements.size())];
+        random = new Random();
+        for (Iterator iterator = diskElements.values().iterator(); iterator.hasNext();) {
+            DiskElement diskElement = (DiskElement) iterator.next();
+            expiryIndex.add(diskElement.key, diskElement.expiryTime);
+            addToSample(diskElement);
+        }
+    }
+}
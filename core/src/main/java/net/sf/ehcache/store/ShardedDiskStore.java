@@ -0,0 +1,330 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.Status;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A disk store which splits the key space across a number of {@link DiskStore} shards.
+ * <p/>
+ * Each shard has its own data file, index, spool and spool thread. Keys are assigned to shards by hash,
+ * so a key always lives in exactly one shard. Serialization and writes for different shards proceed in parallel,
+ * and readers of one shard do not contend for the lock of another.
+ * <p/>
+ * maxElementsOnDisk and the spool buffer size configured for the cache are divided evenly between the shards.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class ShardedDiskStore implements Store {
+
+    private static final Logger LOG = Logger.getLogger(ShardedDiskStore.class.getName());
+
+    private final DiskStore[] shards;
+
+    /**
+     * Creates a sharded disk store.
+     *
+     * @param cache      the {@link net.sf.ehcache.Cache} that the store is part of
+     * @param diskPath   the directory in which to create data and index files
+     * @param shardCount the number of shards. Must be at least 1.
+     */
+    public ShardedDiskStore(Ehcache cache, String diskPath, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("A sharded disk store needs at least one shard. Was " + shardCount);
+        }
+        shards = new DiskStore[shardCount];
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                shards[i] = new DiskStore(cache, diskPath, shardName(cache.getName(), i), shardCount);
+            }
+        } catch (CacheException e) {
+            dispose();
+            throw e;
+        }
+        if (LOG.isLoggable(Level.FINE)) {
+            LOG.log(Level.FINE, "Created disk store for " + cache.getName() + " with " + shardCount + " shards.");
+        }
+    }
+
+    /**
+     * @return the name of the given shard of a cache's disk store, which is also used for its file names.
+     */
+    static String shardName(String cacheName, int shard) {
+        return cacheName + "_shard" + shard;
+    }
+
+    /**
+     * Selects the shard responsible for a key. The hash is spread so that keys whose hashCodes differ only
+     * in the upper bits do not all end up in the same shard.
+     */
+    final DiskStore shardFor(Object key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return shards[(hash & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * @return the shards. The array is the store's own, so it must not be modified.
+     */
+    public final DiskStore[] getShards() {
+        return shards;
+    }
+
+    /**
+     * Puts an element into the shard owning its key.
+     */
+    public final void put(Element element) throws CacheException {
+        shardFor(element.getObjectKey()).put(element);
+    }
+
+    /**
+     * Gets an element from the shard owning its key.
+     */
+    public final Element get(Object key) {
+        return shardFor(key).get(key);
+    }
+
+    /**
+     * Gets an element from the shard owning its key, without updating statistics.
+     */
+    public final Element getQuiet(Object key) {
+        return shardFor(key).getQuiet(key);
+    }
+
+    /**
+     * Gets the keys of all shards. Keys are unique across shards.
+     */
+    public final Object[] getKeyArray() {
+        Object[][] shardKeys = new Object[shards.length][];
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            shardKeys[i] = shards[i].getKeyArray();
+            size += shardKeys[i].length;
+        }
+        Object[] keys = new Object[size];
+        int offset = 0;
+        for (int i = 0; i < shardKeys.length; i++) {
+            System.arraycopy(shardKeys[i], 0, keys, offset, shardKeys[i].length);
+            offset += shardKeys[i].length;
+        }
+        return keys;
+    }
+
+    /**
+     * Removes an element from the shard owning its key.
+     */
+    public final Element remove(Object key) {
+        return shardFor(key).remove(key);
+    }
+
+    /**
+     * Removes all elements from every shard.
+     */
+    public final void removeAll() throws CacheException {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].removeAll();
+        }
+    }
+
+    /**
+     * Disposes every shard which was created.
+     */
+    public final void dispose() {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i] != null) {
+                shards[i].dispose();
+            }
+        }
+    }
+
+    /**
+     * @return the total number of elements in all shards
+     */
+    public final int getSize() {
+        int size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            size += shards[i].getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return the total size of the data files of all shards
+     */
+    public final long getSizeInBytes() {
+        long size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            size += shards[i].getSizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Shards are created and disposed together, so the first shard speaks for all of them.
+     */
+    public final Status getStatus() {
+        return shards[0].getStatus();
+    }
+
+    /**
+     * Checks the shard owning the key.
+     */
+    public final boolean containsKey(Object key) {
+        return shardFor(key).containsKey(key);
+    }
+
+    /**
+     * Expires elements in every shard.
+     */
+    public final void expireElements() {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].expireElements();
+        }
+    }
+
+    /**
+     * Flushes every shard.
+     */
+    public final void flush() throws IOException {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].flush();
+        }
+    }
+
+    /**
+     * The caller cannot tell which shard its next put will go to, so it backs off if any shard is backed up.
+     */
+    public final boolean bufferFull() {
+        for (int i = 0; i < shards.length; i++) {
+            if (shards[i].bufferFull()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Waits for each full shard in turn, within the timeout overall.
+     */
+    public final void waitForBufferSpace(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        for (int i = 0; i < shards.length; i++) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            shards[i].waitForBufferSpace(remaining);
+        }
+    }
+
+    /**
+     * Snapshots each shard into the directory. The in-memory part of the snapshot is taken from all the shards
+     * before any files are copied, so the shards are copied as of nearly the same time.
+     */
+    public final void snapshot(File directory) throws IOException {
+        DiskStore.Snapshot[] snapshots = new DiskStore.Snapshot[shards.length];
+        IOException failure = null;
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                snapshots[i] = shards[i].beginSnapshot(directory);
+            }
+        } finally {
+            for (int i = 0; i < shards.length; i++) {
+                if (snapshots[i] == null) {
+                    continue;
+                }
+                try {
+                    shards[i].writeSnapshot(snapshots[i], directory);
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return the eviction policy of the shards
+     */
+    public final Policy getEvictionPolicy() {
+        return shards[0].getEvictionPolicy();
+    }
+
+    /**
+     * Sets the eviction policy of every shard.
+     */
+    public final void setEvictionPolicy(Policy policy) {
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].setEvictionPolicy(policy);
+        }
+    }
+
+    /**
+     * @return the sum of the data file sizes of the shards, in bytes
+     */
+    public final long getDataFileSize() {
+        return getSizeInBytes();
+    }
+
+    /**
+     * @return the sum of the live data sizes of the shards, in bytes
+     */
+    public final long getUsedDataSize() {
+        long size = 0;
+        for (int i = 0; i < shards.length; i++) {
+            size += shards[i].getUsedDataSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return true if the spool threads of all shards are alive
+     */
+    public final boolean isSpoolThreadAlive() {
+        for (int i = 0; i < shards.length; i++) {
+            if (!shards[i].isSpoolThreadAlive()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a {@link String} representation of the {@link ShardedDiskStore}
+     */
+    public final String toString() {
+        StringBuffer sb = new StringBuffer();
+        sb.append("[ shards = ").append(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            sb.append(", ").append(shards[i]);
+        }
+        sb.append(" ]");
+        return sb.toString();
+    }
+}
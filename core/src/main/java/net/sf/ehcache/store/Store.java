@@ -20,6 +20,7 @@ import net.sf.ehcache.CacheException;
 import net.sf.ehcache.Element;
 import net.sf.ehcache.Status;
 
+import java.io.File;
 import java.io.IOException;
 
 /**
@@ -124,6 +125,22 @@ public interface Store {
      */
     boolean bufferFull();
 
+    /**
+     * Waits until the store write buffer is no longer backed up, or the timeout passes. Stores without a write
+     * buffer return at once.
+     * @param timeoutMillis the longest to wait
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void waitForBufferSpace(long timeoutMillis) throws InterruptedException;
+
+    /**
+     * Writes a point in time copy of the store's files to a directory, for backup. Stores without files
+     * throw a CacheException.
+     * @param directory the directory to write to
+     * @throws IOException if the copy cannot be written
+     */
+    void snapshot(File directory) throws IOException;
+
     /**
      * @return the current eviction policy. This may not be the configured policy, if it has been
      *         dynamically set.
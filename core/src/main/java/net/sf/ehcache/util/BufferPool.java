@@ -0,0 +1,149 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.util;
+
+import java.lang.ref.SoftReference;
+
+/**
+ * A per thread pool of byte[] buffers for serialization.
+ * <p/>
+ * Buffers come in size classes, which are the powers of two from {@link #MINIMUM_BUFFER_SIZE} to
+ * {@link #MAXIMUM_BUFFER_SIZE}. Each thread keeps a few buffers of each class, up to
+ * {@link #MAXIMUM_POOLED_BYTES_PER_THREAD} in all. Larger requests are allocated and left to the garbage collector.
+ * The pool of a thread is softly referenced, so that it is given up under memory pressure.
+ * <p/>
+ * Because pools are per thread no locking is needed, but a buffer should be released by the thread that acquired it.
+ * A buffer released by another thread simply joins that thread's pool. A buffer must not be used after it is released.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public final class BufferPool {
+
+    /**
+     * The size of the smallest size class
+     */
+    public static final int MINIMUM_BUFFER_SIZE = 512;
+
+    /**
+     * The size of the largest size class. Larger buffers are not pooled.
+     */
+    public static final int MAXIMUM_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * The most memory each thread keeps in pooled buffers
+     */
+    public static final int MAXIMUM_POOLED_BYTES_PER_THREAD = 1024 * 1024;
+
+    private static final int SIZE_CLASSES = 10;
+    private static final int BUFFERS_PER_SIZE_CLASS = 2;
+
+    private static final ThreadLocal POOLS = new ThreadLocal();
+
+    /**
+     * Utility class
+     */
+    private BufferPool() {
+        //noop
+    }
+
+    /**
+     * Gets a buffer of at least the given size. The buffer may hold data from its previous use.
+     *
+     * @param minimumSize the number of bytes needed
+     * @return a buffer, which is larger than requested unless the size is a size class or above the largest class
+     */
+    public static byte[] acquire(int minimumSize) {
+        if (minimumSize > MAXIMUM_BUFFER_SIZE) {
+            return new byte[minimumSize];
+        }
+        int sizeClass = sizeClassFor(minimumSize);
+        byte[] buffer = pool().take(sizeClass);
+        if (buffer == null) {
+            buffer = new byte[MINIMUM_BUFFER_SIZE << sizeClass];
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool of the current thread. Buffers which are not of a size class, or which do not
+     * fit in the pool, are dropped.
+     *
+     * @param buffer a buffer no longer in use. May be null.
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null || buffer.length < MINIMUM_BUFFER_SIZE || buffer.length > MAXIMUM_BUFFER_SIZE
+                || (buffer.length & (buffer.length - 1)) != 0) {
+            return;
+        }
+        pool().give(sizeClassFor(buffer.length), buffer);
+    }
+
+    private static int sizeClassFor(int size) {
+        int sizeClass = 0;
+        while ((MINIMUM_BUFFER_SIZE << sizeClass) < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    private static Pool pool() {
+        SoftReference reference = (SoftReference) POOLS.get();
+        Pool pool = reference == null ? null : (Pool) reference.get();
+        if (pool == null) {
+            pool = new Pool();
+            POOLS.set(new SoftReference(pool));
+        }
+        return pool;
+    }
+
+    /**
+     * The buffers of one thread
+     */
+    private static final class Pool {
+
+        private final byte[][][] buffers = new byte[SIZE_CLASSES][BUFFERS_PER_SIZE_CLASS][];
+        private final int[] counts = new int[SIZE_CLASSES];
+        private int pooledBytes;
+
+        private byte[] take(int sizeClass) {
+            if (counts[sizeClass] == 0) {
+                return null;
+            }
+            int slot = --counts[sizeClass];
+            byte[] buffer = buffers[sizeClass][slot];
+            buffers[sizeClass][slot] = null;
+            pooledBytes -= buffer.length;
+            return buffer;
+        }
+
+        private void give(int sizeClass, byte[] buffer) {
+            if (counts[sizeClass] == BUFFERS_PER_SIZE_CLASS
+                    || pooledBytes + buffer.length > MAXIMUM_POOLED_BYTES_PER_THREAD) {
+                return;
+            }
+            for (int i = 0; i < counts[sizeClass]; i++) {
+                if (buffers[sizeClass][i] == buffer) {
+                    //released twice
+                    return;
+                }
+            }
+            buffers[sizeClass][counts[sizeClass]++] = buffer;
+            pooledBytes += buffer.length;
+        }
+    }
+}
@@ -38,6 +38,8 @@ public final class MemoryEfficientByteArrayOutputStream extends ByteArrayOutputS
      */
     private static final int BEST_GUESS_SIZE = 512;
 
+    private static final byte[] EMPTY = new byte[0];
+
     private static int lastSize = BEST_GUESS_SIZE;
 
     /**
@@ -50,6 +52,32 @@ public final class MemoryEfficientByteArrayOutputStream extends ByteArrayOutputS
         super(size);
     }
 
+    private MemoryEfficientByteArrayOutputStream(byte[] buffer) {
+        super(0);
+        buf = buffer;
+    }
+
+    /**
+     * Factory method for a stream whose buffer comes from the {@link BufferPool} of the current thread.
+     * Call {@link #release()} once the contents are no longer needed.
+     *
+     * @param size the initial size
+     * @return an empty stream
+     */
+    public static MemoryEfficientByteArrayOutputStream pooled(int size) {
+        return new MemoryEfficientByteArrayOutputStream(BufferPool.acquire(size));
+    }
+
+    /**
+     * Returns the buffer to the {@link BufferPool} and empties the stream. Bytes previously obtained with
+     * {@link #getBytes()} must not be used afterwards.
+     */
+    public synchronized void release() {
+        byte[] buffer = buf;
+        buf = EMPTY;
+        count = 0;
+        BufferPool.release(buffer);
+    }
 
 
 
@@ -62,6 +90,19 @@ public final class MemoryEfficientByteArrayOutputStream extends ByteArrayOutputS
         return buf;
     }
 
+    /**
+     * Discards everything written after the given number of bytes. This allows a partly written
+     * record to be dropped from a buffer holding several records.
+     *
+     * @param size the number of valid bytes to keep. Must not be larger than {@link #size()}.
+     */
+    public synchronized void truncate(int size) {
+        if (size < 0 || size > count) {
+            throw new IllegalArgumentException("Cannot truncate a buffer of " + count + " bytes to " + size + " bytes.");
+        }
+        count = size;
+    }
+
     /**
      * Factory method
      * @param serializable any Object that implements Serializable
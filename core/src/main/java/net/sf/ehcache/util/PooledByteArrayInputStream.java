@@ -0,0 +1,55 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.util;
+
+import java.io.ByteArrayInputStream;
+
+/**
+ * A ByteArrayInputStream over a buffer from the {@link BufferPool}, which is released when the stream is closed.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public final class PooledByteArrayInputStream extends ByteArrayInputStream {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Creates a stream over part of a pooled buffer.
+     *
+     * @param buffer a buffer acquired from the {@link BufferPool}. The stream takes ownership of it.
+     * @param offset the offset of the first byte to read
+     * @param length the number of bytes to read
+     */
+    public PooledByteArrayInputStream(byte[] buffer, int offset, int length) {
+        super(buffer, offset, length);
+    }
+
+    /**
+     * Releases the buffer to the pool. The stream is empty afterwards. Closing more than once has no effect.
+     */
+    public synchronized void close() {
+        byte[] buffer = buf;
+        if (buffer != EMPTY) {
+            buf = EMPTY;
+            pos = 0;
+            count = 0;
+            mark = 0;
+            BufferPool.release(buffer);
+        }
+    }
+}
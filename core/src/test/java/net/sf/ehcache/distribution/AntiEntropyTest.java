@@ -0,0 +1,148 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests repairing differences between replicas with a hash tree.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class AntiEntropyTest {
+
+    private static final int KEYS = 5000;
+
+    private CacheManager manager;
+    private Cache source;
+    private Cache target;
+
+    /**
+     * Creates two caches holding the same elements
+     */
+    @Before
+    public void setUp() throws Exception {
+        manager = new CacheManager();
+        source = new Cache("source", KEYS * 2, false, true, 0, 0);
+        target = new Cache("target", KEYS * 2, false, true, 0, 0);
+        manager.addCache(source);
+        manager.addCache(target);
+        for (int i = 0; i < KEYS; i++) {
+            Element element = new Element(new Integer(i), "value" + i);
+            source.put(element);
+            target.put((Element) element.clone(), true);
+        }
+    }
+
+    /**
+     * Shuts down the CacheManager
+     */
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Identical caches have identical trees, and a difference shows in one leaf
+     */
+    @Test
+    public void testTrees() {
+        HashTree sourceTree = HashTree.build(source, 256);
+        HashTree targetTree = HashTree.build(target, 256);
+        assertEquals(17, sourceTree.getFirstLeaf());
+        assertEquals(sourceTree.getHash(0), targetTree.getHash(0));
+
+        target.remove(new Integer(7));
+        targetTree = HashTree.build(target, 256);
+        int differentLeaves = 0;
+        for (int leaf = 0; leaf < 256; leaf++) {
+            int node = sourceTree.getFirstLeaf() + leaf;
+            if (sourceTree.getHash(node) != targetTree.getHash(node)) {
+                differentLeaves++;
+                assertEquals(HashTree.leafOf(new Integer(7), 256), leaf);
+            }
+        }
+        assertEquals(1, differentLeaves);
+        assertTrue(sourceTree.getHash(0) != targetTree.getHash(0));
+
+        assertTrue(HashTree.isValidLeafCount(4096));
+        assertTrue(!HashTree.isValidLeafCount(1000));
+        assertTrue(!HashTree.isValidLeafCount(1));
+    }
+
+    /**
+     * Missing and older elements are fetched, newer and extra local elements are left alone
+     */
+    @Test
+    public void testRepair() throws Exception {
+        //replication messages which never arrived
+        for (int i = 0; i < 3; i++) {
+            target.remove(new Integer(i));
+        }
+        Thread.sleep(10);
+        for (int i = 10; i < 12; i++) {
+            source.put(new Element(new Integer(i), "updated" + i));
+        }
+        target.put(new Element("localOnly", "value"));
+        Thread.sleep(10);
+        target.put(new Element(new Integer(20), "newer here"));
+
+        CachePeer peer = new NIOBoundCachePeer(source, "//localhost:1");
+        AntiEntropyCacheExtension extension = new AntiEntropyCacheExtension(target, 1000, 4096);
+        assertEquals(5, extension.resynchronise(peer, HashTree.build(target, 4096)));
+
+        assertEquals("value0", target.get(new Integer(0)).getObjectValue());
+        assertEquals("updated11", target.get(new Integer(11)).getObjectValue());
+        assertEquals("newer here", target.get(new Integer(20)).getObjectValue());
+        assertEquals("value", target.get("localOnly").getObjectValue());
+        assertEquals(KEYS + 1, target.getSize());
+
+        //what remains differs only because this cache is newer
+        assertEquals(0, extension.resynchronise(peer, HashTree.build(target, 4096)));
+    }
+
+    /**
+     * The factory reads its properties, and the extension runs rounds until disposed
+     */
+    @Test
+    public void testLifecycle() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(AntiEntropyCacheExtensionFactory.INTERVAL_SECONDS, "1");
+        properties.setProperty(AntiEntropyCacheExtensionFactory.LEAF_COUNT, "1000");
+        AntiEntropyCacheExtension extension = (AntiEntropyCacheExtension)
+                new AntiEntropyCacheExtensionFactory().createCacheExtension(target, properties);
+        assertEquals(1000, extension.getIntervalMillis());
+        assertEquals(4096, extension.getLeafCount());
+
+        extension.init();
+        Thread.sleep(1500);
+        extension.dispose();
+        assertEquals(1, extension.getRounds());
+        assertEquals(0, extension.getElementsRepaired());
+    }
+}
@@ -0,0 +1,145 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.AbstractCacheTest;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests discovering peers with binary multicast heartbeats. Like {@link MulticastRMIPeerProviderTest}, this needs
+ * multicast to work on the loopback interface.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class BinaryHeartbeatTest {
+
+    private CacheManager manager1;
+    private CacheManager manager2;
+
+    /**
+     * Starts two CacheManagers and waits for them to find each other
+     */
+    @Before
+    public void setUp() throws Exception {
+        MulticastKeepaliveHeartbeatSender.setHeartBeatInterval(1000);
+        manager1 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-heartbeat1.xml");
+        manager2 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-heartbeat2.xml");
+        waitForPeers(manager1, "sampleCache2", 1);
+        waitForPeers(manager2, "sampleCache2", 1);
+    }
+
+    /**
+     * Shuts down the CacheManagers
+     */
+    @After
+    public void tearDown() throws Exception {
+        manager1.shutdown();
+        manager2.shutdown();
+        MulticastKeepaliveHeartbeatSender.setHeartBeatInterval(5000);
+    }
+
+    /**
+     * A heartbeat survives the trip, is small, and cannot be mistaken for a gzipped URL list
+     */
+    @Test
+    public void testHeartbeat() throws Exception {
+        List rmiUrls = Arrays.asList(new String[]{"//localhost:40051/sampleCache1", "//localhost:40051/sampleCache2"});
+        List reversed = new ArrayList(rmiUrls);
+        Collections.reverse(reversed);
+        assertEquals(Heartbeat.hash(rmiUrls), Heartbeat.hash(reversed));
+        assertFalse(Heartbeat.hash(rmiUrls) == Heartbeat.hash(rmiUrls.subList(0, 1)));
+
+        byte[] bytes = new Heartbeat("//localhost:40051", 7L, Heartbeat.hash(rmiUrls), 2).toBytes();
+        assertTrue(bytes.length < 100);
+        assertTrue(Heartbeat.isHeartbeat(bytes, bytes.length));
+        Heartbeat heartbeat = Heartbeat.fromBytes(bytes, bytes.length);
+        assertEquals("//localhost:40051", heartbeat.getUrlBase());
+        assertEquals(7L, heartbeat.getGeneration());
+        assertEquals(Heartbeat.hash(rmiUrls), heartbeat.getCacheSetHash());
+        assertEquals(2, heartbeat.getPeerCount());
+
+        byte[] gzipped = PayloadUtil.gzip(PayloadUtil.assembleUrlList(new ArrayList()));
+        assertFalse(Heartbeat.isHeartbeat(gzipped, gzipped.length));
+    }
+
+    /**
+     * Peers are found, kept without being looked up again while nothing changes, and a removed cache is dropped
+     */
+    @Test
+    public void testDiscoveryAndRemoval() throws Exception {
+        assertTrue(((MulticastRMICacheManagerPeerProvider) manager1.getCacheManagerPeerProvider("RMI"))
+                .getHeartBeatSender().isBinaryHeartbeat());
+        CachePeer peer = (CachePeer) peers(manager1, "sampleCache1").get(0);
+        assertEquals("//localhost:40052/sampleCache1", peer.getUrl());
+
+        manager2.removeCache("sampleCache2");
+        waitForPeers(manager1, "sampleCache2", 0);
+        Thread.sleep(3000);
+        assertSame(peer, peers(manager1, "sampleCache1").get(0));
+
+        manager1.getCache("sampleCache1").put(new Element("key", "value"));
+        assertNotNull(manager2.getCache("sampleCache1").get("key"));
+    }
+
+    /**
+     * A restarted CacheManager sends a new generation, and its peers are looked up again
+     */
+    @Test
+    public void testRestart() throws Exception {
+        CachePeer peer = (CachePeer) peers(manager1, "sampleCache1").get(0);
+        manager2.shutdown();
+        manager2 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-heartbeat2.xml");
+        long end = System.currentTimeMillis() + 10000;
+        while (peers(manager1, "sampleCache1").size() != 1 || peers(manager1, "sampleCache1").get(0) == peer) {
+            assertTrue("The restarted peer was not looked up again", System.currentTimeMillis() < end);
+            Thread.sleep(100);
+        }
+
+        manager1.getCache("sampleCache1").put(new Element("key", "value"));
+        assertNotNull(manager2.getCache("sampleCache1").get("key"));
+    }
+
+    private static List peers(CacheManager manager, String cacheName) {
+        Ehcache cache = manager.getCache(cacheName);
+        return manager.getCacheManagerPeerProvider("RMI").listRemoteCachePeers(cache);
+    }
+
+    private static void waitForPeers(CacheManager manager, String cacheName, int expected) throws InterruptedException {
+        long end = System.currentTimeMillis() + 10000;
+        while (peers(manager, cacheName).size() != expected) {
+            assertTrue("Expected " + expected + " peers of " + cacheName, System.currentTimeMillis() < end);
+            Thread.sleep(100);
+        }
+    }
+}
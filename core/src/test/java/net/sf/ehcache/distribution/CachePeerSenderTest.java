@@ -0,0 +1,248 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.serialization.JavaElementSerializer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.rmi.ServerException;
+import java.rmi.UnmarshalException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that peers are sent to independently.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class CachePeerSenderTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    /**
+     * Shuts down the executor
+     */
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A slow peer does not delay a fast one, and each receives every message in order
+     */
+    @Test
+    public void testSlowPeerIsolated() throws Exception {
+        RecordingPeer slowPeer = new RecordingPeer(500, false);
+        RecordingPeer fastPeer = new RecordingPeer(0, false);
+        CachePeerSender slowSender = new CachePeerSender(slowPeer, JavaElementSerializer.INSTANCE, executor, 1000, 100);
+        CachePeerSender fastSender = new CachePeerSender(fastPeer, JavaElementSerializer.INSTANCE, executor, 1000, 100);
+
+        for (int i = 0; i < 10; i++) {
+            byte[] payload = payload(i * 10, 10);
+            slowSender.enqueue(payload, 10);
+            fastSender.enqueue(payload, 10);
+        }
+        Thread.sleep(200);
+        assertEquals(100, fastPeer.received.size());
+        assertTrue(slowPeer.received.size() < 100);
+
+        Thread.sleep(1500);
+        //the slow peer caught up in a few large sends
+        assertEquals(100, slowPeer.received.size());
+        assertTrue(slowPeer.sends < 10);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(new Integer(i), slowPeer.received.get(i));
+        }
+    }
+
+    /**
+     * The oldest payloads are discarded beyond the maximum backlog
+     */
+    @Test
+    public void testBacklogLimited() throws Exception {
+        RecordingPeer slowPeer = new RecordingPeer(300, false);
+        CachePeerSender sender = new CachePeerSender(slowPeer, JavaElementSerializer.INSTANCE, executor, 50, 100);
+        sender.enqueue(payload(0, 1), 1);
+        Thread.sleep(50);
+        for (int i = 0; i < 5; i++) {
+            sender.enqueue(payload(1 + i * 20, 20), 20);
+        }
+        assertEquals(40, sender.getBacklogSize());
+        assertEquals(60, sender.getDiscardedCount());
+
+        Thread.sleep(1000);
+        assertEquals(41, slowPeer.received.size());
+        assertEquals(new Integer(61), slowPeer.received.get(1));
+    }
+
+    /**
+     * A failing peer is skipped until its back off passes
+     */
+    @Test
+    public void testFailingPeerDegraded() throws Exception {
+        RecordingPeer failingPeer = new RecordingPeer(0, true);
+        CachePeerSender sender = new CachePeerSender(failingPeer, JavaElementSerializer.INSTANCE, executor, 1000, 500);
+        sender.enqueue(payload(0, 10), 10);
+        for (int i = 0; i < 50 && !sender.isPeerDegraded(); i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, failingPeer.sends);
+        assertTrue(sender.isPeerDegraded());
+
+        sender.enqueue(payload(10, 10), 10);
+        Thread.sleep(100);
+        assertEquals(1, failingPeer.sends);
+        assertEquals(20, sender.getDiscardedCount());
+
+        failingPeer.failing = false;
+        Thread.sleep(500);
+        assertFalse(sender.isPeerDegraded());
+        sender.enqueue(payload(20, 10), 10);
+        Thread.sleep(100);
+        assertEquals(2, failingPeer.sends);
+        assertEquals(10, failingPeer.received.size());
+        assertEquals(0, sender.getDiscardedCount());
+    }
+
+    /**
+     * A large backlog is sent in bounded slices, and a failed send discards only its own slice
+     */
+    @Test
+    public void testBacklogSentInSlices() throws Exception {
+        RecordingPeer slowPeer = new RecordingPeer(200, false);
+        slowPeer.failingSend = 3;
+        CachePeerSender sender = new CachePeerSender(slowPeer, JavaElementSerializer.INSTANCE, executor, 100000, 100);
+        sender.enqueue(payload(0, 1), 1);
+        Thread.sleep(50);
+        for (int i = 0; i < 3; i++) {
+            sender.enqueue(payload(1 + i * 3000, 3000), 3000);
+        }
+
+        for (int i = 0; i < 100 && sender.getDiscardedCount() < 3000; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(3000, sender.getBacklogSize());
+        assertEquals(3000, sender.getDiscardedCount());
+        for (int i = 0; i < 100 && sender.isPeerDegraded(); i++) {
+            Thread.sleep(50);
+        }
+        sender.enqueue(payload(9001, 1), 1);
+        for (int i = 0; i < 100 && slowPeer.received.size() < 6002; i++) {
+            Thread.sleep(50);
+        }
+
+        assertEquals(4, slowPeer.sends);
+        assertTrue(slowPeer.largestSend <= CachePeerSender.MAXIMUM_SEND_MESSAGES);
+        assertEquals(6002, slowPeer.received.size());
+        assertEquals(new Integer(3000), slowPeer.received.get(3000));
+        assertEquals(new Integer(6001), slowPeer.received.get(3001));
+        assertEquals(new Integer(9001), slowPeer.received.get(6001));
+    }
+
+    /**
+     * A peer which does not recognise sendBatch is remembered, and sent its messages one by one, without losing any
+     */
+    @Test
+    public void testPeerWithoutBatches() throws Exception {
+        RecordingPeer oldPeer = new RecordingPeer(0, false);
+        oldPeer.batchesUnsupported = true;
+        CachePeerSender sender = new CachePeerSender(oldPeer, JavaElementSerializer.INSTANCE, executor, 1000, 100);
+        sender.enqueue(payload(0, 10), 10);
+        Thread.sleep(100);
+        sender.enqueue(payload(10, 10), 10);
+        Thread.sleep(100);
+
+        assertTrue(sender.isBatchesUnsupported());
+        assertFalse(sender.isPeerDegraded());
+        assertEquals(0, sender.getDiscardedCount());
+        assertEquals(1, oldPeer.sends);
+        assertEquals(20, oldPeer.received.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(new Integer(i), oldPeer.received.get(i));
+        }
+    }
+
+    private static byte[] payload(int first, int count) throws IOException {
+        List messages = new ArrayList();
+        for (int i = first; i < first + count; i++) {
+            messages.add(new EventMessage(EventMessage.REMOVE, new Integer(i), null));
+        }
+        return ReplicationBatch.encode(messages, JavaElementSerializer.INSTANCE, 0);
+    }
+
+    /**
+     * A peer which records the keys it is sent removes for
+     */
+    private static final class RecordingPeer extends StubCachePeer {
+
+        private final List received = Collections.synchronizedList(new ArrayList());
+        private final long delayMillis;
+        private volatile boolean failing;
+        private volatile boolean batchesUnsupported;
+        private volatile int failingSend;
+        private volatile int largestSend;
+        private volatile int sends;
+
+        RecordingPeer(long delayMillis, boolean failing) {
+            super("peer");
+            this.delayMillis = delayMillis;
+            this.failing = failing;
+        }
+
+        public void sendBatch(byte[] payload) throws RemoteException {
+            sends++;
+            if (batchesUnsupported) {
+                throw new ServerException("RemoteException occurred in server thread",
+                        new UnmarshalException("unrecognized method hash: method not supported by remote object"));
+            }
+            if (failing || sends == failingSend) {
+                throw new RemoteException("failing");
+            }
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                throw new RemoteException("interrupted");
+            }
+            int before = received.size();
+            ReplicationBatch.applyRemotely(payload, this, JavaElementSerializer.INSTANCE, "peer");
+            largestSend = Math.max(largestSend, received.size() - before);
+        }
+
+        public void send(List eventMessages) {
+            for (int i = 0; i < eventMessages.size(); i++) {
+                remove(((EventMessage) eventMessages.get(i)).getSerializableKey());
+            }
+        }
+
+        public boolean remove(Serializable key) {
+            received.add(key);
+            return true;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests coalescing and bounding of the replication queue.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class CoalescingReplicationQueueTest {
+
+    /**
+     * The last message for a key wins, in the order the last messages were queued
+     */
+    @Test
+    public void testLastMessageWins() {
+        CoalescingReplicationQueue queue = new CoalescingReplicationQueue(100);
+        queue.offer("a", "put a 1");
+        queue.offer("b", "put b 1");
+        queue.offer("a", "put a 2");
+        queue.offer("c", "remove c");
+        queue.offer("b", "remove b");
+        assertEquals(3, queue.size());
+
+        List messages = queue.drain();
+        assertEquals(3, messages.size());
+        assertEquals("put a 2", messages.get(0));
+        assertEquals("remove c", messages.get(1));
+        assertEquals("remove b", messages.get(2));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.drain().size());
+    }
+
+    /**
+     * A removeAll supersedes what was queued before it, but not after
+     */
+    @Test
+    public void testRemoveAllSupersedesEarlierMessages() {
+        CoalescingReplicationQueue queue = new CoalescingReplicationQueue(100);
+        queue.offer("a", "put a");
+        queue.offer("b", "put b");
+        queue.offer(null, "remove all");
+        queue.offer("c", "put c");
+
+        List messages = queue.drain();
+        assertEquals(2, messages.size());
+        assertEquals("remove all", messages.get(0));
+        assertEquals("put c", messages.get(1));
+    }
+
+    /**
+     * A full queue discards messages for new keys, but still replaces those for queued keys
+     */
+    @Test
+    public void testBounded() {
+        CoalescingReplicationQueue queue = new CoalescingReplicationQueue(4);
+        queue.offer("a", "put a 1");
+        assertFalse(queue.isFlushDue());
+        queue.offer("b", "put b");
+        assertTrue(queue.isFlushDue());
+        queue.offer("c", "put c");
+        queue.offer("d", "put d");
+        assertFalse(queue.offer("e", "put e"));
+        assertTrue(queue.offer("a", "put a 2"));
+        assertEquals(1, queue.takeDiscardedCount());
+        assertEquals(0, queue.takeDiscardedCount());
+
+        List messages = queue.drain();
+        assertEquals(4, messages.size());
+        assertEquals("put a 2", messages.get(3));
+    }
+
+    /**
+     * A removeAll is queued even when the queue is full, and frees the keys queued before it
+     */
+    @Test
+    public void testRemoveAllOnFullQueue() {
+        CoalescingReplicationQueue queue = new CoalescingReplicationQueue(2);
+        queue.offer("a", "put a");
+        queue.offer("b", "put b");
+        assertFalse(queue.offer("c", "put c"));
+        assertTrue(queue.offer(null, "remove all"));
+        assertEquals(1, queue.size());
+        assertTrue(queue.offer("d", "put d"));
+        assertEquals(1, queue.takeDiscardedCount());
+
+        List messages = queue.drain();
+        assertEquals(2, messages.size());
+        assertEquals("remove all", messages.get(0));
+        assertEquals("put d", messages.get(1));
+    }
+
+    /**
+     * Concurrent producers and a draining consumer lose nothing: every key ends with its last message
+     */
+    @Test
+    public void testConcurrentProducers() throws Exception {
+        final CoalescingReplicationQueue queue = new CoalescingReplicationQueue(1000000);
+        final int threads = 4;
+        final int updates = 50000;
+        final int keysPerThread = 100;
+        Thread[] producers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            producers[t] = new Thread() {
+                public void run() {
+                    for (int i = 0; i < updates; i++) {
+                        String key = thread + ":" + (i % keysPerThread);
+                        queue.offer(key, new String[]{key, String.valueOf(i)});
+                    }
+                }
+            };
+            producers[t].start();
+        }
+        Map last = new HashMap();
+        int drained = 0;
+        boolean producing = true;
+        while (producing) {
+            producing = false;
+            for (int t = 0; t < threads; t++) {
+                producing |= producers[t].isAlive();
+            }
+            List messages = queue.drain();
+            drained += messages.size();
+            for (int i = 0; i < messages.size(); i++) {
+                String[] message = (String[]) messages.get(i);
+                last.put(message[0], new Integer(message[1]));
+            }
+        }
+        assertEquals(0, queue.takeDiscardedCount());
+        assertEquals(0, queue.size());
+        assertTrue("drained " + drained, drained < threads * updates);
+        assertEquals(threads * keysPerThread, last.size());
+        for (int t = 0; t < threads; t++) {
+            for (int k = 0; k < keysPerThread; k++) {
+                assertEquals(new Integer(updates - keysPerThread + k), last.get(t + ":" + k));
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests bootstrapping only the elements which differ from those already held.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DeltaBootstrapTest {
+
+    private static final int KEYS = 1000;
+
+    private CacheManager manager;
+    private Cache source;
+    private Cache target;
+
+    /**
+     * Creates a source cache, and a target cache to bootstrap from it
+     */
+    @Before
+    public void setUp() throws Exception {
+        manager = new CacheManager();
+        source = new Cache("source", KEYS * 2, false, true, 0, 0);
+        target = new Cache("target", KEYS * 2, false, true, 0, 0);
+        manager.addCache(source);
+        manager.addCache(target);
+        for (int i = 0; i < KEYS; i++) {
+            source.put(new Element(new Integer(i), "value" + i));
+        }
+    }
+
+    /**
+     * Shuts down the CacheManager
+     */
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Only changed and new elements are fetched, and elements removed at the peer are removed
+     */
+    @Test
+    public void testOnlyChangesFetched() throws Exception {
+        TestLoader loader = new TestLoader(new NIOBoundCachePeer(source, "//localhost:1"));
+        loader.doLoad(target);
+        assertEquals(KEYS, loader.keysFetched);
+        assertEquals(KEYS, target.getSize());
+
+        Thread.sleep(10);
+        for (int i = 0; i < 10; i++) {
+            source.put(new Element(new Integer(i), "updated" + i));
+        }
+        for (int i = 10; i < 15; i++) {
+            source.remove(new Integer(i));
+        }
+        for (int i = KEYS; i < KEYS + 5; i++) {
+            source.put(new Element(new Integer(i), "value" + i));
+        }
+        target.put(new Element("localOnly", "stale"));
+
+        loader.keysFetched = 0;
+        loader.doLoad(target);
+        assertEquals(15, loader.keysFetched);
+        assertEquals(KEYS, target.getSize());
+        assertEquals("updated9", target.get(new Integer(9)).getObjectValue());
+        assertNull(target.get(new Integer(10)));
+        assertEquals("value" + KEYS, target.get(new Integer(KEYS)).getObjectValue());
+        assertNull(target.get("localOnly"));
+
+        //fetched copies keep the version of the source, so nothing is fetched again
+        loader.keysFetched = 0;
+        loader.doLoad(target);
+        assertEquals(0, loader.keysFetched);
+    }
+
+    /**
+     * Digests differ for different puts of the same key, and are absent for missing keys
+     */
+    @Test
+    public void testDigests() throws Exception {
+        Element element = new Element("key", "value");
+        assertEquals(ElementDigest.digest(element), ElementDigest.digest((Element) element.clone()));
+        assertEquals(ElementDigest.ABSENT, ElementDigest.digest(null));
+
+        source.put(new Element("key", "value"));
+        long first = ElementDigest.digest(source.getQuiet("key"));
+        Thread.sleep(10);
+        source.put(new Element("key", "value"));
+        assertTrue(first != ElementDigest.digest(source.getQuiet("key")));
+
+        List keys = new ArrayList();
+        keys.add("key");
+        keys.add("missing");
+        long[] digests = new NIOBoundCachePeer(source, "//localhost:1").getDigests(keys);
+        assertEquals(ElementDigest.digest(source.getQuiet("key")), digests[0]);
+        assertEquals(ElementDigest.ABSENT, digests[1]);
+    }
+
+    /**
+     * A put from a cache peer updates the statistics of an existing element, as before. Only fetched copies keep them.
+     */
+    @Test
+    public void testPeerPutUpdatesStatistics() throws Exception {
+        target.put(new Element("key", "value"));
+        Thread.sleep(10);
+        long beforePut = System.currentTimeMillis();
+        target.put(new Element("key", "replicated"), true);
+        assertTrue(target.getQuiet("key").getLastUpdateTime() >= beforePut);
+        assertTrue(target.getQuiet("key").getVersion() >= beforePut);
+
+        Thread.sleep(10);
+        Element copy = new Element("key", "copy");
+        copy.setVersion(42);
+        target.putPeerCopy(copy);
+        assertEquals(42, target.getQuiet("key").getVersion());
+        assertEquals(copy.getLastUpdateTime(), target.getQuiet("key").getLastUpdateTime());
+    }
+
+    /**
+     * The factory reads the deltaBootstrap switch
+     */
+    @Test
+    public void testConfiguration() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(RMIBootstrapCacheLoaderFactory.DELTA_BOOTSTRAP, "true");
+        RMIBootstrapCacheLoader loader = (RMIBootstrapCacheLoader)
+                new RMIBootstrapCacheLoaderFactory().createBootstrapCacheLoader(properties);
+        assertTrue(loader.isDeltaBootstrap());
+        assertTrue(((RMIBootstrapCacheLoader) loader.clone()).isDeltaBootstrap());
+        assertTrue(!((RMIBootstrapCacheLoader) new RMIBootstrapCacheLoaderFactory()
+                .createBootstrapCacheLoader(new Properties())).isDeltaBootstrap());
+    }
+
+    /**
+     * A delta loader with a single peer, which counts the keys it fetches
+     */
+    private static final class TestLoader extends RMIBootstrapCacheLoader {
+
+        private final List peers = new ArrayList();
+        private int keysFetched;
+
+        TestLoader(CachePeer peer) {
+            super(false, 5000000, 1, true);
+            peers.add(peer);
+        }
+
+        protected List acquireCachePeers(Ehcache cache) {
+            return peers;
+        }
+
+        protected int fetchAndPutElements(Ehcache cache, List requestChunk, CachePeer cachePeer)
+                throws RemoteException {
+            keysFetched += requestChunk.size();
+            return super.fetchAndPutElements(cache, requestChunk, cachePeer);
+        }
+    }
+}
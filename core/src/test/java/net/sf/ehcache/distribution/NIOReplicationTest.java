@@ -0,0 +1,207 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.AbstractCacheTest;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests replication over the NIO transport between two CacheManagers.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class NIOReplicationTest {
+
+    private CacheManager manager1;
+    private CacheManager manager2;
+
+    /**
+     * Starts two CacheManagers which replicate to each other
+     */
+    @Before
+    public void setUp() throws Exception {
+        manager1 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-nio-distributed1.xml");
+        manager2 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-nio-distributed2.xml");
+    }
+
+    /**
+     * Shuts down the CacheManagers
+     */
+    @After
+    public void tearDown() throws Exception {
+        if (manager1 != null) {
+            manager1.shutdown();
+        }
+        if (manager2 != null) {
+            manager2.shutdown();
+        }
+    }
+
+    /**
+     * Synchronous puts and removes are applied remotely before they return
+     */
+    @Test
+    public void testSynchronousReplication() {
+        Ehcache cache1 = manager1.getCache("syncCache");
+        Ehcache cache2 = manager2.getCache("syncCache");
+
+        cache1.put(new Element("string", "value"));
+        cache1.put(new Element(new Long(1), new Date(0)));
+        cache1.put(new Element(new ArrayList(), "a serialized key"));
+        assertEquals("value", cache2.get("string").getObjectValue());
+        assertEquals(new Date(0), cache2.get(new Long(1)).getObjectValue());
+        assertEquals("a serialized key", cache2.get(new ArrayList()).getObjectValue());
+
+        cache2.remove("string");
+        assertNull(cache1.get("string"));
+
+        cache1.removeAll();
+        assertEquals(0, cache2.getSize());
+    }
+
+    /**
+     * Asynchronous replication sends batches with the SEND operation
+     */
+    @Test
+    public void testAsynchronousReplication() throws InterruptedException {
+        Ehcache cache1 = manager1.getCache("asyncCache");
+        Ehcache cache2 = manager2.getCache("asyncCache");
+
+        for (int i = 0; i < 1000; i++) {
+            cache1.put(new Element(new Integer(i), "value" + i));
+        }
+        cache1.remove(new Integer(0));
+        waitForSize(cache2, 999);
+        assertEquals(999, cache2.getSize());
+        assertNull(cache2.get(new Integer(0)));
+        assertEquals("value999", cache2.get(new Integer(999)).getObjectValue());
+    }
+
+    /**
+     * The read operations of the peer, as used by bootstrapping
+     */
+    @Test
+    public void testPeerReads() throws Exception {
+        Ehcache cache1 = manager1.getCache("syncCache");
+        Ehcache cache2 = manager2.getCache("syncCache");
+        cache2.put(new Element("key1", "value1"), true);
+        cache2.put(new Element("key2", "value2"), true);
+
+        List peers = manager1.getCacheManagerPeerProvider("NIO").listRemoteCachePeers(cache1);
+        assertEquals(1, peers.size());
+        CachePeer peer = (CachePeer) peers.get(0);
+        assertEquals("syncCache", peer.getName());
+        assertEquals(cache2.getGuid(), peer.getGuid());
+        assertEquals(2, peer.getKeys().size());
+        assertEquals("value1", peer.getQuiet("key1").getObjectValue());
+        assertNull(peer.getQuiet("missing"));
+
+        List keys = new ArrayList();
+        keys.add("key1");
+        keys.add("key2");
+        keys.add("missing");
+        assertEquals(2, peer.getElements(keys).size());
+        long[] digests = peer.getDigests(keys);
+        assertEquals(ElementDigest.digest(cache2.getQuiet("key1")), digests[0]);
+        assertEquals(ElementDigest.ABSENT, digests[2]);
+
+        HashTree tree = HashTree.build(cache2, 16);
+        assertEquals(tree.getHash(0), peer.getHashTreeNodes(16, new int[]{0})[0]);
+        int leaf = HashTree.leafOf("key1", 16);
+        assertTrue(peer.getHashTreeLeafKeys(16, new int[]{leaf}).contains("key1"));
+
+        assertTrue(peer.remove("key1"));
+        assertFalse(peer.remove("key1"));
+    }
+
+    /**
+     * A new CacheManager bootstraps from its peer, and a restarted peer is reconnected to
+     */
+    @Test
+    public void testBootstrapAndReconnect() throws Exception {
+        Ehcache cache1 = manager1.getCache("asyncCache");
+        for (int i = 0; i < 100; i++) {
+            cache1.put(new Element(new Integer(i), "value" + i), true);
+        }
+        manager2.shutdown();
+        manager2 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-nio-distributed2.xml");
+        assertEquals(100, manager2.getCache("asyncCache").getSize());
+
+        Ehcache syncCache1 = manager1.getCache("syncCache");
+        syncCache1.put(new Element("afterRestart", "value"));
+        assertNotNull(manager2.getCache("syncCache").get("afterRestart"));
+    }
+
+    /**
+     * A call to a listener which stops reading fails within the socket timeout, and the connection is closed so that a
+     * new one is opened, rather than the caller blocking on the write
+     */
+    @Test
+    public void testUnreadConnectionTimesOut() throws Exception {
+        ServerSocket server = new ServerSocket(0);
+        try {
+            NIOConnection connection = new NIOConnection(new InetSocketAddress("localhost", server.getLocalPort()), 500);
+            Socket accepted = server.accept();
+            try {
+                NIOConnection.Request request = connection.startRequest(NIOProtocol.SEND_BATCH, "asyncCache");
+                byte[] payload = new byte[32 * 1024 * 1024];
+                request.data.writeInt(payload.length);
+                request.data.write(payload);
+                long start = System.currentTimeMillis();
+                try {
+                    connection.call(request);
+                    fail();
+                } catch (RemoteException e) {
+                    //expected
+                }
+                assertTrue(System.currentTimeMillis() - start < 3000);
+                assertFalse(connection.isOpen());
+            } finally {
+                accepted.close();
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private void waitForSize(Ehcache cache, int size) throws InterruptedException {
+        for (int i = 0; i < 100 && cache.getSize() != size; i++) {
+            Thread.sleep(100);
+        }
+    }
+}
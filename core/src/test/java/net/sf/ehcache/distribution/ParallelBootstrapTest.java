@@ -0,0 +1,203 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.management.ManagementService;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests bootstrapping from several peers at once.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class ParallelBootstrapTest {
+
+    private static final int KEYS = 1000;
+
+    private CacheManager manager;
+    private Cache cache;
+
+    /**
+     * Creates an empty cache to bootstrap
+     */
+    @Before
+    public void setUp() throws Exception {
+        manager = new CacheManager();
+        cache = new Cache("bootstrapCache", KEYS * 2, false, true, 0, 0);
+        manager.addCache(cache);
+    }
+
+    /**
+     * Shuts down the CacheManager
+     */
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Chunks are spread across the peers, and those of a failed peer are fetched from the others
+     */
+    @Test
+    public void testLoadSpreadAcrossPeers() throws Exception {
+        SourcePeer peer1 = new SourcePeer(false);
+        SourcePeer peer2 = new SourcePeer(false);
+        SourcePeer failingPeer = new SourcePeer(true);
+        //about 20 keys a chunk
+        TestLoader loader = new TestLoader(20 * peer1.getQuiet("0").getSerializedSize(), 4,
+                Arrays.asList(new CachePeer[]{peer1, failingPeer, peer2}));
+
+        loader.doLoad(cache);
+
+        assertEquals(KEYS, cache.getSize());
+        assertEquals("value999", cache.get("999").getObjectValue());
+        BootstrapProgress progress = loader.getProgress();
+        assertFalse(progress.isInProgress());
+        assertEquals(3, progress.getPeers());
+        assertEquals(KEYS, progress.getKeysToLoad());
+        assertEquals(KEYS, progress.getKeysRequested());
+        assertEquals(KEYS, progress.getElementsLoaded());
+        assertEquals(0, progress.getChunksFailed());
+        assertTrue(peer1.chunks > 5);
+        assertTrue(peer2.chunks > 5);
+        assertTrue(failingPeer.chunks > 0);
+        assertEquals(KEYS / 20, peer1.chunks + peer2.chunks);
+    }
+
+    /**
+     * Chunks which no peer can supply are counted as failed
+     */
+    @Test
+    public void testAllPeersFailing() throws Exception {
+        TestLoader loader = new TestLoader(5000, 4, Arrays.asList(new CachePeer[]{new SourcePeer(true),
+                new SourcePeer(true)}));
+
+        loader.doLoad(cache);
+
+        assertEquals(0, cache.getSize());
+        assertEquals(KEYS, loader.getProgress().getKeysRequested());
+        assertTrue(loader.getProgress().getChunksFailed() > 0);
+    }
+
+    /**
+     * The factory reads the parallelism, and the progress is registered as an MBean
+     */
+    @Test
+    public void testConfigurationAndMBean() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty(RMIBootstrapCacheLoaderFactory.BOOTSTRAP_ASYNCHRONOUSLY, "true");
+        properties.setProperty(RMIBootstrapCacheLoaderFactory.PARALLELISM, "8");
+        RMIBootstrapCacheLoader loader = (RMIBootstrapCacheLoader)
+                new RMIBootstrapCacheLoaderFactory().createBootstrapCacheLoader(properties);
+        assertEquals(8, loader.getParallelism());
+        assertEquals(8, ((RMIBootstrapCacheLoader) loader.clone()).getParallelism());
+
+        Cache bootstrapped = new Cache("bootstrapped", 10, false, true, 0, 0);
+        bootstrapped.setBootstrapCacheLoader(loader);
+        manager.addCache(bootstrapped);
+
+        MBeanServer mBeanServer = MBeanServerFactory.createMBeanServer("SimpleAgent");
+        try {
+            ManagementService.registerMBeans(manager, mBeanServer, false, false, false, true);
+            ObjectName name = new ObjectName("net.sf.ehcache:type=CacheBootstrap,CacheManager=" + manager.toString()
+                    + ",name=bootstrapped");
+            assertTrue(mBeanServer.isRegistered(name));
+            assertEquals(Boolean.FALSE, mBeanServer.getAttribute(name, "InProgress"));
+            assertEquals(new Long(0), mBeanServer.getAttribute(name, "ElementsLoaded"));
+            manager.removeCache("bootstrapped");
+            assertFalse(mBeanServer.isRegistered(name));
+        } finally {
+            MBeanServerFactory.releaseMBeanServer(mBeanServer);
+        }
+    }
+
+    /**
+     * A loader with a fixed set of peers
+     */
+    private static final class TestLoader extends RMIBootstrapCacheLoader {
+
+        private final List peers;
+
+        TestLoader(long maximumChunkSizeBytes, int parallelism, List peers) {
+            super(false, (int) maximumChunkSizeBytes, parallelism);
+            this.peers = peers;
+        }
+
+        protected List acquireCachePeers(Ehcache cache) {
+            return peers;
+        }
+    }
+
+    /**
+     * A peer holding KEYS elements, which may fail every fetch
+     */
+    private static final class SourcePeer extends StubCachePeer {
+
+        private final boolean failing;
+        private volatile int chunks;
+
+        SourcePeer(boolean failing) {
+            super("bootstrapCache");
+            this.failing = failing;
+        }
+
+        public List getKeys() {
+            List keys = new ArrayList();
+            for (int i = 0; i < KEYS; i++) {
+                keys.add(String.valueOf(i));
+            }
+            return keys;
+        }
+
+        public Element getQuiet(Serializable key) {
+            return new Element(key, "value" + key);
+        }
+
+        public synchronized List getElements(List keys) throws RemoteException {
+            chunks++;
+            if (failing) {
+                throw new RemoteException("failing");
+            }
+            List elements = new ArrayList();
+            for (int i = 0; i < keys.size(); i++) {
+                elements.add(getQuiet((Serializable) keys.get(i)));
+            }
+            return elements;
+        }
+    }
+}
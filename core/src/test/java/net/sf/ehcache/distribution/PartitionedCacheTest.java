@@ -0,0 +1,204 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.AbstractCacheTest;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests partitioning caches over three CacheManagers.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class PartitionedCacheTest {
+
+    private static final int KEYS = 300;
+
+    private static final String[] NODES = new String[]{"//localhost:40031", "//localhost:40032", "//localhost:40033"};
+
+    private CacheManager[] managers = new CacheManager[3];
+
+    /**
+     * Shuts down the CacheManagers
+     */
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < managers.length; i++) {
+            if (managers[i] != null) {
+                managers[i].shutdown();
+            }
+        }
+    }
+
+    private void start(int node) {
+        managers[node] = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR
+                + "distribution/ehcache-partitioned" + (node + 1) + ".xml");
+    }
+
+    private Ehcache cache(int node) {
+        return managers[node].getCache("partitionedCache");
+    }
+
+    private static PartitionedCacheExtension extension(Ehcache cache) {
+        return (PartitionedCacheExtension) cache.getRegisteredCacheExtensions().get(0);
+    }
+
+    /**
+     * Keys are spread over the nodes, and a node joining moves only some of them
+     */
+    @Test
+    public void testRing() {
+        ConsistentHashRing two = new ConsistentHashRing(Arrays.asList(new String[]{NODES[0], NODES[1]}));
+        ConsistentHashRing three = new ConsistentHashRing(Arrays.asList(NODES));
+        int[] primaries = new int[3];
+        int moved = 0;
+        for (int i = 0; i < 30000; i++) {
+            Integer key = new Integer(i);
+            List owners = three.getOwners(key, 2);
+            assertEquals(2, owners.size());
+            assertFalse(owners.get(0).equals(owners.get(1)));
+            primaries[Arrays.asList(NODES).indexOf(owners.get(0))]++;
+            if (!two.getOwners(key, 1).equals(three.getOwners(key, 1))) {
+                assertEquals(NODES[2], three.getOwners(key, 1).get(0));
+                moved++;
+            }
+        }
+        for (int i = 0; i < primaries.length; i++) {
+            assertTrue("" + primaries[i], primaries[i] > 7000 && primaries[i] < 13000);
+        }
+        assertEquals(primaries[2], moved);
+        assertEquals(2, two.getOwners(new Integer(1), 5).size());
+        assertEquals(0, new ConsistentHashRing(new ArrayList()).getOwners(new Integer(1), 1).size());
+    }
+
+    /**
+     * Each element is held by its two owners, and can be got and removed from any node
+     */
+    @Test
+    public void testPutGetAndRemove() {
+        for (int i = 0; i < 3; i++) {
+            start(i);
+        }
+        for (int i = 0; i < KEYS; i++) {
+            cache(0).put(new Element(new Integer(i), "value" + i));
+        }
+        assertEquals(KEYS * 2, cache(0).getSize() + cache(1).getSize() + cache(2).getSize());
+        assertHeldByOwners();
+
+        for (int node = 0; node < 3; node++) {
+            for (int i = 0; i < KEYS; i++) {
+                assertEquals("value" + i, cache(node).get(new Integer(i)).getObjectValue());
+            }
+            assertNull(cache(node).get("missing"));
+        }
+        assertTrue(extension(cache(0)).getRemoteGets() > 0);
+        //gets do not copy elements to nodes which do not own them
+        assertEquals(KEYS * 2, cache(0).getSize() + cache(1).getSize() + cache(2).getSize());
+
+        for (int i = 0; i < KEYS; i++) {
+            cache(2).remove(new Integer(i));
+        }
+        assertEquals(0, cache(0).getSize() + cache(1).getSize() + cache(2).getSize());
+    }
+
+    /**
+     * A node joining is sent the elements it now owns, and the nodes which no longer own them drop them
+     */
+    @Test
+    public void testRebalanceOnJoin() {
+        start(0);
+        start(1);
+        for (int i = 0; i < KEYS; i++) {
+            cache(1).put(new Element(new Integer(i), "value" + i));
+        }
+        assertEquals(KEYS, cache(0).getSize());
+        assertEquals(KEYS, cache(1).getSize());
+
+        start(2);
+        int moved = extension(cache(0)).rebalance() + extension(cache(1)).rebalance();
+        assertTrue(moved > 0);
+        assertEquals(0, extension(cache(0)).rebalance());
+        assertTrue(cache(2).getSize() > 0);
+        assertTrue(moved >= cache(2).getSize());
+        assertEquals(KEYS * 2, cache(0).getSize() + cache(1).getSize() + cache(2).getSize());
+        assertHeldByOwners();
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals("value" + i, cache(2).get(new Integer(i)).getObjectValue());
+        }
+    }
+
+    /**
+     * A node keeps a copy of an element another node owns, until its short time to live is up
+     */
+    @Test
+    public void testNearCache() throws InterruptedException {
+        start(0);
+        start(1);
+        Ehcache near0 = managers[0].getCache("nearCache");
+        Ehcache near1 = managers[1].getCache("nearCache");
+        assertTrue(extension(near0).isNearCache());
+
+        ConsistentHashRing ring = new ConsistentHashRing(Arrays.asList(new String[]{NODES[0], NODES[1]}));
+        Integer key = new Integer(0);
+        while (!ring.getOwners(key, 1).get(0).equals(NODES[1])) {
+            key = new Integer(key.intValue() + 1);
+        }
+        near0.put(new Element(key, "value"));
+        assertNotNull(near1.getQuiet(key));
+        assertNotNull(near0.getQuiet(key));
+        assertEquals(1, near0.getQuiet(key).getTimeToLive());
+
+        Thread.sleep(1100);
+        assertEquals("value", near0.get(key).getObjectValue());
+        assertEquals(1, extension(near0).getRemoteGets());
+        assertNotNull(near0.getQuiet(key));
+    }
+
+    private void assertHeldByOwners() {
+        List nodes = new ArrayList();
+        for (int node = 0; node < 3; node++) {
+            if (managers[node] != null) {
+                nodes.add(NODES[node]);
+            }
+        }
+        ConsistentHashRing ring = new ConsistentHashRing(nodes);
+        for (int i = 0; i < KEYS; i++) {
+            Integer key = new Integer(i);
+            List owners = ring.getOwners(key, 2);
+            for (int node = 0; node < 3; node++) {
+                if (managers[node] != null) {
+                    assertEquals(owners.contains(NODES[node]), cache(node).getQuiet(key) != null);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.AbstractCacheTest;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Ehcache;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.loader.CountingCacheLoader;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests reading elements which miss locally from peers.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class PeerReadThroughTest {
+
+    private CacheManager manager1;
+    private CacheManager manager2;
+    private Ehcache cache1;
+    private Ehcache cache2;
+
+    /**
+     * Starts two CacheManagers which replicate by invalidation
+     */
+    @Before
+    public void setUp() throws Exception {
+        manager1 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-readthrough1.xml");
+        manager2 = new CacheManager(AbstractCacheTest.TEST_CONFIG_DIR + "distribution/ehcache-readthrough2.xml");
+        cache1 = manager1.getCache("invalidatingCache");
+        cache2 = manager2.getCache("invalidatingCache");
+    }
+
+    /**
+     * Shuts down the CacheManagers
+     */
+    @After
+    public void tearDown() throws Exception {
+        manager1.shutdown();
+        manager2.shutdown();
+    }
+
+    private static PeerReadThroughCacheExtension extension(Ehcache cache) {
+        return (PeerReadThroughCacheExtension) cache.getRegisteredCacheExtensions().get(0);
+    }
+
+    /**
+     * A miss is read from the peer and kept locally. A put invalidates the peer, which reads the new value back.
+     */
+    @Test
+    public void testReadThroughOnMiss() {
+        cache2.put(new Element("key", "value"), true);
+        assertNull(cache1.getQuiet("key"));
+        assertEquals("value", cache1.get("key").getObjectValue());
+        assertNotNull(cache1.getQuiet("key"));
+        assertEquals(1, extension(cache1).getPeerHits());
+
+        assertNull(cache1.get("missing"));
+        assertEquals(1, extension(cache1).getPeerMisses());
+
+        cache1.put(new Element("key", "updated"));
+        assertNull(cache2.getQuiet("key"));
+        assertEquals("updated", cache2.get("key").getObjectValue());
+    }
+
+    /**
+     * getAllWithLoader reads what peers have in one batch, and loads only the rest
+     */
+    @Test
+    public void testGetAllWithLoader() {
+        List keys = new ArrayList();
+        for (int i = 0; i < 150; i++) {
+            keys.add(new Integer(i));
+            if (i < 100) {
+                cache2.put(new Element(new Integer(i), "value" + i), true);
+            }
+        }
+        CountingCacheLoader loader = new CountingCacheLoader();
+        cache1.registerCacheLoader(loader);
+
+        Map map = cache1.getAllWithLoader(keys, null);
+        assertEquals(150, map.size());
+        assertEquals("value99", map.get(new Integer(99)));
+        assertTrue(map.get(new Integer(100)) instanceof Integer);
+        assertEquals(50, loader.getLoadAllCounter());
+        assertEquals(100, extension(cache1).getPeerHits());
+        assertEquals(150, cache1.getSize());
+    }
+
+    /**
+     * A peer which does not answer in time is abandoned, and the loader is used instead
+     */
+    @Test
+    public void testSlowPeerFallsBackToLoader() throws Exception {
+        ServerSocket silentPeer = new ServerSocket(40043);
+        try {
+            Ehcache slowCache = manager1.getCache("slowCache");
+            CountingCacheLoader loader = new CountingCacheLoader();
+            slowCache.registerCacheLoader(loader);
+
+            long start = System.currentTimeMillis();
+            Element element = slowCache.getWithLoader("key", null, null);
+            long elapsed = System.currentTimeMillis() - start;
+            assertNotNull(element);
+            assertEquals(1, loader.getLoadCounter());
+            assertEquals(1, extension(slowCache).getTimeouts());
+            assertTrue("" + elapsed, elapsed < 1000);
+        } finally {
+            silentPeer.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.serialization.JavaElementSerializer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the replication batch format.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class ReplicationBatchTest {
+
+    private CacheManager manager;
+    private Cache cache;
+    private CachePeer target;
+
+    /**
+     * Creates a cache to apply batches to
+     */
+    @Before
+    public void setUp() throws Exception {
+        manager = new CacheManager();
+        cache = new Cache("batchCache", 1000, false, true, 0, 0);
+        manager.addCache(cache);
+        target = new NIOBoundCachePeer(cache, "//localhost:1");
+    }
+
+    /**
+     * Shuts down the CacheManager
+     */
+    @After
+    public void tearDown() {
+        manager.shutdown();
+    }
+
+    /**
+     * Messages are applied and decoded in order, and collected puts are left out
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        cache.put(new Element("stale", "value"));
+        List messages = new ArrayList();
+        messages.add(new EventMessage(EventMessage.REMOVE_ALL, null, null));
+        messages.add(new EventMessage(EventMessage.PUT, null, new Element("key1", "value1")));
+        messages.add(new EventMessage(EventMessage.PUT, null, new Element(new Long(2), new int[]{1, 2})));
+        messages.add(new EventMessage(EventMessage.REMOVE, "key1", null));
+
+        byte[] payload = ReplicationBatch.encode(messages, JavaElementSerializer.INSTANCE, 0);
+        assertEquals(4, ReplicationBatch.countMessages(payload));
+        List decoded = ReplicationBatch.decode(payload, JavaElementSerializer.INSTANCE);
+        assertEquals(4, decoded.size());
+        assertEquals(EventMessage.REMOVE_ALL, ((EventMessage) decoded.get(0)).getEvent());
+        assertEquals("key1", ((EventMessage) decoded.get(1)).getSerializableKey());
+        assertEquals("value1", ((EventMessage) decoded.get(1)).getElement().getObjectValue());
+        assertEquals("key1", ((EventMessage) decoded.get(3)).getSerializableKey());
+        assertEquals(4, ReplicationBatch.apply(payload, target, JavaElementSerializer.INSTANCE));
+
+        assertNull(cache.get("stale"));
+        assertNull(cache.get("key1"));
+        assertEquals(2, ((int[]) cache.get(new Long(2)).getObjectValue())[1]);
+        assertEquals(1, cache.getSize());
+    }
+
+    /**
+     * Batches above the threshold are deflated, and concatenated payloads are applied as one
+     */
+    @Test
+    public void testCompressionAndConcatenation() throws Exception {
+        List messages = new ArrayList();
+        for (int i = 0; i < 100; i++) {
+            messages.add(new EventMessage(EventMessage.PUT, null, new Element("key" + i, "a compressible value " + i)));
+        }
+        byte[] uncompressed = ReplicationBatch.encode(messages, JavaElementSerializer.INSTANCE, 0);
+        byte[] compressed = ReplicationBatch.encode(messages, JavaElementSerializer.INSTANCE, 1024);
+        assertTrue(compressed.length + " < " + uncompressed.length, compressed.length * 3 < uncompressed.length);
+
+        List removes = new ArrayList();
+        removes.add(new EventMessage(EventMessage.REMOVE, "key0", null));
+        byte[] remove = ReplicationBatch.encode(removes, JavaElementSerializer.INSTANCE, 1024);
+
+        List payloads = new ArrayList();
+        payloads.add(compressed);
+        payloads.add(remove);
+        byte[] payload = ReplicationBatch.concatenate(payloads);
+        assertEquals(101, ReplicationBatch.countMessages(payload));
+        ReplicationBatch.apply(payload, target, JavaElementSerializer.INSTANCE);
+        assertEquals(99, cache.getSize());
+        assertEquals("a compressible value 99", cache.get("key99").getObjectValue());
+    }
+
+    /**
+     * A truncated payload is rejected
+     */
+    @Test
+    public void testTruncated() throws Exception {
+        List messages = new ArrayList();
+        messages.add(new EventMessage(EventMessage.PUT, null, new Element("key", "value")));
+        byte[] payload = ReplicationBatch.encode(messages, JavaElementSerializer.INSTANCE, 0);
+        byte[] truncated = new byte[payload.length - 1];
+        System.arraycopy(payload, 0, truncated, 0, truncated.length);
+        try {
+            ReplicationBatch.apply(truncated, target, JavaElementSerializer.INSTANCE);
+            fail();
+        } catch (StreamCorruptedException e) {
+            //expected
+        }
+    }
+}
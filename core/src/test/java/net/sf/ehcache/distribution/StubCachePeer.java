@@ -0,0 +1,149 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.distribution;
+
+import net.sf.ehcache.Element;
+
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * A CachePeer for tests, at //localhost:1, which supports none of the cache operations. Tests override the ones they
+ * use.
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class StubCachePeer implements CachePeer {
+
+    private final String name;
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the cache
+     */
+    public StubCachePeer(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Not supported
+     */
+    public void put(Element element) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public boolean remove(Serializable key) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public void removeAll() throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public void send(List eventMessages) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public void sendBatch(byte[] payload) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the name of the cache
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return a fixed guid
+     */
+    public String getGuid() {
+        return "guid";
+    }
+
+    /**
+     * @return the url of the cache at //localhost:1
+     */
+    public String getUrl() {
+        return getUrlBase() + "/" + name;
+    }
+
+    /**
+     * @return //localhost:1
+     */
+    public String getUrlBase() {
+        return "//localhost:1";
+    }
+
+    /**
+     * Not supported
+     */
+    public List getKeys() throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public Element getQuiet(Serializable key) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public List getElements(List keys) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public long[] getDigests(List keys) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public long[] getHashTreeNodes(int leafCount, int[] nodes) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Not supported
+     */
+    public List getHashTreeLeafKeys(int leafCount, int[] leaves) throws RemoteException {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.serialization;
+
+import net.sf.ehcache.Element;
+import net.sf.ehcache.distribution.EventMessage;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for the compact Element serializer
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class CompactElementSerializerTest {
+
+    private final CompactElementSerializer serializer = new CompactElementSerializer();
+
+    /**
+     * Keys and values of the directly written types come back equal
+     */
+    @Test
+    public void testRoundTripOfValues() throws Exception {
+        StringBuffer longString = new StringBuffer();
+        for (int i = 0; i < 30000; i++) {
+            longString.append('\u20ac');
+        }
+        Map map = new HashMap();
+        map.put("one", new Integer(1));
+        map.put(new Long(2), null);
+        List list = new ArrayList();
+        list.add("a");
+        list.add(new Double(1.5));
+        list.add(map);
+        LinkedHashSet set = new LinkedHashSet();
+        set.add(Boolean.TRUE);
+        set.add(new Character('c'));
+
+        Object[] values = new Object[]{null, "", "value", longString.toString(), new Integer(-1), new Long(Long.MAX_VALUE),
+                new Short((short) 3), new Byte((byte) 4), new Float(0.25f), map, list, set, new Date(1000)};
+        for (int i = 0; i < values.length; i++) {
+            Element copy = roundTrip(new Element("key" + i, values[i]));
+            assertEquals("key" + i, copy.getObjectKey());
+            assertEquals(values[i], copy.getObjectValue());
+        }
+
+        byte[] bytes = new byte[]{1, 2, 3};
+        assertArrayEquals(bytes, (byte[]) roundTrip(new Element(new Integer(1), bytes)).getObjectValue());
+    }
+
+    /**
+     * The statistics and lifespan of the Element are kept
+     */
+    @Test
+    public void testRoundTripOfElementFields() throws Exception {
+        Element element = new Element("key", "value", 7, 1000, 2000, 1500, 3000, 42);
+        Element copy = roundTrip(element);
+        assertEquals(7, copy.getVersion());
+        assertEquals(1000, copy.getCreationTime());
+        assertEquals(2000, copy.getLastAccessTime());
+        assertEquals(1500, copy.getNextToLastAccessTime());
+        assertEquals(3000, copy.getLastUpdateTime());
+        assertEquals(42, copy.getHitCount());
+        assertFalse(copy.isLifespanSet());
+
+        element.setTimeToLive(10);
+        element.setTimeToIdle(5);
+        copy = roundTrip(element);
+        assertTrue(copy.isLifespanSet());
+        assertEquals(10, copy.getTimeToLive());
+        assertEquals(5, copy.getTimeToIdle());
+        assertFalse(copy.isEternal());
+
+        element.setEternal(true);
+        assertTrue(roundTrip(element).isEternal());
+    }
+
+    /**
+     * Small Elements take less space than with Java serialization
+     */
+    @Test
+    public void testSmallerThanJavaSerialization() {
+        Element element = new Element("key", new Integer(1));
+        long compact = element.getSerializedSize(serializer);
+        long java = element.getSerializedSize(JavaElementSerializer.INSTANCE);
+        assertTrue("compact " + compact + " java " + java, compact * 3 < java);
+    }
+
+    /**
+     * A replicated put is carried as serialized bytes and read with the serializer of the receiver
+     */
+    @Test
+    public void testEventMessage() throws Exception {
+        EventMessage message = new EventMessage(EventMessage.PUT, "key", new Element("key", "value"), serializer);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(message);
+        out.close();
+        EventMessage received = (EventMessage) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertNull(received.getElement());
+        assertEquals("value", received.getElement(serializer).getObjectValue());
+        assertEquals("value", received.getElement().getObjectValue());
+    }
+
+    private Element roundTrip(Element element) throws IOException, ClassNotFoundException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.serialize(element, out);
+        return serializer.deserialize(new ByteArrayInputStream(out.toByteArray()));
+    }
+}
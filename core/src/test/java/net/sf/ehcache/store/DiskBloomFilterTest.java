@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the DiskStore Bloom filter
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskBloomFilterTest {
+
+    /**
+     * Added keys are always found, and few others are
+     */
+    @Test
+    public void testNoFalseNegatives() {
+        DiskBloomFilter filter = new DiskBloomFilter(10000);
+        for (int i = 0; i < 10000; i++) {
+            filter.add(HashedDiskIndex.hash("key" + i));
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(filter.mightContain(HashedDiskIndex.hash("key" + i)));
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (filter.mightContain(HashedDiskIndex.hash("other" + i))) {
+                falsePositives++;
+            }
+        }
+        assertTrue("false positives " + falsePositives, falsePositives < 300);
+    }
+
+    /**
+     * Repeated adds of a key are counted once
+     */
+    @Test
+    public void testInsertions() {
+        DiskBloomFilter filter = new DiskBloomFilter(0);
+        assertEquals(DiskBloomFilter.MINIMUM_CAPACITY, filter.getCapacity());
+        filter.add(HashedDiskIndex.hash("key"));
+        filter.add(HashedDiskIndex.hash("key"));
+        assertEquals(1, filter.getInsertions());
+        assertFalse(filter.mightContain(HashedDiskIndex.hash("missing")));
+    }
+
+    /**
+     * Elements are found in the spool, on disk and after a rebuild of the filter. Absent keys are not.
+     */
+    @Test
+    public void testDiskStore() throws Exception {
+        checkDiskStore(false);
+        checkDiskStore(true);
+    }
+
+    private void checkDiskStore(boolean hashedIndex) throws Exception {
+        Cache cache = new Cache("bloomFilterCache", 10, true, false, 100, 100);
+        cache.getCacheConfiguration().setDiskHashedIndex(hashedIndex);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            store.put(new Element("spooled", "value"));
+            assertTrue(store.containsKey("spooled"));
+            assertNotNull(store.getQuiet("spooled"));
+
+            //more keys than the initial capacity, so that the filter is rebuilt
+            for (int i = 0; i < 3000; i++) {
+                store.put(new Element("key" + i, "value" + i));
+            }
+            Thread.sleep(1500);
+            for (int i = 0; i < 3000; i += 100) {
+                assertEquals("value" + i, store.get("key" + i).getObjectValue());
+            }
+            assertNull(store.get("missing"));
+            assertFalse(store.containsKey("missing"));
+
+            store.removeAll();
+            assertNull(store.get("key1"));
+            assertFalse(store.containsKey("key1"));
+            store.put(new Element("key1", "value1"));
+            assertEquals("value1", store.get("key1").getObjectValue());
+        } finally {
+            store.dispose();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.util.MemoryEfficientByteArrayOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Tests for the DiskStore record codec
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskRecordCodecTest {
+
+    /**
+     * Records under the threshold stay raw, larger compressible ones are deflated, and both decode
+     */
+    @Test
+    public void testRoundTrip() throws IOException {
+        DiskRecordCodec codec = new DiskRecordCodec(100);
+        MemoryEfficientByteArrayOutputStream buffer = new MemoryEfficientByteArrayOutputStream(512);
+
+        byte[] small = "small".getBytes();
+        codec.writeHeaderPlaceholder(buffer);
+        buffer.write(small, 0, small.length);
+        codec.encode(buffer, 0, 1L);
+        int smallLength = buffer.size();
+        assertEquals(DiskRecordCodec.RAW, buffer.getBytes()[DiskRecordCodec.CODEC_OFFSET]);
+
+        byte[] large = new byte[10000];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = (byte) (i % 10);
+        }
+        codec.writeHeaderPlaceholder(buffer);
+        buffer.write(large, 0, large.length);
+        codec.encode(buffer, smallLength, 2L);
+        assertEquals(DiskRecordCodec.DEFLATE, buffer.getBytes()[smallLength + DiskRecordCodec.CODEC_OFFSET]);
+        int largeLength = buffer.size() - smallLength;
+        assertTrue(largeLength < large.length / 10);
+
+        byte[] bytes = buffer.toByteArray();
+        assertArrayEquals(small, read(codec.decode(bytes, smallLength), small.length));
+        byte[] largeRecord = new byte[largeLength];
+        System.arraycopy(bytes, smallLength, largeRecord, 0, largeLength);
+        assertArrayEquals(large, read(codec.decode(largeRecord, largeLength), large.length));
+        assertArrayEquals(large, read(codec.decode(bytes, smallLength, largeLength), large.length));
+        codec.dispose();
+    }
+
+    /**
+     * The header carries the key hash and body length, and a damaged body fails its checksum
+     */
+    @Test
+    public void testHeaderAndChecksum() throws IOException {
+        DiskRecordCodec codec = new DiskRecordCodec(0);
+        MemoryEfficientByteArrayOutputStream buffer = new MemoryEfficientByteArrayOutputStream(512);
+        byte[] body = "a record body".getBytes();
+        codec.writeHeaderPlaceholder(buffer);
+        buffer.write(body, 0, body.length);
+        codec.encode(buffer, 0, 0x123456789L);
+        byte[] record = buffer.toByteArray();
+
+        assertEquals(DiskRecordCodec.LIVE_MAGIC, DiskRecordCodec.magic(record, 0));
+        assertEquals(0x123456789L, DiskRecordCodec.keyHash(record, 0));
+        assertEquals(body.length, DiskRecordCodec.bodyLength(record, 0));
+        assertTrue(DiskRecordCodec.isIntact(record, 0, record.length));
+
+        System.arraycopy(DiskRecordCodec.freeMagic(), 0, record, 0, DiskRecordCodec.MAGIC_SIZE);
+        assertEquals(DiskRecordCodec.FREE_MAGIC, DiskRecordCodec.magic(record, 0));
+        assertArrayEquals(body, read(codec.decode(record, record.length), body.length));
+
+        record[record.length - 1]++;
+        assertFalse(DiskRecordCodec.isIntact(record, 0, record.length));
+        try {
+            codec.decode(record, record.length);
+            fail();
+        } catch (IOException e) {
+            //expected
+        }
+        codec.dispose();
+    }
+
+    private static byte[] read(InputStream in, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            read += in.read(bytes, read, length - read);
+        }
+        assertEquals(-1, in.read());
+        return bytes;
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the maxBytesOnDisk budget of the DiskStore
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskStoreByteBudgetTest {
+
+    private static final int BUDGET = 100000;
+
+    /**
+     * Live data is kept within the budget however large the values grow, and the data file within its slack
+     */
+    @Test
+    public void testEvictsToStayWithinBudget() throws Exception {
+        Cache cache = new Cache("byteBudgetCache", 10, true, true, 0, 0);
+        cache.getCacheConfiguration().setMaxBytesOnDisk(BUDGET);
+        cache.getCacheConfiguration().setDiskExpiryThreadIntervalSeconds(1);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            for (int i = 0; i < 200; i++) {
+                store.put(new Element("small" + i, new byte[100]));
+            }
+            Thread.sleep(1000);
+            assertEquals(200, store.getSize());
+            assertTrue(store.getUsedDataSize() <= BUDGET);
+
+            //values grow tenfold
+            for (int i = 0; i < 200; i++) {
+                store.put(new Element("large" + i, new byte[1000]));
+                if (i % 20 == 0) {
+                    Thread.sleep(250);
+                }
+            }
+            Thread.sleep(1000);
+            assertTrue("used " + store.getUsedDataSize(), store.getUsedDataSize() <= BUDGET);
+            assertTrue(store.getSize() < 200);
+
+            //large records do not fit the gaps left by small ones, and are slid down instead
+            long maxDataFileSize = BUDGET + BUDGET / 100 * cache.getCacheConfiguration().getDiskBytesSlackPercent();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (store.getDataFileSize() > maxDataFileSize && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+            }
+            assertTrue("file " + store.getDataFileSize(), store.getDataFileSize() <= maxDataFileSize);
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * An element larger than the whole budget is not written
+     */
+    @Test
+    public void testElementLargerThanBudget() throws Exception {
+        Cache cache = new Cache("byteBudgetCache2", 10, true, true, 0, 0);
+        cache.getCacheConfiguration().setMaxBytesOnDisk(1000);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            store.put(new Element("small", "value"));
+            store.put(new Element("huge", new byte[5000]));
+            Thread.sleep(1000);
+            assertEquals("value", store.get("small").getObjectValue());
+            assertNull(store.get("huge"));
+        } finally {
+            store.dispose();
+        }
+    }
+}
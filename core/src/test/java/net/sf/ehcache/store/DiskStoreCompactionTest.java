@@ -0,0 +1,126 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for online compaction of the DiskStore data file
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskStoreCompactionTest {
+
+    /**
+     * A sparse data file shrinks, and the moved elements can still be read
+     */
+    @Test
+    public void testCompaction() throws Exception {
+        checkCompaction(false);
+    }
+
+    /**
+     * Records are relocated in a hashed index too
+     */
+    @Test
+    public void testCompactionWithHashedIndex() throws Exception {
+        checkCompaction(true);
+    }
+
+    /**
+     * A record at the end of the file which fits none of the gaps is slid down, with the records between, so that
+     * the file still shrinks
+     */
+    @Test
+    public void testRecordLargerThanGapsSlidesDown() throws Exception {
+        checkSliding(false);
+        checkSliding(true);
+    }
+
+    private void checkSliding(boolean hashedIndex) throws Exception {
+        Cache cache = new Cache("slidingCompactionCache", 10, true, true, 0, 0);
+        cache.getCacheConfiguration().setDiskHashedIndex(hashedIndex);
+        cache.getCacheConfiguration().setDiskExpiryThreadIntervalSeconds(1);
+        cache.getCacheConfiguration().setDiskCompactionThresholdPercent(20);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.put(new Element("key" + (1000 + i), "value" + (1000 + i)));
+            }
+            Thread.sleep(1000);
+            //larger than all the space freed below, so no amount of moving small records makes a gap it fits
+            int largeSize = (int) store.getDataFileSize() * 2;
+            store.put(new Element("large", new byte[largeSize]));
+            Thread.sleep(1000);
+            long fullSize = store.getDataFileSize();
+
+            for (int i = 0; i < 100; i++) {
+                if (i % 4 != 0) {
+                    store.remove("key" + (1000 + i));
+                }
+            }
+            assertTrue(store.calculateDataFileSparseness() > 0.2);
+
+            Thread.sleep(3000);
+            assertTrue("size " + store.getDataFileSize() + " was " + fullSize,
+                    store.getDataFileSize() < fullSize * 9 / 10);
+            assertEquals(26, store.getSize());
+            assertEquals(largeSize, ((byte[]) store.get("large").getObjectValue()).length);
+            for (int i = 0; i < 100; i += 4) {
+                assertEquals("value" + (1000 + i), store.get("key" + (1000 + i)).getObjectValue());
+            }
+        } finally {
+            store.dispose();
+        }
+    }
+
+    private void checkCompaction(boolean hashedIndex) throws Exception {
+        Cache cache = new Cache("compactionCache", 10, true, true, 0, 0);
+        cache.getCacheConfiguration().setDiskHashedIndex(hashedIndex);
+        cache.getCacheConfiguration().setDiskExpiryThreadIntervalSeconds(1);
+        cache.getCacheConfiguration().setDiskCompactionThresholdPercent(50);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            for (int i = 0; i < 300; i++) {
+                store.put(new Element("key" + (1000 + i), "value" + (1000 + i)));
+            }
+            Thread.sleep(1000);
+            long fullSize = store.getDataFileSize();
+            assertEquals(300, store.getSize());
+
+            for (int i = 0; i < 270; i++) {
+                store.remove("key" + (1000 + i));
+            }
+            assertTrue(store.calculateDataFileSparseness() > 0.5);
+
+            Thread.sleep(3000);
+            assertTrue("size " + store.getDataFileSize() + " was " + fullSize,
+                    store.getDataFileSize() < fullSize / 4);
+            assertEquals(30, store.getSize());
+            for (int i = 270; i < 300; i++) {
+                assertEquals("value" + (1000 + i), store.get("key" + (1000 + i)).getObjectValue());
+            }
+        } finally {
+            store.dispose();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests for the DiskStore eviction policies and sampling
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskStoreEvictionPolicyTest {
+
+    /**
+     * Samples are drawn only from DiskElements still in the index
+     */
+    @Test
+    public void testSampleAfterRemovals() {
+        ObjectDiskIndex index = new ObjectDiskIndex(1000);
+        for (int i = 0; i < 1000; i++) {
+            index.put("key" + i, diskElement("key" + i, i));
+        }
+        for (int i = 0; i < 1000; i += 2) {
+            index.remove("key" + i);
+        }
+        index.remove(index.get("key1"));
+        for (int round = 0; round < 100; round++) {
+            DiskElement[] sampled = index.sample();
+            assertEquals(AbstractPolicy.DEFAULT_SAMPLE_SIZE, sampled.length);
+            for (int i = 0; i < sampled.length; i++) {
+                assertSame(sampled[i], index.get(sampled[i].key));
+            }
+        }
+        index.clear();
+        assertEquals(0, index.sample().length);
+    }
+
+    /**
+     * The inbuilt policies compare the statistics held in the DiskElements
+     */
+    @Test
+    public void testPoliciesUseDiskElementStatistics() {
+        DiskElement old = diskElement("old", 0);
+        old.lastAccessTime = 5000;
+        old.lastUpdateTime = 1000;
+        old.hitcount = 50;
+        DiskElement recent = diskElement("recent", 1);
+        recent.lastAccessTime = 1000;
+        recent.lastUpdateTime = 5000;
+        recent.hitcount = 1;
+        Element[] elements = new Element[]{old.toMetadataElement(), recent.toMetadataElement()};
+
+        assertEquals("recent", new LruPolicy().selectedBasedOnPolicy(elements, null).getObjectKey());
+        assertEquals("old", new FifoPolicy().selectedBasedOnPolicy(elements, null).getObjectKey());
+        assertEquals("recent", new LfuPolicy().selectedBasedOnPolicy(elements, null).getObjectKey());
+    }
+
+    /**
+     * The configured policy is used, and may be replaced by a custom one
+     */
+    @Test
+    public void testCustomPolicy() throws Exception {
+        Cache cache = new Cache("evictionPolicyCache", 10, true, true, 0, 0);
+        cache.getCacheConfiguration().setMaxElementsOnDisk(20);
+        cache.getCacheConfiguration().setDiskStoreEvictionPolicy("FIFO");
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            assertTrue(store.getEvictionPolicy() instanceof FifoPolicy);
+            CountingPolicy policy = new CountingPolicy();
+            store.setEvictionPolicy(policy);
+            assertSame(policy, store.getEvictionPolicy());
+
+            for (int i = 0; i < 100; i++) {
+                store.put(new Element("key" + i, "value" + i));
+                Thread.sleep(5);
+            }
+            Thread.sleep(1000);
+            assertTrue(policy.selections > 0);
+            assertEquals(20, store.getSize());
+            Object[] keys = store.getKeyArray();
+            for (int i = 0; i < keys.length; i++) {
+                assertNotNull(store.get(keys[i]));
+            }
+        } finally {
+            store.dispose();
+        }
+    }
+
+    private static DiskElement diskElement(Object key, long position) {
+        DiskElement diskElement = new DiskElement();
+        diskElement.key = key;
+        diskElement.position = position;
+        diskElement.blockSize = 1;
+        diskElement.payloadSize = 1;
+        diskElement.expiryTime = Long.MAX_VALUE;
+        return diskElement;
+    }
+
+    /**
+     * Evicts the first sampled element, counting its selections
+     */
+    private static final class CountingPolicy extends AbstractPolicy {
+
+        private volatile int selections;
+
+        public String getName() {
+            return "Counting";
+        }
+
+        public Element selectedBasedOnPolicy(Element[] sampledElements, Element justAdded) {
+            selections++;
+            return sampledElements[0];
+        }
+
+        public boolean compare(Element element1, Element element2) {
+            return false;
+        }
+    }
+}
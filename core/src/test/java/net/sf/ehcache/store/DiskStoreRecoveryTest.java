@@ -0,0 +1,192 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Tests for recovery of a persistent DiskStore after a crash
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskStoreRecoveryTest {
+
+    private static final String TMP = System.getProperty("java.io.tmpdir");
+
+    /**
+     * Elements written after the index was last written are recovered from the data file. Removed elements stay
+     * removed and a torn record at the end of the file is ignored.
+     */
+    @Test
+    public void testRecoveryAfterCrash() throws Exception {
+        checkRecoveryAfterCrash(false);
+        checkRecoveryAfterCrash(true);
+    }
+
+    private void checkRecoveryAfterCrash(boolean hashedIndex) throws Exception {
+        File original = new File(TMP, "recovery" + System.currentTimeMillis());
+        File crashed = new File(TMP, "recoveryCrashed" + System.currentTimeMillis());
+        crashed.mkdirs();
+        DiskStore store = new DiskStore(createCache(hashedIndex), original.getPath());
+        try {
+            for (int i = 0; i < 200; i++) {
+                store.put(new Element("key" + i, "value" + i));
+            }
+            Thread.sleep(1000);
+            store.flush();
+            Thread.sleep(1000);
+
+            for (int i = 0; i < 50; i++) {
+                store.remove("key" + i);
+            }
+            for (int i = 50; i < 60; i++) {
+                store.put(new Element("key" + i, "updated" + i));
+            }
+            for (int i = 200; i < 220; i++) {
+                store.put(new Element("key" + i, "value" + i));
+            }
+            Thread.sleep(1000);
+
+            //the copy is what a crash at this point would leave behind
+            File dataFile = new File(original, store.getDataFileName());
+            File indexFile = new File(original, store.getIndexFileName());
+            assertEquals(0, indexFile.length());
+            copy(dataFile, new File(crashed, store.getDataFileName()), true);
+            copy(indexFile, new File(crashed, store.getIndexFileName()), false);
+        } finally {
+            store.dispose();
+        }
+
+        DiskStore recovered = new DiskStore(createCache(hashedIndex), crashed.getPath());
+        try {
+            assertEquals(170, recovered.getSize());
+            for (int i = 0; i < 50; i++) {
+                assertNull(recovered.get("key" + i));
+            }
+            for (int i = 50; i < 60; i++) {
+                assertEquals("updated" + i, recovered.get("key" + i).getObjectValue());
+            }
+            for (int i = 60; i < 220; i++) {
+                assertEquals("value" + i, recovered.get("key" + i).getObjectValue());
+            }
+        } finally {
+            recovered.dispose();
+        }
+    }
+
+    /**
+     * Where a key has two live records, the more recently updated wins, even when it lies before the other in the
+     * file, as it does when it reused a free block whose free mark was lost
+     */
+    @Test
+    public void testNewerRecordEarlierInFileWins() throws Exception {
+        checkNewerRecordEarlierInFileWins(false);
+        checkNewerRecordEarlierInFileWins(true);
+    }
+
+    private void checkNewerRecordEarlierInFileWins(boolean hashedIndex) throws Exception {
+        Element older = new Element("key", "older");
+        Thread.sleep(10);
+        Element newer = new Element("key", "newer");
+        byte[] newerRecord = writeRecord(newer, hashedIndex);
+        byte[] olderRecord = writeRecord(older, hashedIndex);
+
+        File crashed = new File(TMP, "recoveryDuplicate" + System.currentTimeMillis());
+        crashed.mkdirs();
+        DiskStore names = new DiskStore(createCache(hashedIndex), crashed.getPath());
+        names.dispose();
+        OutputStream out = new FileOutputStream(new File(crashed, names.getDataFileName()));
+        try {
+            out.write(newerRecord);
+            out.write(olderRecord);
+        } finally {
+            out.close();
+        }
+        new FileOutputStream(new File(crashed, names.getIndexFileName())).close();
+
+        DiskStore recovered = new DiskStore(createCache(hashedIndex), crashed.getPath());
+        try {
+            assertEquals(1, recovered.getSize());
+            assertEquals("newer", recovered.get("key").getObjectValue());
+        } finally {
+            recovered.dispose();
+        }
+    }
+
+    /**
+     * @return the data file of a store holding only the element
+     */
+    private byte[] writeRecord(Element element, boolean hashedIndex) throws Exception {
+        File directory = new File(TMP, "recoveryRecord" + System.nanoTime());
+        DiskStore store = new DiskStore(createCache(hashedIndex), directory.getPath());
+        try {
+            store.put(element);
+            Thread.sleep(1000);
+            return read(new File(directory, store.getDataFileName()));
+        } finally {
+            store.dispose();
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        byte[] bytes = new byte[(int) file.length()];
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies a file, optionally appending the start of it again, as a record torn by a crash would look
+     */
+    private static void copy(File from, File to, boolean appendTornRecord) throws IOException {
+        byte[] bytes = read(from);
+        OutputStream out = new FileOutputStream(to);
+        try {
+            out.write(bytes);
+            if (appendTornRecord) {
+                out.write(bytes, 0, Math.min(bytes.length, DiskRecordCodec.HEADER_SIZE + 10));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private Cache createCache(boolean hashedIndex) {
+        Cache cache = new Cache("recoveryCache", 10, true, true, 0, 0, true, 120);
+        cache.getCacheConfiguration().setDiskHashedIndex(hashedIndex);
+        return cache;
+    }
+}
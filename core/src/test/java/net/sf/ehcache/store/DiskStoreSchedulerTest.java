@@ -0,0 +1,122 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheManager;
+import net.sf.ehcache.Element;
+import net.sf.ehcache.config.CacheConfiguration;
+import net.sf.ehcache.config.Configuration;
+import net.sf.ehcache.config.DiskStoreConfiguration;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Tests for the DiskStoreScheduler shared by the DiskStores of a CacheManager
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskStoreSchedulerTest {
+
+    private static final int CACHES = 20;
+
+    /**
+     * The disk stores of many caches are written by the shared threads, without spool threads of their own
+     */
+    @Test
+    public void testSharedScheduler() throws Exception {
+        CacheManager manager = new CacheManager(createConfiguration(2));
+        try {
+            for (int i = 0; i < CACHES; i++) {
+                manager.addCache("schedulerCache" + i);
+                Cache cache = manager.getCache("schedulerCache" + i);
+                for (int j = 0; j < 100; j++) {
+                    cache.put(new Element("key" + j, "value" + j));
+                }
+            }
+            DiskStoreScheduler scheduler = manager.getDiskStoreScheduler();
+            assertEquals(2, scheduler.getThreadCount());
+            assertEquals(CACHES, scheduler.getStoreCount());
+            assertEquals(0, countSpoolThreads());
+
+            Thread.sleep(1000);
+            Map backlogs = scheduler.getSpoolBacklogs();
+            assertEquals(CACHES, backlogs.size());
+            for (Iterator iterator = backlogs.values().iterator(); iterator.hasNext();) {
+                assertEquals(0, ((Integer) iterator.next()).intValue());
+            }
+            for (int i = 0; i < CACHES; i++) {
+                Cache cache = manager.getCache("schedulerCache" + i);
+                assertEquals(100, cache.getSize());
+                assertEquals(90, cache.getDiskStoreSize());
+                assertEquals("value0", cache.get("key0").getObjectValue());
+            }
+
+            manager.shutdown();
+            assertFalse(scheduler.isAlive());
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    /**
+     * 0 threads gives each disk store its own spool thread
+     */
+    @Test
+    public void testSpoolThreadPerStore() throws Exception {
+        CacheManager manager = new CacheManager(createConfiguration(0));
+        try {
+            manager.addCache("spoolThreadCache");
+            assertNull(manager.getDiskStoreScheduler());
+            assertEquals(1, countSpoolThreads());
+        } finally {
+            manager.shutdown();
+        }
+    }
+
+    private Configuration createConfiguration(int threads) {
+        Configuration configuration = new Configuration();
+        DiskStoreConfiguration diskStoreConfiguration = new DiskStoreConfiguration();
+        diskStoreConfiguration.setPath(System.getProperty("java.io.tmpdir") + File.separator + "schedulerTest");
+        diskStoreConfiguration.setThreads(threads);
+        configuration.addDiskStore(diskStoreConfiguration);
+        CacheConfiguration defaultCache = new CacheConfiguration();
+        defaultCache.setMaxElementsInMemory(10);
+        defaultCache.setEternal(true);
+        defaultCache.setOverflowToDisk(true);
+        configuration.addDefaultCache(defaultCache);
+        return configuration;
+    }
+
+    private int countSpoolThreads() {
+        int count = 0;
+        for (Iterator iterator = Thread.getAllStackTraces().keySet().iterator(); iterator.hasNext();) {
+            Thread thread = (Thread) iterator.next();
+            if (thread.isAlive() && thread.getName().endsWith("Spool Thread")) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
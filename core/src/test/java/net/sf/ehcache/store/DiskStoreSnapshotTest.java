@@ -0,0 +1,186 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.CacheException;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+/**
+ * Tests for snapshots of the DiskStore
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class DiskStoreSnapshotTest {
+
+    private static final String TMP = System.getProperty("java.io.tmpdir");
+
+    /**
+     * A store started from a snapshot has the elements of the snapshot, not later ones
+     */
+    @Test
+    public void testSnapshotIsPointInTime() throws Exception {
+        checkSnapshotIsPointInTime(false);
+        checkSnapshotIsPointInTime(true);
+    }
+
+    private void checkSnapshotIsPointInTime(boolean hashedIndex) throws Exception {
+        File snapshotDirectory = new File(TMP, "snapshot" + System.currentTimeMillis());
+        DiskStore store = new DiskStore(createCache("snapshotCache", hashedIndex), TMP);
+        try {
+            for (int i = 0; i < 500; i++) {
+                store.put(new Element("key" + i, "value" + i));
+            }
+            store.snapshot(snapshotDirectory);
+
+            store.removeAll();
+            for (int i = 0; i < 100; i++) {
+                store.put(new Element("key" + i, "later" + i));
+            }
+            Thread.sleep(500);
+        } finally {
+            store.dispose();
+        }
+
+        DiskStore restored = new DiskStore(createCache("snapshotCache", hashedIndex), snapshotDirectory.getPath());
+        try {
+            assertEquals(500, restored.getSize());
+            for (int i = 0; i < 500; i++) {
+                assertEquals("value" + i, restored.get("key" + i).getObjectValue());
+            }
+        } finally {
+            restored.dispose();
+        }
+    }
+
+    /**
+     * Records of a snapshot are not overwritten by removals and updates made while it is copied
+     */
+    @Test
+    public void testChangesDuringSnapshot() throws Exception {
+        File snapshotDirectory = new File(TMP, "snapshot" + System.currentTimeMillis());
+        final DiskStore store = new DiskStore(createCache("snapshotChangesCache", false), TMP);
+        try {
+            for (int i = 0; i < 5000; i++) {
+                store.put(new Element("key" + i, "value" + i + new String(new char[200])));
+            }
+            Thread.sleep(1000);
+            Thread mutator = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 5000; i++) {
+                        if (i % 2 == 1) {
+                            store.remove("key" + i);
+                        } else if (i % 3 == 0) {
+                            store.put(new Element("key" + i, "updated" + i + new String(new char[200])));
+                        }
+                    }
+                }
+            };
+            mutator.start();
+            store.snapshot(snapshotDirectory);
+            mutator.join();
+            Thread.sleep(500);
+        } finally {
+            store.dispose();
+        }
+
+        DiskStore restored = new DiskStore(createCache("snapshotChangesCache", false), snapshotDirectory.getPath());
+        try {
+            for (int i = 0; i < 5000; i += 2) {
+                Element element = restored.get("key" + i);
+                assertNotNull("key" + i, element);
+                String value = (String) element.getObjectValue();
+                assertTrue(value, value.startsWith("value" + i + "\u0000") || value.startsWith("updated" + i + "\u0000"));
+            }
+        } finally {
+            restored.dispose();
+        }
+    }
+
+    /**
+     * Records freed while a snapshot is copied are not marked free in its copy of the data file, so a store which
+     * recovers from the snapshot's data file still has them
+     */
+    @Test
+    public void testRemovalDuringSnapshotIsRecovered() throws Exception {
+        checkRemovalDuringSnapshotIsRecovered(false);
+        checkRemovalDuringSnapshotIsRecovered(true);
+    }
+
+    private void checkRemovalDuringSnapshotIsRecovered(boolean hashedIndex) throws Exception {
+        File snapshotDirectory = new File(TMP, "snapshot" + System.currentTimeMillis());
+        DiskStore store = new DiskStore(createCache("snapshotRemovalCache", hashedIndex), TMP);
+        String indexFileName = store.getIndexFileName();
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.put(new Element("key" + i, "value" + i));
+            }
+            DiskStore.Snapshot snapshot = store.beginSnapshot(snapshotDirectory);
+            for (int i = 0; i < 100; i += 2) {
+                store.remove("key" + i);
+            }
+            store.writeSnapshot(snapshot, snapshotDirectory);
+            assertEquals(50, store.getSize());
+        } finally {
+            store.dispose();
+        }
+
+        //an empty index file makes the store recover from the data file
+        new FileOutputStream(new File(snapshotDirectory, indexFileName)).close();
+        DiskStore restored = new DiskStore(createCache("snapshotRemovalCache", hashedIndex), snapshotDirectory.getPath());
+        try {
+            assertEquals(100, restored.getSize());
+            for (int i = 0; i < 100; i++) {
+                assertEquals("value" + i, restored.get("key" + i).getObjectValue());
+            }
+        } finally {
+            restored.dispose();
+        }
+    }
+
+    /**
+     * Only caches with a disk store can be snapshotted
+     */
+    @Test
+    public void testCacheWithoutDiskStore() throws Exception {
+        Cache cache = new Cache("snapshotMemoryCache", 10, false, true, 0, 0);
+        cache.initialise();
+        try {
+            cache.snapshot(new File(TMP, "snapshotMemoryCache"));
+            fail();
+        } catch (CacheException e) {
+            //expected
+        } finally {
+            cache.dispose();
+        }
+    }
+
+    private Cache createCache(String name, boolean hashedIndex) {
+        Cache cache = new Cache(name, 10, true, true, 0, 0, true, 120);
+        cache.getCacheConfiguration().setDiskHashedIndex(hashedIndex);
+        return cache;
+    }
+}
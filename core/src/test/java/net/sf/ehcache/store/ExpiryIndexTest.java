@@ -0,0 +1,70 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for the DiskStore expiry index
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class ExpiryIndexTest {
+
+    /**
+     * Only keys in buckets which have started are candidates
+     */
+    @Test
+    public void testCandidateKeys() {
+        ExpiryIndex index = new ExpiryIndex(1000);
+        index.add("early", 1500);
+        index.add("sameBucket", 1999);
+        index.add("late", 5000);
+        index.add("eternal", Long.MAX_VALUE);
+        assertEquals(3, index.size());
+
+        assertEquals(0, index.candidateKeys(999).size());
+        List candidates = index.candidateKeys(1600);
+        assertEquals(2, candidates.size());
+        assertTrue(candidates.contains("early"));
+        assertTrue(candidates.contains("sameBucket"));
+        assertEquals(3, index.candidateKeys(5000).size());
+    }
+
+    /**
+     * Removed keys are no longer candidates
+     */
+    @Test
+    public void testRemove() {
+        ExpiryIndex index = new ExpiryIndex(1000);
+        index.add("key", 1500);
+        index.remove("key", 2500);
+        assertEquals(1, index.size());
+        index.remove("key", 1500);
+        assertEquals(0, index.size());
+        assertEquals(0, index.candidateKeys(10000).size());
+
+        index.add("key", 1500);
+        index.clear();
+        assertEquals(0, index.candidateKeys(10000).size());
+    }
+}
@@ -0,0 +1,333 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for the hashed DiskStore index
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class HashedDiskIndexTest {
+
+    /**
+     * Entries survive the growth of the table and removals from the middle of probe sequences
+     */
+    @Test
+    public void testPutGetRemove() {
+        HashedDiskIndex index = new HashedDiskIndex();
+        for (int i = 0; i < 5000; i++) {
+            assertNull(index.put("key" + i, diskElement(i * 100L, 100, Long.MAX_VALUE)));
+        }
+        assertEquals(5000, index.size());
+        for (int i = 0; i < 5000; i += 2) {
+            assertEquals(i * 100L, index.remove("key" + i).position);
+        }
+        assertEquals(2500, index.size());
+        for (int i = 0; i < 5000; i++) {
+            DiskElement diskElement = index.get("key" + i);
+            if (i % 2 == 0) {
+                assertNull(diskElement);
+                assertFalse(index.containsKey("key" + i));
+            } else {
+                assertEquals(i * 100L, diskElement.position);
+                assertEquals(100, diskElement.blockSize);
+                assertEquals(100, diskElement.payloadSize);
+                assertNull(diskElement.key);
+            }
+        }
+
+        int count = 0;
+        for (Iterator iterator = index.iterator(); iterator.hasNext(); iterator.next()) {
+            count++;
+        }
+        assertEquals(2500, count);
+
+        DiskElement diskElement = index.get("key1");
+        assertTrue(index.remove(diskElement));
+        assertFalse(index.remove(diskElement));
+        index.clear();
+        assertEquals(0, index.size());
+    }
+
+    /**
+     * Replacing an entry hands back the old location, and the payload size is widened to the block
+     */
+    @Test
+    public void testReplace() {
+        HashedDiskIndex index = new HashedDiskIndex();
+        index.put("key", diskElement(0, 100, Long.MAX_VALUE));
+        DiskElement newer = diskElement(500, 200, Long.MAX_VALUE);
+        newer.payloadSize = 150;
+        DiskElement replaced = index.put("key", newer);
+        assertEquals(0, replaced.position);
+        assertEquals(200, newer.payloadSize);
+        assertEquals(500, index.get("key").position);
+        assertEquals(1, index.size());
+    }
+
+    /**
+     * Only entries whose expiry time has passed are candidates
+     */
+    @Test
+    public void testExpiryCandidates() {
+        HashedDiskIndex index = new HashedDiskIndex();
+        index.put("early", diskElement(0, 10, 1500));
+        index.put("late", diskElement(10, 10, 9000));
+        index.put("eternal", diskElement(20, 10, Long.MAX_VALUE));
+        assertEquals(0, index.expiryCandidates(1000).size());
+        List candidates = index.expiryCandidates(2000);
+        assertEquals(1, candidates.size());
+        assertEquals(0, ((DiskElement) candidates.get(0)).position);
+        assertEquals(2, index.expiryCandidates(10000).size());
+        assertEquals(AbstractPolicy.DEFAULT_SAMPLE_SIZE > 3 ? 3 : AbstractPolicy.DEFAULT_SAMPLE_SIZE,
+                index.sample().length);
+    }
+
+    /**
+     * The runs of slots scanned for expiry stay correct as entries are moved by removals, growth and serialization
+     */
+    @Test
+    public void testExpiryAfterRemovalsAndGrowth() throws Exception {
+        HashedDiskIndex index = new HashedDiskIndex();
+        for (int i = 0; i < 5000; i++) {
+            index.put("key" + i, diskElement(i * 100L, 100, (i % 10 + 1) * 1000L));
+        }
+        for (int i = 0; i < 5000; i += 3) {
+            index.remove("key" + i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(index);
+        out.close();
+        HashedDiskIndex read = (HashedDiskIndex) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        for (int seconds = 0; seconds <= 11; seconds++) {
+            int expected = 0;
+            for (int i = 0; i < 5000; i++) {
+                if (i % 3 != 0 && (i % 10 + 1) <= seconds) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, index.expiryCandidates(seconds * 1000L).size());
+            assertEquals(expected, read.expiryCandidates(seconds * 1000L).size());
+        }
+    }
+
+    /**
+     * A copy is unaffected by later changes to either index, and an iterator fails rather than miss entries moved by
+     * a removal
+     */
+    @Test
+    public void testCopyAndIterator() {
+        HashedDiskIndex index = new HashedDiskIndex();
+        for (int i = 0; i < 1000; i++) {
+            index.put("key" + i, diskElement(i * 100L, 100, Long.MAX_VALUE));
+        }
+        DiskIndex copy = index.copy();
+        index.remove("key0");
+        index.put("key1", diskElement(999999, 100, Long.MAX_VALUE));
+        copy.remove("key2");
+        assertEquals(100, copy.get("key1").position);
+        assertNotNull(copy.get("key0"));
+        assertEquals(999999, index.get("key1").position);
+        assertNotNull(index.get("key2"));
+        assertEquals(999, index.size());
+        assertEquals(999, copy.size());
+
+        Iterator iterator = index.iterator();
+        iterator.next();
+        for (int i = 1000; i < 1100; i++) {
+            index.put("key" + i, diskElement(i * 100L, 100, Long.MAX_VALUE));
+        }
+        int count = 1;
+        for (; iterator.hasNext(); iterator.next()) {
+            count++;
+        }
+        assertTrue(count >= 999);
+
+        iterator = index.iterator();
+        iterator.next();
+        index.remove("key3");
+        try {
+            while (iterator.hasNext()) {
+                iterator.next();
+            }
+            fail();
+        } catch (ConcurrentModificationException e) {
+            //expected
+        }
+    }
+
+    /**
+     * Equal keys hash the same, and the hash is never the free slot marker
+     */
+    @Test
+    public void testHash() {
+        assertEquals(HashedDiskIndex.hash(new String("key")), HashedDiskIndex.hash("key"));
+        assertEquals(HashedDiskIndex.hash(new Long(42)), HashedDiskIndex.hash(new Long(42)));
+        assertFalse(HashedDiskIndex.hash(new Long(42)) == HashedDiskIndex.hash(new Integer(42)));
+        assertFalse(HashedDiskIndex.hash("key1") == HashedDiskIndex.hash("key2"));
+        assertFalse(0 == HashedDiskIndex.hash(""));
+    }
+
+    /**
+     * A DiskStore with a hashed index reads, removes and lists its elements
+     */
+    @Test
+    public void testDiskStoreWithHashedIndex() throws Exception {
+        Cache cache = new Cache("hashedIndexCache", 10, true, false, 100, 100);
+        cache.getCacheConfiguration().setDiskHashedIndex(true);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            for (int i = 0; i < 100; i++) {
+                store.put(new Element("key" + i, "value" + i));
+            }
+            Thread.sleep(1000);
+            assertEquals(100, store.getSize());
+
+            for (int i = 0; i < 100; i++) {
+                Element element = store.get("key" + i);
+                assertNotNull(element);
+                assertEquals("value" + i, element.getObjectValue());
+            }
+            assertNull(store.get("missing"));
+
+            Set keys = new HashSet(Arrays.asList(store.getKeyArray()));
+            assertEquals(100, keys.size());
+            assertTrue(keys.contains("key42"));
+
+            assertEquals("value1", store.remove("key1").getObjectValue());
+            assertNull(store.get("key1"));
+            assertEquals(99, store.getSize());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * A record written into a freed block longer than itself is read back, although the whole block is read
+     */
+    @Test
+    public void testReusedBlock() throws Exception {
+        Cache cache = new Cache("hashedIndexReuseCache", 10, true, false, 100, 100);
+        cache.getCacheConfiguration().setDiskHashedIndex(true);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            store.put(new Element("a", value(1000)));
+            Thread.sleep(1000);
+            long dataFileSize = store.getDataFileSize();
+            store.remove("a");
+
+            store.put(new Element("b", value(800)));
+            Thread.sleep(1000);
+            assertEquals(dataFileSize, store.getDataFileSize());
+            Element element = store.get("b");
+            assertNotNull(element);
+            assertEquals(value(800), element.getObjectValue());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * Keys hashed from their hashCode are confirmed against the record, so another key with the same hashCode is not
+     * reported as present
+     */
+    @Test
+    public void testKeysWithEqualHashCodes() throws Exception {
+        Cache cache = new Cache("hashedIndexCollisionCache", 10, true, false, 100, 100);
+        cache.getCacheConfiguration().setDiskHashedIndex(true);
+        DiskStore store = new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+        try {
+            CollidingKey stored = new CollidingKey(1);
+            CollidingKey other = new CollidingKey(2);
+            assertEquals(stored.hashCode(), other.hashCode());
+            store.put(new Element(stored, "value"));
+            Thread.sleep(1000);
+
+            assertTrue(store.containsKey(stored));
+            assertFalse(store.containsKey(other));
+            assertNull(store.get(other));
+            assertEquals("value", store.get(stored).getObjectValue());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * A key whose hashCode is the same for every instance
+     */
+    private static final class CollidingKey implements Serializable {
+
+        private final int id;
+
+        private CollidingKey(int id) {
+            this.id = id;
+        }
+
+        public boolean equals(Object object) {
+            return object instanceof CollidingKey && ((CollidingKey) object).id == id;
+        }
+
+        public int hashCode() {
+            return 1;
+        }
+    }
+
+    private static String value(int length) {
+        Random random = new Random(length);
+        StringBuffer value = new StringBuffer(length);
+        for (int i = 0; i < length; i++) {
+            value.append((char) ('a' + random.nextInt(26)));
+        }
+        return value.toString();
+    }
+
+    private static DiskElement diskElement(long position, int blockSize, long expiryTime) {
+        DiskElement diskElement = new DiskElement();
+        diskElement.position = position;
+        diskElement.blockSize = blockSize;
+        diskElement.payloadSize = blockSize;
+        diskElement.expiryTime = expiryTime;
+        return diskElement;
+    }
+}
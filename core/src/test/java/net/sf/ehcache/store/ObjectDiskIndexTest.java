@@ -0,0 +1,116 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Tests for the default DiskStore index
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class ObjectDiskIndexTest {
+
+    /**
+     * A copy has the entries of the index when it was taken, whatever the index does before the copy is first used
+     */
+    @Test
+    public void testCopyIsPointInTime() throws Exception {
+        ObjectDiskIndex index = new ObjectDiskIndex(1000);
+        for (int i = 0; i < 1000; i++) {
+            index.put("key" + i, diskElement("key" + i, i * 100L));
+        }
+        DiskIndex copy = index.copy();
+
+        DiskElement removed = index.remove("key0");
+        //as the DiskStore does when it frees the block of a removed element
+        removed.key = null;
+        removed.payloadSize = 0;
+        index.put("key1", diskElement("key1", 999999));
+        index.relocate(index.get("key2"), 888888, 100);
+        index.put("key1000", diskElement("key1000", 100000));
+        index.clear();
+        index.put("key3", diskElement("key3", 777777));
+
+        assertEquals(1000, copy.size());
+        assertEquals(0, copy.get("key0").position);
+        assertEquals("key0", copy.get("key0").key);
+        assertEquals(100, copy.get("key0").payloadSize);
+        assertEquals(100, copy.get("key1").position);
+        assertEquals(200, copy.get("key2").position);
+        assertEquals(300, copy.get("key3").position);
+        assertNull(copy.get("key1000"));
+        assertEquals(1, index.size());
+        assertEquals(777777, index.get("key3").position);
+
+        copy.remove("key4");
+        assertFalse(copy.containsKey("key4"));
+        index.put("key5", diskElement("key5", 555555));
+        assertEquals(500, copy.get("key5").position);
+    }
+
+    /**
+     * A copy which was not used before it is written has the entries of the index when it was taken
+     */
+    @Test
+    public void testCopyIsSerialized() throws Exception {
+        ObjectDiskIndex index = new ObjectDiskIndex(1000);
+        for (int i = 0; i < 100; i++) {
+            index.put("key" + i, diskElement("key" + i, i * 100L));
+        }
+        DiskIndex copy = index.copy();
+        DiskIndex second = index.copy();
+        for (int i = 0; i < 100; i += 2) {
+            index.remove("key" + i);
+        }
+        assertEquals(100, second.size());
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(copy);
+        out.close();
+        DiskIndex read = (DiskIndex) new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+        assertEquals(100, read.size());
+        for (int i = 0; i < 100; i++) {
+            assertNotNull(read.get("key" + i));
+        }
+        assertTrue(read.remove(read.get("key1")));
+        assertEquals(99, read.size());
+        assertEquals(50, index.size());
+    }
+
+    private static DiskElement diskElement(String key, long position) {
+        DiskElement diskElement = new DiskElement();
+        diskElement.key = key;
+        diskElement.position = position;
+        diskElement.blockSize = 100;
+        diskElement.payloadSize = 100;
+        diskElement.expiryTime = Long.MAX_VALUE;
+        return diskElement;
+    }
+}
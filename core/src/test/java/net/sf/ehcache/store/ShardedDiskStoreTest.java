@@ -0,0 +1,109 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import org.junit.After;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+/**
+ * Tests for the sharded disk store
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class ShardedDiskStoreTest {
+
+    private static final int SHARDS = 4;
+
+    private ShardedDiskStore store;
+
+    /**
+     * Creates a four shard store for an overflow cache
+     */
+    @Before
+    public void setUp() throws Exception {
+        Cache cache = new Cache("shardedCache", 10, true, false, 100, 100);
+        cache.getCacheConfiguration().setDiskStoreShards(SHARDS);
+        cache.getCacheConfiguration().setMaxElementsOnDisk(1000);
+        store = new ShardedDiskStore(cache, System.getProperty("java.io.tmpdir"), SHARDS);
+    }
+
+    /**
+     * Disposes the store
+     */
+    @After
+    public void tearDown() throws Exception {
+        if (store != null) {
+            store.dispose();
+        }
+    }
+
+    /**
+     * Each shard gets its own data file and spool thread
+     */
+    @Test
+    public void testShardsHaveTheirOwnFiles() {
+        DiskStore[] shards = store.getShards();
+        assertEquals(SHARDS, shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            assertEquals("shardedCache_shard" + i + ".data", shards[i].getDataFileName());
+            assertTrue(new File(shards[i].getDataFilePath(), shards[i].getDataFileName()).exists());
+        }
+        assertTrue(store.isSpoolThreadAlive());
+    }
+
+    /**
+     * Elements are spread over the shards and can be read back after they were spooled
+     */
+    @Test
+    public void testPutGetRemove() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.put(new Element("key" + i, "value" + i));
+        }
+        Thread.sleep(1000);
+        assertEquals(100, store.getSize());
+        assertEquals(100, store.getKeyArray().length);
+        DiskStore[] shards = store.getShards();
+        for (int i = 0; i < shards.length; i++) {
+            assertTrue(shards[i].getSize() > 0);
+        }
+
+        for (int i = 0; i < 100; i++) {
+            Element element = store.get("key" + i);
+            assertNotNull(element);
+            assertEquals("value" + i, element.getObjectValue());
+        }
+
+        assertNotNull(store.remove("key1"));
+        assertFalse(store.containsKey("key1"));
+        assertNull(store.get("key1"));
+        assertEquals(99, store.getSize());
+
+        store.removeAll();
+        assertEquals(0, store.getSize());
+    }
+}
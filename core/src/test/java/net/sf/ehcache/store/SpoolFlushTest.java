@@ -0,0 +1,139 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.store;
+
+import net.sf.ehcache.Cache;
+import net.sf.ehcache.Element;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+import java.util.concurrent.CyclicBarrier;
+
+/**
+ * Tests for the signal driven DiskStore spool thread
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class SpoolFlushTest {
+
+    /**
+     * A single element is written within the maximum spool delay, without waiting for the spool to fill
+     */
+    @Test
+    public void testSingleElementWrittenPromptly() throws Exception {
+        DiskStore store = createStore("spoolSingleCache", 1);
+        try {
+            Thread.sleep(300);
+            store.put(new Element("key", "value"));
+            assertEquals(0, store.getDataFileSize());
+            long deadline = System.currentTimeMillis() + 1000;
+            while (store.getDataFileSize() == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(store.getDataFileSize() > 0);
+            assertEquals("value", store.get("key").getObjectValue());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * Concurrent puts into an empty spool wake the spool thread, however they interleave
+     */
+    @Test
+    public void testConcurrentFirstPutsWrittenPromptly() throws Exception {
+        final DiskStore store = createStore("spoolConcurrentCache", 1);
+        try {
+            for (int round = 0; round < 20; round++) {
+                final int trial = round;
+                final CyclicBarrier barrier = new CyclicBarrier(4);
+                Thread[] threads = new Thread[4];
+                for (int i = 0; i < threads.length; i++) {
+                    final int thread = i;
+                    threads[i] = new Thread() {
+                        public void run() {
+                            try {
+                                barrier.await();
+                            } catch (Exception e) {
+                                return;
+                            }
+                            store.put(new Element("key" + trial + "-" + thread, "value"));
+                        }
+                    };
+                    threads[i].start();
+                }
+                for (int i = 0; i < threads.length; i++) {
+                    threads[i].join();
+                }
+                long deadline = System.currentTimeMillis() + 1000;
+                while (store.getSpoolBacklog() > 0 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals("round " + round, 0, store.getSpoolBacklog());
+            }
+            assertEquals(80, store.getSize());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * A producer waiting for buffer space is released once the spool has been written
+     */
+    @Test
+    public void testWaitForBufferSpace() throws Exception {
+        DiskStore store = createStore("spoolBackPressureCache", 1);
+        try {
+            byte[] value = new byte[100 * 1024];
+            for (int i = 0; i < 100; i++) {
+                store.put(new Element("key" + i, value));
+                if (store.bufferFull()) {
+                    long start = System.currentTimeMillis();
+                    store.waitForBufferSpace(5000);
+                    assertTrue(System.currentTimeMillis() - start < 5000);
+                    assertFalse(store.bufferFull());
+                }
+            }
+            store.waitForBufferSpace(5000);
+            assertFalse(store.bufferFull());
+            assertEquals(100, store.getSize());
+        } finally {
+            store.dispose();
+        }
+    }
+
+    /**
+     * Memory stores have no buffer to wait for
+     */
+    @Test
+    public void testMemoryStoreDoesNotWait() throws Exception {
+        Cache cache = new Cache("spoolMemoryCache", 10, false, true, 0, 0);
+        MemoryStore store = MemoryStore.create(cache, null);
+        long start = System.currentTimeMillis();
+        store.waitForBufferSpace(5000);
+        assertTrue(System.currentTimeMillis() - start < 1000);
+    }
+
+    private DiskStore createStore(String name, int spoolBufferSizeMB) {
+        Cache cache = new Cache(name, 10, true, true, 0, 0);
+        cache.getCacheConfiguration().setDiskSpoolBufferSizeMB(spoolBufferSizeMB);
+        return new DiskStore(cache, System.getProperty("java.io.tmpdir"));
+    }
+}
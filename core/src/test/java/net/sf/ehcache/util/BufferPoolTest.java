@@ -0,0 +1,82 @@
+/**
+ *  Copyright 2003-2008 Luck Consulting Pty Ltd
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package net.sf.ehcache.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+/**
+ * Tests for the serialization buffer pool
+ *
+ * @author Greg Luck
+ * @version $Id$
+ */
+public class BufferPoolTest {
+
+    /**
+     * Requests are rounded up to a size class, and released buffers are handed out again
+     */
+    @Test
+    public void testSizeClassesAndReuse() {
+        byte[] small = BufferPool.acquire(10);
+        assertEquals(BufferPool.MINIMUM_BUFFER_SIZE, small.length);
+        byte[] medium = BufferPool.acquire(3000);
+        assertEquals(4096, medium.length);
+
+        BufferPool.release(medium);
+        assertSame(medium, BufferPool.acquire(2049));
+
+        //released twice is only pooled once
+        BufferPool.release(small);
+        BufferPool.release(small);
+        assertSame(small, BufferPool.acquire(1));
+        assertFalse(small == BufferPool.acquire(1));
+    }
+
+    /**
+     * Buffers larger than the largest size class are allocated exactly and never pooled
+     */
+    @Test
+    public void testLargeBuffersAreNotPooled() {
+        int size = BufferPool.MAXIMUM_BUFFER_SIZE + 1;
+        byte[] large = BufferPool.acquire(size);
+        assertEquals(size, large.length);
+        BufferPool.release(large);
+        assertFalse(large == BufferPool.acquire(size));
+    }
+
+    /**
+     * A pooled stream hands its buffer back on release, and a pooled input stream on close
+     */
+    @Test
+    public void testPooledStreams() {
+        MemoryEfficientByteArrayOutputStream out = MemoryEfficientByteArrayOutputStream.pooled(100);
+        byte[] buffer = out.getBytes();
+        out.write(1);
+        out.release();
+        assertEquals(0, out.size());
+        assertSame(buffer, BufferPool.acquire(100));
+
+        PooledByteArrayInputStream in = new PooledByteArrayInputStream(buffer, 0, 10);
+        assertEquals(10, in.available());
+        in.close();
+        assertEquals(0, in.available());
+        assertSame(buffer, BufferPool.acquire(100));
+    }
+}